@@ -0,0 +1,124 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice;
+
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.trans.TransMeta;
+
+/**
+ * Synthetic fixtures shared by the benchmarks. Nothing here touches a repository, metastore or database.
+ */
+public final class BenchmarkFixtures {
+  public static final String SERVICE_NAME = "benchmark_service";
+  public static final String SERVICE_STEP = "OUTPUT";
+
+  /**
+   * Representative query shapes, from a plain projection to grouped and sorted queries.
+   */
+  public enum Query {
+    SELECT_ALL( "SELECT * FROM " + SERVICE_NAME ),
+    PROJECTION( "SELECT sField0, iField0, nField0, dField0 FROM " + SERVICE_NAME ),
+    FILTER( "SELECT sField0, iField0 FROM " + SERVICE_NAME
+      + " WHERE iField1 > 100 AND sField2 IN ('a', 'b', 'c') AND ( nField0 < 1.5 OR sField3 = 'x' )"
+      + " AND dField1 >= '2015-01-01'" ),
+    IN_LIST( "SELECT * FROM " + SERVICE_NAME
+      + " WHERE iField0 IN (1, 2, 3, 5, 8, 13, 21, 34, 55, 89) AND sField0 IN ('a', 'b', 'c', 'd', 'e')" ),
+    AGGREGATE( "SELECT sField0, COUNT(*), SUM(iField0), AVG(nField0), MAX(dField0) FROM " + SERVICE_NAME
+      + " WHERE iField1 > 10 GROUP BY sField0 HAVING COUNT(*) > 10" ),
+    ORDER_LIMIT( "SELECT sField0, iField0 FROM " + SERVICE_NAME + " ORDER BY iField0 DESC, sField0 LIMIT 100" ),
+    DISTINCT( "SELECT DISTINCT sField0, sField1 FROM " + SERVICE_NAME );
+
+    private final String sql;
+
+    Query( String sql ) {
+      this.sql = sql;
+    }
+
+    public String getSql() {
+      return sql;
+    }
+  }
+
+  private BenchmarkFixtures() {
+  }
+
+  /**
+   * Initialize the Kettle environment once per fork. Step and value meta plugins are needed to generate
+   * transformations.
+   */
+  public static synchronized void init() throws KettleException {
+    if ( !KettleEnvironment.isInitialized() ) {
+      KettleEnvironment.init( false );
+    }
+  }
+
+  /**
+   * @return fields of the synthetic service: ten strings, ten integers, five numbers and five dates
+   */
+  public static RowMetaInterface serviceFields() {
+    RowMeta rowMeta = new RowMeta();
+    for ( int i = 0; i < 10; i++ ) {
+      rowMeta.addValueMeta( new ValueMeta( "sField" + i, ValueMetaInterface.TYPE_STRING, 50 ) );
+      rowMeta.addValueMeta( new ValueMeta( "iField" + i, ValueMetaInterface.TYPE_INTEGER, 7 ) );
+    }
+    for ( int i = 0; i < 5; i++ ) {
+      rowMeta.addValueMeta( new ValueMeta( "nField" + i, ValueMetaInterface.TYPE_NUMBER, 9, 2 ) );
+      rowMeta.addValueMeta( new ValueMeta( "dField" + i, ValueMetaInterface.TYPE_DATE ) );
+    }
+    return rowMeta;
+  }
+
+  /**
+   * Service transformation reporting the given fields for {@link #SERVICE_STEP}, without any steps to load.
+   */
+  public static TransMeta serviceTransMeta( final RowMetaInterface fields ) {
+    TransMeta transMeta = new TransMeta() {
+      @Override public RowMetaInterface getStepFields( String stepname ) throws KettleStepException {
+        return SERVICE_STEP.equals( stepname ) ? fields.clone() : new RowMeta();
+      }
+    };
+    transMeta.setName( SERVICE_NAME );
+    return transMeta;
+  }
+
+  public static DataServiceMeta dataService( TransMeta serviceTrans ) {
+    DataServiceMeta dataService = new DataServiceMeta( serviceTrans );
+    dataService.setName( SERVICE_NAME );
+    dataService.setStepname( SERVICE_STEP );
+    return dataService;
+  }
+
+  public static SQL parse( Query query, RowMetaInterface fields ) throws KettleException {
+    SQL sql = new SQL( query.getSql() );
+    sql.parse( fields );
+    return sql;
+  }
+}
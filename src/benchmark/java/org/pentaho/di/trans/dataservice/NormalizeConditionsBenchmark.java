@@ -0,0 +1,80 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.sql.SQL;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link DataServiceExecutor#normalizeConditions}.
+ * <p>
+ * Normalization rewrites the parsed conditions in place, so every invocation starts from a freshly parsed query.
+ * {@link #parse()} measures parsing alone and should be subtracted from {@link #parseAndNormalize()}.
+ * </p>
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5 )
+@Measurement( iterations = 10 )
+@Fork( 1 )
+public class NormalizeConditionsBenchmark {
+
+  @Param( { "FILTER", "IN_LIST", "AGGREGATE" } )
+  public BenchmarkFixtures.Query query;
+
+  private RowMetaInterface fields;
+
+  @Setup
+  public void setUp() throws KettleException {
+    BenchmarkFixtures.init();
+    fields = BenchmarkFixtures.serviceFields();
+  }
+
+  @Benchmark
+  public SQL parse() throws KettleException {
+    return BenchmarkFixtures.parse( query, fields );
+  }
+
+  @Benchmark
+  public SQL parseAndNormalize() throws KettleException {
+    SQL sql = BenchmarkFixtures.parse( query, fields );
+    DataServiceExecutor.normalizeConditions( sql, fields );
+    return sql;
+  }
+}
@@ -0,0 +1,74 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.trans.TransMeta;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of generating the query transformation for each of the {@link BenchmarkFixtures.Query} shapes.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5 )
+@Measurement( iterations = 10 )
+@Fork( 1 )
+public class SqlTransGeneratorBenchmark {
+
+  @Param
+  public BenchmarkFixtures.Query query;
+
+  private SQL sql;
+
+  @Setup
+  public void setUp() throws KettleException {
+    BenchmarkFixtures.init();
+    sql = BenchmarkFixtures.parse( query, BenchmarkFixtures.serviceFields() );
+  }
+
+  @Benchmark
+  public TransMeta generateTransMeta() throws KettleException {
+    return new SqlTransGenerator( sql, 0 ).generateTransMeta();
+  }
+
+  @Benchmark
+  public TransMeta generateTransMetaWithRowLimit() throws KettleException {
+    return new SqlTransGenerator( sql, 1000 ).generateTransMeta();
+  }
+}
@@ -0,0 +1,256 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.load;
+
+import com.google.common.io.ByteStreams;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.di.core.exception.KettleEOFException;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.dataservice.clients.DataServiceClient;
+import org.pentaho.di.trans.dataservice.www.TransDataServlet;
+import org.pentaho.di.www.CarteObjectEntry;
+import org.pentaho.di.www.SlaveServerConfig;
+import org.pentaho.di.www.TransformationMap;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end load test of the synthetic data service.
+ * <p>
+ * Queries run concurrently either over HTTP through {@link TransDataServlet} in an embedded Jetty server, or through
+ * a local {@link DataServiceClient}. {@link #throughput} reports queries and rows per second, {@link #latency}
+ * reports the latency distribution (p50, p90, p99, ...). Run with {@code -prof gc} (the default for the benchmark
+ * profile) to report GC counts and allocation per query; query transformations run on their own step threads, so
+ * the {@code gc.churn} figures are the ones that account for all of a query's allocation.
+ * </p>
+ * <p>
+ * Row count, row width and key cardinality of the service are parameters, e.g.
+ * {@code -Djmh.includes=QueryLoad -Djmh.params="-p rowCount=100000 -t 16"}.
+ * </p>
+ */
+@State( Scope.Benchmark )
+@Warmup( iterations = 3, time = 10 )
+@Measurement( iterations = 5, time = 10 )
+@Fork( 1 )
+@Threads( 4 )
+public class QueryLoadBenchmark {
+
+  public enum Transport {
+    SERVLET {
+      @Override long execute( QueryLoadBenchmark benchmark, String sql ) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) benchmark.url.openConnection();
+        connection.setRequestProperty( "SQL", sql );
+        connection.setRequestProperty( "MaxRows", "-1" );
+        try {
+          if ( connection.getResponseCode() != HttpURLConnection.HTTP_OK ) {
+            InputStream errorStream = connection.getErrorStream();
+            throw new IOException( "Query failed: " + ( errorStream == null ? connection.getResponseMessage()
+              : new String( ByteStreams.toByteArray( errorStream ) ) ) );
+          }
+          return readRows( new DataInputStream( connection.getInputStream() ) );
+        } finally {
+          connection.disconnect();
+          benchmark.removeFinished();
+        }
+      }
+    },
+    CLIENT {
+      @Override long execute( QueryLoadBenchmark benchmark, String sql ) throws Exception {
+        DataInputStream inputStream = benchmark.client.query( sql, -1 );
+        if ( inputStream == null ) {
+          throw new SQLException( "Query failed: " + sql );
+        }
+        return readRows( inputStream );
+      }
+    };
+
+    abstract long execute( QueryLoadBenchmark benchmark, String sql ) throws Exception;
+  }
+
+  public enum Query {
+    SELECT_ALL( "SELECT * FROM " + SyntheticService.SERVICE_NAME ),
+    FILTER( "SELECT * FROM " + SyntheticService.SERVICE_NAME + " WHERE bucket = 1" ),
+    GROUP_BY( "SELECT bucket, COUNT(*) FROM " + SyntheticService.SERVICE_NAME + " GROUP BY bucket" ),
+    ORDER_LIMIT( "SELECT id, bucket FROM " + SyntheticService.SERVICE_NAME + " ORDER BY id DESC LIMIT 100" );
+
+    private final String sql;
+
+    Query( String sql ) {
+      this.sql = sql;
+    }
+  }
+
+  @AuxCounters( AuxCounters.Type.OPERATIONS )
+  @State( Scope.Thread )
+  public static class Rows {
+    public long rows;
+
+    @Setup( Level.Iteration )
+    public void reset() {
+      rows = 0;
+    }
+  }
+
+  @Param
+  public Transport transport;
+
+  @Param
+  public Query query;
+
+  @Param( "10000" )
+  public int rowCount;
+
+  @Param( "10" )
+  public int rowWidth;
+
+  @Param( "100" )
+  public int cardinality;
+
+  @Param( "16" )
+  public int valueLength;
+
+  private SyntheticService service;
+  private Server server;
+  private TransformationMap transformationMap;
+  private DataServiceClient client;
+  private URL url;
+
+  @Setup( Level.Trial )
+  public void setUp() throws Exception {
+    service = new SyntheticService( rowCount, rowWidth, cardinality, valueLength ).publish();
+
+    client = new DataServiceClient( service.getContext() );
+    client.setMetaStore( service.getMetaStore() );
+
+    SlaveServerConfig config = new SlaveServerConfig();
+    config.getMetaStore().addMetaStore( service.getMetaStore() );
+    config.getMetaStore().setActiveMetaStoreName( service.getMetaStore().getName() );
+    transformationMap = new TransformationMap();
+    transformationMap.setSlaveServerConfig( config );
+
+    TransDataServlet servlet = new TransDataServlet( service.getContext() );
+    servlet.setup( transformationMap, null, null, null );
+    servlet.setJettyMode( true );
+
+    server = new Server( 0 );
+    ServletContextHandler handler = new ServletContextHandler( ServletContextHandler.NO_SESSIONS );
+    handler.setContextPath( TransDataServlet.CONTEXT_PATH );
+    handler.addServlet( new ServletHolder( servlet ), "/*" );
+    server.setHandler( handler );
+    server.start();
+    url = new URL( "http", "localhost", server.getConnectors()[0].getLocalPort(), TransDataServlet.CONTEXT_PATH );
+  }
+
+  @TearDown( Level.Trial )
+  public void tearDown() throws Exception {
+    if ( server != null ) {
+      server.stop();
+    }
+    if ( service != null ) {
+      service.delete();
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode( Mode.Throughput )
+  @OutputTimeUnit( TimeUnit.SECONDS )
+  public long throughput( Rows rows ) throws Exception {
+    return execute( rows );
+  }
+
+  @Benchmark
+  @BenchmarkMode( Mode.SampleTime )
+  @OutputTimeUnit( TimeUnit.MILLISECONDS )
+  public long latency( Rows rows ) throws Exception {
+    return execute( rows );
+  }
+
+  private long execute( Rows rows ) throws Exception {
+    long count = transport.execute( this, query.sql );
+    rows.rows += count;
+    return count;
+  }
+
+  /**
+   * Carte keeps executed transformations for inspection, drop them so the heap only reflects running queries.
+   */
+  private void removeFinished() {
+    for ( CarteObjectEntry entry : transformationMap.getTransformationObjects() ) {
+      Trans trans = transformationMap.getTransformation( entry );
+      if ( trans == null || trans.isFinishedOrStopped() ) {
+        transformationMap.removeTransformation( entry );
+      }
+    }
+  }
+
+  /**
+   * Read a query response as written by {@link org.pentaho.di.trans.dataservice.DataServiceExecutor}: five metadata
+   * strings, row metadata and then rows until the end of the stream.
+   */
+  static long readRows( DataInputStream inputStream ) throws KettleException, IOException {
+    try {
+      for ( int i = 0; i < 5; i++ ) {
+        inputStream.readUTF();
+      }
+      RowMetaInterface rowMeta = new RowMeta( inputStream );
+      long rows = 0;
+      while ( true ) {
+        try {
+          rowMeta.readData( inputStream );
+        } catch ( KettleEOFException e ) {
+          return rows;
+        }
+        rows++;
+      }
+    } finally {
+      inputStream.close();
+    }
+  }
+}
@@ -0,0 +1,208 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.load;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import org.pentaho.caching.api.Constants;
+import org.pentaho.caching.api.PentahoCacheManager;
+import org.pentaho.caching.api.PentahoCacheTemplateConfiguration;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.variables.Variables;
+import org.pentaho.di.core.xml.XMLHandler;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.dataservice.BenchmarkFixtures;
+import org.pentaho.di.trans.dataservice.DataServiceContext;
+import org.pentaho.di.trans.dataservice.DataServiceMeta;
+import org.pentaho.di.trans.dataservice.optimization.AutoOptimizationService;
+import org.pentaho.di.trans.dataservice.optimization.PushDownFactory;
+import org.pentaho.metastore.api.exceptions.MetaStoreException;
+import org.pentaho.metastore.stores.memory.MemoryMetaStore;
+
+import javax.cache.Cache;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * A published data service backed by a generated transformation, for load testing without a database.
+ * <p>
+ * The service transformation generates {@code rowCount} rows with a unique {@code id}, a {@code bucket} cycling
+ * through {@code cardinality} values and {@code rowWidth} string columns {@code field_0 .. field_n}. It is written
+ * to a temporary file and published to an in-memory metastore, so queries resolve it exactly like a service saved
+ * from Spoon.
+ * </p>
+ */
+public class SyntheticService {
+  public static final String SERVICE_NAME = "synthetic";
+  public static final String SERVICE_STEP = "OUTPUT";
+
+  private final int rowCount;
+  private final int rowWidth;
+  private final int cardinality;
+  private final int valueLength;
+
+  private File directory;
+  private MemoryMetaStore metaStore;
+  private DataServiceContext context;
+
+  public SyntheticService( int rowCount, int rowWidth, int cardinality, int valueLength ) {
+    this.rowCount = rowCount;
+    this.rowWidth = rowWidth;
+    this.cardinality = cardinality;
+    this.valueLength = valueLength;
+  }
+
+  public SyntheticService publish() throws KettleException, MetaStoreException, IOException {
+    BenchmarkFixtures.init();
+
+    directory = Files.createTempDir();
+    File file = new File( directory, SERVICE_NAME + ".ktr" );
+
+    metaStore = new MemoryMetaStore();
+    metaStore.setName( SyntheticService.class.getName() );
+    context = new DataServiceContext( ImmutableList.<PushDownFactory>of(),
+      ImmutableList.<AutoOptimizationService>of(), cacheManager() );
+
+    TransMeta transMeta = new TransMeta( new ByteArrayInputStream( getTransXml().getBytes( Charsets.UTF_8 ) ),
+      null, true, new Variables(), null );
+    transMeta.setFilename( file.getAbsolutePath() );
+    transMeta.setMetaStore( metaStore );
+
+    DataServiceMeta dataService = new DataServiceMeta( transMeta );
+    dataService.setName( SERVICE_NAME );
+    dataService.setStepname( SERVICE_STEP );
+    context.getMetaStoreUtil().save( dataService );
+
+    // Data service is embedded in the transformation, write it out before publishing
+    Files.write( XMLHandler.getXMLHeader( Const.XML_ENCODING ) + transMeta.getXML(), file,
+      Charsets.UTF_8 );
+    context.getMetaStoreUtil().sync( transMeta, new Function<Exception, Void>() {
+      @Override public Void apply( Exception e ) {
+        throw new IllegalStateException( "Unable to publish synthetic data service", e );
+      }
+    } );
+    return this;
+  }
+
+  public void delete() {
+    if ( directory != null ) {
+      for ( File file : directory.listFiles() ) {
+        file.delete();
+      }
+      directory.delete();
+    }
+  }
+
+  public DataServiceContext getContext() {
+    return context;
+  }
+
+  public MemoryMetaStore getMetaStore() {
+    return metaStore;
+  }
+
+  /**
+   * Service caching is not configured for the synthetic service; the cache manager only backs lookup caches.
+   */
+  @SuppressWarnings( "unchecked" )
+  private static PentahoCacheManager cacheManager() {
+    PentahoCacheManager cacheManager = mock( PentahoCacheManager.class );
+    PentahoCacheTemplateConfiguration template = mock( PentahoCacheTemplateConfiguration.class );
+    when( cacheManager.getTemplates() ).thenReturn( ImmutableMap.of( Constants.DEFAULT_TEMPLATE, template ) );
+    when( template.createCache( anyString(), eq( Integer.class ), eq( String.class ) ) ).thenReturn( mock( Cache.class ) );
+    return cacheManager;
+  }
+
+  String getTransXml() {
+    StringBuilder xml = new StringBuilder();
+    xml.append( "<transformation>" )
+      .append( "<info>" ).append( XMLHandler.addTagValue( "name", SERVICE_NAME ) ).append( "</info>" )
+      .append( "<order>" )
+      .append( hop( "Generate rows", "id" ) )
+      .append( hop( "id", "bucket" ) )
+      .append( hop( "bucket", SERVICE_STEP ) )
+      .append( "</order>" );
+
+    xml.append( "<step>" ).append( XMLHandler.addTagValue( "name", "Generate rows" ) )
+      .append( XMLHandler.addTagValue( "type", "RowGenerator" ) )
+      .append( XMLHandler.addTagValue( "copies", 1 ) )
+      .append( "<fields>" );
+    String value = Strings.padEnd( "value", valueLength, '_' );
+    for ( int i = 0; i < rowWidth; i++ ) {
+      xml.append( "<field>" )
+        .append( XMLHandler.addTagValue( "name", "field_" + i ) )
+        .append( XMLHandler.addTagValue( "type", "String" ) )
+        .append( XMLHandler.addTagValue( "nullif", value ) )
+        .append( XMLHandler.addTagValue( "length", -1 ) )
+        .append( XMLHandler.addTagValue( "precision", -1 ) )
+        .append( "</field>" );
+    }
+    xml.append( "</fields>" )
+      .append( XMLHandler.addTagValue( "limit", String.valueOf( rowCount ) ) )
+      .append( XMLHandler.addTagValue( "never_ending", false ) )
+      .append( "</step>" );
+
+    xml.append( sequence( "id", Long.MAX_VALUE ) )
+      .append( sequence( "bucket", cardinality ) );
+
+    xml.append( "<step>" ).append( XMLHandler.addTagValue( "name", SERVICE_STEP ) )
+      .append( XMLHandler.addTagValue( "type", "Dummy" ) )
+      .append( XMLHandler.addTagValue( "copies", 1 ) )
+      .append( "</step>" );
+
+    return xml.append( "</transformation>" ).toString();
+  }
+
+  private static String hop( String from, String to ) {
+    return "<hop>" + XMLHandler.addTagValue( "from", from ) + XMLHandler.addTagValue( "to", to )
+      + XMLHandler.addTagValue( "enabled", true ) + "</hop>";
+  }
+
+  /**
+   * Counter sequence from 1, restarting after {@code maxValue}
+   */
+  private static String sequence( String name, long maxValue ) {
+    return "<step>" + XMLHandler.addTagValue( "name", name )
+      + XMLHandler.addTagValue( "type", "Sequence" )
+      + XMLHandler.addTagValue( "copies", 1 )
+      + XMLHandler.addTagValue( "valuename", name )
+      + XMLHandler.addTagValue( "use_database", false )
+      + XMLHandler.addTagValue( "use_counter", true )
+      + XMLHandler.addTagValue( "start_at", 1 )
+      + XMLHandler.addTagValue( "increment_by", 1 )
+      + XMLHandler.addTagValue( "max_value", maxValue )
+      + "</step>";
+  }
+}
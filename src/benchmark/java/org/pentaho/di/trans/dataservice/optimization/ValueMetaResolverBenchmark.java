@@ -0,0 +1,119 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ContiguousSet;
+import com.google.common.collect.DiscreteDomain;
+import com.google.common.collect.Range;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.trans.dataservice.BenchmarkFixtures;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of resolving condition values to the types of the service fields.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5 )
+@Measurement( iterations = 10 )
+@Fork( 1 )
+public class ValueMetaResolverBenchmark {
+
+  @Param( { "10", "100" } )
+  public int inListSize;
+
+  private ValueMetaResolver resolver;
+  private String stringList;
+  private String integerList;
+  private String dateList;
+
+  @Setup
+  public void setUp() throws KettleException {
+    BenchmarkFixtures.init();
+    resolver = new ValueMetaResolver( BenchmarkFixtures.serviceFields() );
+
+    Iterable<Integer> values = ContiguousSet.create( Range.closedOpen( 0, inListSize ), DiscreteDomain.integers() );
+    Joiner joiner = Joiner.on( ';' );
+    stringList = "escaped\\;value;" + joiner.join( values );
+    integerList = joiner.join( values );
+    String[] dates = new String[inListSize];
+    for ( int i = 0; i < inListSize; i++ ) {
+      dates[i] = String.format( "2015-%02d-%02d", i % 12 + 1, i % 28 + 1 );
+    }
+    dateList = joiner.join( dates );
+  }
+
+  @Benchmark
+  public Object typedValueSameType() throws PushDownOptimizationException {
+    return resolver.getTypedValue( "sField0", ValueMetaInterface.TYPE_STRING, "value" );
+  }
+
+  @Benchmark
+  public Object typedValueStringToInteger() throws PushDownOptimizationException {
+    return resolver.getTypedValue( "iField0", ValueMetaInterface.TYPE_STRING, "12345" );
+  }
+
+  @Benchmark
+  public Object typedValueIntegerToNumber() throws PushDownOptimizationException {
+    return resolver.getTypedValue( "nField0", ValueMetaInterface.TYPE_INTEGER, 42L );
+  }
+
+  /**
+   * ANSI date literals only convert after the default conversion mask fails.
+   */
+  @Benchmark
+  public Object typedValueAnsiDate() throws PushDownOptimizationException {
+    return resolver.getTypedValue( "dField0", ValueMetaInterface.TYPE_STRING, "2015-01-01" );
+  }
+
+  @Benchmark
+  public Object[] inListStrings() throws PushDownOptimizationException {
+    return resolver.inListToTypedObjectArray( "sField0", stringList );
+  }
+
+  @Benchmark
+  public Object[] inListIntegers() throws PushDownOptimizationException {
+    return resolver.inListToTypedObjectArray( "iField0", integerList );
+  }
+
+  @Benchmark
+  public Object[] inListAnsiDates() throws PushDownOptimizationException {
+    return resolver.inListToTypedObjectArray( "dField0", dateList );
+  }
+}
@@ -0,0 +1,100 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.dataservice.BenchmarkFixtures;
+import org.pentaho.di.trans.dataservice.DataServiceExecutor;
+import org.pentaho.di.trans.dataservice.optimization.cache.CachedService.CacheKey;
+import org.pentaho.di.trans.dataservice.serialization.TransMetaVersion;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of computing service cache keys for a prepared executor.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5 )
+@Measurement( iterations = 10 )
+@Fork( 1 )
+public class CacheKeyBenchmark {
+
+  @Param( { "SELECT_ALL", "FILTER", "ORDER_LIMIT" } )
+  public BenchmarkFixtures.Query query;
+
+  private TransMeta serviceTransMeta;
+  private DataServiceExecutor executor;
+
+  @Setup
+  public void setUp() throws KettleException {
+    BenchmarkFixtures.init();
+    serviceTransMeta = BenchmarkFixtures.serviceTransMeta( BenchmarkFixtures.serviceFields() );
+    executor = new DataServiceExecutor.Builder( new SQL( query.getSql() ),
+      BenchmarkFixtures.dataService( serviceTransMeta ) )
+      .serviceTrans( new Trans( serviceTransMeta ) )
+      .parameters( ImmutableMap.of( "region", "east", "year", "2015" ) )
+      .prepareExecution( false )
+      .build();
+  }
+
+  /**
+   * Key for an unchanged service transformation, using its cached version stamp.
+   */
+  @Benchmark
+  public CacheKey create() {
+    return CacheKey.create( executor );
+  }
+
+  /**
+   * Key after the service transformation was changed, recomputing its version stamp.
+   */
+  @Benchmark
+  public CacheKey createAfterChange() {
+    TransMetaVersion.invalidate( serviceTransMeta );
+    return CacheKey.create( executor );
+  }
+
+  @Benchmark
+  public ImmutableSet<CacheKey> createAll() {
+    return CacheKey.create( executor ).all();
+  }
+}
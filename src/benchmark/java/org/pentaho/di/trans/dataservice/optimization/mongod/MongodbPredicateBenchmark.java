@@ -0,0 +1,81 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.mongod;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.di.core.Condition;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.trans.dataservice.BenchmarkFixtures;
+import org.pentaho.di.trans.dataservice.optimization.ValueMetaResolver;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of translating a where clause to a MongoDB filter document.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5 )
+@Measurement( iterations = 10 )
+@Fork( 1 )
+public class MongodbPredicateBenchmark {
+
+  @Param( { "FILTER", "IN_LIST" } )
+  public BenchmarkFixtures.Query query;
+
+  private Condition condition;
+  private ValueMetaResolver resolver;
+  private Map<String, String> fieldMappings;
+
+  @Setup
+  public void setUp() throws KettleException {
+    BenchmarkFixtures.init();
+    RowMetaInterface fields = BenchmarkFixtures.serviceFields();
+    condition = BenchmarkFixtures.parse( query, fields ).getWhereCondition().getCondition();
+    resolver = new ValueMetaResolver( fields );
+    fieldMappings = new HashMap<String, String>();
+    for ( String fieldName : fields.getFieldNames() ) {
+      fieldMappings.put( fieldName, "doc." + fieldName );
+    }
+  }
+
+  @Benchmark
+  public String asFilterCriteria() throws KettleException {
+    return new MongodbPredicate( condition, resolver, fieldMappings ).asFilterCriteria();
+  }
+}
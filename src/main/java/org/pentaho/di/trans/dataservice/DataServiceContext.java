@@ -25,6 +25,7 @@ package org.pentaho.di.trans.dataservice;
 import org.pentaho.caching.api.PentahoCacheManager;
 import org.pentaho.di.core.logging.LogChannel;
 import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.trans.dataservice.execution.QueryLog;
 import org.pentaho.di.trans.dataservice.optimization.AutoOptimizationService;
 import org.pentaho.di.trans.dataservice.optimization.PushDownFactory;
 import org.pentaho.di.trans.dataservice.serialization.DataServiceMetaStoreUtil;
@@ -37,6 +38,7 @@ public class DataServiceContext {
   private final PentahoCacheManager cacheManager;
   private final List<PushDownFactory> pushDownFactories;
   private final LogChannelInterface logChannel;
+  private final QueryLog queryLog;
 
   public DataServiceContext( List<PushDownFactory> pushDownFactories,
                              List<AutoOptimizationService> autoOptimizationServices,
@@ -46,6 +48,7 @@ public class DataServiceContext {
     this.cacheManager = cacheManager;
     this.metaStoreUtil = DataServiceMetaStoreUtil.create( this );
     this.logChannel = new LogChannel( "Data Service" );
+    this.queryLog = new QueryLog( logChannel );
   }
 
   public PentahoCacheManager getCacheManager() {
@@ -67,4 +70,8 @@ public class DataServiceContext {
   public LogChannelInterface getLogChannel() {
     return logChannel;
   }
+
+  public QueryLog getQueryLog() {
+    return queryLog;
+  }
 }
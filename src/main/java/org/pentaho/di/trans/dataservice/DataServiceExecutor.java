@@ -23,6 +23,7 @@
 package org.pentaho.di.trans.dataservice;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.MultimapBuilder;
@@ -42,6 +43,7 @@ import org.pentaho.di.trans.Trans;
 import org.pentaho.di.trans.TransAdapter;
 import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.dataservice.execution.DefaultTransWiring;
+import org.pentaho.di.trans.dataservice.execution.QueryRecord;
 import org.pentaho.di.trans.dataservice.execution.TransStarter;
 import org.pentaho.di.trans.dataservice.optimization.PushDownOptimizationMeta;
 import org.pentaho.di.trans.dataservice.optimization.ValueMetaResolver;
@@ -68,6 +70,7 @@ public class DataServiceExecutor {
   private final Map<String, String> parameters;
   private final SqlTransGenerator sqlTransGenerator;
   private final ListMultimap<ExecutionPoint, Runnable> listenerMap;
+  private final QueryRecord queryRecord;
 
   private DataServiceExecutor( Builder builder ) {
     sql = builder.sql;
@@ -78,6 +81,7 @@ public class DataServiceExecutor {
     serviceTrans = builder.serviceTrans;
     sqlTransGenerator = builder.sqlTransGenerator;
     genTrans = builder.genTrans;
+    queryRecord = builder.queryRecord;
 
     listenerMap = MultimapBuilder.enumKeys( ExecutionPoint.class ).linkedListValues().build();
   }
@@ -91,6 +95,7 @@ public class DataServiceExecutor {
     private Map<String, String> parameters = Collections.emptyMap();
     private LogLevel logLevel;
     private SqlTransGenerator sqlTransGenerator;
+    private QueryRecord queryRecord;
 
     private boolean normalizeConditions = true;
     private boolean prepareExecution = true;
@@ -154,7 +159,26 @@ public class DataServiceExecutor {
       return this;
     }
 
+    public Builder queryRecord( QueryRecord queryRecord ) {
+      this.queryRecord = queryRecord;
+      return this;
+    }
+
     public DataServiceExecutor build() throws KettleException {
+      if ( queryRecord == null ) {
+        queryRecord = new QueryRecord( sql.getSqlString() );
+      }
+      queryRecord.setServiceName( service.getName() );
+      try {
+        return buildExecutor();
+      } catch ( KettleException | RuntimeException e ) {
+        queryRecord.failed();
+        queryRecord.finished();
+        throw e;
+      }
+    }
+
+    private DataServiceExecutor buildExecutor() throws KettleException {
       RowMetaInterface serviceFields;
 
       if ( sql.getServiceName() != null && !sql.getServiceName().equals( service.getName() ) ) {
@@ -163,6 +187,7 @@ public class DataServiceExecutor {
                 sql.getServiceName(), service.getName() ) );
       }
 
+      Stopwatch stopwatch = Stopwatch.createStarted();
       if ( serviceTrans != null ) {
         serviceFields = serviceTrans.getTransMeta().getStepFields( service.getStepname() );
       } else if ( service.getServiceTrans() != null ) {
@@ -171,19 +196,24 @@ public class DataServiceExecutor {
       } else {
         serviceFields = new RowMeta();
       }
+      queryRecord.record( QueryRecord.Phase.SERVICE_TRANS, stopwatch );
 
+      stopwatch.reset().start();
       sql.parse( serviceFields );
 
       if ( normalizeConditions ) {
         DataServiceExecutor.normalizeConditions( sql, serviceFields );
       }
+      queryRecord.record( QueryRecord.Phase.SQL_PARSE, stopwatch );
 
+      stopwatch.reset().start();
       if ( sqlTransGenerator == null ) {
         sqlTransGenerator = new SqlTransGenerator( sql, rowLimit );
       }
       if ( genTrans == null ) {
         genTrans = new Trans( sqlTransGenerator.generateTransMeta() );
       }
+      queryRecord.record( QueryRecord.Phase.PLAN_GENERATION, stopwatch );
 
       DataServiceExecutor dataServiceExecutor = new DataServiceExecutor( this );
 
@@ -315,6 +345,7 @@ public class DataServiceExecutor {
   }
 
   protected void prepareExecution() throws KettleException {
+    Stopwatch stopwatch = Stopwatch.createStarted();
     genTrans.prepareExecution( null );
     listenerMap.put( ExecutionPoint.START, new TransStarter( genTrans ) );
 
@@ -326,6 +357,7 @@ public class DataServiceExecutor {
     serviceTrans.prepareExecution( null );
     listenerMap.put( ExecutionPoint.READY, new DefaultTransWiring( this ) );
     listenerMap.put( ExecutionPoint.START, new TransStarter( serviceTrans ) );
+    queryRecord.record( QueryRecord.Phase.PREPARE_EXECUTION, stopwatch );
   }
 
   private Map<String, String> getWhereConditionParameters() {
@@ -372,6 +404,7 @@ public class DataServiceExecutor {
             RowMetaInterface stepFields = trans.getTransMeta().getStepFields( getResultStepName() );
             stepFields.writeMeta( dos );
           }
+          queryRecord.addBytes( dos.size() );
         }
       } );
 
@@ -404,20 +437,38 @@ public class DataServiceExecutor {
 
   public void executeQuery( RowListener resultRowListener ) throws KettleException {
     // Apply Push Down Optimizations
+    Stopwatch pushDown = Stopwatch.createStarted();
     for ( PushDownOptimizationMeta optimizationMeta : service.getPushDownOptimizationMeta() ) {
       if ( optimizationMeta.isEnabled() ) {
         optimizationMeta.activate( this );
       }
     }
+    queryRecord.record( QueryRecord.Phase.PUSH_DOWN, pushDown );
 
     executeListeners( ExecutionPoint.READY );
 
     // Give back the eventual result rows...
     //
     StepInterface resultStep = genTrans.findRunThread( getResultStepName() );
+    resultStep.addRowListener( new RowAdapter() {
+      @Override public void rowWrittenEvent( RowMetaInterface rowMeta, Object[] row ) {
+        queryRecord.rowWritten();
+      }
+    } );
     resultStep.addRowListener( resultRowListener );
 
+    // Publish query timings once the query is done
+    genTrans.addTransListener( new TransAdapter() {
+      @Override public void transFinished( Trans trans ) {
+        if ( trans.getErrors() > 0 ) {
+          queryRecord.failed();
+        }
+        queryRecord.finished();
+      }
+    } );
+
     // Start transformations
+    queryRecord.executionStarted();
     executeListeners( ExecutionPoint.START );
   }
 
@@ -519,10 +570,28 @@ public class DataServiceExecutor {
     return sqlTransGenerator.getResultStepName();
   }
 
+  /**
+   * @return name of the generated step aggregating rows, or null if the query does not aggregate
+   */
+  public String getGroupStepName() {
+    return sqlTransGenerator.getGroupStepName();
+  }
+
+  /**
+   * @return name of the generated step ordering rows, or null if the query does not order
+   */
+  public String getSortStepName() {
+    return sqlTransGenerator.getSortStepName();
+  }
+
   public int getRowLimit() {
     return sqlTransGenerator.getRowLimit();
   }
 
+  public QueryRecord getQueryRecord() {
+    return queryRecord;
+  }
+
   public ListMultimap<ExecutionPoint, Runnable> getListenerMap() {
     return listenerMap;
   }
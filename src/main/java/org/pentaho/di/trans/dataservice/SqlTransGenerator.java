@@ -56,6 +56,8 @@ public class SqlTransGenerator {
   private RowMetaInterface serviceFields;
 
   private String injectorStepName;
+  private String groupStepName;
+  private String sortStepName;
   private String resultStepName;
 
   private int xLocation;
@@ -140,6 +142,7 @@ public class SqlTransGenerator {
 
     if ( aggFields.size() > 0 || groupFields.size() > 0 ) {
       StepMeta groupStep = generateGroupByStep( aggFields, groupFields, transMeta.getStepFields( lastStep ) );
+      groupStepName = groupStep.getName();
       lastStep = addToTrans( groupStep, transMeta, lastStep );
     }
 
@@ -173,6 +176,7 @@ public class SqlTransGenerator {
     //
     if ( sql.getOrderFields() != null && !sql.getOrderFields().isEmpty() ) {
       StepMeta sortStep = generateSortStep( transMeta.getStepFields( lastStep ) );
+      sortStepName = sortStep.getName();
       lastStep = addToTrans( sortStep, transMeta, lastStep );
     }
 
@@ -600,6 +604,20 @@ public class SqlTransGenerator {
     this.injectorStepName = injectorStepName;
   }
 
+  /**
+   * @return the name of the step aggregating rows, or null if the query does not aggregate
+   */
+  public String getGroupStepName() {
+    return groupStepName;
+  }
+
+  /**
+   * @return the name of the step ordering rows, or null if the query does not order
+   */
+  public String getSortStepName() {
+    return sortStepName;
+  }
+
   /**
    * @return the resultStepName
    */
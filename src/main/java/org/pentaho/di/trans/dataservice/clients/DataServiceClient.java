@@ -23,6 +23,7 @@
 package org.pentaho.di.trans.dataservice.clients;
 
 import com.google.common.base.Function;
+import com.google.common.base.Stopwatch;
 import com.google.common.base.Throwables;
 import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.row.RowMeta;
@@ -34,6 +35,8 @@ import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.dataservice.DataServiceContext;
 import org.pentaho.di.trans.dataservice.DataServiceExecutor;
 import org.pentaho.di.trans.dataservice.DataServiceMeta;
+import org.pentaho.di.trans.dataservice.execution.QueryLog;
+import org.pentaho.di.trans.dataservice.execution.QueryRecord;
 import org.pentaho.di.trans.dataservice.client.DataServiceClientService;
 import org.pentaho.di.trans.dataservice.jdbc.ThinServiceInformation;
 import org.pentaho.di.trans.dataservice.serialization.DataServiceMetaStoreUtil;
@@ -50,6 +53,7 @@ import java.util.List;
 
 public class DataServiceClient implements DataServiceClientService {
   private final DataServiceMetaStoreUtil metaStoreUtil;
+  private final QueryLog queryLog;
 
   private Repository repository;
   private IMetaStore metaStore;
@@ -58,6 +62,7 @@ public class DataServiceClient implements DataServiceClientService {
 
   public DataServiceClient( DataServiceContext context ) {
     this.metaStoreUtil = context.getMetaStoreUtil();
+    this.queryLog = context.getQueryLog();
   }
 
   @Override public DataInputStream query( String sqlQuery, final int maxRows ) throws SQLException {
@@ -93,10 +98,24 @@ public class DataServiceClient implements DataServiceClientService {
   }
 
   public DataServiceExecutor.Builder buildExecutor( SQL sql ) throws KettleException {
+    QueryRecord queryRecord = queryLog != null
+      ? queryLog.newRecord( sql.getSqlString() ) : new QueryRecord( sql.getSqlString() );
+    queryRecord.setServiceName( sql.getServiceName() );
+
     // Locate data service and return a new builder
-    DataServiceMeta dataService = findDataService( sql );
+    Stopwatch lookup = Stopwatch.createStarted();
+    DataServiceMeta dataService;
+    try {
+      dataService = findDataService( sql );
+      queryRecord.record( QueryRecord.Phase.SERVICE_LOOKUP, lookup );
+    } catch ( KettleException e ) {
+      queryRecord.record( QueryRecord.Phase.SERVICE_LOOKUP, lookup );
+      queryRecord.failed();
+      queryRecord.finished();
+      throw e;
+    }
 
-    return new DataServiceExecutor.Builder( sql, dataService );
+    return new DataServiceExecutor.Builder( sql, dataService ).queryRecord( queryRecord );
   }
 
   public void writeDummyRow( SQL sql, DataOutputStream dos ) throws Exception {
@@ -36,6 +36,8 @@ import org.pentaho.di.trans.step.StepAdapter;
 import org.pentaho.di.trans.step.StepInterface;
 import org.pentaho.di.trans.step.StepMeta;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -43,9 +45,29 @@ import java.util.concurrent.TimeUnit;
  */
 public class DefaultTransWiring implements Runnable {
   private final DataServiceExecutor dataServiceExecutor;
+  private final int skipRows;
+  private final Future<?> resume;
+  private final RowProducer resumedProducer;
 
   public DefaultTransWiring( DataServiceExecutor dataServiceExecutor ) {
+    this( dataServiceExecutor, 0, null, null );
+  }
+
+  /**
+   * Wiring that resumes after rows the generated transformation already received, e.g. from a cache.
+   *
+   * @param skipRows    number of rows written by the service step before the ones to pass along
+   * @param resume      completes once all rows already received were written to the row producer. Rows are held
+   *                    back until then, to keep the order of the service step.
+   * @param rowProducer row producer the received rows were written to, continued by this wiring and finished once
+   *                    the service step is done
+   */
+  public DefaultTransWiring( DataServiceExecutor dataServiceExecutor, int skipRows, Future<?> resume,
+                             RowProducer rowProducer ) {
     this.dataServiceExecutor = dataServiceExecutor;
+    this.skipRows = skipRows;
+    this.resume = resume;
+    this.resumedProducer = rowProducer;
   }
 
   @Override public void run() {
@@ -55,18 +77,42 @@ public class DefaultTransWiring implements Runnable {
     final Trans serviceTrans = dataServiceExecutor.getServiceTrans();
     final Trans genTrans = dataServiceExecutor.getGenTrans();
 
-    try {
-      rowProducer = dataServiceExecutor.addRowProducer();
-    } catch ( KettleException e ) {
-      throw Throwables.propagate( e );
+    if ( resumedProducer != null ) {
+      rowProducer = resumedProducer;
+    } else {
+      try {
+        rowProducer = dataServiceExecutor.addRowProducer();
+      } catch ( KettleException e ) {
+        throw Throwables.propagate( e );
+      }
     }
 
     // Now connect the 2 transformations with listeners and injector
     //
     StepInterface serviceStep = serviceTrans.findRunThread( dataServiceExecutor.getService().getStepname() );
     serviceStep.addRowListener( new RowAdapter() {
+      // Rows are written on the service step's own thread
+      private int skipped = 0;
+      private boolean resumed = resume == null;
+
       @Override
       public void rowWrittenEvent( RowMetaInterface rowMeta, Object[] row ) throws KettleStepException {
+        if ( skipped < skipRows ) {
+          skipped++;
+          return;
+        }
+        if ( !resumed ) {
+          try {
+            resume.get();
+          } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new KettleStepException( "Interrupted while resuming the service transformation", e );
+          } catch ( ExecutionException e ) {
+            throw new KettleStepException( "Unable to resume the service transformation", e.getCause() );
+          }
+          resumed = true;
+        }
+
         // Simply pass along the row to the other transformation (to the Injector step)
         //
         LogChannelInterface log = serviceTrans.getLogChannel();
@@ -91,6 +137,16 @@ public class DefaultTransWiring implements Runnable {
     //
     serviceStep.addStepListener( new StepAdapter() {
       @Override public void stepFinished( Trans trans, StepMeta stepMeta, StepInterface step ) {
+        // Rows received before resuming may still be written to the same row producer
+        if ( resume != null ) {
+          try {
+            resume.get();
+          } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+          } catch ( ExecutionException e ) {
+            // Logged by the replay, finish anyway
+          }
+        }
         rowProducer.finished();
       }
     } );
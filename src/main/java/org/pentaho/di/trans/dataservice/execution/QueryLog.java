@@ -0,0 +1,121 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.execution;
+
+import com.google.common.collect.ImmutableList;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.logging.LogChannelInterface;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Bounded, in-memory log of recently executed data service queries.
+ * <p>
+ * Queries slower than the configured threshold are also written to the log channel.
+ * Defaults may be set with the {@value #CAPACITY_PROPERTY} and {@value #SLOW_QUERY_THRESHOLD_PROPERTY}
+ * system properties (e.g. in kettle.properties).
+ * </p>
+ */
+public class QueryLog {
+  public static final String CAPACITY_PROPERTY = "KETTLE_DATA_SERVICE_QUERY_LOG_SIZE";
+  public static final String SLOW_QUERY_THRESHOLD_PROPERTY = "KETTLE_DATA_SERVICE_SLOW_QUERY_MS";
+  public static final int DEFAULT_CAPACITY = 100;
+  public static final long DEFAULT_SLOW_QUERY_THRESHOLD = 10000;
+
+  private final LogChannelInterface logChannel;
+  private final Deque<QueryRecord> records;
+  private volatile int capacity;
+  private volatile long slowQueryThreshold;
+
+  public QueryLog( LogChannelInterface logChannel ) {
+    this( logChannel,
+      Const.toInt( System.getProperty( CAPACITY_PROPERTY ), DEFAULT_CAPACITY ),
+      Const.toLong( System.getProperty( SLOW_QUERY_THRESHOLD_PROPERTY ), DEFAULT_SLOW_QUERY_THRESHOLD ) );
+  }
+
+  public QueryLog( LogChannelInterface logChannel, int capacity, long slowQueryThreshold ) {
+    this.logChannel = logChannel;
+    this.capacity = capacity;
+    this.slowQueryThreshold = slowQueryThreshold;
+    this.records = new ArrayDeque<>( Math.max( capacity, 1 ) );
+  }
+
+  public QueryRecord newRecord( String sql ) {
+    return new QueryRecord( sql, this );
+  }
+
+  void add( QueryRecord record ) {
+    synchronized ( records ) {
+      while ( !records.isEmpty() && records.size() >= capacity ) {
+        records.removeFirst();
+      }
+      if ( capacity > 0 ) {
+        records.addLast( record );
+      }
+    }
+
+    long threshold = slowQueryThreshold;
+    if ( threshold > 0 && record.getDurationMillis() >= threshold ) {
+      logChannel.logBasic( "Slow data service query: " + record );
+    } else if ( logChannel.isDetailed() ) {
+      logChannel.logDetailed( "Data service query finished: " + record );
+    }
+  }
+
+  /**
+   * @return recently finished queries, oldest first
+   */
+  public List<QueryRecord> getRecords() {
+    synchronized ( records ) {
+      return ImmutableList.copyOf( records );
+    }
+  }
+
+  public void clear() {
+    synchronized ( records ) {
+      records.clear();
+    }
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public void setCapacity( int capacity ) {
+    this.capacity = capacity;
+  }
+
+  /**
+   * @return duration in milliseconds above which queries are logged as slow, 0 to disable
+   */
+  public long getSlowQueryThreshold() {
+    return slowQueryThreshold;
+  }
+
+  public void setSlowQueryThreshold( long slowQueryThreshold ) {
+    this.slowQueryThreshold = slowQueryThreshold;
+  }
+}
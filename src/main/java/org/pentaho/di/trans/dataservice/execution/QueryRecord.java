@@ -0,0 +1,215 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.execution;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timings and counters for a single data service query.
+ * <p>
+ * Phases are recorded with nanosecond resolution as the query is located, planned and executed. When the generated
+ * transformation finishes, the record is published to its {@link QueryLog}, if any.
+ * </p>
+ */
+public class QueryRecord {
+  public enum Phase {
+    SERVICE_LOOKUP, SERVICE_TRANS, SQL_PARSE, PLAN_GENERATION, PREPARE_EXECUTION, PUSH_DOWN, FIRST_ROW, STREAMING,
+    CACHE_REPLAY
+  }
+
+  private final QueryLog queryLog;
+  private final String sql;
+  private final long startTime;
+  private final long startNanos;
+  private final Map<Phase, Long> phaseNanos = Maps.newEnumMap( Phase.class );
+  private final AtomicLong rows = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicLong replayedRows = new AtomicLong();
+  private final AtomicBoolean finished = new AtomicBoolean( false );
+  private final AtomicLong firstRowNanos = new AtomicLong( -1 );
+
+  private volatile String serviceName;
+  private volatile long executionNanos = -1;
+  private volatile long finishNanos = -1;
+  private volatile boolean failed;
+
+  public QueryRecord( String sql ) {
+    this( sql, null );
+  }
+
+  public QueryRecord( String sql, QueryLog queryLog ) {
+    this.sql = sql;
+    this.queryLog = queryLog;
+    this.startTime = System.currentTimeMillis();
+    this.startNanos = System.nanoTime();
+  }
+
+  /**
+   * Add the elapsed time of a stopwatch to a phase.
+   */
+  public void record( Phase phase, Stopwatch stopwatch ) {
+    record( phase, stopwatch.elapsed( TimeUnit.NANOSECONDS ) );
+  }
+
+  public void record( Phase phase, long nanos ) {
+    synchronized ( phaseNanos ) {
+      Long previous = phaseNanos.get( phase );
+      phaseNanos.put( phase, previous == null ? nanos : previous + nanos );
+    }
+  }
+
+  /**
+   * Mark the start of row production. Time to first row and streaming time are measured from here.
+   */
+  public void executionStarted() {
+    executionNanos = System.nanoTime();
+  }
+
+  public void rowWritten() {
+    rows.incrementAndGet();
+    // Rows may be written by several threads, only the first to set the time records it
+    if ( firstRowNanos.get() < 0 ) {
+      long nanos = System.nanoTime();
+      if ( firstRowNanos.compareAndSet( -1, nanos ) && executionNanos >= 0 ) {
+        record( Phase.FIRST_ROW, nanos - executionNanos );
+      }
+    }
+  }
+
+  public void addBytes( long count ) {
+    bytes.addAndGet( count );
+  }
+
+  /**
+   * Rows were replayed from a service cache, instead of running the service transformation
+   */
+  public void cacheReplayed( long rowCount, long nanos ) {
+    replayedRows.addAndGet( rowCount );
+    record( Phase.CACHE_REPLAY, nanos );
+  }
+
+  public void setServiceName( String serviceName ) {
+    this.serviceName = serviceName;
+  }
+
+  public void failed() {
+    failed = true;
+  }
+
+  /**
+   * Complete this record and publish it. Only the first call has any effect.
+   */
+  public void finished() {
+    if ( finished.compareAndSet( false, true ) ) {
+      finishNanos = System.nanoTime();
+      long firstRow = firstRowNanos.get();
+      if ( firstRow >= 0 ) {
+        record( Phase.STREAMING, finishNanos - firstRow );
+      }
+      if ( queryLog != null ) {
+        queryLog.add( this );
+      }
+    }
+  }
+
+  public boolean isFinished() {
+    return finished.get();
+  }
+
+  public String getSql() {
+    return sql;
+  }
+
+  public String getServiceName() {
+    return serviceName;
+  }
+
+  public long getStartTime() {
+    return startTime;
+  }
+
+  public long getRows() {
+    return rows.get();
+  }
+
+  public long getBytes() {
+    return bytes.get();
+  }
+
+  public long getReplayedRows() {
+    return replayedRows.get();
+  }
+
+  /**
+   * @return rows replayed from a service cache per second, or 0 if none were replayed
+   */
+  public double getReplayThroughput() {
+    Long nanos = getPhaseNanos().get( Phase.CACHE_REPLAY );
+    return nanos == null || nanos == 0 ? 0 : replayedRows.get() * (double) TimeUnit.SECONDS.toNanos( 1 ) / nanos;
+  }
+
+  public boolean isFailed() {
+    return failed;
+  }
+
+  /**
+   * @return elapsed time of each recorded phase, in nanoseconds
+   */
+  public Map<Phase, Long> getPhaseNanos() {
+    synchronized ( phaseNanos ) {
+      return ImmutableMap.copyOf( phaseNanos );
+    }
+  }
+
+  /**
+   * @return total duration in milliseconds, or time elapsed so far if the query is still running
+   */
+  public long getDurationMillis() {
+    long end = finishNanos >= 0 ? finishNanos : System.nanoTime();
+    return TimeUnit.NANOSECONDS.toMillis( end - startNanos );
+  }
+
+  @Override public String toString() {
+    Objects.ToStringHelper helper = Objects.toStringHelper( this )
+      .add( "serviceName", serviceName )
+      .add( "sql", sql )
+      .add( "durationMillis", getDurationMillis() )
+      .add( "rows", rows.get() )
+      .add( "bytes", bytes.get() )
+      .add( "replayedRows", replayedRows.get() )
+      .add( "failed", failed );
+    for ( Map.Entry<Phase, Long> phase : getPhaseNanos().entrySet() ) {
+      helper.add( phase.getKey().name(), TimeUnit.NANOSECONDS.toMillis( phase.getValue() ) + "ms" );
+    }
+    return helper.toString();
+  }
+}
@@ -0,0 +1,81 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import java.util.Map;
+
+/**
+ * Decides whether the results of a query that missed the cache are worth caching. Without one, every result is
+ * cached, and one-off queries may evict entries that are queried again and again.
+ * <p>
+ * A policy is selected per cache template with the {@link ServiceCacheFactory#ADMISSION_POLICY} property, and is
+ * shared by all queries of a data service. Besides the policies below, the property may name a class implementing
+ * this interface, with a public constructor taking the template properties as a {@code Map<String, String>}, or
+ * without arguments.
+ * </p>
+ * <p>
+ * Queries are told apart by their parameters and WHERE clause. The clause is the simplified condition the cache
+ * matches entries by, so queries that only differ in their ORDER BY fields are the same query to a policy.
+ * </p>
+ *
+ * @see FrequencyAdmission
+ */
+public interface AdmissionPolicy {
+  /**
+   * Caches every result, the default
+   */
+  AdmissionPolicy ADMIT_ALL = new AdmissionPolicy() {
+    @Override public void record( String serviceName, Map<String, String> parameters, String whereClause ) {
+    }
+
+    @Override public boolean admit( String serviceName, Map<String, String> parameters, String whereClause,
+                                    long populationMillis ) {
+      return true;
+    }
+
+    @Override public String toString() {
+      return "ADMIT_ALL";
+    }
+  };
+
+  /**
+   * Record a query, whether or not it is answered from the cache. Called concurrently.
+   *
+   * @param serviceName name of the queried data service
+   * @param parameters  parameters of the query
+   * @param whereClause WHERE clause of the query, or null if it has none
+   */
+  void record( String serviceName, Map<String, String> parameters, String whereClause );
+
+  /**
+   * Called concurrently, once the service transformation has run for a query that no cache entry could answer
+   *
+   * @param serviceName      name of the queried data service
+   * @param parameters       parameters of the query
+   * @param whereClause      WHERE clause of the query, or null if it has none
+   * @param populationMillis time taken to produce the results
+   * @return true if the results should be cached
+   */
+  boolean admit( String serviceName, Map<String, String> parameters, String whereClause, long populationMillis );
+}
@@ -0,0 +1,411 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Limits the heap memory held by service caches, weighing each entry by the estimated heap size of its rows, indexes
+ * and orders.
+ * <p>
+ * Rows moved off the heap by {@link TieredStorage} are limited by its tiers instead, and only count their overhead
+ * here. Entries are weighed again once {@link #reweigh(String, long)} is told their rows were moved.
+ * </p>
+ * <p>
+ * Every data service may have its own budget, set by the {@value #MAX_SIZE} cache template property. All services
+ * share a global budget, set by the {@value #MAX_SIZE_PROPERTY} system property (e.g. in kettle.properties). Sizes
+ * accept {@code k}, {@code m} and {@code g} suffixes. When a budget is exceeded, the least recently used entries are
+ * evicted until the new entry fits.
+ * </p>
+ * <p>
+ * Entries are weakly referenced, so entries which expire from the cache are released once collected.
+ * </p>
+ */
+public class CacheBudget {
+  public static final String MAX_SIZE = "dataservice.cache.max.size";
+  public static final String MAX_SIZE_PROPERTY = "KETTLE_DATA_SERVICE_CACHE_MAX_SIZE";
+
+  private final long maxSize;
+
+  private final ReferenceQueue<CachedService> released = new ReferenceQueue<CachedService>();
+  // Access ordered, eldest first
+  private final LinkedHashMap<Map.Entry<String, CachedService.CacheKey>, Entry> entries =
+    new LinkedHashMap<Map.Entry<String, CachedService.CacheKey>, Entry>( 16, 0.75f, true );
+  private final Map<String, Usage> usage = Maps.newHashMap();
+  private long size = 0;
+  private long evictions = 0;
+  private long abandoned = 0;
+
+  public CacheBudget() {
+    this( TieredStorage.parseSize( System.getProperty( MAX_SIZE_PROPERTY ) ) );
+  }
+
+  /**
+   * @param maxSize global limit in bytes, or a non-positive value for no limit
+   */
+  public CacheBudget( long maxSize ) {
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Start tracking a new cache entry, replacing any existing entry with the same key.
+   *
+   * @param serviceMaxSize limit for the service in bytes, or a non-positive value for no limit
+   * @return entries evicted to make room, which should be removed from their caches.
+   * Will include the new entry if it alone exceeds a limit.
+   */
+  public synchronized List<Entry> add( String serviceName, CachedService.CacheKey key, CachedService cachedService,
+                                       long serviceMaxSize ) {
+    expunge();
+    Usage serviceUsage = usage( serviceName );
+    serviceUsage.maxSize = serviceMaxSize;
+
+    Entry entry = new Entry( serviceName, key, cachedService );
+    remove( entries.get( entry.id ) );
+    if ( exceeds( entry.weight, serviceMaxSize ) || exceeds( entry.weight, maxSize ) ) {
+      serviceUsage.evictions++;
+      evictions++;
+      return ImmutableList.of( entry );
+    }
+
+    entries.put( entry.id, entry );
+    serviceUsage.size += entry.weight;
+    serviceUsage.entries++;
+    size += entry.weight;
+
+    return evict( serviceUsage, entry );
+  }
+
+  /**
+   * Weigh the entries holding a cached service again, after it grew an index or an order
+   *
+   * @param serviceMaxSize limit for the service in bytes, or a non-positive value for no limit
+   * @return entries evicted to make room, which should be removed from their caches.
+   * Will include the grown entries if they alone exceed a limit.
+   */
+  public synchronized List<Entry> reweigh( String serviceName, CachedService cachedService, long serviceMaxSize ) {
+    expunge();
+    Usage serviceUsage = usage( serviceName );
+    serviceUsage.maxSize = serviceMaxSize;
+
+    List<Entry> evicted = Lists.newArrayList();
+    for ( Entry entry : Lists.newArrayList( entries.values() ) ) {
+      if ( entry.get() != cachedService || !entry.serviceName.equals( serviceName ) ) {
+        continue;
+      }
+      if ( reweigh( serviceUsage, entry, cachedService ) ) {
+        evicted.add( entry );
+      }
+    }
+    for ( Entry entry : entries.values() ) {
+      if ( entry.get() == cachedService ) {
+        evicted.addAll( evict( serviceUsage, entry ) );
+        break;
+      }
+    }
+    return evicted;
+  }
+
+  /**
+   * Weigh all entries of a service again, after {@link TieredStorage} moved some of their rows off the heap
+   *
+   * @param serviceMaxSize limit for the service in bytes, or a non-positive value for no limit
+   * @return entries evicted to make room, which should be removed from their caches
+   */
+  public synchronized List<Entry> reweigh( String serviceName, long serviceMaxSize ) {
+    expunge();
+    Usage serviceUsage = usage( serviceName );
+    serviceUsage.maxSize = serviceMaxSize;
+
+    List<Entry> evicted = Lists.newArrayList();
+    Entry mostRecent = null;
+    for ( Entry entry : Lists.newArrayList( entries.values() ) ) {
+      CachedService cachedService = entry.get();
+      if ( cachedService == null || !entry.serviceName.equals( serviceName ) ) {
+        continue;
+      }
+      if ( reweigh( serviceUsage, entry, cachedService ) ) {
+        evicted.add( entry );
+      } else {
+        mostRecent = entry;
+      }
+    }
+    if ( mostRecent != null ) {
+      evicted.addAll( evict( serviceUsage, mostRecent ) );
+    }
+    return evicted;
+  }
+
+  /**
+   * @return true if the entry alone exceeds a limit and was removed
+   */
+  private boolean reweigh( Usage serviceUsage, Entry entry, CachedService cachedService ) {
+    long weight = cachedService.getHeapSize();
+    serviceUsage.size += weight - entry.weight;
+    size += weight - entry.weight;
+    entry.weight = weight;
+    if ( exceeds( weight, serviceUsage.maxSize ) || exceeds( weight, maxSize ) ) {
+      remove( entry );
+      serviceUsage.evictions++;
+      evictions++;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Mark an entry as recently used
+   */
+  public synchronized void touch( String serviceName, CachedService.CacheKey key ) {
+    entries.get( new AbstractMap.SimpleImmutableEntry<String, CachedService.CacheKey>( serviceName, key ) );
+  }
+
+  /**
+   * Stop tracking an entry, after it was removed from its cache
+   */
+  public synchronized void remove( String serviceName, CachedService.CacheKey key ) {
+    remove( entries.get( new AbstractMap.SimpleImmutableEntry<String, CachedService.CacheKey>( serviceName, key ) ) );
+  }
+
+  /**
+   * Stop tracking all entries of a service, after its cache was cleared
+   */
+  public synchronized void clear( String serviceName ) {
+    for ( Entry entry : Lists.newArrayList( entries.values() ) ) {
+      if ( entry.serviceName.equals( serviceName ) ) {
+        remove( entry );
+      }
+    }
+  }
+
+  /**
+   * @return tracked entries of a service, most recently used first
+   */
+  public synchronized List<Entry> getEntries( String serviceName ) {
+    expunge();
+    List<Entry> serviceEntries = Lists.newArrayList();
+    for ( Entry entry : entries.values() ) {
+      if ( entry.serviceName.equals( serviceName ) ) {
+        serviceEntries.add( entry );
+      }
+    }
+    return Lists.reverse( serviceEntries );
+  }
+
+  public long getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * @return estimated heap bytes held by all tracked entries
+   */
+  public synchronized long getSize() {
+    expunge();
+    return size;
+  }
+
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * Count a population abandoned before its rows reached the cache, because the service wrote too much
+   */
+  public synchronized void abandoned( String serviceName ) {
+    usage( serviceName ).abandoned++;
+    abandoned++;
+  }
+
+  public synchronized long getAbandoned() {
+    return abandoned;
+  }
+
+  public synchronized Set<String> getServiceNames() {
+    return Sets.newTreeSet( usage.keySet() );
+  }
+
+  /**
+   * @return estimated heap bytes held by a service's cache entries
+   */
+  public synchronized long getSize( String serviceName ) {
+    expunge();
+    return peek( serviceName ).size;
+  }
+
+  /**
+   * @return most recent limit of a service, or a non-positive value for no limit
+   */
+  public synchronized long getMaxSize( String serviceName ) {
+    return peek( serviceName ).maxSize;
+  }
+
+  public synchronized int getEntryCount( String serviceName ) {
+    expunge();
+    return peek( serviceName ).entries;
+  }
+
+  public synchronized long getEvictions( String serviceName ) {
+    return peek( serviceName ).evictions;
+  }
+
+  public synchronized long getAbandoned( String serviceName ) {
+    return peek( serviceName ).abandoned;
+  }
+
+  private static boolean exceeds( long value, long limit ) {
+    return limit > 0 && value > limit;
+  }
+
+  private Usage usage( String serviceName ) {
+    Usage serviceUsage = usage.get( serviceName );
+    if ( serviceUsage == null ) {
+      usage.put( serviceName, serviceUsage = new Usage() );
+    }
+    return serviceUsage;
+  }
+
+  private Usage peek( String serviceName ) {
+    Usage serviceUsage = usage.get( serviceName );
+    return serviceUsage == null ? new Usage() : serviceUsage;
+  }
+
+  /**
+   * Evict the least recently used entries until the service and global budgets are met
+   *
+   * @param entry entry being added or grown, which is never evicted here
+   */
+  private List<Entry> evict( Usage serviceUsage, Entry entry ) {
+    List<Entry> evicted = Lists.newArrayList();
+    for ( Iterator<Entry> lru = entries.values().iterator(); lru.hasNext(); ) {
+      boolean serviceFull = exceeds( serviceUsage.size, serviceUsage.maxSize ), full = exceeds( size, maxSize );
+      if ( !serviceFull && !full ) {
+        break;
+      }
+      Entry eldest = lru.next();
+      if ( eldest != entry && ( full || eldest.serviceName.equals( entry.serviceName ) ) ) {
+        lru.remove();
+        release( eldest );
+        usage( eldest.serviceName ).evictions++;
+        evictions++;
+        evicted.add( eldest );
+      }
+    }
+    return evicted;
+  }
+
+  private void remove( Entry entry ) {
+    if ( entry != null && entries.get( entry.id ) == entry ) {
+      entries.remove( entry.id );
+      release( entry );
+    }
+  }
+
+  private void release( Entry entry ) {
+    Usage serviceUsage = usage( entry.serviceName );
+    serviceUsage.size -= entry.weight;
+    serviceUsage.entries--;
+    size -= entry.weight;
+  }
+
+  /**
+   * Release entries which have been garbage collected
+   */
+  private void expunge() {
+    for ( Reference<? extends CachedService> reference; ( reference = released.poll() ) != null; ) {
+      remove( (Entry) reference );
+    }
+  }
+
+  @Override public synchronized String toString() {
+    return Objects.toStringHelper( this )
+      .add( "size", size )
+      .add( "maxSize", maxSize )
+      .add( "entries", entries.size() )
+      .add( "evictions", evictions )
+      .add( "abandoned", abandoned )
+      .toString();
+  }
+
+  private static final class Usage {
+    long size = 0;
+    long maxSize = -1;
+    int entries = 0;
+    long evictions = 0;
+    long abandoned = 0;
+  }
+
+  /**
+   * A weighed cache entry
+   */
+  public final class Entry extends WeakReference<CachedService> {
+    private final Map.Entry<String, CachedService.CacheKey> id;
+    private final String serviceName;
+    private final CachedService.CacheKey key;
+    // Guarded by the budget, grows as indexes and orders are built and shrinks as rows leave the heap
+    private long weight;
+
+    private Entry( String serviceName, CachedService.CacheKey key, CachedService cachedService ) {
+      super( cachedService, released );
+      this.id = new AbstractMap.SimpleImmutableEntry<String, CachedService.CacheKey>( serviceName, key );
+      this.serviceName = serviceName;
+      this.key = key;
+      this.weight = cachedService.getHeapSize();
+    }
+
+    public String getServiceName() {
+      return serviceName;
+    }
+
+    public CachedService.CacheKey getKey() {
+      return key;
+    }
+
+    public long getWeight() {
+      synchronized ( CacheBudget.this ) {
+        return weight;
+      }
+    }
+
+    /**
+     * @return the cached service, or null if already collected
+     */
+    public CachedService getCachedService() {
+      return get();
+    }
+  }
+}
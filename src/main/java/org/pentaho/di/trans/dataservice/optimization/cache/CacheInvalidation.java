@@ -0,0 +1,122 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Selects the service cache entries to invalidate, e.g. those of one tenant after its data was reloaded.
+ * <p>
+ * Entries are selected by parameter values, a pattern found in their WHERE clause and a minimum age. An entry must
+ * match all given criteria, without criteria all entries are selected.
+ * </p>
+ *
+ * @see ServiceCacheFactory#invalidate
+ */
+public final class CacheInvalidation {
+  private static final CacheInvalidation ALL =
+    new CacheInvalidation( ImmutableMap.<String, String>of(), Optional.<Pattern>absent(), 0 );
+
+  private final ImmutableMap<String, String> parameters;
+  private final Optional<Pattern> wherePattern;
+  private final long minAgeMillis;
+
+  /**
+   * @param parameters   values of execution parameters the entries were cached with
+   * @param wherePattern pattern found in the WHERE clause of the entries
+   * @param minAgeMillis minimum time since the entries were cached, or a non-positive value for any age
+   */
+  public CacheInvalidation( Map<String, String> parameters, Optional<Pattern> wherePattern, long minAgeMillis ) {
+    this.parameters = ImmutableMap.copyOf( parameters );
+    this.wherePattern = wherePattern;
+    this.minAgeMillis = minAgeMillis;
+  }
+
+  public static CacheInvalidation all() {
+    return ALL;
+  }
+
+  /**
+   * @return false if all entries are selected
+   */
+  public boolean isSelective() {
+    return !parameters.isEmpty() || wherePattern.isPresent() || minAgeMillis > 0;
+  }
+
+  public boolean matches( CachedService.CacheKey key, CachedService cachedService ) {
+    for ( Map.Entry<String, String> parameter : parameters.entrySet() ) {
+      if ( !parameter.getValue().equals( key.getParameters().get( parameter.getKey() ) ) ) {
+        return false;
+      }
+    }
+    if ( wherePattern.isPresent() ) {
+      Optional<String> whereClause = key.getWhereClause();
+      if ( !whereClause.isPresent() || !wherePattern.get().matcher( whereClause.get() ).find() ) {
+        return false;
+      }
+    }
+    return minAgeMillis <= 0 || cachedService.getAge() >= minAgeMillis;
+  }
+
+  @Override public String toString() {
+    return Objects.toStringHelper( this )
+      .add( "parameters", parameters )
+      .add( "wherePattern", wherePattern.orNull() )
+      .add( "minAgeMillis", minAgeMillis )
+      .toString();
+  }
+
+  /**
+   * Entries invalidated, or selected by a dry run
+   */
+  public static final class Result {
+    private final int entries;
+    private final long bytes;
+
+    public Result( int entries, long bytes ) {
+      this.entries = entries;
+      this.bytes = bytes;
+    }
+
+    public int getEntries() {
+      return entries;
+    }
+
+    /**
+     * @return estimated size of the entries' rows
+     */
+    public long getBytes() {
+      return bytes;
+    }
+
+    @Override public String toString() {
+      return entries + " entries, " + bytes + " bytes";
+    }
+  }
+}
@@ -0,0 +1,294 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import org.pentaho.di.core.exception.KettleFileException;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Keeps complete service cache entries in local files, so that caches survive a restart of the server.
+ * <p>
+ * Snapshots are enabled by setting the {@value #DIRECTORY_PROPERTY} system property (e.g. in kettle.properties).
+ * Each entry is written to its own file, in a directory per data service, holding the entry's key, the version
+ * stamp of the service transformation and its chunks in the binary form of {@link RowChunk}.
+ * </p>
+ * <p>
+ * Snapshots are restored once per data service, on its first query. Chunks are memory-mapped and only decoded when
+ * replayed. Snapshots of another version of the service transformation are deleted instead.
+ * </p>
+ */
+public class CacheSnapshots {
+  public static final String DIRECTORY_PROPERTY = "KETTLE_DATA_SERVICE_CACHE_SNAPSHOT_DIR";
+
+  private static final int MAGIC = 0x44534353;
+  private static final int FORMAT_VERSION = 1;
+  private static final String EXTENSION = ".snapshot";
+  private static final HashFunction hashFunction = Hashing.murmur3_128();
+
+  private final File directory;
+  private final Set<String> restored = Sets.newConcurrentHashSet();
+
+  public CacheSnapshots( File directory ) {
+    this.directory = directory;
+  }
+
+  /**
+   * @return snapshots in the directory set by {@link #DIRECTORY_PROPERTY}, or absent if not set
+   */
+  public static Optional<CacheSnapshots> create() {
+    String directory = Strings.nullToEmpty( System.getProperty( DIRECTORY_PROPERTY ) ).trim();
+    return directory.isEmpty() ? Optional.<CacheSnapshots>absent()
+      : Optional.of( new CacheSnapshots( new File( directory ) ) );
+  }
+
+  public File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Claim restoring the snapshots of a data service, which should happen only once
+   *
+   * @return false if already claimed
+   */
+  public boolean claimRestore( String serviceName ) {
+    return restored.add( serviceName );
+  }
+
+  /**
+   * Write a complete cache entry, replacing any snapshot with the same key.
+   */
+  public void save( String serviceName, CachedService.CacheKey key, CachedService cachedService )
+    throws IOException {
+    checkArgument( cachedService.isComplete(), "Only complete cache entries are saved" );
+    File serviceDirectory = serviceDirectory( serviceName );
+    if ( !serviceDirectory.isDirectory() && !serviceDirectory.mkdirs() ) {
+      throw new IOException( "Unable to create snapshot directory " + serviceDirectory );
+    }
+
+    // Write to a temporary file first, so an interrupted write never replaces a good snapshot
+    File temp = File.createTempFile( "snapshot", ".tmp", serviceDirectory );
+    CachedRows rows = cachedService.getRows();
+    rows.pin();
+    try {
+      DataOutputStream output = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( temp ) ) );
+      try {
+        write( output, serviceName, key, cachedService );
+      } finally {
+        output.close();
+      }
+      Files.move( temp.toPath(), file( serviceName, key ).toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE );
+    } catch ( IOException | RuntimeException e ) {
+      temp.delete();
+      throw e;
+    } finally {
+      rows.unpin();
+    }
+  }
+
+  private static void write( DataOutputStream output, String serviceName, CachedService.CacheKey key,
+                             CachedService cachedService ) throws IOException {
+    CachedRows rows = cachedService.getRows();
+    output.writeInt( MAGIC );
+    output.writeInt( FORMAT_VERSION );
+    output.writeUTF( serviceName );
+    output.writeLong( key.getTransMetaVersionId() );
+    output.writeLong( cachedService.getTimestamp() );
+    key.write( output );
+    output.writeInt( rows.getRowCount() );
+    output.writeInt( rows.getChunks().size() );
+
+    RowMetaInterface rowMeta = null;
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    for ( StoredChunk storedChunk : rows.getChunks() ) {
+      // Throws if the chunk was evicted while writing
+      RowChunk chunk = storedChunk.load();
+      output.writeBoolean( chunk.getRowMeta() != rowMeta );
+      if ( chunk.getRowMeta() != rowMeta ) {
+        rowMeta = chunk.getRowMeta();
+        try {
+          rowMeta.writeMeta( output );
+        } catch ( KettleFileException e ) {
+          throw new IOException( "Unable to write row meta", e );
+        }
+      }
+      bytes.reset();
+      DataOutputStream chunkOutput = new DataOutputStream( bytes );
+      chunk.write( chunkOutput );
+      chunkOutput.flush();
+
+      output.writeInt( chunk.getRowCount() );
+      output.writeLong( storedChunk.getHeapSize() );
+      output.writeInt( bytes.size() );
+      bytes.writeTo( output );
+    }
+  }
+
+  /**
+   * Restore the snapshots of a data service. Snapshots of other transformation versions, or that can not be read,
+   * are deleted.
+   *
+   * @param version current version stamp of the service transformation
+   * @return restored entries by key. The keys do not have parsed conditions.
+   */
+  public Map<CachedService.CacheKey, CachedService> restore( String serviceName, long version,
+                                                             LogChannelInterface logChannel ) {
+    Map<CachedService.CacheKey, CachedService> entries = Maps.newLinkedHashMap();
+    File[] files = serviceDirectory( serviceName ).listFiles();
+    for ( File file : files == null ? new File[0] : files ) {
+      if ( !file.getName().endsWith( EXTENSION ) ) {
+        continue;
+      }
+      try {
+        Map.Entry<CachedService.CacheKey, CachedService> entry = read( file, serviceName, version );
+        if ( entry == null ) {
+          logChannel.logDetailed( "Deleting service cache snapshot of another transformation version: " + file );
+          file.delete();
+        } else {
+          entries.put( entry.getKey(), entry.getValue() );
+        }
+      } catch ( IOException | RuntimeException e ) {
+        logChannel.logError( "Unable to restore service cache snapshot " + file + ", deleting it", e );
+        file.delete();
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * @return restored entry, or null if the snapshot is of another service or transformation version
+   */
+  private static Map.Entry<CachedService.CacheKey, CachedService> read( File file, String serviceName, long version )
+    throws IOException {
+    CountingInputStream counting = new CountingInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+    DataInputStream input = new DataInputStream( counting );
+    RandomAccessFile randomAccessFile = new RandomAccessFile( file, "r" );
+    try {
+      if ( input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION ) {
+        throw new IOException( "Not a service cache snapshot" );
+      }
+      if ( !input.readUTF().equals( serviceName ) || input.readLong() != version ) {
+        return null;
+      }
+      long timestamp = input.readLong();
+      CachedService.CacheKey key = CachedService.CacheKey.read( input );
+      int rowCount = input.readInt();
+      int chunkCount = input.readInt();
+
+      FileChannel channel = randomAccessFile.getChannel();
+      List<StoredChunk> chunks = Lists.newArrayListWithCapacity( chunkCount );
+      RowMetaInterface rowMeta = null;
+      for ( int i = 0; i < chunkCount; i++ ) {
+        if ( input.readBoolean() ) {
+          rowMeta = readRowMeta( input );
+        }
+        int chunkRows = input.readInt();
+        long heapSize = input.readLong();
+        int length = input.readInt();
+        // Mapping stays valid after the channel is closed
+        MappedByteBuffer mapped = channel.map( FileChannel.MapMode.READ_ONLY, counting.getCount(), length );
+        ByteStreams.skipFully( input, length );
+        chunks.add( new StoredChunk( rowMeta, chunkRows, heapSize, mapped ) );
+      }
+      CachedService cachedService = CachedService.restore( CachedRows.restore( chunks, rowCount ), timestamp );
+      return Maps.immutableEntry( key, cachedService );
+    } finally {
+      input.close();
+      randomAccessFile.close();
+    }
+  }
+
+  private static RowMetaInterface readRowMeta( DataInputStream input ) throws IOException {
+    try {
+      return new RowMeta( input );
+    } catch ( KettleFileException e ) {
+      throw new IOException( "Unable to read row meta", e );
+    }
+  }
+
+  /**
+   * Delete the snapshot of an entry, if any
+   */
+  public void delete( String serviceName, CachedService.CacheKey key ) {
+    file( serviceName, key ).delete();
+  }
+
+  /**
+   * Delete all snapshots of a data service, after its cache was cleared
+   */
+  public void clear( String serviceName ) {
+    File[] files = serviceDirectory( serviceName ).listFiles();
+    for ( File file : files == null ? new File[0] : files ) {
+      file.delete();
+    }
+  }
+
+  private File serviceDirectory( String serviceName ) {
+    return new File( directory, hashFunction.hashString( serviceName, Charsets.UTF_8 ).toString() );
+  }
+
+  private File file( String serviceName, CachedService.CacheKey key ) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      DataOutputStream output = new DataOutputStream( bytes );
+      key.write( output );
+      output.flush();
+    } catch ( IOException e ) {
+      throw new IllegalStateException( "Unable to encode cache key", e );
+    }
+    return new File( serviceDirectory( serviceName ), hashFunction.hashBytes( bytes.toByteArray() ) + EXTENSION );
+  }
+}
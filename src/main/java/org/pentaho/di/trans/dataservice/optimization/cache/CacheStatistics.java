@@ -0,0 +1,225 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Counts how often each data service is answered by its cache, and what populating and replaying the cache costs.
+ * Counts are kept for the life of the server, clearing a cache does not reset them.
+ *
+ * @see CacheStatusServlet
+ */
+public class CacheStatistics {
+  private final Map<String, Counters> counters = Maps.newHashMap();
+
+  /**
+   * A query was answered by a cache entry
+   *
+   * @param complete false if the entry only holds part of the service's rows
+   */
+  public synchronized void hit( String serviceName, boolean complete ) {
+    Counters serviceCounters = counters( serviceName );
+    serviceCounters.hits++;
+    if ( !complete ) {
+      serviceCounters.partialHits++;
+    }
+  }
+
+  /**
+   * A query ran the service transformation, since no cache entry could answer it
+   */
+  public synchronized void miss( String serviceName ) {
+    counters( serviceName ).misses++;
+  }
+
+  public synchronized void replayed( String serviceName, int rowCount, long millis ) {
+    Counters serviceCounters = counters( serviceName );
+    serviceCounters.replays++;
+    serviceCounters.replayedRows += rowCount;
+    serviceCounters.replayTime += millis;
+  }
+
+  /**
+   * The service transformation finished and its rows were collected for the cache
+   */
+  public synchronized void populated( String serviceName, boolean complete, long millis ) {
+    Counters serviceCounters = counters( serviceName );
+    if ( complete ) {
+      serviceCounters.completeEntries++;
+    } else {
+      serviceCounters.partialEntries++;
+    }
+    serviceCounters.populationTime += millis;
+  }
+
+  /**
+   * The results of a query that missed the cache were offered to the admission policy
+   *
+   * @param admitted false if the results were not cached
+   */
+  public synchronized void admission( String serviceName, boolean admitted ) {
+    Counters serviceCounters = counters( serviceName );
+    if ( admitted ) {
+      serviceCounters.admitted++;
+    } else {
+      serviceCounters.rejected++;
+    }
+  }
+
+  public synchronized Set<String> getServiceNames() {
+    return Sets.newTreeSet( counters.keySet() );
+  }
+
+  /**
+   * @return a copy of the current counts for a service
+   */
+  public synchronized Counters getCounters( String serviceName ) {
+    Counters serviceCounters = counters.get( serviceName );
+    return serviceCounters == null ? new Counters() : new Counters( serviceCounters );
+  }
+
+  private Counters counters( String serviceName ) {
+    Counters serviceCounters = counters.get( serviceName );
+    if ( serviceCounters == null ) {
+      counters.put( serviceName, serviceCounters = new Counters() );
+    }
+    return serviceCounters;
+  }
+
+  /**
+   * Counts for a single data service. Times are in milliseconds.
+   */
+  public static final class Counters {
+    private long hits = 0;
+    private long partialHits = 0;
+    private long misses = 0;
+    private long completeEntries = 0;
+    private long partialEntries = 0;
+    private long replays = 0;
+    private long replayedRows = 0;
+    private long replayTime = 0;
+    private long populationTime = 0;
+    private long admitted = 0;
+    private long rejected = 0;
+
+    Counters() {
+    }
+
+    private Counters( Counters other ) {
+      hits = other.hits;
+      partialHits = other.partialHits;
+      misses = other.misses;
+      completeEntries = other.completeEntries;
+      partialEntries = other.partialEntries;
+      replays = other.replays;
+      replayedRows = other.replayedRows;
+      replayTime = other.replayTime;
+      populationTime = other.populationTime;
+      admitted = other.admitted;
+      rejected = other.rejected;
+    }
+
+    public long getHits() {
+      return hits;
+    }
+
+    /**
+     * @return hits answered by entries holding only part of the service's rows, e.g. from a query with a limit
+     */
+    public long getPartialHits() {
+      return partialHits;
+    }
+
+    public long getMisses() {
+      return misses;
+    }
+
+    /**
+     * @return fraction of queries answered by the cache, or 0 if there were no queries
+     */
+    public double getHitRatio() {
+      return hits + misses == 0 ? 0 : (double) hits / ( hits + misses );
+    }
+
+    public long getCompleteEntries() {
+      return completeEntries;
+    }
+
+    public long getPartialEntries() {
+      return partialEntries;
+    }
+
+    public long getReplays() {
+      return replays;
+    }
+
+    public long getReplayedRows() {
+      return replayedRows;
+    }
+
+    public long getReplayTime() {
+      return replayTime;
+    }
+
+    public long getPopulationTime() {
+      return populationTime;
+    }
+
+    /**
+     * @return query results cached by the admission policy
+     */
+    public long getAdmitted() {
+      return admitted;
+    }
+
+    /**
+     * @return query results not cached, since the admission policy did not expect them to be reused
+     */
+    public long getRejected() {
+      return rejected;
+    }
+
+    @Override public String toString() {
+      return Objects.toStringHelper( this )
+        .add( "hits", hits )
+        .add( "partialHits", partialHits )
+        .add( "misses", misses )
+        .add( "completeEntries", completeEntries )
+        .add( "partialEntries", partialEntries )
+        .add( "replays", replays )
+        .add( "replayedRows", replayedRows )
+        .add( "replayTime", replayTime )
+        .add( "populationTime", populationTime )
+        .add( "admitted", admitted )
+        .add( "rejected", rejected )
+        .toString();
+    }
+  }
+}
@@ -0,0 +1,163 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.net.MediaType;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.pentaho.di.core.annotations.CarteServlet;
+import org.pentaho.di.www.BaseHttpServlet;
+import org.pentaho.di.www.CartePluginInterface;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * This servlet reports the estimated memory held by data service caches, and how often they answer queries
+ *
+ * @see CacheBudget
+ * @see CacheStatistics
+ */
+@CarteServlet(
+  id = "ds_serviceCacheStatus",
+  name = "PDI Data Service: ServiceCache status",
+  description = "Report data service cache sizes and statistics"
+)
+public class CacheStatusServlet extends BaseHttpServlet implements CartePluginInterface {
+  private static final long serialVersionUID = 2967283612406410716L;
+
+  public static final String CONTEXT_PATH = "/dataServiceCacheStatus";
+  private static final String NAME_PARAMETER = "name";
+
+  private final ServiceCacheFactory factory;
+
+  public CacheStatusServlet( ServiceCacheFactory factory ) {
+    this.factory = factory;
+  }
+
+  @Override public String toString() {
+    return "Data Service Cache Status";
+  }
+
+  public String getService() {
+    return CONTEXT_PATH + " (" + toString() + ")";
+  }
+
+  public String getContextPath() {
+    return CONTEXT_PATH;
+  }
+
+  @SuppressWarnings( "unchecked" )
+  @Override public void doGet( HttpServletRequest request, HttpServletResponse response ) throws IOException {
+    if ( isJettyMode() && !request.getContextPath().startsWith( CONTEXT_PATH ) ) {
+      return;
+    }
+
+    String name = request.getParameter( NAME_PARAMETER );
+    CacheBudget budget = factory.getBudget();
+
+    JSONArray services = new JSONArray();
+    Iterable<String> serviceNames = Strings.isNullOrEmpty( name )
+      ? Sets.union( budget.getServiceNames(), factory.getStatistics().getServiceNames() ) : ImmutableSet.of( name );
+    for ( String serviceName : serviceNames ) {
+      services.add( toJSON( serviceName ) );
+    }
+
+    JSONObject result = new JSONObject();
+    result.put( "size", budget.getSize() );
+    result.put( "maxSize", budget.getMaxSize() );
+    result.put( "evictions", budget.getEvictions() );
+    result.put( "abandoned", budget.getAbandoned() );
+    result.put( "services", services );
+
+    response.setStatus( HttpServletResponse.SC_OK );
+    response.setContentType( MediaType.JSON_UTF_8.toString() );
+    response.getWriter().print( result.toJSONString() );
+  }
+
+  @SuppressWarnings( "unchecked" )
+  JSONObject toJSON( String serviceName ) {
+    CacheBudget budget = factory.getBudget();
+
+    JSONObject tiers = new JSONObject();
+    for ( TieredStorage storage : factory.getStorage( serviceName ).asSet() ) {
+      for ( Map.Entry<TieredStorage.Tier, Long> usage : storage.getUsage().entrySet() ) {
+        tiers.put( usage.getKey().name(), usage.getValue() );
+      }
+    }
+
+    JSONArray weights = new JSONArray();
+    JSONArray compression = new JSONArray();
+    for ( CacheBudget.Entry entry : budget.getEntries( serviceName ) ) {
+      weights.add( entry.getWeight() );
+      CachedService cachedService = entry.getCachedService();
+      compression.add( cachedService == null ? null : toJSON( cachedService.getRows().getCompression() ) );
+    }
+
+    CacheStatistics.Counters counters = factory.getStatistics().getCounters( serviceName );
+    JSONObject statistics = new JSONObject();
+    statistics.put( "hits", counters.getHits() );
+    statistics.put( "partialHits", counters.getPartialHits() );
+    statistics.put( "misses", counters.getMisses() );
+    statistics.put( "hitRatio", counters.getHitRatio() );
+    statistics.put( "completeEntries", counters.getCompleteEntries() );
+    statistics.put( "partialEntries", counters.getPartialEntries() );
+    statistics.put( "replays", counters.getReplays() );
+    statistics.put( "replayedRows", counters.getReplayedRows() );
+    statistics.put( "replayTime", counters.getReplayTime() );
+    statistics.put( "populationTime", counters.getPopulationTime() );
+    statistics.put( "admitted", counters.getAdmitted() );
+    statistics.put( "rejected", counters.getRejected() );
+
+    JSONObject json = new JSONObject();
+    json.put( "name", serviceName );
+    json.put( "size", budget.getSize( serviceName ) );
+    json.put( "maxSize", budget.getMaxSize( serviceName ) );
+    json.put( "entries", budget.getEntryCount( serviceName ) );
+    json.put( "evictions", budget.getEvictions( serviceName ) );
+    json.put( "abandoned", budget.getAbandoned( serviceName ) );
+    json.put( "tiers", tiers );
+    json.put( "entryWeights", weights );
+    json.put( "entryCompression", compression );
+    json.put( "statistics", statistics );
+    return json;
+  }
+
+  @SuppressWarnings( "unchecked" )
+  private static JSONObject toJSON( CompressionStats stats ) {
+    JSONObject json = new JSONObject();
+    json.put( "uncompressedBytes", stats.getUncompressedBytes() );
+    json.put( "compressedBytes", stats.getCompressedBytes() );
+    json.put( "ratio", stats.getRatio() );
+    json.put( "compressionTime", stats.getCompressionTime() );
+    json.put( "decompressionTime", stats.getDecompressionTime() );
+    json.put( "decompressions", stats.getDecompressions() );
+    return json;
+  }
+}
@@ -0,0 +1,452 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.repository.Repository;
+import org.pentaho.di.trans.dataservice.DataServiceContext;
+import org.pentaho.di.trans.dataservice.DataServiceExecutor;
+import org.pentaho.di.trans.dataservice.DataServiceMeta;
+import org.pentaho.di.trans.dataservice.execution.QueryLog;
+import org.pentaho.di.trans.dataservice.optimization.PushDownOptimizationMeta;
+import org.pentaho.di.trans.dataservice.serialization.DataServiceMetaStoreUtil;
+import org.pentaho.di.trans.step.RowAdapter;
+import org.pentaho.metastore.api.IMetaStore;
+
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fills service caches in the background, so the first users after a restart or reset do not wait for cold services.
+ * <p>
+ * Each {@link ServiceCache} may define warm-up queries, one per line. Lines starting with {@code SELECT} are run as
+ * they are. Any other line is a parameter set, such as {@code REGION=EMEA&YEAR=2015}, for which all rows of the
+ * service are queried. Blank lines and lines starting with {@code #} are ignored.
+ * </p>
+ * <p>
+ * Warm-up runs when Carte starts, after the cache is reset, or on a {@link CronSchedule}, as configured by the service
+ * cache. At most {@value #DEFAULT_CONCURRENCY} queries run at once, unless set by the {@value #CONCURRENCY_PROPERTY}
+ * system property.
+ * </p>
+ */
+public class CacheWarmUp {
+  public static final String CONCURRENCY_PROPERTY = "KETTLE_DATA_SERVICE_CACHE_WARM_UP_CONCURRENCY";
+  public static final int DEFAULT_CONCURRENCY = 2;
+  private static final long RELOAD_INTERVAL = TimeUnit.MINUTES.toMillis( 5 );
+  private static final Splitter.MapSplitter PARAMETERS = Splitter.on( '&' ).trimResults().omitEmptyStrings()
+    .withKeyValueSeparator( Splitter.on( '=' ).trimResults() );
+
+  private final DataServiceMetaStoreUtil metaStoreUtil;
+  private final QueryLog queryLog;
+  private final ScheduledExecutorService executor;
+  private final ConcurrentMap<String, Progress> progress = Maps.newConcurrentMap();
+
+  private volatile Repository repository;
+  private volatile IMetaStore metaStore;
+  private volatile Map<String, Definition> definitions = ImmutableMap.of();
+  private long loaded = 0;
+  private boolean started = false;
+
+  public CacheWarmUp( DataServiceContext context ) {
+    this( context.getMetaStoreUtil(), context.getQueryLog(), Executors.newScheduledThreadPool( getConcurrency(),
+      new ThreadFactoryBuilder().setDaemon( true ).setNameFormat( "data-service-cache-warm-up-%d" ).build() ) );
+  }
+
+  CacheWarmUp( DataServiceMetaStoreUtil metaStoreUtil, QueryLog queryLog, ScheduledExecutorService executor ) {
+    this.metaStoreUtil = metaStoreUtil;
+    this.queryLog = queryLog;
+    this.executor = executor;
+  }
+
+  static int getConcurrency() {
+    String concurrency = Strings.nullToEmpty( System.getProperty( CONCURRENCY_PROPERTY ) ).trim();
+    try {
+      return concurrency.isEmpty() ? DEFAULT_CONCURRENCY : Math.max( Integer.parseInt( concurrency ), 1 );
+    } catch ( NumberFormatException e ) {
+      return DEFAULT_CONCURRENCY;
+    }
+  }
+
+  /**
+   * Run startup warm-ups and begin scheduling. Later calls only update where data services are located.
+   *
+   * @param repository repository of the server, may be null
+   * @param metaStore  meta store of the server, used to locate data services
+   */
+  public synchronized void start( Repository repository, IMetaStore metaStore ) {
+    this.repository = repository;
+    this.metaStore = metaStore;
+    if ( started ) {
+      return;
+    }
+    started = true;
+    executor.execute( new Runnable() {
+      @Override public void run() {
+        for ( Definition definition : reload().values() ) {
+          if ( definition.onStartup ) {
+            run( definition );
+          }
+        }
+      }
+    } );
+    executor.scheduleWithFixedDelay( new Runnable() {
+      @Override public void run() {
+        tick();
+      }
+    }, 1, 1, TimeUnit.MINUTES );
+  }
+
+  public void stop() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Warm up a data service if it is configured to do so after its cache is reset
+   */
+  public void afterReset( final String serviceName ) {
+    executor.execute( new Runnable() {
+      @Override public void run() {
+        for ( Definition definition : load( serviceName ).asSet() ) {
+          if ( definition.afterReset ) {
+            run( definition );
+          }
+        }
+      }
+    } );
+  }
+
+  /**
+   * Warm up a data service now
+   *
+   * @return false if the service has no warm-up queries or is already warming up
+   */
+  public boolean warmUp( String serviceName ) {
+    Optional<Definition> definition = load( serviceName );
+    return definition.isPresent() && run( definition.get() );
+  }
+
+  /**
+   * @return warm-up progress of every service that has been warmed up or scheduled, by service name
+   */
+  public SortedMap<String, Progress> getProgress() {
+    return Maps.newTreeMap( progress );
+  }
+
+  synchronized void tick() {
+    try {
+      long now = System.currentTimeMillis();
+      if ( now - loaded > RELOAD_INTERVAL ) {
+        reload();
+      }
+      for ( Definition definition : definitions.values() ) {
+        if ( definition.isDue( now ) ) {
+          run( definition );
+        }
+      }
+    } catch ( Throwable e ) {
+      // Keep the schedule running
+      getLogChannel().logError( "Unable to schedule data service cache warm-up", e );
+    }
+  }
+
+  /**
+   * Read warm-up definitions of all data services, keeping the next scheduled run of unchanged schedules
+   */
+  private synchronized Map<String, Definition> reload() {
+    loaded = System.currentTimeMillis();
+    Map<String, Definition> previous = definitions;
+    ImmutableMap.Builder<String, Definition> reloaded = ImmutableMap.builder();
+    Iterable<DataServiceMeta> services =
+      metaStoreUtil.getDataServices( repository, metaStore, metaStoreUtil.logErrors( "Unable to load data service" ) );
+    for ( DataServiceMeta service : services ) {
+      for ( Definition definition : define( service ).asSet() ) {
+        Definition existing = previous.get( service.getName() );
+        if ( existing != null && existing.isScheduledAs( definition ) ) {
+          definition.nextRun = existing.nextRun;
+        }
+        progress( service.getName() ).setNextRun( definition.nextRun );
+        reloaded.put( service.getName(), definition );
+      }
+    }
+    return definitions = reloaded.build();
+  }
+
+  private Optional<Definition> load( String serviceName ) {
+    try {
+      return define( metaStoreUtil.getDataService( serviceName, repository, metaStore ) );
+    } catch ( Exception e ) {
+      getLogChannel().logError( "Unable to load data service " + serviceName + " for cache warm-up", e );
+      return Optional.absent();
+    }
+  }
+
+  private Optional<Definition> define( DataServiceMeta service ) {
+    for ( PushDownOptimizationMeta optimization : service.getPushDownOptimizationMeta() ) {
+      if ( optimization.isEnabled() && optimization.getType() instanceof ServiceCache ) {
+        ServiceCache serviceCache = (ServiceCache) optimization.getType();
+        try {
+          List<Query> queries = parseQueries( service.getName(), serviceCache.getWarmUpQueries() );
+          if ( !queries.isEmpty() ) {
+            return Optional.of( new Definition( service, queries, serviceCache ) );
+          }
+        } catch ( IllegalArgumentException e ) {
+          progress( service.getName() ).setError( e );
+          getLogChannel().logError( "Invalid cache warm-up for data service " + service.getName(), e );
+        }
+      }
+    }
+    return Optional.absent();
+  }
+
+  static List<Query> parseQueries( String serviceName, String definitions ) {
+    ImmutableList.Builder<Query> queries = ImmutableList.builder();
+    for ( String line : Splitter.on( '\n' ).trimResults().omitEmptyStrings().split( Strings.nullToEmpty(
+      definitions ) ) ) {
+      if ( line.startsWith( "#" ) ) {
+        continue;
+      }
+      if ( line.toUpperCase().startsWith( "SELECT" ) ) {
+        queries.add( new Query( line, ImmutableMap.<String, String>of() ) );
+      } else {
+        Map<String, String> parameters = PARAMETERS.split( line );
+        queries.add( new Query( "SELECT * FROM \"" + serviceName + "\"", ImmutableMap.copyOf( parameters ) ) );
+      }
+    }
+    return queries.build();
+  }
+
+  private boolean run( final Definition definition ) {
+    final String serviceName = definition.service.getName();
+    final Progress status = progress( serviceName );
+    if ( !status.start( definition.queries.size() ) ) {
+      getLogChannel().logDetailed( "Cache warm-up already running for data service " + serviceName );
+      return false;
+    }
+    getLogChannel().logBasic( "Warming up cache for data service " + serviceName );
+    for ( final Query query : definition.queries ) {
+      executor.execute( new Runnable() {
+        @Override public void run() {
+          try {
+            execute( definition.service, query );
+            status.completed( null );
+          } catch ( Throwable e ) {
+            getLogChannel().logError( "Cache warm-up query failed for data service " + serviceName + ": " + query, e );
+            status.completed( e );
+          }
+        }
+      } );
+    }
+    return true;
+  }
+
+  void execute( DataServiceMeta service, Query query ) throws KettleException {
+    DataServiceExecutor executor = new DataServiceExecutor.Builder( new SQL( query.getSql() ), service )
+      .parameters( query.getParameters() )
+      .queryRecord( queryLog.newRecord( query.getSql() ) )
+      .build();
+    // Results are only needed by the cache
+    executor.executeQuery( new RowAdapter() );
+    executor.waitUntilFinished();
+    if ( executor.getGenTrans().getErrors() > 0 ) {
+      throw new KettleException( "Query finished with errors" );
+    }
+  }
+
+  private Progress progress( String serviceName ) {
+    Progress status = progress.get( serviceName );
+    if ( status == null ) {
+      Progress created = new Progress();
+      status = Objects.firstNonNull( progress.putIfAbsent( serviceName, created ), created );
+    }
+    return status;
+  }
+
+  private LogChannelInterface getLogChannel() {
+    return metaStoreUtil.getLogChannel();
+  }
+
+  /**
+   * A warm-up query, with optional parameters
+   */
+  public static final class Query {
+    private final String sql;
+    private final ImmutableMap<String, String> parameters;
+
+    Query( String sql, ImmutableMap<String, String> parameters ) {
+      this.sql = sql;
+      this.parameters = parameters;
+    }
+
+    public String getSql() {
+      return sql;
+    }
+
+    public ImmutableMap<String, String> getParameters() {
+      return parameters;
+    }
+
+    @Override public boolean equals( Object o ) {
+      if ( this == o ) {
+        return true;
+      }
+      if ( o == null || getClass() != o.getClass() ) {
+        return false;
+      }
+      Query query = (Query) o;
+      return Objects.equal( sql, query.sql ) && Objects.equal( parameters, query.parameters );
+    }
+
+    @Override public int hashCode() {
+      return Objects.hashCode( sql, parameters );
+    }
+
+    @Override public String toString() {
+      return parameters.isEmpty() ? sql : sql + " " + parameters;
+    }
+  }
+
+  /**
+   * Warm-up status of a data service. Times are in milliseconds since the epoch, or -1 if not yet known.
+   */
+  public static final class Progress {
+    private int queries = 0;
+    private int completed = 0;
+    private int failed = 0;
+    private long lastStarted = -1;
+    private long lastFinished = -1;
+    private long nextRun = -1;
+    private String lastError;
+
+    synchronized boolean start( int queries ) {
+      if ( isRunning() ) {
+        return false;
+      }
+      this.queries = queries;
+      completed = failed = 0;
+      lastStarted = System.currentTimeMillis();
+      return true;
+    }
+
+    synchronized void completed( Throwable error ) {
+      completed++;
+      if ( error != null ) {
+        setError( error );
+      }
+      if ( completed == queries ) {
+        lastFinished = System.currentTimeMillis();
+      }
+    }
+
+    synchronized void setError( Throwable error ) {
+      failed++;
+      lastError = String.valueOf( error.getMessage() );
+    }
+
+    synchronized void setNextRun( long nextRun ) {
+      this.nextRun = nextRun;
+    }
+
+    public synchronized boolean isRunning() {
+      return completed < queries;
+    }
+
+    public synchronized int getQueries() {
+      return queries;
+    }
+
+    public synchronized int getCompleted() {
+      return completed;
+    }
+
+    public synchronized int getFailed() {
+      return failed;
+    }
+
+    public synchronized long getLastStarted() {
+      return lastStarted;
+    }
+
+    public synchronized long getLastFinished() {
+      return lastFinished;
+    }
+
+    public synchronized long getNextRun() {
+      return nextRun;
+    }
+
+    public synchronized String getLastError() {
+      return lastError;
+    }
+  }
+
+  private final class Definition {
+    private final DataServiceMeta service;
+    private final List<Query> queries;
+    private final CronSchedule schedule;
+    private final boolean onStartup;
+    private final boolean afterReset;
+    private long nextRun;
+
+    private Definition( DataServiceMeta service, List<Query> queries, ServiceCache serviceCache ) {
+      this.service = service;
+      this.queries = queries;
+      this.onStartup = serviceCache.isWarmUpOnStartup();
+      this.afterReset = serviceCache.isWarmUpAfterReset();
+      String expression = Strings.emptyToNull( Strings.nullToEmpty( serviceCache.getWarmUpSchedule() ).trim() );
+      this.schedule = expression == null ? null : CronSchedule.parse( expression );
+      this.nextRun = schedule == null ? -1 : schedule.next( System.currentTimeMillis() );
+    }
+
+    boolean isScheduledAs( Definition other ) {
+      return Objects.equal( String.valueOf( schedule ), String.valueOf( other.schedule ) );
+    }
+
+    /**
+     * @return true if a scheduled run is due, advancing the schedule
+     */
+    boolean isDue( long now ) {
+      if ( nextRun < 0 || now < nextRun ) {
+        return false;
+      }
+      nextRun = schedule.next( now );
+      progress( service.getName() ).setNextRun( nextRun );
+      return true;
+    }
+  }
+}
@@ -0,0 +1,137 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Strings;
+import com.google.common.net.MediaType;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.pentaho.di.core.annotations.CarteServlet;
+import org.pentaho.di.www.BaseHttpServlet;
+import org.pentaho.di.www.CartePluginInterface;
+import org.pentaho.di.www.JobMap;
+import org.pentaho.di.www.SlaveServerDetection;
+import org.pentaho.di.www.SocketRepository;
+import org.pentaho.di.www.TransformationMap;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This servlet reports data service cache warm-up progress, and triggers a warm-up when posted a service name
+ *
+ * @see CacheWarmUp
+ */
+@CarteServlet(
+  id = "ds_serviceCacheWarmUp",
+  name = "PDI Data Service: ServiceCache warm-up",
+  description = "Report and trigger data service cache warm-up"
+)
+public class CacheWarmUpServlet extends BaseHttpServlet implements CartePluginInterface {
+  private static final long serialVersionUID = -1725286370455628943L;
+
+  public static final String CONTEXT_PATH = "/dataServiceCacheWarmUp";
+  private static final String NAME_PARAMETER = "name";
+
+  private final CacheWarmUp warmUp;
+
+  public CacheWarmUpServlet( CacheWarmUp warmUp ) {
+    this.warmUp = warmUp;
+  }
+
+  @Override public void setup( TransformationMap transformationMap, JobMap jobMap, SocketRepository socketRepository,
+                               List<SlaveServerDetection> detections ) {
+    super.setup( transformationMap, jobMap, socketRepository, detections );
+    start();
+  }
+
+  private void start() {
+    warmUp.start( transformationMap.getSlaveServerConfig().getRepository(),
+      transformationMap.getSlaveServerConfig().getMetaStore() );
+  }
+
+  @Override public String toString() {
+    return "Data Service Cache Warm-up";
+  }
+
+  public String getService() {
+    return CONTEXT_PATH + " (" + toString() + ")";
+  }
+
+  public String getContextPath() {
+    return CONTEXT_PATH;
+  }
+
+  @SuppressWarnings( "unchecked" )
+  @Override public void doGet( HttpServletRequest request, HttpServletResponse response ) throws IOException {
+    if ( isJettyMode() && !request.getContextPath().startsWith( CONTEXT_PATH ) ) {
+      return;
+    }
+
+    JSONArray services = new JSONArray();
+    for ( Map.Entry<String, CacheWarmUp.Progress> entry : warmUp.getProgress().entrySet() ) {
+      services.add( toJSON( entry.getKey(), entry.getValue() ) );
+    }
+
+    JSONObject result = new JSONObject();
+    result.put( "services", services );
+
+    response.setStatus( HttpServletResponse.SC_OK );
+    response.setContentType( MediaType.JSON_UTF_8.toString() );
+    response.getWriter().print( result.toJSONString() );
+  }
+
+  @Override protected void doPost( HttpServletRequest request, HttpServletResponse response ) throws IOException {
+    String name = request.getParameter( NAME_PARAMETER );
+
+    if ( Strings.isNullOrEmpty( name ) ) {
+      response.sendError( HttpServletResponse.SC_BAD_REQUEST, NAME_PARAMETER + " not specified" );
+      return;
+    }
+
+    start();
+    response.setStatus( HttpServletResponse.SC_OK );
+    response.setContentType( MediaType.PLAIN_TEXT_UTF_8.toString() );
+    response.getWriter().println( warmUp.warmUp( name )
+      ? "Warming up cache: " + name : "No warm-up queries or already warming up: " + name );
+  }
+
+  @SuppressWarnings( "unchecked" )
+  JSONObject toJSON( String serviceName, CacheWarmUp.Progress progress ) {
+    JSONObject json = new JSONObject();
+    json.put( "name", serviceName );
+    json.put( "running", progress.isRunning() );
+    json.put( "queries", progress.getQueries() );
+    json.put( "completed", progress.getCompleted() );
+    json.put( "failed", progress.getFailed() );
+    json.put( "lastStarted", progress.getLastStarted() );
+    json.put( "lastFinished", progress.getLastFinished() );
+    json.put( "nextRun", progress.getNextRun() );
+    json.put( "lastError", progress.getLastError() );
+    return json;
+  }
+}
@@ -0,0 +1,215 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaAndData;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hash index over one column of {@link CachedRows}, so that equality lookups read only the matching rows.
+ * <p>
+ * Maps each non-null value of the column to the positions of its rows, in row order. Lookup values are converted to
+ * the column's type with {@link ValueMetaInterface#convertData}, as {@link org.pentaho.di.core.Condition} converts
+ * them before comparing. Only types whose Kettle comparison agrees with {@link Object#equals} can be indexed.
+ * </p>
+ * The index is immutable once built and may be shared by concurrent replays.
+ */
+final class CachedIndex {
+  private static final int OBJECT_OVERHEAD = 16;
+
+  private final String column;
+  private final ValueMetaInterface valueMeta;
+  private final Map<Object, int[]> positions;
+
+  private CachedIndex( String column, ValueMetaInterface valueMeta, Map<Object, int[]> positions ) {
+    this.column = column;
+    this.valueMeta = valueMeta;
+    this.positions = positions;
+  }
+
+  /**
+   * Index a column of cached rows. Reads every chunk, so the rows should be pinned.
+   *
+   * @return index, or absent if the column is missing from some chunk or its type can not be indexed
+   */
+  static Optional<CachedIndex> build( CachedRows rows, String column ) {
+    ListMultimap<Object, Integer> built = ArrayListMultimap.create();
+    ValueMetaInterface valueMeta = null;
+    int position = 0;
+    for ( StoredChunk storedChunk : rows.getChunks() ) {
+      RowMetaInterface rowMeta = storedChunk.getRowMeta();
+      int index = rowMeta.indexOfValue( column );
+      if ( index < 0 || !supports( rowMeta.getValueMeta( index ) )
+        || valueMeta != null && valueMeta.getType() != rowMeta.getValueMeta( index ).getType() ) {
+        return Optional.absent();
+      }
+      valueMeta = rowMeta.getValueMeta( index );
+      for ( Object[] row : storedChunk.load() ) {
+        Object key = normalize( row[index] );
+        if ( key != null ) {
+          built.put( key, position );
+        }
+        position++;
+      }
+    }
+    if ( valueMeta == null ) {
+      return Optional.absent();
+    }
+
+    Map<Object, int[]> positions = Maps.newHashMapWithExpectedSize( built.keySet().size() );
+    for ( Map.Entry<Object, Collection<Integer>> entry : built.asMap().entrySet() ) {
+      positions.put( entry.getKey(), Ints.toArray( entry.getValue() ) );
+    }
+    return Optional.of( new CachedIndex( column, valueMeta, positions ) );
+  }
+
+  /**
+   * Kettle may trim strings or ignore their case when comparing them, and compares big numbers regardless of scale.
+   * Only columns compared exactly can be answered by hashing. Binary string and indexed storage keep raw bytes or
+   * indexes in the cached rows, which never equal a converted lookup value.
+   */
+  static boolean supports( ValueMetaInterface valueMeta ) {
+    if ( valueMeta.getStorageType() != ValueMetaInterface.STORAGE_TYPE_NORMAL ) {
+      return false;
+    }
+    switch ( valueMeta.getType() ) {
+      case ValueMetaInterface.TYPE_STRING:
+        return !valueMeta.isCaseInsensitive() && valueMeta.getTrimType() == ValueMetaInterface.TRIM_TYPE_NONE;
+      case ValueMetaInterface.TYPE_INTEGER:
+      case ValueMetaInterface.TYPE_DATE:
+      case ValueMetaInterface.TYPE_BOOLEAN:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private static Object normalize( Object value ) {
+    // Dates may be stored as java.sql.Timestamp, which is never equal to a java.util.Date
+    return value instanceof Date ? Long.valueOf( ( (Date) value ).getTime() ) : value;
+  }
+
+  public String getColumn() {
+    return column;
+  }
+
+  public int getValueCount() {
+    return positions.size();
+  }
+
+  /**
+   * Find the rows holding any of the given values
+   *
+   * @param values values written in a query, of any type
+   * @return positions of the rows in row order, or absent if a value can not be safely converted to the column's type
+   */
+  public Optional<int[]> lookup( Collection<ValueMetaAndData> values ) {
+    List<int[]> found = Lists.newArrayListWithCapacity( values.size() );
+    int total = 0;
+    for ( ValueMetaAndData value : values ) {
+      Optional<Object> converted = convert( value );
+      if ( !converted.isPresent() ) {
+        return Optional.absent();
+      }
+      int[] rows = positions.get( normalize( converted.get() ) );
+      if ( rows != null ) {
+        found.add( rows );
+        total += rows.length;
+      }
+    }
+    if ( found.size() == 1 ) {
+      return Optional.of( found.get( 0 ) );
+    }
+
+    // Merge positions of several values back into row order, dropping duplicate values
+    int[] merged = new int[total];
+    int length = 0;
+    for ( int[] rows : found ) {
+      System.arraycopy( rows, 0, merged, length, rows.length );
+      length += rows.length;
+    }
+    Arrays.sort( merged );
+    int distinct = 0;
+    for ( int i = 0; i < merged.length; i++ ) {
+      if ( i == 0 || merged[i] != merged[i - 1] ) {
+        merged[distinct++] = merged[i];
+      }
+    }
+    return Optional.of( Arrays.copyOf( merged, distinct ) );
+  }
+
+  private Optional<Object> convert( ValueMetaAndData value ) {
+    ValueMetaInterface meta = value.getValueMeta();
+    Object data = value.getValueData();
+    if ( meta == null || data == null ) {
+      return Optional.absent();
+    }
+    if ( meta.getType() == ValueMetaInterface.TYPE_STRING && valueMeta.getType() != ValueMetaInterface.TYPE_STRING ) {
+      // Parsing strings is lenient and depends on formats, only accept plain integers
+      if ( valueMeta.getType() != ValueMetaInterface.TYPE_INTEGER ) {
+        return Optional.absent();
+      }
+      try {
+        return Optional.<Object>of( Long.parseLong( data.toString().trim() ) );
+      } catch ( NumberFormatException e ) {
+        return Optional.absent();
+      }
+    }
+    try {
+      return Optional.fromNullable( valueMeta.convertData( meta, data ) );
+    } catch ( KettleValueException e ) {
+      return Optional.absent();
+    }
+  }
+
+  /**
+   * @return approximate number of heap bytes retained by this index
+   */
+  public long estimateSize() {
+    long size = OBJECT_OVERHEAD;
+    for ( int[] rows : positions.values() ) {
+      // Hash entry, boxed key and position array
+      size += 3 * OBJECT_OVERHEAD + 16 + 4L * rows.length;
+    }
+    return size;
+  }
+
+  @Override public String toString() {
+    return column + " (" + positions.size() + " values)";
+  }
+}
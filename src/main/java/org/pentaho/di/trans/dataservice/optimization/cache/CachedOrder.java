@@ -0,0 +1,176 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.trans.steps.sort.SortRowsMeta;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Cached rows in the order of an ORDER BY clause, as positions of the rows in cache order. Values are compared as the
+ * generated sort step compares them, and ties keep their cache order, so replaying rows in this order gives the same
+ * result as sorting them.
+ */
+final class CachedOrder {
+  private static final int OBJECT_OVERHEAD = 16;
+
+  private final ImmutableList<String> spec;
+  private final int[] positions;
+
+  private CachedOrder( ImmutableList<String> spec, int[] positions ) {
+    this.spec = spec;
+    this.positions = positions;
+  }
+
+  /**
+   * @return fields and directions sorted on by a sort step, identifying its order
+   */
+  static ImmutableList<String> describe( SortRowsMeta sort ) {
+    ImmutableList.Builder<String> spec = ImmutableList.builder();
+    for ( int i = 0; i < sort.getFieldName().length; i++ ) {
+      spec.add( sort.getFieldName()[i] + ( sort.getAscending()[i] ? " ASC" : " DESC" )
+        + ( sort.getCaseSensitive()[i] ? "" : " CI" ) );
+    }
+    return spec.build();
+  }
+
+  /**
+   * Sort cached rows. Reads every row, which should be pinned.
+   *
+   * @return order, or absent if a field is missing from the cached rows or changes type
+   * @throws KettleValueException if values can not be compared
+   */
+  static Optional<CachedOrder> build( CachedRows rows, SortRowsMeta sort ) throws KettleValueException {
+    String[] fields = sort.getFieldName();
+    final ValueMetaInterface[] valueMetas = new ValueMetaInterface[fields.length];
+    final List<Object[]> keys = Lists.newArrayListWithCapacity( rows.getRowCount() );
+    for ( StoredChunk storedChunk : rows.getChunks() ) {
+      RowChunk chunk = storedChunk.load();
+      RowMetaInterface rowMeta = chunk.getRowMeta();
+      int[] indexes = new int[fields.length];
+      for ( int i = 0; i < fields.length; i++ ) {
+        indexes[i] = rowMeta.indexOfValue( fields[i] );
+        if ( indexes[i] < 0 ) {
+          return Optional.absent();
+        }
+        ValueMetaInterface valueMeta = rowMeta.getValueMeta( indexes[i] );
+        if ( valueMetas[i] == null ) {
+          // Same settings as the sort step applies to its input
+          valueMetas[i] = valueMeta.clone();
+          valueMetas[i].setSortedDescending( !sort.getAscending()[i] );
+          valueMetas[i].setCaseInsensitive( !sort.getCaseSensitive()[i] );
+        } else if ( valueMetas[i].getType() != valueMeta.getType() ) {
+          return Optional.absent();
+        }
+      }
+      for ( Object[] row : chunk ) {
+        Object[] key = new Object[indexes.length];
+        for ( int i = 0; i < indexes.length; i++ ) {
+          key[i] = row[indexes[i]];
+        }
+        keys.add( key );
+      }
+    }
+
+    Integer[] order = new Integer[keys.size()];
+    for ( int i = 0; i < order.length; i++ ) {
+      order[i] = i;
+    }
+    try {
+      // Stable, ties stay in cache order
+      Arrays.sort( order, new Comparator<Integer>() {
+        @Override public int compare( Integer a, Integer b ) {
+          Object[] keyA = keys.get( a ), keyB = keys.get( b );
+          try {
+            for ( int i = 0; i < valueMetas.length; i++ ) {
+              int compare = valueMetas[i].compare( keyA[i], keyB[i] );
+              if ( compare != 0 ) {
+                return compare;
+              }
+            }
+            return 0;
+          } catch ( KettleValueException e ) {
+            throw new CompareException( e );
+          }
+        }
+      } );
+    } catch ( CompareException e ) {
+      throw e.getCause();
+    }
+
+    int[] positions = new int[order.length];
+    for ( int i = 0; i < order.length; i++ ) {
+      positions[i] = order[i];
+    }
+    return Optional.of( new CachedOrder( describe( sort ), positions ) );
+  }
+
+  public ImmutableList<String> getSpec() {
+    return spec;
+  }
+
+  /**
+   * @return positions of all cached rows, in order. Must not be modified.
+   */
+  public int[] getPositions() {
+    return positions;
+  }
+
+  /**
+   * @return approximate number of bytes retained by this order, charged to its cached service
+   */
+  public long estimateSize() {
+    // Order, position array and its header
+    return 2 * OBJECT_OVERHEAD + 16 + 4L * positions.length;
+  }
+
+  @Override public String toString() {
+    return Objects.toStringHelper( this )
+      .add( "order", Joiner.on( ", " ).join( spec ) )
+      .add( "rows", positions.length )
+      .toString();
+  }
+
+  private static final class CompareException extends RuntimeException {
+    private static final long serialVersionUID = 4871920563318470192L;
+
+    CompareException( KettleValueException cause ) {
+      super( cause );
+    }
+
+    @Override public synchronized KettleValueException getCause() {
+      return (KettleValueException) super.getCause();
+    }
+  }
+}
@@ -0,0 +1,502 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
+import org.pentaho.di.core.Condition;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueDataUtil;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.trans.steps.memgroupby.MemoryGroupByMeta;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shape of a cached rollup: rows of a data service pre-aggregated by some of its fields. GROUP BY queries on the same
+ * or fewer fields can be answered by re-aggregating the rollup instead of replaying every cached row.
+ * <p>
+ * For each group, a rollup keeps the number of rows and, for each measure field, the SUM (numeric fields only),
+ * the number of non-null values, the MIN and the MAX. Every aggregate of the generated transformation except
+ * COUNT(DISTINCT) can be re-aggregated from these, AVG as SUM divided by the count.
+ * </p>
+ * Rollups are identified by {@link CachedService.CacheKey#getRollup()}, their rows are held by a {@link CachedService}.
+ */
+final class CachedRollup implements Serializable {
+  private static final int SUM = 0, COUNT = 1, MIN = 2, MAX = 3, COLUMNS_PER_MEASURE = 4;
+  private static final ValueMetaInterface COUNT_META = new ValueMeta( "count", ValueMetaInterface.TYPE_INTEGER );
+
+  private final ImmutableSortedSet<String> groupFields;
+  private final ImmutableSortedSet<String> measureFields;
+
+  CachedRollup( Iterable<String> groupFields, Iterable<String> measureFields ) {
+    this.groupFields = ImmutableSortedSet.copyOf( groupFields );
+    this.measureFields = ImmutableSortedSet.copyOf( measureFields );
+  }
+
+  /**
+   * Shape of the rollup needed to answer a query
+   *
+   * @param groupBy group step generated for the query
+   * @return rollup shape, or absent if the query computes an aggregate that can not be re-aggregated
+   */
+  static Optional<CachedRollup> forQuery( MemoryGroupByMeta groupBy ) {
+    List<String> measures = Lists.newArrayList();
+    int[] types = groupBy.getAggregateType();
+    for ( int i = 0; i < types.length; i++ ) {
+      switch ( types[i] ) {
+        case MemoryGroupByMeta.TYPE_GROUP_SUM:
+        case MemoryGroupByMeta.TYPE_GROUP_AVERAGE:
+        case MemoryGroupByMeta.TYPE_GROUP_MIN:
+        case MemoryGroupByMeta.TYPE_GROUP_MAX:
+        case MemoryGroupByMeta.TYPE_GROUP_COUNT_ALL:
+          measures.add( groupBy.getSubjectField()[i] );
+          break;
+        case MemoryGroupByMeta.TYPE_GROUP_COUNT_ANY:
+          // Counted for every group
+          break;
+        default:
+          return Optional.absent();
+      }
+    }
+    return Optional.of( new CachedRollup( Arrays.asList( groupBy.getGroupField() ), measures ) );
+  }
+
+  public ImmutableSortedSet<String> getGroupFields() {
+    return groupFields;
+  }
+
+  public ImmutableSortedSet<String> getMeasureFields() {
+    return measureFields;
+  }
+
+  /**
+   * @return true if rollups of this shape can answer queries needing the other shape
+   */
+  public boolean contains( CachedRollup other ) {
+    return groupFields.containsAll( other.groupFields ) && measureFields.containsAll( other.measureFields );
+  }
+
+  /**
+   * Aggregate cached rows. Reads every row, so the rows should be pinned.
+   *
+   * @param source    complete rows of the data service
+   * @param condition WHERE condition of the query, or null to aggregate all rows. Must not be shared, since it caches
+   *                  field indexes.
+   * @return rollup rows, or absent if a field is missing from the source rows or changes type
+   * @throws KettleValueException if values can not be compared or summed
+   */
+  Optional<CachedRows> build( CachedRows source, Condition condition ) throws KettleValueException {
+    RowMetaInterface sourceMeta = null, groupMeta = null, rollupMeta = null;
+    int[] groupIndexes = null, measureIndexes = null;
+    Map<Group, Accumulator> groups = Maps.newLinkedHashMap();
+    for ( StoredChunk storedChunk : source.getChunks() ) {
+      RowMetaInterface rowMeta = storedChunk.getRowMeta();
+      if ( rowMeta != sourceMeta ) {
+        int[] chunkGroupIndexes = indexesOf( rowMeta, groupFields ), chunkMeasureIndexes = indexesOf( rowMeta,
+          measureFields );
+        if ( chunkGroupIndexes == null || chunkMeasureIndexes == null || sourceMeta != null && (
+          !sameTypes( sourceMeta, groupIndexes, rowMeta, chunkGroupIndexes )
+            || !sameTypes( sourceMeta, measureIndexes, rowMeta, chunkMeasureIndexes ) ) ) {
+          return Optional.absent();
+        }
+        if ( sourceMeta == null ) {
+          groupMeta = select( rowMeta, chunkGroupIndexes );
+          rollupMeta = createRollupMeta( rowMeta, chunkGroupIndexes, chunkMeasureIndexes );
+        }
+        sourceMeta = rowMeta;
+        groupIndexes = chunkGroupIndexes;
+        measureIndexes = chunkMeasureIndexes;
+      }
+
+      for ( Object[] row : storedChunk.load() ) {
+        if ( condition != null && !condition.evaluate( rowMeta, row ) ) {
+          continue;
+        }
+        Group group = new Group( groupMeta, select( row, groupIndexes ) );
+        Accumulator accumulator = groups.get( group );
+        if ( accumulator == null ) {
+          groups.put( group, accumulator = new Accumulator( measureIndexes.length ) );
+        }
+        accumulator.rows++;
+        for ( int i = 0; i < measureIndexes.length; i++ ) {
+          accumulator.add( rollupMeta.getValueMeta( measureColumn( i, SUM ) ), i, row[measureIndexes[i]] );
+        }
+      }
+    }
+
+    CachedRows.Builder rows = new CachedRows.Builder( CachedRows.DEFAULT_CHUNK_SIZE );
+    for ( Map.Entry<Group, Accumulator> entry : groups.entrySet() ) {
+      Object[] row = new Object[rollupMeta.size()];
+      System.arraycopy( entry.getKey().values, 0, row, 0, groupFields.size() );
+      Accumulator accumulator = entry.getValue();
+      for ( int i = 0; i < measureFields.size(); i++ ) {
+        row[measureColumn( i, SUM )] = accumulator.sums[i];
+        row[measureColumn( i, COUNT )] = accumulator.counts[i];
+        row[measureColumn( i, MIN )] = accumulator.mins[i];
+        row[measureColumn( i, MAX )] = accumulator.maxs[i];
+      }
+      row[rowCountColumn()] = accumulator.rows;
+      rows.add( rollupMeta, row );
+    }
+    return Optional.of( rows.build() );
+  }
+
+  /**
+   * Re-aggregate rollup rows for a query grouping by the same or fewer fields
+   *
+   * @param rollup     rows built by {@link #build}
+   * @param groupBy    group step generated for the query
+   * @param outputMeta fields output by the group step
+   * @return rows as the group step would output them, or absent if an aggregate can not be computed from the rollup
+   * @throws KettleValueException if values can not be compared, summed or converted
+   */
+  Optional<List<Object[]>> aggregate( CachedRows rollup, MemoryGroupByMeta groupBy, RowMetaInterface outputMeta )
+    throws KettleValueException {
+    String[] groupFieldNames = groupBy.getGroupField();
+    if ( !groupFields.containsAll( Arrays.asList( groupFieldNames ) ) ) {
+      return Optional.absent();
+    }
+    int[] types = groupBy.getAggregateType();
+    int[] measures = new int[types.length];
+    for ( int i = 0; i < types.length; i++ ) {
+      measures[i] = types[i] == MemoryGroupByMeta.TYPE_GROUP_COUNT_ANY ? -1
+        : measureFields.asList().indexOf( groupBy.getSubjectField()[i] );
+      if ( measures[i] < 0 && types[i] != MemoryGroupByMeta.TYPE_GROUP_COUNT_ANY ) {
+        return Optional.absent();
+      }
+    }
+
+    RowMetaInterface rollupMeta = null, groupMeta = null;
+    int[] groupIndexes = null;
+    Map<Group, Accumulator> groups = Maps.newLinkedHashMap();
+    for ( StoredChunk storedChunk : rollup.getChunks() ) {
+      RowMetaInterface rowMeta = storedChunk.getRowMeta();
+      if ( rowMeta != rollupMeta ) {
+        groupIndexes = indexesOf( rowMeta, Arrays.asList( groupFieldNames ) );
+        if ( groupIndexes == null ) {
+          return Optional.absent();
+        }
+        for ( int i = 0; i < types.length; i++ ) {
+          boolean summed = types[i] == MemoryGroupByMeta.TYPE_GROUP_SUM
+            || types[i] == MemoryGroupByMeta.TYPE_GROUP_AVERAGE;
+          if ( summed && !isSummable( rowMeta.getValueMeta( measureColumn( measures[i], SUM ) ) ) ) {
+            return Optional.absent();
+          }
+        }
+        rollupMeta = rowMeta;
+        groupMeta = select( rowMeta, groupIndexes );
+      }
+
+      for ( Object[] row : storedChunk.load() ) {
+        Group group = new Group( groupMeta, select( row, groupIndexes ) );
+        Accumulator accumulator = groups.get( group );
+        if ( accumulator == null ) {
+          groups.put( group, accumulator = new Accumulator( types.length ) );
+        }
+        for ( int i = 0; i < types.length; i++ ) {
+          accumulator.merge( rowMeta, i, types[i], measures[i], row );
+        }
+      }
+    }
+
+    if ( groups.isEmpty() && groupFieldNames.length == 0 && groupBy.isAlwaysGivingBackOneRow() ) {
+      // Aggregating no rows at all still gives back counts of zero
+      groups.put( new Group( new RowMeta(), new Object[0] ), new Accumulator( types.length ) );
+    }
+
+    List<Object[]> output = Lists.newArrayListWithCapacity( groups.size() );
+    for ( Map.Entry<Group, Accumulator> entry : groups.entrySet() ) {
+      Group group = entry.getKey();
+      Accumulator accumulator = entry.getValue();
+      Object[] row = new Object[outputMeta.size()];
+      for ( int i = 0; i < groupFieldNames.length; i++ ) {
+        row[i] = convert( outputMeta.getValueMeta( i ), group.rowMeta.getValueMeta( i ), group.values[i] );
+      }
+      for ( int i = 0; i < types.length; i++ ) {
+        // Without any rollup rows, aggregates of measures are null
+        ValueMetaInterface valueMeta = measures[i] < 0 || rollupMeta == null ? COUNT_META
+          : rollupMeta.getValueMeta( measureColumn( measures[i], SUM ) );
+        row[groupFieldNames.length + i] = convert( outputMeta.getValueMeta( groupFieldNames.length + i ),
+          valueMeta, accumulator.result( valueMeta, i, types[i] ) );
+      }
+      output.add( row );
+    }
+    return Optional.<List<Object[]>>of( output );
+  }
+
+  private int measureColumn( int measure, int offset ) {
+    return groupFields.size() + COLUMNS_PER_MEASURE * measure + offset;
+  }
+
+  private int rowCountColumn() {
+    return groupFields.size() + COLUMNS_PER_MEASURE * measureFields.size();
+  }
+
+  private RowMetaInterface createRollupMeta( RowMetaInterface sourceMeta, int[] groupIndexes, int[] measureIndexes ) {
+    RowMetaInterface rollupMeta = select( sourceMeta, groupIndexes );
+    for ( int i = 0; i < measureIndexes.length; i++ ) {
+      ValueMetaInterface measure = sourceMeta.getValueMeta( measureIndexes[i] );
+      String name = measure.getName();
+      rollupMeta.addValueMeta( renamed( measure, "SUM(" + name + ")" ) );
+      rollupMeta.addValueMeta( new ValueMeta( "COUNT(" + name + ")", ValueMetaInterface.TYPE_INTEGER ) );
+      rollupMeta.addValueMeta( renamed( measure, "MIN(" + name + ")" ) );
+      rollupMeta.addValueMeta( renamed( measure, "MAX(" + name + ")" ) );
+    }
+    rollupMeta.addValueMeta( new ValueMeta( "COUNT(*)", ValueMetaInterface.TYPE_INTEGER ) );
+    return rollupMeta;
+  }
+
+  private static ValueMetaInterface renamed( ValueMetaInterface valueMeta, String name ) {
+    ValueMetaInterface clone = valueMeta.clone();
+    clone.setName( name );
+    return clone;
+  }
+
+  /**
+   * @return index of each field, or null if a field is missing
+   */
+  private static int[] indexesOf( RowMetaInterface rowMeta, Iterable<String> fields ) {
+    List<Integer> indexes = Lists.newArrayList();
+    for ( String field : fields ) {
+      int index = rowMeta.indexOfValue( field );
+      if ( index < 0 ) {
+        return null;
+      }
+      indexes.add( index );
+    }
+    return Ints.toArray( indexes );
+  }
+
+  private static boolean sameTypes( RowMetaInterface meta, int[] indexes, RowMetaInterface other, int[] otherIndexes ) {
+    for ( int i = 0; i < indexes.length; i++ ) {
+      if ( meta.getValueMeta( indexes[i] ).getType() != other.getValueMeta( otherIndexes[i] ).getType() ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static RowMetaInterface select( RowMetaInterface rowMeta, int[] indexes ) {
+    RowMetaInterface selected = new RowMeta();
+    for ( int index : indexes ) {
+      selected.addValueMeta( rowMeta.getValueMeta( index ) );
+    }
+    return selected;
+  }
+
+  private static Object[] select( Object[] row, int[] indexes ) {
+    Object[] selected = new Object[indexes.length];
+    for ( int i = 0; i < indexes.length; i++ ) {
+      selected[i] = row[indexes[i]];
+    }
+    return selected;
+  }
+
+  private static Object convert( ValueMetaInterface target, ValueMetaInterface source, Object value )
+    throws KettleValueException {
+    return value == null ? null : target.convertData( source, value );
+  }
+
+  private static boolean isSummable( ValueMetaInterface valueMeta ) {
+    switch ( valueMeta.getType() ) {
+      case ValueMetaInterface.TYPE_INTEGER:
+      case ValueMetaInterface.TYPE_NUMBER:
+      case ValueMetaInterface.TYPE_BIGNUMBER:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Add values as Kettle would, ignoring nulls
+   *
+   * @return the sum, or null if not summable or both values are null
+   */
+  private static Object add( ValueMetaInterface valueMeta, Object sum, Object value ) throws KettleValueException {
+    if ( value == null || !isSummable( valueMeta ) ) {
+      return sum;
+    }
+    if ( sum == null ) {
+      return value;
+    }
+    switch ( valueMeta.getType() ) {
+      case ValueMetaInterface.TYPE_INTEGER:
+        return valueMeta.getInteger( sum ) + valueMeta.getInteger( value );
+      case ValueMetaInterface.TYPE_NUMBER:
+        return valueMeta.getNumber( sum ) + valueMeta.getNumber( value );
+      default:
+        BigDecimal bigSum = valueMeta.getBigNumber( sum );
+        return bigSum.add( valueMeta.getBigNumber( value ) );
+    }
+  }
+
+  @Override public boolean equals( Object o ) {
+    if ( this == o ) {
+      return true;
+    }
+    if ( o == null || getClass() != o.getClass() ) {
+      return false;
+    }
+    CachedRollup that = (CachedRollup) o;
+    return groupFields.equals( that.groupFields ) && measureFields.equals( that.measureFields );
+  }
+
+  @Override public int hashCode() {
+    return Objects.hashCode( groupFields, measureFields );
+  }
+
+  @Override public String toString() {
+    return Objects.toStringHelper( this )
+      .add( "groupFields", groupFields )
+      .add( "measureFields", measureFields )
+      .toString();
+  }
+
+  /**
+   * Values of the group fields, compared as Kettle compares them
+   */
+  private static final class Group {
+    private final RowMetaInterface rowMeta;
+    private final Object[] values;
+    private final int hashCode;
+
+    Group( RowMetaInterface rowMeta, Object[] values ) throws KettleValueException {
+      this.rowMeta = rowMeta;
+      this.values = values;
+      this.hashCode = rowMeta.hashCode( values );
+    }
+
+    @Override public boolean equals( Object o ) {
+      if ( !( o instanceof Group ) ) {
+        return false;
+      }
+      try {
+        return rowMeta.compare( values, ( (Group) o ).values ) == 0;
+      } catch ( KettleValueException e ) {
+        return false;
+      }
+    }
+
+    @Override public int hashCode() {
+      return hashCode;
+    }
+  }
+
+  /**
+   * Aggregates of one group. Nulls are ignored, as by the generated group step.
+   */
+  private final class Accumulator {
+    private final Object[] sums, mins, maxs;
+    private final long[] counts;
+    private long rows;
+
+    Accumulator( int size ) {
+      sums = new Object[size];
+      mins = new Object[size];
+      maxs = new Object[size];
+      counts = new long[size];
+    }
+
+    /**
+     * Accumulate a source value into the rollup
+     */
+    void add( ValueMetaInterface valueMeta, int i, Object value ) throws KettleValueException {
+      if ( value == null ) {
+        return;
+      }
+      sums[i] = CachedRollup.add( valueMeta, sums[i], value );
+      counts[i]++;
+      if ( mins[i] == null || valueMeta.compare( value, mins[i] ) < 0 ) {
+        mins[i] = value;
+      }
+      if ( maxs[i] == null || valueMeta.compare( value, maxs[i] ) > 0 ) {
+        maxs[i] = value;
+      }
+    }
+
+    /**
+     * Merge a rollup row into aggregate {@code i} of a query
+     */
+    void merge( RowMetaInterface rollupMeta, int i, int type, int measure, Object[] row )
+      throws KettleValueException {
+      if ( type == MemoryGroupByMeta.TYPE_GROUP_COUNT_ANY ) {
+        counts[i] += rollupMeta.getInteger( row, rowCountColumn() );
+        return;
+      }
+      int base = measureColumn( measure, 0 );
+      ValueMetaInterface valueMeta = rollupMeta.getValueMeta( base + SUM );
+      Long count = rollupMeta.getInteger( row, base + COUNT );
+      counts[i] += count == null ? 0 : count;
+      switch ( type ) {
+        case MemoryGroupByMeta.TYPE_GROUP_SUM:
+        case MemoryGroupByMeta.TYPE_GROUP_AVERAGE:
+          sums[i] = CachedRollup.add( valueMeta, sums[i], row[base + SUM] );
+          break;
+        case MemoryGroupByMeta.TYPE_GROUP_MIN:
+          Object min = row[base + MIN];
+          if ( min != null && ( sums[i] == null || valueMeta.compare( min, sums[i] ) < 0 ) ) {
+            sums[i] = min;
+          }
+          break;
+        case MemoryGroupByMeta.TYPE_GROUP_MAX:
+          Object max = row[base + MAX];
+          if ( max != null && ( sums[i] == null || valueMeta.compare( max, sums[i] ) > 0 ) ) {
+            sums[i] = max;
+          }
+          break;
+        default:
+          break;
+      }
+    }
+
+    /**
+     * @return value of aggregate {@code i} of a query, after merging
+     */
+    Object result( ValueMetaInterface valueMeta, int i, int type ) throws KettleValueException {
+      switch ( type ) {
+        case MemoryGroupByMeta.TYPE_GROUP_COUNT_ALL:
+        case MemoryGroupByMeta.TYPE_GROUP_COUNT_ANY:
+          return counts[i];
+        case MemoryGroupByMeta.TYPE_GROUP_AVERAGE:
+          return sums[i] == null || counts[i] == 0 ? null
+            : ValueDataUtil.divide( valueMeta, sums[i], COUNT_META, counts[i] );
+        default:
+          return sums[i];
+      }
+    }
+  }
+}
@@ -0,0 +1,290 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Compact storage for the rows of a {@link CachedService}: a list of columnar {@link RowChunk}s.
+ * <p>
+ * Chunks may be moved off the heap or discarded by {@link TieredStorage}. Replays {@link #pin()} the rows so they
+ * are not discarded while being read.
+ * </p>
+ */
+final class CachedRows {
+  /**
+   * Maximum number of rows per chunk
+   */
+  static final int DEFAULT_CHUNK_SIZE = 4096;
+
+  /**
+   * Rough heap overhead per object, used for size estimates
+   */
+  private static final int OBJECT_OVERHEAD = 16;
+
+  private static final CachedRows EMPTY = new CachedRows( ImmutableList.<RowChunk>of(), 0 );
+
+  private final ImmutableList<StoredChunk> chunks;
+  private final int rowCount;
+  private final long estimatedSize;
+  private final AtomicInteger pins = new AtomicInteger();
+
+  private CachedRows( List<RowChunk> chunks, int rowCount ) {
+    this( toStoredChunks( chunks ), rowCount );
+  }
+
+  private CachedRows( ImmutableList<StoredChunk> chunks, int rowCount ) {
+    long size = OBJECT_OVERHEAD;
+    for ( StoredChunk storedChunk : chunks ) {
+      storedChunk.addOwner( this );
+      size += OBJECT_OVERHEAD + storedChunk.getHeapSize();
+    }
+    this.chunks = chunks;
+    this.estimatedSize = size;
+    this.rowCount = rowCount;
+  }
+
+  private static ImmutableList<StoredChunk> toStoredChunks( List<RowChunk> chunks ) {
+    ImmutableList.Builder<StoredChunk> stored = ImmutableList.builder();
+    for ( RowChunk chunk : chunks ) {
+      stored.add( new StoredChunk( chunk ) );
+    }
+    return stored.build();
+  }
+
+  static CachedRows empty() {
+    return EMPTY;
+  }
+
+  /**
+   * Rows of chunks that are already stored off the heap, e.g. restored from a snapshot
+   */
+  static CachedRows restore( List<StoredChunk> chunks, int rowCount ) {
+    return new CachedRows( ImmutableList.copyOf( chunks ), rowCount );
+  }
+
+  static CachedRows copyOf( Iterable<RowMetaAndData> rowMetaAndData ) {
+    Builder builder = new Builder();
+    for ( RowMetaAndData row : rowMetaAndData ) {
+      builder.add( row.getRowMeta(), row.getData() );
+    }
+    return builder.build();
+  }
+
+  /**
+   * Rows of this instance followed by the rows of a builder, e.g. to extend a partial cache entry. The chunks of this
+   * instance are shared with the result. A replay of either one pins the shared chunks, and both are evicted together.
+   */
+  CachedRows append( Builder builder ) {
+    CachedRows appended = builder.build();
+    return new CachedRows( ImmutableList.<StoredChunk>builder().addAll( chunks ).addAll( appended.chunks ).build(),
+      rowCount + appended.rowCount );
+  }
+
+  public ImmutableList<StoredChunk> getChunks() {
+    return chunks;
+  }
+
+  public int getRowCount() {
+    return rowCount;
+  }
+
+  /**
+   * @return approximate number of bytes these rows retain while held on the heap
+   */
+  public long getEstimatedSize() {
+    return estimatedSize;
+  }
+
+  /**
+   * @return approximate number of bytes these rows retain on the heap now. Chunks moved off the heap by
+   * {@link TieredStorage}, or restored from a snapshot, only count their overhead.
+   */
+  public long getHeapSize() {
+    long size = OBJECT_OVERHEAD;
+    for ( StoredChunk chunk : chunks ) {
+      size += OBJECT_OVERHEAD;
+      if ( chunk.getTier() == TieredStorage.Tier.HEAP && !chunk.isDiscarded() ) {
+        size += chunk.getHeapSize();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * @return combined size and CPU cost of the compressed columns of all chunks
+   */
+  public CompressionStats getCompression() {
+    List<CompressionStats> stats = Lists.newArrayListWithCapacity( chunks.size() );
+    for ( StoredChunk chunk : chunks ) {
+      stats.add( chunk.getCompression() );
+    }
+    return CompressionStats.sum( stats );
+  }
+
+  /**
+   * @return true if any chunk was discarded by {@link TieredStorage} and these rows can no longer be replayed
+   */
+  public boolean isEvicted() {
+    for ( StoredChunk chunk : chunks ) {
+      if ( chunk.isDiscarded() ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Prevent these rows from being discarded until {@link #unpin()} is called
+   */
+  public void pin() {
+    pins.incrementAndGet();
+  }
+
+  public void unpin() {
+    pins.decrementAndGet();
+  }
+
+  public boolean isPinned() {
+    return pins.get() > 0;
+  }
+
+  /**
+   * Materialize all rows. Intended for inspection, replay should iterate over {@link #getChunks()}.
+   */
+  public List<RowMetaAndData> toRowMetaAndData() {
+    ImmutableList.Builder<RowMetaAndData> rows = ImmutableList.builder();
+    for ( StoredChunk storedChunk : chunks ) {
+      RowChunk chunk = storedChunk.load();
+      for ( Object[] row : chunk ) {
+        rows.add( new RowMetaAndData( chunk.getRowMeta(), row ) );
+      }
+    }
+    return rows.build();
+  }
+
+  @Override public String toString() {
+    return Objects.toStringHelper( this )
+      .add( "rowCount", rowCount )
+      .add( "chunks", chunks.size() )
+      .toString();
+  }
+
+  /**
+   * Appends rows to chunks. A new chunk is started when the current one is full or the row meta changes.
+   * Not thread safe.
+   */
+  static final class Builder {
+    private final int chunkSize;
+    private final Set<String> compressedColumns;
+    private final List<RowChunk> chunks = Lists.newArrayList();
+    private RowChunk.Builder current;
+    private int rowCount = 0;
+    private long flushedSize = 0;
+
+    Builder() {
+      this( DEFAULT_CHUNK_SIZE );
+    }
+
+    Builder( int chunkSize ) {
+      this( chunkSize, ImmutableSet.<String>of() );
+    }
+
+    /**
+     * @param compressedColumns names of string columns to compress, see {@link RowChunk}
+     */
+    Builder( int chunkSize, Set<String> compressedColumns ) {
+      checkArgument( chunkSize > 0, "Chunk size must be positive" );
+      this.chunkSize = chunkSize;
+      this.compressedColumns = compressedColumns;
+    }
+
+    public Builder add( RowMetaInterface rowMeta, Object[] row ) {
+      if ( current == null || current.isFull() || !sameFields( current.getRowMeta(), rowMeta ) ) {
+        flush();
+        current = new RowChunk.Builder( rowMeta, chunkSize, compressedColumns );
+      }
+      current.add( row );
+      rowCount++;
+      return this;
+    }
+
+    public int getRowCount() {
+      return rowCount;
+    }
+
+    /**
+     * @return approximate heap size of the rows added so far
+     */
+    public long estimateSize() {
+      return flushedSize + ( current == null ? 0 : current.estimateSize() );
+    }
+
+    public CachedRows build() {
+      flush();
+      return new CachedRows( chunks, rowCount );
+    }
+
+    /**
+     * Steps may pass a new row meta instance with every row, so row metas are compared by their fields
+     */
+    private static boolean sameFields( RowMetaInterface rowMeta, RowMetaInterface other ) {
+      if ( rowMeta == other ) {
+        return true;
+      }
+      if ( rowMeta.size() != other.size() ) {
+        return false;
+      }
+      for ( int i = 0; i < rowMeta.size(); i++ ) {
+        ValueMetaInterface valueMeta = rowMeta.getValueMeta( i ), otherValueMeta = other.getValueMeta( i );
+        if ( !valueMeta.getName().equals( otherValueMeta.getName() ) || valueMeta.getType() != otherValueMeta.getType()
+          || valueMeta.getStorageType() != otherValueMeta.getStorageType() ) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private void flush() {
+      if ( current != null && current.getRowCount() > 0 ) {
+        RowChunk chunk = current.build();
+        flushedSize += chunk.estimateSize();
+        chunks.add( chunk );
+      }
+      current = null;
+    }
+  }
+}
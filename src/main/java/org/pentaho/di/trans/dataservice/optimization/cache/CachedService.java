@@ -23,54 +23,261 @@
 package org.pentaho.di.trans.dataservice.optimization.cache;
 
 import com.google.common.base.Function;
+import com.google.common.base.Functions;
 import com.google.common.base.Objects;
 import com.google.common.base.Optional;
+import com.google.common.collect.ConcurrentHashMultiset;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
 import org.pentaho.di.core.Condition;
 import org.pentaho.di.core.RowMetaAndData;
-import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
 import org.pentaho.di.core.sql.SQL;
 import org.pentaho.di.core.sql.SQLCondition;
 import org.pentaho.di.core.sql.SQLField;
 import org.pentaho.di.core.sql.SQLFields;
 import org.pentaho.di.core.sql.SQLLimit;
 import org.pentaho.di.trans.dataservice.DataServiceExecutor;
+import org.pentaho.di.trans.dataservice.serialization.TransMetaVersion;
+import org.pentaho.di.trans.steps.sort.SortRowsMeta;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.google.common.base.Preconditions.checkState;
 
 /**
+ * Rows cached for a data service query. Rows may be held off the heap, so entries are not serializable and service
+ * caches must store them by reference.
+ *
  * @author nhudak
  */
-class CachedService implements Serializable {
-  private final ImmutableList<RowMetaAndData> rowMetaAndData;
+class CachedService {
+  /**
+   * Equality lookups on a column before it is indexed, unless indexing the column was configured
+   */
+  static final int AUTO_INDEX_LOOKUPS = 3;
+  /**
+   * Indexes kept per cached service, columns looked up after these are not indexed
+   */
+  static final int MAX_INDEXES = 4;
+  /**
+   * Requests for an order before the rows are sorted in that order
+   */
+  static final int AUTO_ORDER_REQUESTS = 2;
+  /**
+   * Orders kept per cached service, favouring the most requested
+   */
+  static final int MAX_ORDERS = 3;
+
+  private final CachedRows rows;
   private final Optional<Integer> ranking;
+  private final long timestamp;
+
+  private final ConcurrentMap<String, Optional<CachedIndex>> indexes = Maps.newConcurrentMap();
+  private final Multiset<String> lookups = ConcurrentHashMultiset.create();
+  private final ConcurrentMap<ImmutableList<String>, Optional<CachedOrder>> orders =
+    Maps.newConcurrentMap();
+  private final Multiset<ImmutableList<String>> orderRequests = ConcurrentHashMultiset.create();
 
-  private CachedService( List<RowMetaAndData> rowMetaAndData, Optional<Integer> ranking ) {
-    this.rowMetaAndData = ImmutableList.copyOf( rowMetaAndData );
+  private CachedService( CachedRows rows, Optional<Integer> ranking ) {
+    this( rows, ranking, System.currentTimeMillis() );
+  }
+
+  private CachedService( CachedRows rows, Optional<Integer> ranking, long timestamp ) {
+    this.rows = rows;
     this.ranking = ranking;
+    this.timestamp = timestamp;
   }
 
   public static CachedService complete( List<RowMetaAndData> rowMetaAndData ) {
+    return complete( CachedRows.copyOf( rowMetaAndData ) );
+  }
+
+  public static CachedService complete( CachedRows rows ) {
     // Key based on service name and where clause only. Ordering here does not matter
     return new CachedService(
-      rowMetaAndData,
+      rows,
       Optional.<Integer>absent()
     );
   }
 
+  /**
+   * Complete rows restored from a snapshot, keeping the time they were originally cached
+   */
+  static CachedService restore( CachedRows rows, long timestamp ) {
+    return new CachedService( rows, Optional.<Integer>absent(), timestamp );
+  }
+
+  /**
+   * Complete rows computed from another cached service, such as a rollup. Expires along with its source.
+   */
+  static CachedService derived( CachedRows rows, CachedService source ) {
+    return new CachedService( rows, Optional.<Integer>absent(), source.getTimestamp() );
+  }
+
   public static CachedService partial( List<RowMetaAndData> rowMetaAndData, DataServiceExecutor executor ) {
+    return partial( CachedRows.copyOf( rowMetaAndData ), executor );
+  }
+
+  public static CachedService partial( CachedRows rows, DataServiceExecutor executor ) {
     return new CachedService(
-      rowMetaAndData,
+      rows,
       Optional.of( calculateRank( executor ) )
     );
   }
 
+  /**
+   * @return a copy of all cached rows. Replay should stream from {@link #getRows()} instead.
+   */
   public List<RowMetaAndData> getRowMetaAndData() {
-    return rowMetaAndData;
+    return rows.toRowMetaAndData();
+  }
+
+  public CachedRows getRows() {
+    return rows;
+  }
+
+  public int getRowCount() {
+    return rows.getRowCount();
+  }
+
+  /**
+   * @return approximate number of bytes retained by the cached rows, their indexes and orders, as if all rows were
+   * held on the heap
+   */
+  public long getEstimatedSize() {
+    return rows.getEstimatedSize() + getStructureSize();
+  }
+
+  /**
+   * @return approximate number of bytes retained on the heap now by the cached rows, their indexes and orders. Rows
+   * moved off the heap by {@link TieredStorage} are not counted.
+   */
+  public long getHeapSize() {
+    return rows.getHeapSize() + getStructureSize();
+  }
+
+  private long getStructureSize() {
+    long size = 0;
+    for ( CachedIndex index : getIndexes() ) {
+      size += index.estimateSize();
+    }
+    for ( CachedOrder order : Optional.presentInstances( orders.values() ) ) {
+      size += order.estimateSize();
+    }
+    return size;
+  }
+
+  /**
+   * @return true if storage limits forced these rows out of the cache, see {@link TieredStorage}
+   */
+  public boolean isEvicted() {
+    return rows.isEvicted();
+  }
+
+  /**
+   * @return time the rows were cached, in milliseconds since the epoch
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * @return milliseconds since the rows were cached
+   */
+  public long getAge() {
+    return System.currentTimeMillis() - timestamp;
+  }
+
+  /**
+   * Get an index to look up cached rows by the value of a column. Indexes of configured columns are built on their
+   * first lookup, indexes of other columns once they have been looked up {@value #AUTO_INDEX_LOOKUPS} times. At most
+   * {@value #MAX_INDEXES} columns are indexed. Building reads all rows, which should be pinned, and grows
+   * {@link #getEstimatedSize()}.
+   *
+   * @param configured true if indexing this column was configured
+   * @return index, or absent if the column is not indexed yet or can not be indexed
+   */
+  Optional<CachedIndex> getIndex( String column, boolean configured ) {
+    Optional<CachedIndex> index = indexes.get( column );
+    if ( index != null ) {
+      return index;
+    }
+    if ( !configured && lookups.add( column, 1 ) + 1 < AUTO_INDEX_LOOKUPS ) {
+      return Optional.absent();
+    }
+    synchronized ( indexes ) {
+      index = indexes.get( column );
+      if ( index == null ) {
+        if ( Iterables.size( getIndexes() ) >= MAX_INDEXES ) {
+          return Optional.absent();
+        }
+        index = CachedIndex.build( rows, column );
+        indexes.put( column, index );
+      }
+      return index;
+    }
+  }
+
+  /**
+   * @return indexes built so far
+   */
+  Iterable<CachedIndex> getIndexes() {
+    return Optional.presentInstances( indexes.values() );
+  }
+
+  /**
+   * Get the cached rows in the order of a sort step. Rows are sorted once an order has been requested
+   * {@value #AUTO_ORDER_REQUESTS} times. At most {@value #MAX_ORDERS} orders are kept, a new order replaces the least
+   * requested one if it has been requested more often. Sorting reads all rows, which should be pinned, and grows
+   * {@link #getEstimatedSize()}.
+   *
+   * @return order, or absent if the rows are not sorted in this order yet or can not be
+   * @throws KettleValueException if values can not be compared
+   */
+  Optional<CachedOrder> getOrder( SortRowsMeta sort ) throws KettleValueException {
+    ImmutableList<String> spec = CachedOrder.describe( sort );
+    int requests = orderRequests.add( spec, 1 ) + 1;
+    Optional<CachedOrder> order = orders.get( spec );
+    if ( order != null ) {
+      return order;
+    }
+    if ( requests < AUTO_ORDER_REQUESTS ) {
+      return Optional.absent();
+    }
+    synchronized ( orders ) {
+      order = orders.get( spec );
+      if ( order != null ) {
+        return order;
+      }
+      List<CachedOrder> sorted = ImmutableList.copyOf( Optional.presentInstances( orders.values() ) );
+      if ( sorted.size() >= MAX_ORDERS ) {
+        CachedOrder leastRequested = sorted.get( 0 );
+        for ( CachedOrder candidate : sorted ) {
+          if ( orderRequests.count( candidate.getSpec() ) < orderRequests.count( leastRequested.getSpec() ) ) {
+            leastRequested = candidate;
+          }
+        }
+        if ( orderRequests.count( leastRequested.getSpec() ) >= requests ) {
+          return Optional.absent();
+        }
+        orders.remove( leastRequested.getSpec() );
+      }
+      order = CachedOrder.build( rows, sort );
+      orders.put( spec, order );
+      return order;
+    }
   }
 
   public Optional<Integer> getRanking() {
@@ -79,7 +286,8 @@ class CachedService implements Serializable {
 
   @Override public String toString() {
     return Objects.toStringHelper( this )
-      .add( "rowMetaAndData.length", rowMetaAndData.size() )
+      .add( "rows", rows.getRowCount() )
+      .add( "size", rows.getEstimatedSize() )
       .add( "ranking", ranking )
       .toString();
   }
@@ -124,7 +332,7 @@ class CachedService implements Serializable {
     /**
      * Required
      */
-    private final int transMetaVersionId;
+    private final long transMetaVersionId;
     /**
      * Required
      */
@@ -137,40 +345,50 @@ class CachedService implements Serializable {
      * Optional
      */
     private final ImmutableList<String> orderByFields;
+    /**
+     * Optional. If present, the entry holds rows pre-aggregated to this shape instead of the rows of the service.
+     */
+    private final Optional<CachedRollup> rollup;
+    /**
+     * Parsed form of the where clause, used to find entries with broader conditions. Not part of the key's identity,
+     * and lost if the key is serialized.
+     */
+    private final transient Condition condition;
 
-    private CacheKey( int transMetaVersionId, ImmutableMap<String, String> parameters, Optional<String> whereClause,
+    private CacheKey( long transMetaVersionId, ImmutableMap<String, String> parameters, Optional<String> whereClause,
                       ImmutableList<String> orderByFields ) {
+      this( transMetaVersionId, parameters, whereClause, orderByFields, Optional.<CachedRollup>absent(), null );
+    }
+
+    private CacheKey( long transMetaVersionId, ImmutableMap<String, String> parameters, Optional<String> whereClause,
+                      ImmutableList<String> orderByFields, Optional<CachedRollup> rollup, Condition condition ) {
       this.transMetaVersionId = transMetaVersionId;
       this.parameters = parameters;
       this.whereClause = whereClause;
       this.orderByFields = orderByFields;
+      this.rollup = rollup;
+      this.condition = whereClause.isPresent() ? condition : null;
     }
 
     public static CacheKey create( DataServiceExecutor executor ) {
       SQL sql = executor.getSql();
 
       // Calculate trans meta version. If the service transformation changes, keys will no longer match
-      int version;
-      try {
-        // Get trans meta from service instead of executor, since executor modifies the meta with every query
-        version = executor.getService().getServiceTrans().getXML().hashCode();
-      } catch ( KettleException e ) {
-        // Something has gone horribly wrong.
-        // If data service is executing, the transformation was loaded and should be serializable
-        throw new IllegalStateException( "Unable to determine version of transMeta", e );
-      }
+      // Get trans meta from service instead of executor, since executor modifies the meta with every query
+      long version = TransMetaVersion.get( executor.getService().getServiceTrans() );
 
       // Extract where condition
-      Optional<String> whereClause = Optional.fromNullable( sql.getWhereCondition() ).transform(
+      Optional<Condition> condition = Optional.fromNullable( sql.getWhereCondition() ).transform(
         // Simplify  and rewrite condition, more likely to match future queries
-        new Function<SQLCondition, String>() {
-          @Override public String apply( SQLCondition input ) {
+        new Function<SQLCondition, Condition>() {
+          @Override public Condition apply( SQLCondition input ) {
             Condition clone = (Condition) input.getCondition().clone();
             clone.simplify();
-            return clone.toString();
+            return clone;
           }
         }
       );
+      Optional<String> whereClause = condition.transform( Functions.toStringFunction() );
 
       // Extract ORDER BY fields from SQL
       ImmutableList<String> orderByFields = FluentIterable
@@ -194,7 +412,8 @@ class CachedService implements Serializable {
       // Copy execution parameters
       ImmutableMap<String, String> parameters = ImmutableMap.copyOf( executor.getParameters() );
 
-      return new CacheKey( version, parameters, whereClause, orderByFields );
+      return new CacheKey( version, parameters, whereClause, orderByFields, Optional.<CachedRollup>absent(),
+        condition.orNull() );
     }
 
     /**
@@ -219,11 +438,93 @@ class CachedService implements Serializable {
     }
 
     public CacheKey withoutCondition() {
-      return new CacheKey( transMetaVersionId, parameters, Optional.<String>absent(), orderByFields );
+      return new CacheKey( transMetaVersionId, parameters, Optional.<String>absent(), orderByFields, rollup, null );
     }
 
     public CacheKey withoutOrder() {
-      return new CacheKey( transMetaVersionId, parameters, whereClause, ImmutableList.<String>of() );
+      return new CacheKey( transMetaVersionId, parameters, whereClause, ImmutableList.<String>of(), rollup, condition );
+    }
+
+    /**
+     * @return key of a rollup of the rows matched by this key
+     */
+    CacheKey withRollup( CachedRollup rollup ) {
+      return new CacheKey( transMetaVersionId, parameters, whereClause, orderByFields, Optional.of( rollup ),
+        condition );
+    }
+
+    CacheKey withoutRollup() {
+      return new CacheKey( transMetaVersionId, parameters, whereClause, orderByFields, Optional.<CachedRollup>absent(),
+        condition );
+    }
+
+    Optional<CachedRollup> getRollup() {
+      return rollup;
+    }
+
+    public long getTransMetaVersionId() {
+      return transMetaVersionId;
+    }
+
+    public ImmutableMap<String, String> getParameters() {
+      return parameters;
+    }
+
+    public Optional<String> getWhereClause() {
+      return whereClause;
+    }
+
+    /**
+     * Write this key in binary form. The parsed condition is not written, nor can keys of rollups be.
+     */
+    void write( DataOutputStream output ) throws IOException {
+      checkState( !rollup.isPresent(), "Rollups are not written" );
+      output.writeLong( transMetaVersionId );
+      output.writeInt( parameters.size() );
+      for ( Map.Entry<String, String> parameter : parameters.entrySet() ) {
+        output.writeUTF( parameter.getKey() );
+        output.writeUTF( parameter.getValue() );
+      }
+      output.writeBoolean( whereClause.isPresent() );
+      if ( whereClause.isPresent() ) {
+        output.writeUTF( whereClause.get() );
+      }
+      output.writeInt( orderByFields.size() );
+      for ( String field : orderByFields ) {
+        output.writeUTF( field );
+      }
+    }
+
+    /**
+     * Read a key written by {@link #write(DataOutputStream)}. The key will not have a parsed condition.
+     */
+    static CacheKey read( DataInputStream input ) throws IOException {
+      long transMetaVersionId = input.readLong();
+      ImmutableMap.Builder<String, String> parameters = ImmutableMap.builder();
+      for ( int i = input.readInt(); i > 0; i-- ) {
+        parameters.put( input.readUTF(), input.readUTF() );
+      }
+      Optional<String> whereClause = input.readBoolean() ? Optional.of( input.readUTF() ) : Optional.<String>absent();
+      ImmutableList.Builder<String> orderByFields = ImmutableList.builder();
+      for ( int i = input.readInt(); i > 0; i-- ) {
+        orderByFields.add( input.readUTF() );
+      }
+      return new CacheKey( transMetaVersionId, parameters.build(), whereClause, orderByFields.build() );
+    }
+
+    /**
+     * @return parsed where condition, if known. Must not be modified.
+     */
+    public Optional<Condition> getCondition() {
+      return Optional.fromNullable( condition );
+    }
+
+    /**
+     * @return true if both keys refer to the same service transformation and parameters, regardless of condition or
+     * order
+     */
+    public boolean isRelated( CacheKey other ) {
+      return transMetaVersionId == other.transMetaVersionId && Objects.equal( parameters, other.parameters );
     }
 
     @Override public boolean equals( Object o ) {
@@ -237,11 +538,12 @@ class CachedService implements Serializable {
       return Objects.equal( transMetaVersionId, cacheKey.transMetaVersionId )
           && Objects.equal( parameters, cacheKey.parameters )
           && Objects.equal( whereClause, cacheKey.whereClause )
-          && Objects.equal( orderByFields, cacheKey.orderByFields );
+          && Objects.equal( orderByFields, cacheKey.orderByFields )
+          && Objects.equal( rollup, cacheKey.rollup );
     }
 
     @Override public int hashCode() {
-      return Objects.hashCode( transMetaVersionId, whereClause, orderByFields );
+      return Objects.hashCode( transMetaVersionId, whereClause, orderByFields, rollup );
     }
 
     @Override public String toString() {
@@ -250,6 +552,7 @@ class CachedService implements Serializable {
         .add( "parameters", parameters )
         .add( "whereClause", whereClause )
         .add( "orderByFields", orderByFields )
+        .add( "rollup", rollup.orNull() )
         .toString();
     }
   }
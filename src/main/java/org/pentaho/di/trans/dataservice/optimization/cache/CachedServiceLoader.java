@@ -22,26 +22,47 @@
 
 package org.pentaho.di.trans.dataservice.optimization.cache;
 
+import com.google.common.base.Optional;
 import com.google.common.base.Predicate;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimaps;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListenableFutureTask;
 import org.pentaho.di.trans.dataservice.DataServiceExecutor;
 import org.pentaho.di.trans.dataservice.execution.DefaultTransWiring;
+import org.pentaho.di.trans.dataservice.execution.QueryRecord;
 import org.pentaho.di.trans.dataservice.execution.TransStarter;
-import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.RowSet;
 import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaAndData;
+import org.pentaho.di.core.sql.SQL;
 import org.pentaho.di.trans.RowProducer;
 import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.StepInterface;
+import org.pentaho.di.trans.step.StepMeta;
 import org.pentaho.di.trans.step.StepMetaDataCombi;
+import org.pentaho.di.trans.steps.sort.SortRowsMeta;
 
+import java.text.MessageFormat;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.base.Predicates.instanceOf;
 
@@ -49,18 +70,253 @@ import static com.google.common.base.Predicates.instanceOf;
  * @author nhudak
  */
 class CachedServiceLoader {
+  /**
+   * Complete entries with fewer rows are always replayed by a single thread
+   */
+  static final int PARALLEL_REPLAY_MIN_ROWS = 10000;
+
   private final Executor executor;
   private final CachedService cachedService;
+  private final Set<String> indexedColumns;
+  private final int replayThreads;
 
   CachedServiceLoader( CachedService cachedService, Executor executor ) {
+    this( cachedService, executor, ImmutableSet.<String>of() );
+  }
+
+  CachedServiceLoader( CachedService cachedService, Executor executor, Set<String> indexedColumns ) {
+    this( cachedService, executor, indexedColumns, 1 );
+  }
+
+  /**
+   * @param indexedColumns columns to index as soon as a query looks them up, see {@link CachedService#getIndex}
+   * @param replayThreads  maximum number of threads replaying rows to a single query
+   */
+  CachedServiceLoader( CachedService cachedService, Executor executor, Set<String> indexedColumns,
+                       int replayThreads ) {
     this.cachedService = cachedService;
     this.executor = executor;
+    this.indexedColumns = indexedColumns;
+    this.replayThreads = replayThreads;
   }
 
   public ListenableFuture<Integer> replay( DataServiceExecutor dataServiceExecutor ) throws KettleException {
-    final Trans serviceTrans = dataServiceExecutor.getServiceTrans(), genTrans = dataServiceExecutor.getGenTrans();
-    final CountDownLatch startReplay = new CountDownLatch( 1 );
+    final Trans genTrans = dataServiceExecutor.getGenTrans();
+    final LogChannelInterface logChannel = genTrans.getLogChannel();
+    final QueryRecord queryRecord = dataServiceExecutor.getQueryRecord();
+    // Rows not matching the WHERE clause would be discarded by the generated transformation
+    final SQL sql = dataServiceExecutor.getSql();
+    final Optional<ReplayFilter> filter = ReplayFilter.create( sql );
+    // Rows replayed in the order of the query do not need to be sorted again
+    final Optional<CachedOrder> order = getOrder( dataServiceExecutor );
+    if ( order.isPresent() ) {
+      bypassSortStep( dataServiceExecutor );
+      logChannel.logDetailed( "Replaying cached rows in order, " + order.get() );
+    }
+    // Partitions of the rows are replayed in parallel, each to its own row set of the injector
+    final List<RowProducer> rowProducers = Lists.newArrayList();
+    for ( int i = order.isPresent() ? 1 : getPartitions( dataServiceExecutor ); i > 0; i-- ) {
+      rowProducers.add( dataServiceExecutor.addRowProducer() );
+    }
+    final RowProducer rowProducer = rowProducers.get( 0 );
+    final CountDownLatch startReplay = suppressServiceTrans( dataServiceExecutor );
+
+    ListenableFutureTask<Integer> replay = ListenableFutureTask.create( new Callable<Integer>() {
+      @Override public Integer call() throws Exception {
+        checkState( startReplay.await( 30, TimeUnit.SECONDS ), "Cache replay did not start" );
+        Stopwatch replayTime = Stopwatch.createStarted();
+        CachedRows rows = cachedService.getRows();
+        int rowCount, threads = 1;
+        rows.pin();
+        try {
+          // Equality predicates may be answered by an index, without reading every row
+          Optional<int[]> positions = order.isPresent() || !filter.isPresent() ? Optional.<int[]>absent()
+            : lookup( filter.get(), logChannel );
+          if ( order.isPresent() ) {
+            rowCount = replayInOrder( rows, order.get().getPositions(), filter, genTrans, rowProducer );
+          } else if ( positions.isPresent() ) {
+            rowCount = replay( rows, positions.get(), filter.get(), genTrans, rowProducer );
+          } else if ( rowProducers.size() > 1 ) {
+            threads = rowProducers.size();
+            rowCount = replayPartitioned( rows.getChunks(), sql, filter, genTrans, rowProducers );
+          } else {
+            rowCount = replay( rows.getChunks(), filter, genTrans, rowProducer );
+          }
+        } finally {
+          rows.unpin();
+          for ( RowProducer producer : rowProducers ) {
+            producer.finished();
+          }
+        }
+        long nanos = replayTime.elapsed( TimeUnit.NANOSECONDS );
+        if ( queryRecord != null ) {
+          queryRecord.cacheReplayed( rowCount, nanos );
+        }
+        logChannel.logDetailed( MessageFormat.format( "Replayed {0} cached rows in {1} ms with {2} thread(s)",
+          rowCount, TimeUnit.NANOSECONDS.toMillis( nanos ), threads ) );
+        return rowCount;
+      }
+    } );
+    executor.execute( replay );
+    return replay;
+  }
+
+  /**
+   * Replay rows re-aggregated from a rollup in place of the output of the generated group step. No rows are injected,
+   * the steps following the group step read the aggregated rows instead.
+   *
+   * @param rows    rows as the group step would output them, see {@link CachedRollup#aggregate}
+   * @param rowMeta fields output by the group step
+   */
+  public ListenableFuture<Integer> replayRollup( DataServiceExecutor dataServiceExecutor, final List<Object[]> rows,
+                                                 final RowMetaInterface rowMeta ) throws KettleException {
+    final Trans genTrans = dataServiceExecutor.getGenTrans();
+    String groupStepName = dataServiceExecutor.getGroupStepName();
+    StepInterface nextStep = findNextStep( dataServiceExecutor, groupStepName );
+
+    // Nothing is injected, the group step outputs nothing that is read
+    dataServiceExecutor.addRowProducer().finished();
+    final RowProducer rowProducer = genTrans.addRowProducer( nextStep.getStepname(), 0 );
+    removeInputs( nextStep, groupStepName );
+    final CountDownLatch startReplay = suppressServiceTrans( dataServiceExecutor );
+
+    ListenableFutureTask<Integer> replay = ListenableFutureTask.create( new Callable<Integer>() {
+      @Override public Integer call() throws Exception {
+        checkState( startReplay.await( 30, TimeUnit.SECONDS ), "Cache replay did not start" );
+        int rowCount = 0;
+        try {
+          for ( Iterator<Object[]> iterator = rows.iterator(); iterator.hasNext() && genTrans.isRunning(); ) {
+            if ( putRow( genTrans, rowProducer, rowMeta, iterator.next() ) ) {
+              rowCount += 1;
+            }
+          }
+        } finally {
+          rowProducer.finished();
+        }
+        return rowCount;
+      }
+    } );
+    executor.execute( replay );
+    return replay;
+  }
+
+  /**
+   * Replay the rows of a partial cache entry, then let the service transformation supply the rows after them. The
+   * service transformation still runs from its first row, but only rows after the cached ones are passed along.
+   * Both write to the same row producer, so the replayed rows are read first.
+   *
+   * @return replayed row count, set once all replayed rows were written
+   */
+  public ListenableFuture<Integer> resume( DataServiceExecutor dataServiceExecutor ) throws KettleException {
+    final Trans genTrans = dataServiceExecutor.getGenTrans();
+    final QueryRecord queryRecord = dataServiceExecutor.getQueryRecord();
+    final Optional<ReplayFilter> filter = ReplayFilter.create( dataServiceExecutor.getSql() );
     final RowProducer rowProducer = dataServiceExecutor.addRowProducer();
+    final CachedRows rows = cachedService.getRows();
+    final CountDownLatch startReplay = new CountDownLatch( 1 );
+
+    ListenableFutureTask<Integer> replay = ListenableFutureTask.create( new Callable<Integer>() {
+      @Override public Integer call() throws Exception {
+        checkState( startReplay.await( 30, TimeUnit.SECONDS ), "Cache replay did not start" );
+        Stopwatch replayTime = Stopwatch.createStarted();
+        int rowCount;
+        rows.pin();
+        try {
+          // The row producer is finished by the wiring, once the service step is done
+          rowCount = replay( rows.getChunks(), filter, genTrans, rowProducer );
+        } finally {
+          rows.unpin();
+        }
+        if ( queryRecord != null ) {
+          queryRecord.cacheReplayed( rowCount, replayTime.elapsed( TimeUnit.NANOSECONDS ) );
+        }
+        return rowCount;
+      }
+    } );
+
+    List<Runnable> postOptimization =
+      dataServiceExecutor.getListenerMap().get( DataServiceExecutor.ExecutionPoint.READY );
+    Iterables.removeIf( postOptimization, instanceOf( DefaultTransWiring.class ) );
+    postOptimization.add( new DefaultTransWiring( dataServiceExecutor, rows.getRowCount(), replay, rowProducer ) );
+    dataServiceExecutor.getListenerMap().put( DataServiceExecutor.ExecutionPoint.START, new Runnable() {
+      @Override public void run() {
+        startReplay.countDown();
+      }
+    } );
+    executor.execute( replay );
+    return replay;
+  }
+
+  /**
+   * Get the cached rows in the order of the query, if the rows would reach the generated sort step in cache order
+   */
+  private Optional<CachedOrder> getOrder( DataServiceExecutor dataServiceExecutor ) throws KettleException {
+    String sortStepName = dataServiceExecutor.getSortStepName();
+    // Grouping and DISTINCT do not keep rows in the order they are replayed
+    if ( sortStepName == null || !cachedService.isComplete() || dataServiceExecutor.getGroupStepName() != null
+      || dataServiceExecutor.getSql().getSelectFields().isDistinct() ) {
+      return Optional.absent();
+    }
+    StepMeta sortStep = dataServiceExecutor.getGenTransMeta().findStep( sortStepName );
+    if ( sortStep == null || !( sortStep.getStepMetaInterface() instanceof SortRowsMeta ) ) {
+      return Optional.absent();
+    }
+    CachedRows rows = cachedService.getRows();
+    rows.pin();
+    try {
+      return cachedService.getOrder( (SortRowsMeta) sortStep.getStepMetaInterface() );
+    } finally {
+      rows.unpin();
+    }
+  }
+
+  /**
+   * Route rows around the generated sort step, for rows already replayed in its order. The sort step reads nothing.
+   */
+  private static void bypassSortStep( DataServiceExecutor dataServiceExecutor ) throws KettleException {
+    Trans genTrans = dataServiceExecutor.getGenTrans();
+    String sortStepName = dataServiceExecutor.getSortStepName();
+    StepInterface sortStep = checkNotNull( genTrans.findRunThread( sortStepName ), sortStepName );
+    StepInterface nextStep = findNextStep( dataServiceExecutor, sortStepName );
+    checkState( sortStep.getInputRowSets().size() == 1, "Generated sort step has no single input" );
+
+    RowSet sortInput = sortStep.getInputRowSets().remove( 0 );
+    removeInputs( nextStep, sortStepName );
+    nextStep.getInputRowSets().add( sortInput );
+    genTrans.addRowProducer( sortStepName, 0 ).finished();
+  }
+
+  /**
+   * @return the single step reading the output of a generated step
+   */
+  private static StepInterface findNextStep( DataServiceExecutor dataServiceExecutor, String stepName ) {
+    TransMeta genTransMeta = dataServiceExecutor.getGenTransMeta();
+    StepMeta stepMeta = stepName == null ? null : genTransMeta.findStep( stepName );
+    List<StepMeta> nextSteps = stepMeta == null ? ImmutableList.<StepMeta>of() : genTransMeta.findNextSteps( stepMeta );
+    checkState( nextSteps.size() == 1, "Generated transformation has no single step after " + stepName );
+    String nextStepName = nextSteps.get( 0 ).getName();
+    return checkNotNull( dataServiceExecutor.getGenTrans().findRunThread( nextStepName ), nextStepName );
+  }
+
+  /**
+   * Stop a step from reading the output of another
+   */
+  private static void removeInputs( StepInterface step, String originStepName ) {
+    for ( Iterator<RowSet> rowSets = step.getInputRowSets().iterator(); rowSets.hasNext(); ) {
+      if ( originStepName.equals( rowSets.next().getOriginStepName() ) ) {
+        rowSets.remove();
+      }
+    }
+  }
+
+  /**
+   * Keep the service transformation from running or feeding the generated transformation
+   *
+   * @return latch released once the generated transformation starts
+   */
+  private static CountDownLatch suppressServiceTrans( DataServiceExecutor dataServiceExecutor ) {
+    final Trans serviceTrans = dataServiceExecutor.getServiceTrans();
+    final CountDownLatch startReplay = new CountDownLatch( 1 );
 
     List<Runnable> startTrans = dataServiceExecutor.getListenerMap().get( DataServiceExecutor.ExecutionPoint.START ),
       postOptimization = dataServiceExecutor.getListenerMap().get( DataServiceExecutor.ExecutionPoint.READY );
@@ -92,28 +348,182 @@ class CachedServiceLoader {
         startReplay.countDown();
       }
     } );
+    return startReplay;
+  }
 
-    ListenableFutureTask<Integer> replay = ListenableFutureTask.create( new Callable<Integer>() {
-      @Override public Integer call() throws Exception {
-        checkState( startReplay.await( 30, TimeUnit.SECONDS ), "Cache replay did not start" );
-        int rowCount = 0;
-        for ( Iterator<RowMetaAndData> iterator = cachedService.getRowMetaAndData().iterator();
-              iterator.hasNext() && genTrans.isRunning(); ) {
-          RowMetaAndData metaAndData = iterator.next();
-          boolean rowAdded = false;
-          while ( !rowAdded && genTrans.isRunning() ) {
-            rowAdded =
-              rowProducer.putRowWait( metaAndData.getRowMeta(), metaAndData.getData(), 10, TimeUnit.SECONDS );
-          }
-          if ( rowAdded ) {
-            rowCount += 1;
-          }
+  /**
+   * Look up rows matching equality predicates of the query, using the most selective index available
+   *
+   * @return positions of candidate rows, or absent if no index applies
+   */
+  private Optional<int[]> lookup( ReplayFilter filter, LogChannelInterface logChannel ) {
+    Optional<int[]> best = Optional.absent();
+    CachedIndex bestIndex = null;
+    for ( Map.Entry<String, List<ValueMetaAndData>> equality : Multimaps.asMap( filter.getEqualities() ).entrySet() ) {
+      String column = equality.getKey();
+      for ( CachedIndex index : cachedService.getIndex( column, indexedColumns.contains( column ) ).asSet() ) {
+        Optional<int[]> positions = index.lookup( equality.getValue() );
+        if ( positions.isPresent() && ( !best.isPresent() || positions.get().length < best.get().length ) ) {
+          best = positions;
+          bestIndex = index;
         }
-        rowProducer.finished();
-        return rowCount;
       }
-    } );
-    executor.execute( replay );
-    return replay;
+    }
+    if ( best.isPresent() ) {
+      logChannel.logDetailed( "Looking up " + best.get().length + " cached rows by index on " + bestIndex );
+    }
+    return best;
+  }
+
+  /**
+   * Replay rows at the given positions, which still have to match the filter
+   */
+  private static int replay( CachedRows rows, int[] positions, ReplayFilter filter, Trans genTrans,
+                             RowProducer rowProducer ) {
+    ImmutableList<StoredChunk> chunks = rows.getChunks();
+    int rowCount = 0, chunkIndex = -1, offset = 0, end = 0;
+    RowChunk chunk = null;
+    for ( int i = 0; i < positions.length && genTrans.isRunning(); i++ ) {
+      int position = positions[i];
+      if ( chunk == null || position >= end ) {
+        // Positions are in row order, each chunk is loaded at most once
+        do {
+          chunkIndex++;
+          offset = end;
+          end = offset + chunks.get( chunkIndex ).getRowCount();
+        } while ( position >= end );
+        chunk = chunks.get( chunkIndex ).load();
+      }
+      Object[] row = chunk.getRow( position - offset );
+      if ( filter.matches( chunk.getRowMeta(), row ) && putRow( genTrans, rowProducer, chunk.getRowMeta(), row ) ) {
+        rowCount += 1;
+      }
+    }
+    return rowCount;
+  }
+
+  /**
+   * Replay all rows in the given order, skipping rows that can not match the filter. Chunks are loaded at most once.
+   */
+  private static int replayInOrder( CachedRows rows, int[] order, Optional<ReplayFilter> filter, Trans genTrans,
+                                    RowProducer rowProducer ) {
+    ImmutableList<StoredChunk> chunks = rows.getChunks();
+    int[] offsets = new int[chunks.size()];
+    boolean[] mayMatch = new boolean[chunks.size()];
+    for ( int i = 0; i < chunks.size(); i++ ) {
+      offsets[i] = i == 0 ? 0 : offsets[i - 1] + chunks.get( i - 1 ).getRowCount();
+      mayMatch[i] = !filter.isPresent() || filter.get().mayMatch( chunks.get( i ) );
+    }
+    RowChunk[] loaded = new RowChunk[chunks.size()];
+    int rowCount = 0;
+    for ( int i = 0; i < order.length && genTrans.isRunning(); i++ ) {
+      int chunkIndex = Arrays.binarySearch( offsets, order[i] );
+      if ( chunkIndex < 0 ) {
+        chunkIndex = -chunkIndex - 2;
+      }
+      if ( !mayMatch[chunkIndex] ) {
+        continue;
+      }
+      if ( loaded[chunkIndex] == null ) {
+        loaded[chunkIndex] = chunks.get( chunkIndex ).load();
+      }
+      RowChunk chunk = loaded[chunkIndex];
+      Object[] row = chunk.getRow( order[i] - offsets[chunkIndex] );
+      if ( ( !filter.isPresent() || filter.get().matches( chunk.getRowMeta(), row ) )
+        && putRow( genTrans, rowProducer, chunk.getRowMeta(), row ) ) {
+        rowCount += 1;
+      }
+    }
+    return rowCount;
+  }
+
+  /**
+   * @return number of threads to replay with, each replaying a partition of the chunks. Complete entries of
+   * {@value #PARALLEL_REPLAY_MIN_ROWS} rows or more are replayed in parallel, unless the query takes only the first
+   * rows.
+   */
+  private int getPartitions( DataServiceExecutor dataServiceExecutor ) {
+    CachedRows rows = cachedService.getRows();
+    // Without ORDER BY, LIMIT and row limits take the first rows as the service transformation would output them
+    if ( replayThreads < 2 || !cachedService.isComplete() || rows.getRowCount() < PARALLEL_REPLAY_MIN_ROWS
+      || dataServiceExecutor.getSql().getLimitValues() != null || dataServiceExecutor.getRowLimit() > 0 ) {
+      return 1;
+    }
+    return Math.min( replayThreads, rows.getChunks().size() );
+  }
+
+  /**
+   * Replay partitions of the chunks in parallel, each to its own row producer. The calling thread replays the first
+   * partition with the given filter, and waits for the others. Filters are not thread safe, the other partitions
+   * create their own from the query.
+   */
+  private int replayPartitioned( List<StoredChunk> chunks, final SQL sql, Optional<ReplayFilter> filter,
+                                 final Trans genTrans, List<RowProducer> rowProducers ) throws Exception {
+    final int partitions = rowProducers.size();
+    List<List<StoredChunk>> partitionChunks = Lists.newArrayListWithCapacity( partitions );
+    for ( int partition = 0; partition < partitions; partition++ ) {
+      partitionChunks.add( Lists.<StoredChunk>newArrayList() );
+    }
+    for ( int i = 0; i < chunks.size(); i++ ) {
+      partitionChunks.get( i % partitions ).add( chunks.get( i ) );
+    }
+
+    List<ListenableFutureTask<Integer>> tasks = Lists.newArrayListWithCapacity( partitions - 1 );
+    for ( int partition = 1; partition < partitions; partition++ ) {
+      final List<StoredChunk> partitionChunk = partitionChunks.get( partition );
+      final RowProducer rowProducer = rowProducers.get( partition );
+      ListenableFutureTask<Integer> task = ListenableFutureTask.create( new Callable<Integer>() {
+        @Override public Integer call() throws Exception {
+          return replay( partitionChunk, ReplayFilter.create( sql ), genTrans, rowProducer );
+        }
+      } );
+      executor.execute( task );
+      tasks.add( task );
+    }
+
+    int rowCount;
+    try {
+      rowCount = replay( partitionChunks.get( 0 ), filter, genTrans, rowProducers.get( 0 ) );
+    } finally {
+      // Rows stay pinned until every partition is replayed
+      Futures.successfulAsList( tasks ).get();
+    }
+    for ( ListenableFutureTask<Integer> task : tasks ) {
+      rowCount += task.get();
+    }
+    return rowCount;
+  }
+
+  /**
+   * Replay all rows of the chunks, skipping chunks and rows that can not match the filter
+   */
+  private static int replay( List<StoredChunk> chunks, Optional<ReplayFilter> filter, Trans genTrans,
+                             RowProducer rowProducer ) {
+    int rowCount = 0;
+    for ( StoredChunk storedChunk : chunks ) {
+      if ( filter.isPresent() && !filter.get().mayMatch( storedChunk ) ) {
+        continue;
+      }
+      RowChunk chunk = storedChunk.load();
+      RowMetaInterface rowMeta = chunk.getRowMeta();
+      for ( Iterator<Object[]> iterator = chunk.iterator(); iterator.hasNext() && genTrans.isRunning(); ) {
+        Object[] row = iterator.next();
+        if ( filter.isPresent() && !filter.get().matches( rowMeta, row ) ) {
+          continue;
+        }
+        if ( putRow( genTrans, rowProducer, rowMeta, row ) ) {
+          rowCount += 1;
+        }
+      }
+    }
+    return rowCount;
+  }
+
+  private static boolean putRow( Trans genTrans, RowProducer rowProducer, RowMetaInterface rowMeta, Object[] row ) {
+    boolean rowAdded = false;
+    while ( !rowAdded && genTrans.isRunning() ) {
+      rowAdded = rowProducer.putRowWait( rowMeta, row, 10, TimeUnit.SECONDS );
+    }
+    return rowAdded;
   }
 }
@@ -0,0 +1,70 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Objects;
+
+/**
+ * Value range and null count of one column in a {@link RowChunk}, used to skip chunks during replay.
+ * <p>
+ * Minimum and maximum are in the column's Kettle type, ordered as {@link
+ * org.pentaho.di.core.row.ValueMetaInterface#compare(Object, Object)} would order them.
+ * They are null if unknown, e.g. when every value in the column is null.
+ * </p>
+ */
+final class ColumnStats {
+  private final Object min;
+  private final Object max;
+  private final int nullCount;
+
+  ColumnStats( Object min, Object max, int nullCount ) {
+    this.min = min;
+    this.max = max;
+    this.nullCount = nullCount;
+  }
+
+  public Object getMin() {
+    return min;
+  }
+
+  public Object getMax() {
+    return max;
+  }
+
+  public boolean hasRange() {
+    return min != null && max != null;
+  }
+
+  public int getNullCount() {
+    return nullCount;
+  }
+
+  @Override public String toString() {
+    return Objects.toStringHelper( this )
+      .add( "min", min )
+      .add( "max", max )
+      .add( "nullCount", nullCount )
+      .toString();
+  }
+}
@@ -0,0 +1,115 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Objects;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size and CPU cost of the block compressed columns of a {@link RowChunk}, or the sum over the chunks of a cache
+ * entry, see {@link CachedRows#getCompression()}.
+ * <p>
+ * Compressed and uncompressed sizes are only known for chunks built in this process, not for restored snapshots.
+ * Decompression is counted whenever a compressed column is decoded, which happens lazily during replay.
+ * </p>
+ */
+final class CompressionStats {
+  private long uncompressedBytes = 0;
+  private long compressedBytes = 0;
+  private long compressionNanos = 0;
+  private final AtomicLong decompressionNanos = new AtomicLong();
+  private final AtomicLong decompressions = new AtomicLong();
+
+  /**
+   * @return combined statistics of several chunks
+   */
+  static CompressionStats sum( Iterable<CompressionStats> stats ) {
+    CompressionStats sum = new CompressionStats();
+    for ( CompressionStats chunk : stats ) {
+      sum.compressed( chunk.uncompressedBytes, chunk.compressedBytes, chunk.compressionNanos );
+      sum.decompressionNanos.addAndGet( chunk.decompressionNanos.get() );
+      sum.decompressions.addAndGet( chunk.decompressions.get() );
+    }
+    return sum;
+  }
+
+  /**
+   * Record compression of a column. Only called while building a chunk, before it is published.
+   */
+  void compressed( long uncompressedBytes, long compressedBytes, long nanos ) {
+    this.uncompressedBytes += uncompressedBytes;
+    this.compressedBytes += compressedBytes;
+    this.compressionNanos += nanos;
+  }
+
+  void decompressed( long nanos ) {
+    decompressionNanos.addAndGet( nanos );
+    decompressions.incrementAndGet();
+  }
+
+  public long getUncompressedBytes() {
+    return uncompressedBytes;
+  }
+
+  public long getCompressedBytes() {
+    return compressedBytes;
+  }
+
+  /**
+   * @return uncompressed size divided by compressed size, or 1 if nothing was compressed
+   */
+  public double getRatio() {
+    return compressedBytes > 0 ? (double) uncompressedBytes / compressedBytes : 1.0;
+  }
+
+  /**
+   * @return milliseconds spent compressing columns
+   */
+  public long getCompressionTime() {
+    return TimeUnit.NANOSECONDS.toMillis( compressionNanos );
+  }
+
+  /**
+   * @return milliseconds spent decompressing columns
+   */
+  public long getDecompressionTime() {
+    return TimeUnit.NANOSECONDS.toMillis( decompressionNanos.get() );
+  }
+
+  public long getDecompressions() {
+    return decompressions.get();
+  }
+
+  @Override public String toString() {
+    return Objects.toStringHelper( this )
+      .add( "uncompressedBytes", uncompressedBytes )
+      .add( "compressedBytes", compressedBytes )
+      .add( "compressionTime", getCompressionTime() )
+      .add( "decompressionTime", getDecompressionTime() )
+      .add( "decompressions", getDecompressions() )
+      .toString();
+  }
+}
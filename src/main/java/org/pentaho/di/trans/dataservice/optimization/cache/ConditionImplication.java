@@ -0,0 +1,330 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Strings;
+import org.pentaho.di.core.Condition;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaAndData;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.trans.dataservice.optimization.PushDownOptimizationException;
+import org.pentaho.di.trans.dataservice.optimization.ValueMetaResolver;
+
+import java.util.List;
+
+/**
+ * Decides whether every row satisfying one WHERE condition also satisfies another, so that a cache entry populated
+ * under a broader condition can answer a narrower query, e.g. {@code A > 10} can be answered from {@code A > 5}.
+ * <p>
+ * Only conjunctions, disjunctions and comparisons of a field against constants are understood. Values are compared
+ * with the service field's {@link ValueMetaInterface}, as the generated transformation would compare them. Anything
+ * else, including negated conditions that are not identical, is assumed not to be implied.
+ * </p>
+ */
+final class ConditionImplication {
+  private final ValueMetaResolver resolver;
+
+  /**
+   * @param serviceFields output fields of the data service
+   */
+  ConditionImplication( RowMetaInterface serviceFields ) {
+    this.resolver = new ValueMetaResolver( serviceFields );
+  }
+
+  /**
+   * @return true only if {@code query} is known to imply {@code cached}
+   */
+  public boolean implies( Condition query, Condition cached ) {
+    try {
+      return isImplied( query, cached );
+    } catch ( PushDownOptimizationException e ) {
+      return false;
+    } catch ( KettleValueException e ) {
+      return false;
+    }
+  }
+
+  private boolean isImplied( Condition query, Condition cached )
+    throws PushDownOptimizationException, KettleValueException {
+    query = unwrap( query );
+    cached = unwrap( cached );
+    if ( identical( query, cached ) ) {
+      return true;
+    }
+    if ( query.isNegated() || cached.isNegated() ) {
+      return false;
+    }
+    if ( cached.isAtomic() && cached.getFunction() == Condition.FUNC_TRUE ) {
+      return true;
+    }
+
+    // Every branch of the query must be covered
+    if ( getOperator( query ) == Condition.OPERATOR_OR ) {
+      for ( Condition child : query.getChildren() ) {
+        if ( !isImplied( child, cached ) ) {
+          return false;
+        }
+      }
+      return true;
+    }
+    // Every restriction of the cached condition must hold
+    if ( getOperator( cached ) == Condition.OPERATOR_AND ) {
+      for ( Condition child : cached.getChildren() ) {
+        if ( !isImplied( query, child ) ) {
+          return false;
+        }
+      }
+      return true;
+    }
+    // Any branch of the cached condition may hold
+    if ( getOperator( cached ) == Condition.OPERATOR_OR ) {
+      for ( Condition child : cached.getChildren() ) {
+        if ( isImplied( query, child ) ) {
+          return true;
+        }
+      }
+    }
+    // Any restriction of the query may be enough
+    if ( getOperator( query ) == Condition.OPERATOR_AND ) {
+      for ( Condition child : query.getChildren() ) {
+        if ( isImplied( child, cached ) ) {
+          return true;
+        }
+      }
+    }
+
+    return query.isAtomic() && cached.isAtomic() && impliesAtomic( query, cached );
+  }
+
+  /**
+   * Strip redundant nesting, e.g. a non-negated condition with a single child
+   */
+  private static Condition unwrap( Condition condition ) {
+    while ( !condition.isNegated() && condition.getChildren().size() == 1 ) {
+      condition = condition.getChildren().get( 0 );
+    }
+    return condition;
+  }
+
+  /**
+   * @return {@link Condition#OPERATOR_AND} or {@link Condition#OPERATOR_OR} if all children are joined by the same
+   * operator, otherwise {@link Condition#OPERATOR_NONE}
+   */
+  private static int getOperator( Condition condition ) {
+    List<Condition> children = condition.getChildren();
+    if ( children.size() < 2 ) {
+      return Condition.OPERATOR_NONE;
+    }
+    int operator = children.get( 1 ).getOperator();
+    for ( Condition child : children.subList( 2, children.size() ) ) {
+      if ( child.getOperator() != operator ) {
+        return Condition.OPERATOR_NONE;
+      }
+    }
+    return operator == Condition.OPERATOR_AND || operator == Condition.OPERATOR_OR ? operator
+      : Condition.OPERATOR_NONE;
+  }
+
+  private boolean identical( Condition left, Condition right )
+    throws PushDownOptimizationException, KettleValueException {
+    if ( left.isNegated() != right.isNegated() || left.isAtomic() != right.isAtomic() ) {
+      return false;
+    }
+    if ( !left.isAtomic() ) {
+      List<Condition> leftChildren = left.getChildren(), rightChildren = right.getChildren();
+      if ( leftChildren.size() != rightChildren.size() ) {
+        return false;
+      }
+      for ( int i = 0; i < leftChildren.size(); i++ ) {
+        Condition leftChild = leftChildren.get( i ), rightChild = rightChildren.get( i );
+        if ( ( i > 0 && leftChild.getOperator() != rightChild.getOperator() ) || !identical( leftChild, rightChild ) ) {
+          return false;
+        }
+      }
+      return true;
+    }
+    if ( left.getFunction() != right.getFunction() ) {
+      return false;
+    }
+    if ( left.getFunction() == Condition.FUNC_TRUE ) {
+      return true;
+    }
+    if ( !Objects.equal( left.getLeftValuename(), right.getLeftValuename() )
+      || !Objects.equal( Strings.emptyToNull( left.getRightValuename() ),
+      Strings.emptyToNull( right.getRightValuename() ) ) ) {
+      return false;
+    }
+    if ( !Strings.isNullOrEmpty( left.getRightValuename() ) ) {
+      return true;
+    }
+    ValueMetaAndData leftExact = left.getRightExact(), rightExact = right.getRightExact();
+    if ( leftExact == null || rightExact == null ) {
+      return leftExact == rightExact;
+    }
+    if ( left.getFunction() == Condition.FUNC_IN_LIST ) {
+      return Objects.equal( leftExact.getValueData(), rightExact.getValueData() );
+    }
+    Object leftValue = getValue( left ), rightValue = getValue( right );
+    return leftValue != null && rightValue != null && compare( left, leftValue, rightValue ) == 0;
+  }
+
+  private boolean impliesAtomic( Condition query, Condition cached )
+    throws PushDownOptimizationException, KettleValueException {
+    String field = query.getLeftValuename();
+    if ( Strings.isNullOrEmpty( field ) || !field.equals( cached.getLeftValuename() )
+      || !Strings.isNullOrEmpty( query.getRightValuename() ) || !Strings.isNullOrEmpty( cached.getRightValuename() ) ) {
+      return false;
+    }
+
+    switch ( query.getFunction() ) {
+      case Condition.FUNC_NULL:
+      case Condition.FUNC_NOT_NULL:
+        return cached.getFunction() == query.getFunction();
+      case Condition.FUNC_EQUAL:
+        Object value = getValue( query );
+        return value != null && satisfies( cached, value );
+      case Condition.FUNC_IN_LIST:
+        Object[] values = getValues( query );
+        if ( values == null ) {
+          return false;
+        }
+        for ( Object element : values ) {
+          if ( element == null || !satisfies( cached, element ) ) {
+            return false;
+          }
+        }
+        return true;
+      case Condition.FUNC_LARGER:
+      case Condition.FUNC_LARGER_EQUAL:
+      case Condition.FUNC_SMALLER:
+      case Condition.FUNC_SMALLER_EQUAL:
+        return boundImplies( query, cached );
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * @return true if a field holding {@code value} satisfies the condition
+   */
+  private boolean satisfies( Condition condition, Object value )
+    throws PushDownOptimizationException, KettleValueException {
+    if ( condition.getFunction() == Condition.FUNC_NOT_NULL ) {
+      return true;
+    }
+    if ( condition.getFunction() == Condition.FUNC_IN_LIST ) {
+      Object[] values = getValues( condition );
+      if ( values != null ) {
+        for ( Object element : values ) {
+          if ( element != null && compare( condition, value, element ) == 0 ) {
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+    Object bound = getValue( condition );
+    if ( bound == null ) {
+      return false;
+    }
+    int compare = compare( condition, value, bound );
+    switch ( condition.getFunction() ) {
+      case Condition.FUNC_EQUAL:
+        return compare == 0;
+      case Condition.FUNC_NOT_EQUAL:
+        return compare != 0;
+      case Condition.FUNC_SMALLER:
+        return compare < 0;
+      case Condition.FUNC_SMALLER_EQUAL:
+        return compare <= 0;
+      case Condition.FUNC_LARGER:
+        return compare > 0;
+      case Condition.FUNC_LARGER_EQUAL:
+        return compare >= 0;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Compare a range of the query against a range or exclusion of the cached condition
+   */
+  private boolean boundImplies( Condition query, Condition cached )
+    throws PushDownOptimizationException, KettleValueException {
+    int function = query.getFunction();
+    boolean lower = function == Condition.FUNC_LARGER || function == Condition.FUNC_LARGER_EQUAL;
+    boolean inclusive = function == Condition.FUNC_LARGER_EQUAL || function == Condition.FUNC_SMALLER_EQUAL;
+
+    // Kettle orders null before any value, so only lower bounds exclude nulls
+    if ( cached.getFunction() == Condition.FUNC_NOT_NULL ) {
+      return lower;
+    }
+
+    Object queryBound = getValue( query ), cachedBound = getValue( cached );
+    if ( queryBound == null || cachedBound == null ) {
+      return false;
+    }
+    int compare = compare( query, queryBound, cachedBound );
+    switch ( cached.getFunction() ) {
+      case Condition.FUNC_LARGER:
+        return lower && ( inclusive ? compare > 0 : compare >= 0 );
+      case Condition.FUNC_LARGER_EQUAL:
+        return lower && compare >= 0;
+      case Condition.FUNC_SMALLER:
+        return !lower && ( inclusive ? compare < 0 : compare <= 0 );
+      case Condition.FUNC_SMALLER_EQUAL:
+        return !lower && compare <= 0;
+      case Condition.FUNC_NOT_EQUAL:
+        return lower ? ( inclusive ? compare > 0 : compare >= 0 ) : ( inclusive ? compare < 0 : compare <= 0 );
+      default:
+        return false;
+    }
+  }
+
+  private int compare( Condition condition, Object left, Object right )
+    throws PushDownOptimizationException, KettleValueException {
+    return resolver.getValueMeta( condition.getLeftValuename() ).compare( left, right );
+  }
+
+  /**
+   * @return constant of the condition, converted to the type of its field
+   */
+  private Object getValue( Condition condition ) throws PushDownOptimizationException {
+    ValueMetaAndData exact = condition.getRightExact();
+    if ( exact == null || exact.getValueData() == null || exact.getValueMeta() == null ) {
+      return null;
+    }
+    return resolver.getTypedValue( condition.getLeftValuename(), exact.getValueMeta().getType(),
+      exact.getValueData() );
+  }
+
+  private Object[] getValues( Condition condition ) throws PushDownOptimizationException {
+    ValueMetaAndData exact = condition.getRightExact();
+    if ( exact == null || !( exact.getValueData() instanceof String ) ) {
+      return null;
+    }
+    return resolver.inListToTypedObjectArray( condition.getLeftValuename(), (String) exact.getValueData() );
+  }
+}
@@ -0,0 +1,172 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Splitter;
+
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * A schedule in the five field cron format: {@code minute hour day-of-month month day-of-week}.
+ * <p>
+ * Each field accepts {@code *}, single values, ranges ({@code 1-5}), steps ({@code *&#47;15}, {@code 0-30/10}) and
+ * comma separated lists. Days of the week run from 0 (Sunday) to 6, 7 is also accepted as Sunday. As in cron, if both
+ * day fields are restricted, a day matching either will do.
+ * </p>
+ */
+final class CronSchedule {
+  private static final Splitter FIELDS = Splitter.on( ' ' ).omitEmptyStrings().trimResults();
+  private static final Splitter LIST = Splitter.on( ',' ).trimResults();
+  // Give up if nothing matches within this many years, e.g. 30th of February
+  private static final int MAX_YEARS = 5;
+
+  private final String expression;
+  private final BitSet minutes, hours, days, months, weekdays;
+  private final boolean anyDay, anyWeekday;
+
+  private CronSchedule( String expression, List<String> fields ) {
+    this.expression = expression;
+    minutes = parseField( fields.get( 0 ), 0, 59 );
+    hours = parseField( fields.get( 1 ), 0, 23 );
+    days = parseField( fields.get( 2 ), 1, 31 );
+    months = parseField( fields.get( 3 ), 1, 12 );
+    weekdays = parseField( fields.get( 4 ), 0, 7 );
+    if ( weekdays.get( 7 ) ) {
+      weekdays.set( 0 );
+    }
+    anyDay = fields.get( 2 ).equals( "*" );
+    anyWeekday = fields.get( 4 ).equals( "*" );
+  }
+
+  /**
+   * @throws IllegalArgumentException if the expression is not valid
+   */
+  static CronSchedule parse( String expression ) {
+    List<String> fields = FIELDS.splitToList( expression );
+    if ( fields.size() != 5 ) {
+      throw new IllegalArgumentException( "Expected 5 fields in cron expression: " + expression );
+    }
+    return new CronSchedule( expression, fields );
+  }
+
+  private static BitSet parseField( String field, int min, int max ) {
+    BitSet values = new BitSet( max + 1 );
+    for ( String part : LIST.split( field ) ) {
+      int step = 1;
+      int slash = part.indexOf( '/' );
+      if ( slash >= 0 ) {
+        step = parseValue( part.substring( slash + 1 ), 1, max );
+        part = part.substring( 0, slash );
+      }
+      int from, to;
+      if ( part.equals( "*" ) ) {
+        from = min;
+        to = max;
+      } else if ( part.indexOf( '-' ) > 0 ) {
+        from = parseValue( part.substring( 0, part.indexOf( '-' ) ), min, max );
+        to = parseValue( part.substring( part.indexOf( '-' ) + 1 ), from, max );
+      } else {
+        from = parseValue( part, min, max );
+        to = slash >= 0 ? max : from;
+      }
+      for ( int value = from; value <= to; value += step ) {
+        values.set( value );
+      }
+    }
+    return values;
+  }
+
+  private static int parseValue( String value, int min, int max ) {
+    try {
+      int parsed = Integer.parseInt( value );
+      if ( parsed >= min && parsed <= max ) {
+        return parsed;
+      }
+    } catch ( NumberFormatException e ) {
+      // Reported below
+    }
+    throw new IllegalArgumentException( "Invalid cron value '" + value + "', expected " + min + "-" + max );
+  }
+
+  /**
+   * @return true if the minute containing {@code time} is scheduled
+   */
+  boolean matches( long time ) {
+    Calendar calendar = Calendar.getInstance();
+    calendar.setTimeInMillis( time );
+    return matchesDay( calendar ) && hours.get( calendar.get( Calendar.HOUR_OF_DAY ) )
+      && minutes.get( calendar.get( Calendar.MINUTE ) );
+  }
+
+  /**
+   * @return start of the next scheduled minute after {@code time}, or -1 if the schedule never runs
+   */
+  long next( long time ) {
+    Calendar calendar = Calendar.getInstance();
+    calendar.setTimeInMillis( time );
+    calendar.set( Calendar.SECOND, 0 );
+    calendar.set( Calendar.MILLISECOND, 0 );
+    calendar.add( Calendar.MINUTE, 1 );
+
+    int limit = calendar.get( Calendar.YEAR ) + MAX_YEARS;
+    while ( calendar.get( Calendar.YEAR ) <= limit ) {
+      if ( !months.get( calendar.get( Calendar.MONTH ) + 1 ) ) {
+        calendar.set( Calendar.DAY_OF_MONTH, 1 );
+        calendar.set( Calendar.HOUR_OF_DAY, 0 );
+        calendar.set( Calendar.MINUTE, 0 );
+        calendar.add( Calendar.MONTH, 1 );
+      } else if ( !matchesDay( calendar ) ) {
+        calendar.set( Calendar.HOUR_OF_DAY, 0 );
+        calendar.set( Calendar.MINUTE, 0 );
+        calendar.add( Calendar.DAY_OF_MONTH, 1 );
+      } else if ( !hours.get( calendar.get( Calendar.HOUR_OF_DAY ) ) ) {
+        calendar.set( Calendar.MINUTE, 0 );
+        calendar.add( Calendar.HOUR_OF_DAY, 1 );
+      } else if ( !minutes.get( calendar.get( Calendar.MINUTE ) ) ) {
+        calendar.add( Calendar.MINUTE, 1 );
+      } else {
+        return calendar.getTimeInMillis();
+      }
+    }
+    return -1;
+  }
+
+  private boolean matchesDay( Calendar calendar ) {
+    if ( !months.get( calendar.get( Calendar.MONTH ) + 1 ) ) {
+      return false;
+    }
+    boolean day = days.get( calendar.get( Calendar.DAY_OF_MONTH ) );
+    boolean weekday = weekdays.get( calendar.get( Calendar.DAY_OF_WEEK ) - Calendar.SUNDAY );
+    if ( !anyDay && !anyWeekday ) {
+      return day || weekday;
+    }
+    return day && weekday;
+  }
+
+  @Override public String toString() {
+    return expression;
+  }
+}
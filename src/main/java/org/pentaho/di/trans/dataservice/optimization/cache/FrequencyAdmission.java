@@ -0,0 +1,172 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Strings;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Admits results that are likely to be reused, or that were expensive to produce.
+ * <p>
+ * Query frequency is estimated by a count-min sketch of recent queries, in the manner of TinyLFU: a small table of
+ * counters per hash function, of which the smallest is the estimate. Once the sketch has recorded ten queries per
+ * counter, all counters are halved, so that queries that are no longer run are forgotten. Results are admitted once
+ * their query was recorded often enough ({@value #DEFAULT_MIN_FREQUENCY} times by default), or if the service
+ * transformation ran long enough ({@value #DEFAULT_MIN_COST} milliseconds by default).
+ * </p>
+ */
+public class FrequencyAdmission implements AdmissionPolicy {
+  /**
+   * Cache template property, queries after which results are admitted
+   */
+  public static final String MIN_FREQUENCY = "dataservice.cache.admission.min.frequency";
+  public static final int DEFAULT_MIN_FREQUENCY = 2;
+  /**
+   * Cache template property, milliseconds of service transformation runtime after which results are admitted
+   */
+  public static final String MIN_COST = "dataservice.cache.admission.min.cost";
+  public static final long DEFAULT_MIN_COST = 5000;
+  /**
+   * Cache template property, number of counters per hash function. Should be at least the number of distinct
+   * queries that are run repeatedly.
+   */
+  public static final String SKETCH_WIDTH = "dataservice.cache.admission.sketch.width";
+  public static final int DEFAULT_SKETCH_WIDTH = 1024;
+
+  private static final int DEPTH = 4;
+  private static final int MAX_COUNT = 15;
+  private static final int SAMPLE_FACTOR = 10;
+  private static final HashFunction hashFunction = Hashing.murmur3_128();
+
+  private final int minFrequency;
+  private final long minCost;
+  private final int mask;
+  private final int sampleSize;
+  private final byte[] counters;
+  private int additions = 0;
+
+  /**
+   * @param width counters per hash function, rounded up to a power of two
+   */
+  public FrequencyAdmission( int minFrequency, long minCost, int width ) {
+    checkArgument( width > 0, "Sketch width must be positive" );
+    int size = Integer.highestOneBit( width - 1 ) << 1;
+    this.minFrequency = minFrequency;
+    this.minCost = minCost;
+    this.mask = Math.max( size, 1 ) - 1;
+    this.sampleSize = SAMPLE_FACTOR * ( mask + 1 );
+    this.counters = new byte[DEPTH * ( mask + 1 )];
+  }
+
+  /**
+   * Configure admission from cache template properties
+   */
+  public static FrequencyAdmission create( Map<String, String> properties ) {
+    return new FrequencyAdmission(
+      (int) parse( properties.get( MIN_FREQUENCY ), DEFAULT_MIN_FREQUENCY ),
+      parse( properties.get( MIN_COST ), DEFAULT_MIN_COST ),
+      (int) Math.max( parse( properties.get( SKETCH_WIDTH ), DEFAULT_SKETCH_WIDTH ), 1 ) );
+  }
+
+  private static long parse( String value, long defaultValue ) {
+    String trimmed = Strings.nullToEmpty( value ).trim();
+    try {
+      return trimmed.isEmpty() ? defaultValue : Long.parseLong( trimmed );
+    } catch ( NumberFormatException e ) {
+      return defaultValue;
+    }
+  }
+
+  @Override public synchronized void record( String serviceName, Map<String, String> parameters,
+                                            String whereClause ) {
+    long hash = hash( serviceName, parameters, whereClause );
+    for ( int i = 0; i < DEPTH; i++ ) {
+      int index = index( hash, i );
+      if ( counters[index] < MAX_COUNT ) {
+        counters[index]++;
+      }
+    }
+    if ( ++additions >= sampleSize ) {
+      age();
+    }
+  }
+
+  @Override public boolean admit( String serviceName, Map<String, String> parameters, String whereClause,
+                                  long populationMillis ) {
+    return populationMillis >= minCost || frequency( serviceName, parameters, whereClause ) >= minFrequency;
+  }
+
+  /**
+   * @return estimated number of recent queries of a key. May overestimate, never underestimates.
+   */
+  public synchronized int frequency( String serviceName, Map<String, String> parameters, String whereClause ) {
+    long hash = hash( serviceName, parameters, whereClause );
+    int frequency = MAX_COUNT;
+    for ( int i = 0; i < DEPTH; i++ ) {
+      frequency = Math.min( frequency, counters[index( hash, i )] );
+    }
+    return frequency;
+  }
+
+  /**
+   * Halve all counts, so that frequent queries of the past eventually give way to current ones
+   */
+  private void age() {
+    for ( int i = 0; i < counters.length; i++ ) {
+      counters[i] >>= 1;
+    }
+    additions /= 2;
+  }
+
+  private static long hash( String serviceName, Map<String, String> parameters, String whereClause ) {
+    return hashFunction.newHasher()
+      .putUnencodedChars( Strings.nullToEmpty( serviceName ) )
+      .putInt( parameters.hashCode() )
+      .putBoolean( whereClause != null )
+      .putUnencodedChars( Strings.nullToEmpty( whereClause ) )
+      .hash().asLong();
+  }
+
+  /**
+   * Counter of the i-th hash function, derived from two halves of the hash
+   */
+  private int index( long hash, int i ) {
+    int combined = (int) hash + i * (int) ( hash >>> 32 );
+    return i * ( mask + 1 ) + ( combined & mask );
+  }
+
+  @Override public String toString() {
+    return Objects.toStringHelper( this )
+      .add( "minFrequency", minFrequency )
+      .add( "minCost", minCost )
+      .add( "width", mask + 1 )
+      .toString();
+  }
+}
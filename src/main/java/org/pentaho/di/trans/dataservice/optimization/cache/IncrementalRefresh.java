@@ -0,0 +1,203 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.util.Map;
+
+import static com.google.common.base.Predicates.equalTo;
+import static com.google.common.base.Predicates.not;
+
+/**
+ * Refreshes a complete cache entry of an append-only service by fetching only the rows after its high-water mark:
+ * the greatest value of a field that only grows, such as an id or a timestamp. The new rows are appended to the entry.
+ * <p>
+ * The mark is passed to the service transformation as the {@value ServiceCache#HIGH_WATER_MARK_PARAMETER} parameter,
+ * formatted like the field, so it may read only the rows beyond it. Rows up to the mark are skipped either way.
+ * </p>
+ * <p>
+ * Rows without a value for the field can not be placed before or after the mark. Entries holding such rows are
+ * always refreshed in full, and an incremental refresh that meets one fails with a {@link NullMarkException}, so the
+ * entry is refreshed in full instead.
+ * </p>
+ */
+final class IncrementalRefresh {
+  private final CachedService.CacheKey key;
+  private final CachedService base;
+  private final String field;
+  private final ValueMetaInterface valueMeta;
+  private final Object mark;
+  private final String formattedMark;
+
+  private IncrementalRefresh( CachedService.CacheKey key, CachedService base, String field,
+                              ValueMetaInterface valueMeta, Object mark ) throws KettleValueException {
+    this.key = key;
+    this.base = base;
+    this.field = field;
+    this.valueMeta = valueMeta;
+    this.mark = mark;
+    this.formattedMark = valueMeta.getString( mark );
+  }
+
+  /**
+   * @param key   key of the entry to refresh
+   * @param base  complete entry to append to
+   * @param field high-water mark field, or null if not configured
+   * @return incremental refresh, or absent if the entry must be refreshed in full
+   */
+  static Optional<IncrementalRefresh> create( CachedService.CacheKey key, CachedService base, String field ) {
+    if ( Strings.isNullOrEmpty( field ) || !base.isComplete() || base.isEvicted() ) {
+      return Optional.absent();
+    }
+    CachedRows rows = base.getRows();
+    ValueMetaInterface valueMeta = null;
+    Object mark = null;
+    rows.pin();
+    try {
+      for ( StoredChunk chunk : rows.getChunks() ) {
+        int index = chunk.getRowMeta().indexOfValue( field );
+        if ( index < 0 || hasNulls( chunk, index ) ) {
+          return Optional.absent();
+        }
+        ValueMetaInterface chunkMeta = chunk.getRowMeta().getValueMeta( index );
+        Object chunkMax = max( chunk, index );
+        if ( chunkMax != null && ( mark == null || chunkMeta.compare( chunkMax, valueMeta, mark ) > 0 ) ) {
+          valueMeta = chunkMeta;
+          mark = chunkMax;
+        }
+      }
+      return mark == null ? Optional.<IncrementalRefresh>absent()
+        : Optional.of( new IncrementalRefresh( key, base, field, valueMeta, mark ) );
+    } catch ( KettleValueException e ) {
+      return Optional.absent();
+    } finally {
+      rows.unpin();
+    }
+  }
+
+  /**
+   * @return greatest value of a column, taken from the chunk's statistics if known, or null if all values are null
+   */
+  private static Object max( StoredChunk chunk, int index ) throws KettleValueException {
+    ColumnStats stats = chunk.getStats( index );
+    if ( stats != null && stats.hasRange() ) {
+      return stats.getMax();
+    }
+    if ( stats != null && stats.getNullCount() == chunk.getRowCount() ) {
+      return null;
+    }
+    // Unknown statistics, e.g. of a restored snapshot, or a type that is not ranged
+    ValueMetaInterface valueMeta = chunk.getRowMeta().getValueMeta( index );
+    Object max = null;
+    for ( Object[] row : chunk.load() ) {
+      if ( row[index] != null && ( max == null || valueMeta.compare( row[index], max ) > 0 ) ) {
+        max = row[index];
+      }
+    }
+    return max;
+  }
+
+  /**
+   * @return true if a column has null values, taken from the chunk's statistics if known
+   */
+  private static boolean hasNulls( StoredChunk chunk, int index ) {
+    ColumnStats stats = chunk.getStats( index );
+    if ( stats != null ) {
+      return stats.getNullCount() > 0;
+    }
+    for ( Object[] row : chunk.load() ) {
+      if ( row[index] == null ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public CachedService.CacheKey getKey() {
+    return key;
+  }
+
+  /**
+   * @return entry to append the new rows to
+   */
+  public CachedService getBase() {
+    return base;
+  }
+
+  public Object getMark() {
+    return mark;
+  }
+
+  /**
+   * @return parameters of the refresh query, passing the mark to the service transformation
+   */
+  public Map<String, String> getParameters( Map<String, String> parameters ) {
+    return ImmutableMap.<String, String>builder()
+      .putAll( Maps.filterKeys( parameters, not( equalTo( ServiceCache.HIGH_WATER_MARK_PARAMETER ) ) ) )
+      .put( ServiceCache.HIGH_WATER_MARK_PARAMETER, formattedMark )
+      .build();
+  }
+
+  /**
+   * @return true if the row is beyond the high-water mark
+   * @throws NullMarkException if the row has no value for the field, and the entry must be refreshed in full
+   */
+  public boolean isNew( RowMetaInterface rowMeta, Object[] row ) throws KettleValueException {
+    int index = rowMeta.indexOfValue( field );
+    if ( index < 0 || index >= row.length ) {
+      return false;
+    }
+    if ( row[index] == null ) {
+      throw new NullMarkException( "Service wrote a row without a value for " + field + ", refreshing in full" );
+    }
+    return valueMeta.compare( mark, rowMeta.getValueMeta( index ), row[index] ) < 0;
+  }
+
+  @Override public String toString() {
+    return Objects.toStringHelper( this )
+      .add( "field", field )
+      .add( "mark", formattedMark )
+      .add( "rows", base.getRowCount() )
+      .toString();
+  }
+
+  /**
+   * Thrown when a refresh meets a row without a high-water mark value
+   */
+  public static class NullMarkException extends KettleValueException {
+    private static final long serialVersionUID = -3318904276530587412L;
+
+    public NullMarkException( String message ) {
+      super( message );
+    }
+  }
+}
@@ -0,0 +1,267 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableListMultimap;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.Condition;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaAndData;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.core.sql.SQLCondition;
+
+import java.util.List;
+
+/**
+ * Applies the WHERE condition of a query while cached rows are replayed, so rows the generated transformation would
+ * discard are never produced.
+ * <p>
+ * Whole chunks are skipped when their {@link ColumnStats} show that no row can match. Remaining rows are tested with
+ * {@link Condition#evaluate}, exactly as the generated transformation's filter would test them. Any condition that
+ * can not be resolved against the cached rows lets every row through.
+ * </p>
+ * <p>
+ * Equality and IN predicates are also exposed through {@link #getEqualities()}, so matching rows can be looked up in
+ * a {@link CachedIndex} instead of scanning every row.
+ * </p>
+ * Not thread safe, use one filter per replay.
+ */
+final class ReplayFilter {
+  private final Condition condition;
+  private final ImmutableListMultimap<String, ValueMetaAndData> equalities;
+
+  private RowMetaInterface resolvedRowMeta;
+  private boolean applicable;
+
+  private ReplayFilter( Condition condition ) {
+    this.condition = condition;
+    ImmutableListMultimap.Builder<String, ValueMetaAndData> equalities = ImmutableListMultimap.builder();
+    collectEqualities( condition, equalities );
+    this.equalities = equalities.build();
+  }
+
+  static Optional<ReplayFilter> create( SQL sql ) {
+    SQLCondition whereCondition = sql.getWhereCondition();
+    if ( whereCondition == null || whereCondition.getCondition() == null ) {
+      return Optional.absent();
+    }
+    // Condition caches field indexes, keep a private copy
+    return Optional.of( new ReplayFilter( (Condition) whereCondition.getCondition().clone() ) );
+  }
+
+  /**
+   * @return false only if no row of the chunk can satisfy the condition
+   */
+  public boolean mayMatch( StoredChunk chunk ) {
+    return !isApplicable( chunk.getRowMeta() ) || mayMatch( condition, chunk );
+  }
+
+  /**
+   * @return false only if the row does not satisfy the condition
+   */
+  public boolean matches( RowMetaInterface rowMeta, Object[] row ) {
+    if ( !isApplicable( rowMeta ) ) {
+      return true;
+    }
+    try {
+      return condition.evaluate( rowMeta, row );
+    } catch ( RuntimeException e ) {
+      // Leave it to the generated transformation
+      return true;
+    }
+  }
+
+  /**
+   * Values that columns are compared to with {@code =} or {@code IN}, in predicates that every matching row satisfies.
+   * Each matching row holds one of the listed values in each listed column. Values are as written in the query, not
+   * yet converted to the column's type.
+   */
+  public ImmutableListMultimap<String, ValueMetaAndData> getEqualities() {
+    return equalities;
+  }
+
+  private static void collectEqualities( Condition condition,
+                                         ImmutableListMultimap.Builder<String, ValueMetaAndData> equalities ) {
+    if ( condition.isNegated() ) {
+      return;
+    }
+    if ( condition.isAtomic() ) {
+      ValueMetaAndData right = condition.getRightExact();
+      String left = condition.getLeftValuename();
+      if ( Strings.isNullOrEmpty( left ) || !Strings.isNullOrEmpty( condition.getRightValuename() ) || right == null
+        || right.getValueMeta() == null || right.getValueData() == null ) {
+        return;
+      }
+      if ( condition.getFunction() == Condition.FUNC_EQUAL ) {
+        equalities.put( left, right );
+      } else if ( condition.getFunction() == Condition.FUNC_IN_LIST ) {
+        // Split the list as Condition#evaluate does
+        try {
+          String list = right.getValueMeta().getString( right.getValueData() );
+          for ( String value : Const.splitString( list, ';', true ) ) {
+            if ( value != null ) {
+              equalities.put( left, new ValueMetaAndData( new ValueMetaString( left ), value.replace( "\\", "" ) ) );
+            }
+          }
+        } catch ( KettleValueException e ) {
+          // Not usable for lookups
+        }
+      }
+      return;
+    }
+
+    // Only predicates joined by AND must all hold
+    List<Condition> children = condition.getChildren();
+    for ( Condition child : children.subList( Math.min( 1, children.size() ), children.size() ) ) {
+      if ( child.getOperator() != Condition.OPERATOR_AND ) {
+        return;
+      }
+    }
+    for ( Condition child : children ) {
+      collectEqualities( child, equalities );
+    }
+  }
+
+  private boolean isApplicable( RowMetaInterface rowMeta ) {
+    if ( rowMeta != resolvedRowMeta ) {
+      applicable = resolves( condition, rowMeta );
+      resolvedRowMeta = rowMeta;
+    }
+    return applicable;
+  }
+
+  /**
+   * Check that every field referenced by a condition is present in the cached rows
+   */
+  private static boolean resolves( Condition condition, RowMetaInterface rowMeta ) {
+    if ( !condition.isAtomic() ) {
+      for ( Condition child : condition.getChildren() ) {
+        if ( !resolves( child, rowMeta ) ) {
+          return false;
+        }
+      }
+      return true;
+    }
+    if ( condition.getFunction() == Condition.FUNC_TRUE ) {
+      // Parameter assignments, e.g. PARAMETER('foo') = 'bar'
+      return true;
+    }
+    String left = condition.getLeftValuename(), right = condition.getRightValuename();
+    return !Strings.isNullOrEmpty( left ) && rowMeta.indexOfValue( left ) >= 0
+      && ( Strings.isNullOrEmpty( right ) || rowMeta.indexOfValue( right ) >= 0 );
+  }
+
+  private static boolean mayMatch( Condition condition, StoredChunk chunk ) {
+    if ( condition.isNegated() ) {
+      return true;
+    }
+    if ( condition.isAtomic() ) {
+      return mayMatchAtomic( condition, chunk );
+    }
+
+    List<Condition> children = condition.getChildren();
+    if ( children.isEmpty() ) {
+      return true;
+    }
+    boolean and = true, or = true;
+    for ( Condition child : children.subList( 1, children.size() ) ) {
+      and &= child.getOperator() == Condition.OPERATOR_AND;
+      or &= child.getOperator() == Condition.OPERATOR_OR;
+    }
+    if ( and ) {
+      for ( Condition child : children ) {
+        if ( !mayMatch( child, chunk ) ) {
+          return false;
+        }
+      }
+      return true;
+    }
+    if ( or ) {
+      for ( Condition child : children ) {
+        if ( mayMatch( child, chunk ) ) {
+          return true;
+        }
+      }
+      return false;
+    }
+    return true;
+  }
+
+  private static boolean mayMatchAtomic( Condition condition, StoredChunk chunk ) {
+    if ( condition.getFunction() == Condition.FUNC_TRUE ) {
+      return true;
+    }
+    RowMetaInterface rowMeta = chunk.getRowMeta();
+    int index = rowMeta.indexOfValue( condition.getLeftValuename() );
+    ColumnStats stats = chunk.getStats( index );
+    if ( stats == null ) {
+      return true;
+    }
+
+    switch ( condition.getFunction() ) {
+      case Condition.FUNC_NULL:
+        return stats.getNullCount() > 0;
+      case Condition.FUNC_NOT_NULL:
+        return stats.getNullCount() < chunk.getRowCount();
+      default:
+        break;
+    }
+
+    // Kettle orders null before any value, so ranges only hold for columns without nulls
+    ValueMetaAndData right = condition.getRightExact();
+    if ( !Strings.isNullOrEmpty( condition.getRightValuename() ) || right == null || right.getValueData() == null
+      || stats.getNullCount() > 0 || !stats.hasRange() ) {
+      return true;
+    }
+
+    ValueMetaInterface valueMeta = rowMeta.getValueMeta( index );
+    int min, max;
+    try {
+      min = valueMeta.compare( stats.getMin(), right.getValueMeta(), right.getValueData() );
+      max = valueMeta.compare( stats.getMax(), right.getValueMeta(), right.getValueData() );
+    } catch ( KettleValueException e ) {
+      return true;
+    }
+
+    switch ( condition.getFunction() ) {
+      case Condition.FUNC_EQUAL:
+        return min <= 0 && max >= 0;
+      case Condition.FUNC_SMALLER:
+        return min < 0;
+      case Condition.FUNC_SMALLER_EQUAL:
+        return min <= 0;
+      case Condition.FUNC_LARGER:
+        return max > 0;
+      case Condition.FUNC_LARGER_EQUAL:
+        return max >= 0;
+      default:
+        return true;
+    }
+  }
+}
@@ -22,7 +22,9 @@
 
 package org.pentaho.di.trans.dataservice.optimization.cache;
 
+import com.google.common.base.Optional;
 import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
 import com.google.common.net.MediaType;
 import org.pentaho.di.core.annotations.CarteServlet;
 import org.pentaho.di.www.BaseHttpServlet;
@@ -33,9 +35,19 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * This servlet allows a user to clear the data service cache
+ * <p>
+ * Entries may be invalidated selectively, see {@link CacheInvalidation}. Parameter values are given as
+ * {@code parameter.NAME=value}, a pattern of the WHERE clause as {@code where} and a minimum age in seconds as
+ * {@code olderThan}. With {@code dryRun=true}, the entries that would be invalidated are only reported.
+ * </p>
  *
  * @author nhudak
  */
@@ -46,12 +58,21 @@ import java.io.PrintWriter;
 )
 public class ResetCacheServlet extends BaseHttpServlet implements CartePluginInterface {
   private static final String NAME_PARAMETER = "name";
+  private static final String PARAMETER_PREFIX = "parameter.";
+  private static final String WHERE_PARAMETER = "where";
+  private static final String OLDER_THAN_PARAMETER = "olderThan";
+  private static final String DRY_RUN_PARAMETER = "dryRun";
   private final ServiceCacheFactory factory;
+  private CacheWarmUp warmUp;
 
   public ResetCacheServlet( ServiceCacheFactory factory ) {
     this.factory = factory;
   }
 
+  public void setWarmUp( CacheWarmUp warmUp ) {
+    this.warmUp = warmUp;
+  }
+
   private static final String CONTEXT_PATH = "/clearDataServiceCache";
 
   @Override public String toString() {
@@ -78,14 +99,65 @@ public class ResetCacheServlet extends BaseHttpServlet implements CartePluginInt
       return;
     }
 
+    CacheInvalidation invalidation;
+    try {
+      invalidation = parseInvalidation( request );
+    } catch ( IllegalArgumentException e ) {
+      response.sendError( HttpServletResponse.SC_BAD_REQUEST, e.getMessage() );
+      return;
+    }
+    boolean dryRun = Boolean.parseBoolean( request.getParameter( DRY_RUN_PARAMETER ) );
+
     response.setStatus( HttpServletResponse.SC_OK );
     response.setContentType( MediaType.PLAIN_TEXT_UTF_8.toString() );
 
     PrintWriter writer = response.getWriter();
+    if ( dryRun || invalidation.isSelective() ) {
+      CacheInvalidation.Result result = factory.invalidate( name, invalidation, dryRun );
+      writer.println( ( dryRun ? "Would invalidate " : "Invalidated " ) + result + " of cache: " + name );
+      writer.println( "Done" );
+      return;
+    }
     for ( Cache cache : factory.getCache( name ).asSet() ) {
       cache.clear();
       writer.println( "Cleared cache: " + cache.getName() );
     }
+    factory.releaseStorage( name );
+    if ( warmUp != null ) {
+      warmUp.afterReset( name );
+    }
     writer.println( "Done" );
   }
+
+  private static CacheInvalidation parseInvalidation( HttpServletRequest request ) {
+    Map<String, String> parameters = Maps.newHashMap();
+    for ( Enumeration<?> names = request.getParameterNames(); names.hasMoreElements(); ) {
+      String name = (String) names.nextElement();
+      if ( name.startsWith( PARAMETER_PREFIX ) && name.length() > PARAMETER_PREFIX.length() ) {
+        String value = Strings.nullToEmpty( request.getParameter( name ) );
+        parameters.put( name.substring( PARAMETER_PREFIX.length() ), value );
+      }
+    }
+
+    Optional<Pattern> wherePattern = Optional.absent();
+    String where = request.getParameter( WHERE_PARAMETER );
+    if ( !Strings.isNullOrEmpty( where ) ) {
+      try {
+        wherePattern = Optional.of( Pattern.compile( where ) );
+      } catch ( PatternSyntaxException e ) {
+        throw new IllegalArgumentException( WHERE_PARAMETER + " is not a valid pattern: " + e.getDescription() );
+      }
+    }
+
+    long minAgeMillis = 0;
+    String olderThan = Strings.nullToEmpty( request.getParameter( OLDER_THAN_PARAMETER ) ).trim();
+    if ( !olderThan.isEmpty() ) {
+      try {
+        minAgeMillis = TimeUnit.SECONDS.toMillis( Long.parseLong( olderThan ) );
+      } catch ( NumberFormatException e ) {
+        throw new IllegalArgumentException( OLDER_THAN_PARAMETER + " must be a number of seconds" );
+      }
+    }
+    return new CacheInvalidation( parameters, wherePattern, minAgeMillis );
+  }
 }
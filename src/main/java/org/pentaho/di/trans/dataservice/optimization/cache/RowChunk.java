@@ -0,0 +1,1009 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.UnmodifiableIterator;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * A block of cached rows sharing one {@link RowMetaInterface}, stored column by column.
+ * <p>
+ * Integer, number and date columns are kept in primitive buffers, booleans in a bit set and strings are dictionary
+ * encoded. Nulls are tracked in a bitmap per column. Any other value (or a value that does not match the declared
+ * type) falls back to a plain object column. Rows are materialized as new {@code Object[]} on demand.
+ * </p>
+ * <p>
+ * String columns may be configured for compression. Those with many distinct values are then deflated as a single
+ * block, decompressed on first access and kept only softly reachable afterwards. Low cardinality string columns stay
+ * dictionary encoded.
+ * </p>
+ * <p>
+ * A chunk can be written to a compact binary form with {@link #write(DataOutputStream)}. Chunks read back with
+ * {@link #read(RowMetaInterface, ByteBuffer)} keep numeric, date and compressed columns as views of the source
+ * buffer. Null masks, booleans, dictionaries and serialized values are decoded onto the heap.
+ * </p>
+ */
+final class RowChunk implements Iterable<Object[]> {
+  private static final byte LONG = 1, DOUBLE = 2, DATE = 3, BOOLEAN = 4, DICTIONARY = 5, OBJECT = 6, COMPRESSED = 7;
+
+  /**
+   * Compressible string columns with more than one distinct value per this many rows are block compressed
+   */
+  private static final int DICTIONARY_MAX_CARDINALITY = 4;
+
+  /**
+   * Rough heap overhead of an object header and reference, used for size estimates
+   */
+  private static final int OBJECT_OVERHEAD = 16;
+
+  private final RowMetaInterface rowMeta;
+  private final int rowCount;
+  private final Column[] columns;
+  private final ColumnStats[] stats;
+  private final CompressionStats compression;
+
+  private RowChunk( RowMetaInterface rowMeta, int rowCount, Column[] columns, ColumnStats[] stats,
+                    CompressionStats compression ) {
+    this.rowMeta = rowMeta;
+    this.rowCount = rowCount;
+    this.columns = columns;
+    this.stats = stats;
+    this.compression = compression;
+  }
+
+  public RowMetaInterface getRowMeta() {
+    return rowMeta;
+  }
+
+  public int getRowCount() {
+    return rowCount;
+  }
+
+  /**
+   * @return statistics of a column, or null if unknown. Chunks read from binary form have no statistics.
+   */
+  public ColumnStats getStats( int column ) {
+    return stats[column];
+  }
+
+  /**
+   * @return size and CPU cost of compressed columns
+   */
+  public CompressionStats getCompression() {
+    return compression;
+  }
+
+  /**
+   * @return a new row array holding the values of a row in this chunk
+   */
+  public Object[] getRow( int row ) {
+    checkElementIndex( row, rowCount );
+    Object[] data = new Object[columns.length];
+    for ( int i = 0; i < columns.length; i++ ) {
+      data[i] = columns[i].value( row );
+    }
+    return data;
+  }
+
+  @Override public Iterator<Object[]> iterator() {
+    return new UnmodifiableIterator<Object[]>() {
+      int next = 0;
+
+      @Override public boolean hasNext() {
+        return next < rowCount;
+      }
+
+      @Override public Object[] next() {
+        if ( !hasNext() ) {
+          throw new NoSuchElementException();
+        }
+        return getRow( next++ );
+      }
+    };
+  }
+
+  /**
+   * @return approximate number of heap bytes retained by this chunk's values
+   */
+  public long estimateSize() {
+    long size = OBJECT_OVERHEAD;
+    for ( Column column : columns ) {
+      size += column.estimateSize();
+    }
+    return size;
+  }
+
+  /**
+   * Write all columns in binary form. Row metadata is not included.
+   */
+  public void write( DataOutputStream output ) throws IOException {
+    output.writeInt( rowCount );
+    output.writeInt( columns.length );
+    for ( Column column : columns ) {
+      output.writeByte( column.kind() );
+      writeBitSet( output, column.nulls );
+      column.write( output, rowCount );
+    }
+  }
+
+  /**
+   * Read a chunk previously written by {@link #write(DataOutputStream)}, starting at the buffer's position.
+   * The buffer must not be modified while the chunk is in use.
+   */
+  public static RowChunk read( RowMetaInterface rowMeta, ByteBuffer source ) throws IOException {
+    return read( rowMeta, source, new CompressionStats() );
+  }
+
+  /**
+   * @param compression records decompression of the chunk's compressed columns
+   */
+  public static RowChunk read( RowMetaInterface rowMeta, ByteBuffer source, CompressionStats compression )
+    throws IOException {
+    ByteBuffer buffer = source.slice();
+    int rowCount = buffer.getInt();
+    Column[] columns = new Column[buffer.getInt()];
+    for ( int i = 0; i < columns.length; i++ ) {
+      byte kind = buffer.get();
+      BitSet nulls = readBitSet( buffer );
+      switch ( kind ) {
+        case LONG:
+          columns[i] = new LongColumn( view( buffer, rowCount * 8 ).asLongBuffer(), nulls );
+          break;
+        case DATE:
+          columns[i] = new DateColumn( view( buffer, rowCount * 8 ).asLongBuffer(), nulls );
+          break;
+        case DOUBLE:
+          columns[i] = new DoubleColumn( view( buffer, rowCount * 8 ).asDoubleBuffer(), nulls );
+          break;
+        case BOOLEAN:
+          columns[i] = new BooleanColumn( readBitSet( buffer ), nulls );
+          break;
+        case DICTIONARY:
+          String[] dictionary = new String[buffer.getInt()];
+          for ( int j = 0; j < dictionary.length; j++ ) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get( bytes );
+            dictionary[j] = new String( bytes, Charsets.UTF_8 );
+          }
+          columns[i] = new DictionaryColumn( dictionary, view( buffer, rowCount * 4 ).asIntBuffer(), nulls );
+          break;
+        case OBJECT:
+          byte[] bytes = new byte[buffer.getInt()];
+          buffer.get( bytes );
+          ObjectInputStream input = new ObjectInputStream( new ByteArrayInputStream( bytes ) );
+          try {
+            columns[i] = new ObjectColumn( (Object[]) input.readObject(), nulls );
+          } catch ( ClassNotFoundException e ) {
+            throw new IOException( "Unable to read cached values", e );
+          } finally {
+            input.close();
+          }
+          break;
+        case COMPRESSED:
+          int length = buffer.getInt();
+          ByteBuffer compressed = view( buffer, buffer.getInt() );
+          columns[i] = new CompressedColumn( compressed, length, rowCount, nulls, compression );
+          break;
+        default:
+          throw new IOException( "Unknown column encoding: " + kind );
+      }
+    }
+    return new RowChunk( rowMeta, rowCount, columns, new ColumnStats[columns.length], compression );
+  }
+
+  /**
+   * Slice the next {@code length} bytes from the buffer and advance past them
+   */
+  private static ByteBuffer view( ByteBuffer buffer, int length ) {
+    ByteBuffer view = buffer.slice();
+    view.limit( length );
+    buffer.position( buffer.position() + length );
+    return view;
+  }
+
+  private static void writeBitSet( DataOutputStream output, BitSet bitSet ) throws IOException {
+    long[] words = bitSet == null ? new long[0] : bitSet.toLongArray();
+    output.writeInt( words.length );
+    for ( long word : words ) {
+      output.writeLong( word );
+    }
+  }
+
+  private static BitSet readBitSet( ByteBuffer buffer ) {
+    int words = buffer.getInt();
+    return BitSet.valueOf( view( buffer, words * 8 ).asLongBuffer() );
+  }
+
+  @Override public String toString() {
+    return Objects.toStringHelper( this )
+      .add( "rowCount", rowCount )
+      .add( "columns", Arrays.toString( columns ) )
+      .toString();
+  }
+
+  /**
+   * Collects rows for a single chunk. Not thread safe.
+   */
+  static final class Builder {
+    private final RowMetaInterface rowMeta;
+    private final int capacity;
+    private final ColumnBuilder[] columns;
+    private final CompressionStats compression = new CompressionStats();
+    private int rowCount = 0;
+
+    Builder( RowMetaInterface rowMeta, int capacity ) {
+      this( rowMeta, capacity, ImmutableSet.<String>of() );
+    }
+
+    /**
+     * @param compressedColumns names of string columns to compress if they have many distinct values
+     */
+    Builder( RowMetaInterface rowMeta, int capacity, Set<String> compressedColumns ) {
+      this.rowMeta = rowMeta;
+      this.capacity = capacity;
+      this.columns = new ColumnBuilder[rowMeta.size()];
+      for ( int i = 0; i < columns.length; i++ ) {
+        ValueMetaInterface valueMeta = rowMeta.getValueMeta( i );
+        columns[i] = ColumnBuilder.create( valueMeta, capacity,
+          compressedColumns.contains( valueMeta.getName() ) ? compression : null );
+      }
+    }
+
+    public RowMetaInterface getRowMeta() {
+      return rowMeta;
+    }
+
+    public boolean isFull() {
+      return rowCount >= capacity;
+    }
+
+    public int getRowCount() {
+      return rowCount;
+    }
+
+    /**
+     * Append a row. Only the first {@link RowMetaInterface#size()} values are stored.
+     */
+    public void add( Object[] row ) {
+      checkState( !isFull(), "Chunk is full" );
+      for ( int i = 0; i < columns.length; i++ ) {
+        Object value = i < row.length ? row[i] : null;
+        if ( value == null ) {
+          columns[i].nulls.set( rowCount );
+        } else if ( !columns[i].add( rowCount, value ) ) {
+          columns[i] = new ObjectColumnBuilder( columns[i], rowCount, capacity );
+          columns[i].add( rowCount, value );
+        }
+      }
+      rowCount++;
+    }
+
+    /**
+     * @return approximate heap size of the chunk built from the rows added so far
+     */
+    public long estimateSize() {
+      long size = OBJECT_OVERHEAD;
+      for ( ColumnBuilder column : columns ) {
+        size += 2 * OBJECT_OVERHEAD + ( column.nulls.isEmpty() ? 0 : rowCount / 8 ) + column.valuesSize( rowCount );
+      }
+      return size;
+    }
+
+    public RowChunk build() {
+      Column[] sealed = new Column[columns.length];
+      ColumnStats[] stats = new ColumnStats[columns.length];
+      for ( int i = 0; i < columns.length; i++ ) {
+        sealed[i] = columns[i].build( rowCount );
+        stats[i] = columns[i].stats( rowMeta.getValueMeta( i ), rowCount );
+      }
+      return new RowChunk( rowMeta, rowCount, sealed, stats, compression );
+    }
+  }
+
+  private abstract static class Column {
+    /**
+     * Null bitmap, or null if this column has no null values
+     */
+    private final BitSet nulls;
+
+    Column( BitSet nulls ) {
+      this.nulls = nulls.isEmpty() ? null : nulls;
+    }
+
+    final Object value( int row ) {
+      return nulls != null && nulls.get( row ) ? null : get( row );
+    }
+
+    final long estimateSize() {
+      return OBJECT_OVERHEAD + ( nulls == null ? 0 : OBJECT_OVERHEAD + nulls.size() / 8 ) + valuesSize();
+    }
+
+    abstract Object get( int row );
+
+    abstract byte kind();
+
+    abstract long valuesSize();
+
+    abstract void write( DataOutputStream output, int rowCount ) throws IOException;
+
+    @Override public String toString() {
+      return getClass().getSimpleName();
+    }
+  }
+
+  private static final class LongColumn extends Column {
+    private final LongBuffer values;
+
+    LongColumn( LongBuffer values, BitSet nulls ) {
+      super( nulls );
+      this.values = values;
+    }
+
+    @Override Object get( int row ) {
+      return values.get( row );
+    }
+
+    @Override byte kind() {
+      return LONG;
+    }
+
+    @Override long valuesSize() {
+      return values.isDirect() ? OBJECT_OVERHEAD : OBJECT_OVERHEAD + values.capacity() * 8L;
+    }
+
+    @Override void write( DataOutputStream output, int rowCount ) throws IOException {
+      for ( int row = 0; row < rowCount; row++ ) {
+        output.writeLong( values.get( row ) );
+      }
+    }
+  }
+
+  private static final class DoubleColumn extends Column {
+    private final DoubleBuffer values;
+
+    DoubleColumn( DoubleBuffer values, BitSet nulls ) {
+      super( nulls );
+      this.values = values;
+    }
+
+    @Override Object get( int row ) {
+      return values.get( row );
+    }
+
+    @Override byte kind() {
+      return DOUBLE;
+    }
+
+    @Override long valuesSize() {
+      return values.isDirect() ? OBJECT_OVERHEAD : OBJECT_OVERHEAD + values.capacity() * 8L;
+    }
+
+    @Override void write( DataOutputStream output, int rowCount ) throws IOException {
+      for ( int row = 0; row < rowCount; row++ ) {
+        output.writeDouble( values.get( row ) );
+      }
+    }
+  }
+
+  private static final class DateColumn extends Column {
+    private final LongBuffer values;
+
+    DateColumn( LongBuffer values, BitSet nulls ) {
+      super( nulls );
+      this.values = values;
+    }
+
+    @Override Object get( int row ) {
+      return new Date( values.get( row ) );
+    }
+
+    @Override byte kind() {
+      return DATE;
+    }
+
+    @Override long valuesSize() {
+      return values.isDirect() ? OBJECT_OVERHEAD : OBJECT_OVERHEAD + values.capacity() * 8L;
+    }
+
+    @Override void write( DataOutputStream output, int rowCount ) throws IOException {
+      for ( int row = 0; row < rowCount; row++ ) {
+        output.writeLong( values.get( row ) );
+      }
+    }
+  }
+
+  private static final class BooleanColumn extends Column {
+    private final BitSet values;
+
+    BooleanColumn( BitSet values, BitSet nulls ) {
+      super( nulls );
+      this.values = values;
+    }
+
+    @Override Object get( int row ) {
+      return values.get( row );
+    }
+
+    @Override byte kind() {
+      return BOOLEAN;
+    }
+
+    @Override long valuesSize() {
+      return OBJECT_OVERHEAD + values.size() / 8;
+    }
+
+    @Override void write( DataOutputStream output, int rowCount ) throws IOException {
+      writeBitSet( output, values );
+    }
+  }
+
+  private static final class DictionaryColumn extends Column {
+    private final String[] dictionary;
+    private final IntBuffer codes;
+
+    DictionaryColumn( String[] dictionary, IntBuffer codes, BitSet nulls ) {
+      super( nulls );
+      this.dictionary = dictionary;
+      this.codes = codes;
+    }
+
+    @Override Object get( int row ) {
+      return dictionary[codes.get( row )];
+    }
+
+    @Override byte kind() {
+      return DICTIONARY;
+    }
+
+    @Override long valuesSize() {
+      long size = OBJECT_OVERHEAD + dictionary.length * 4L;
+      for ( String value : dictionary ) {
+        size += estimateValueSize( value );
+      }
+      return size + ( codes.isDirect() ? OBJECT_OVERHEAD : OBJECT_OVERHEAD + codes.capacity() * 4L );
+    }
+
+    @Override void write( DataOutputStream output, int rowCount ) throws IOException {
+      output.writeInt( dictionary.length );
+      for ( String value : dictionary ) {
+        byte[] bytes = value.getBytes( Charsets.UTF_8 );
+        output.writeInt( bytes.length );
+        output.write( bytes );
+      }
+      for ( int row = 0; row < rowCount; row++ ) {
+        output.writeInt( codes.get( row ) );
+      }
+    }
+
+    @Override public String toString() {
+      return super.toString() + "[" + dictionary.length + "]";
+    }
+  }
+
+  private static final class CompressedColumn extends Column {
+    private final ByteBuffer compressed;
+    private final int length;
+    private final int rowCount;
+    private final CompressionStats compression;
+    private volatile SoftReference<String[]> decoded;
+
+    /**
+     * @param compressed deflated block of all values, each as its length and UTF-8 bytes
+     * @param length     size of the block once inflated
+     */
+    CompressedColumn( ByteBuffer compressed, int length, int rowCount, BitSet nulls, CompressionStats compression ) {
+      super( nulls );
+      this.compressed = compressed;
+      this.length = length;
+      this.rowCount = rowCount;
+      this.compression = compression;
+    }
+
+    @Override Object get( int row ) {
+      return values()[row];
+    }
+
+    /**
+     * Decompress all values on first access. They are kept until the heap runs low, so repeated access by row does
+     * not decompress the block again.
+     */
+    private String[] values() {
+      SoftReference<String[]> reference = decoded;
+      String[] values = reference == null ? null : reference.get();
+      if ( values == null ) {
+        long start = System.nanoTime();
+        values = inflate();
+        compression.decompressed( System.nanoTime() - start );
+        decoded = new SoftReference<String[]>( values );
+      }
+      return values;
+    }
+
+    private String[] inflate() {
+      byte[] input = new byte[compressed.remaining()];
+      compressed.duplicate().get( input );
+      byte[] block = new byte[length];
+      Inflater inflater = new Inflater();
+      try {
+        inflater.setInput( input );
+        int inflated = 0;
+        while ( inflated < length && !inflater.finished() && !inflater.needsInput() ) {
+          inflated += inflater.inflate( block, inflated, length - inflated );
+        }
+        checkState( inflated == length, "Compressed cache column is truncated" );
+      } catch ( DataFormatException e ) {
+        throw new IllegalStateException( "Unable to decompress cached values", e );
+      } finally {
+        inflater.end();
+      }
+
+      String[] values = new String[rowCount];
+      ByteBuffer buffer = ByteBuffer.wrap( block );
+      for ( int row = 0; row < rowCount; row++ ) {
+        int size = buffer.getInt();
+        values[row] = new String( block, buffer.position(), size, Charsets.UTF_8 );
+        buffer.position( buffer.position() + size );
+      }
+      return values;
+    }
+
+    @Override byte kind() {
+      return COMPRESSED;
+    }
+
+    @Override long valuesSize() {
+      // Decompressed values are softly reachable, so they are not counted
+      return compressed.isDirect() ? OBJECT_OVERHEAD : OBJECT_OVERHEAD + compressed.remaining();
+    }
+
+    @Override void write( DataOutputStream output, int rowCount ) throws IOException {
+      byte[] bytes = new byte[compressed.remaining()];
+      compressed.duplicate().get( bytes );
+      output.writeInt( length );
+      output.writeInt( bytes.length );
+      output.write( bytes );
+    }
+
+    @Override public String toString() {
+      return super.toString() + "[" + compressed.remaining() + "/" + length + "]";
+    }
+  }
+
+  private static final class ObjectColumn extends Column {
+    private final Object[] values;
+
+    ObjectColumn( Object[] values, BitSet nulls ) {
+      super( nulls );
+      this.values = values;
+    }
+
+    @Override Object get( int row ) {
+      return values[row];
+    }
+
+    @Override byte kind() {
+      return OBJECT;
+    }
+
+    @Override long valuesSize() {
+      long size = OBJECT_OVERHEAD + values.length * 4L;
+      for ( Object value : values ) {
+        size += estimateValueSize( value );
+      }
+      return size;
+    }
+
+    @Override void write( DataOutputStream output, int rowCount ) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream objectOutput = new ObjectOutputStream( bytes );
+      objectOutput.writeObject( values );
+      objectOutput.close();
+      output.writeInt( bytes.size() );
+      bytes.writeTo( output );
+    }
+  }
+
+  /**
+   * Approximate heap size of a boxed value
+   */
+  private static long estimateValueSize( Object value ) {
+    if ( value == null ) {
+      return 0;
+    } else if ( value instanceof String ) {
+      return 2 * OBJECT_OVERHEAD + 8 + ( (String) value ).length() * 2L;
+    } else if ( value instanceof byte[] ) {
+      return OBJECT_OVERHEAD + ( (byte[]) value ).length;
+    } else {
+      return 2 * OBJECT_OVERHEAD;
+    }
+  }
+
+  private abstract static class ColumnBuilder {
+    final BitSet nulls = new BitSet();
+
+    /**
+     * @param compression statistics to record compression in, or null if the column should not be compressed
+     */
+    static ColumnBuilder create( ValueMetaInterface valueMeta, int capacity, CompressionStats compression ) {
+      if ( valueMeta.getStorageType() != ValueMetaInterface.STORAGE_TYPE_NORMAL ) {
+        return new ObjectColumnBuilder( capacity );
+      }
+      switch ( valueMeta.getType() ) {
+        case ValueMetaInterface.TYPE_INTEGER:
+          return new LongColumnBuilder( capacity );
+        case ValueMetaInterface.TYPE_NUMBER:
+          return new DoubleColumnBuilder( capacity );
+        case ValueMetaInterface.TYPE_DATE:
+          return new DateColumnBuilder( capacity );
+        case ValueMetaInterface.TYPE_BOOLEAN:
+          return new BooleanColumnBuilder();
+        case ValueMetaInterface.TYPE_STRING:
+          return new DictionaryColumnBuilder( capacity, compression );
+        default:
+          return new ObjectColumnBuilder( capacity );
+      }
+    }
+
+    /**
+     * @return false if this builder can not store the value
+     */
+    abstract boolean add( int row, Object value );
+
+    /**
+     * @return a value previously added, for conversion to a generic column
+     */
+    abstract Object get( int row );
+
+    /**
+     * @return approximate heap size of the values once built
+     */
+    abstract long valuesSize( int rowCount );
+
+    /**
+     * Null count and, where the ordering matches {@link ValueMetaInterface#compare}, the value range
+     */
+    ColumnStats stats( ValueMetaInterface valueMeta, int rowCount ) {
+      return new ColumnStats( null, null, nulls.cardinality() );
+    }
+
+    /**
+     * @return index of the first non-null value not before {@code row}, or -1
+     */
+    final int nextValue( int row, int rowCount ) {
+      int next = nulls.nextClearBit( row );
+      return next < rowCount ? next : -1;
+    }
+
+    abstract Column build( int rowCount );
+  }
+
+  private static final class LongColumnBuilder extends ColumnBuilder {
+    private final long[] values;
+
+    LongColumnBuilder( int capacity ) {
+      values = new long[capacity];
+    }
+
+    @Override boolean add( int row, Object value ) {
+      if ( value.getClass() != Long.class ) {
+        return false;
+      }
+      values[row] = (Long) value;
+      return true;
+    }
+
+    @Override Object get( int row ) {
+      return values[row];
+    }
+
+    @Override long valuesSize( int rowCount ) {
+      return OBJECT_OVERHEAD + rowCount * 8L;
+    }
+
+    @Override ColumnStats stats( ValueMetaInterface valueMeta, int rowCount ) {
+      int row = nextValue( 0, rowCount );
+      if ( row < 0 || valueMeta.isSortedDescending() ) {
+        return super.stats( valueMeta, rowCount );
+      }
+      long min = values[row], max = values[row];
+      for ( ; row >= 0; row = nextValue( row + 1, rowCount ) ) {
+        min = Math.min( min, values[row] );
+        max = Math.max( max, values[row] );
+      }
+      return new ColumnStats( min, max, nulls.cardinality() );
+    }
+
+    @Override Column build( int rowCount ) {
+      return new LongColumn( LongBuffer.wrap( Arrays.copyOf( values, rowCount ) ), nulls );
+    }
+  }
+
+  private static final class DoubleColumnBuilder extends ColumnBuilder {
+    private final double[] values;
+
+    DoubleColumnBuilder( int capacity ) {
+      values = new double[capacity];
+    }
+
+    @Override boolean add( int row, Object value ) {
+      if ( value.getClass() != Double.class ) {
+        return false;
+      }
+      values[row] = (Double) value;
+      return true;
+    }
+
+    @Override Object get( int row ) {
+      return values[row];
+    }
+
+    @Override long valuesSize( int rowCount ) {
+      return OBJECT_OVERHEAD + rowCount * 8L;
+    }
+
+    @Override ColumnStats stats( ValueMetaInterface valueMeta, int rowCount ) {
+      int row = nextValue( 0, rowCount );
+      if ( row < 0 || valueMeta.isSortedDescending() ) {
+        return super.stats( valueMeta, rowCount );
+      }
+      double min = values[row], max = values[row];
+      for ( ; row >= 0; row = nextValue( row + 1, rowCount ) ) {
+        min = Double.compare( values[row], min ) < 0 ? values[row] : min;
+        max = Double.compare( values[row], max ) > 0 ? values[row] : max;
+      }
+      return new ColumnStats( min, max, nulls.cardinality() );
+    }
+
+    @Override Column build( int rowCount ) {
+      return new DoubleColumn( DoubleBuffer.wrap( Arrays.copyOf( values, rowCount ) ), nulls );
+    }
+  }
+
+  private static final class DateColumnBuilder extends ColumnBuilder {
+    private final long[] values;
+
+    DateColumnBuilder( int capacity ) {
+      values = new long[capacity];
+    }
+
+    @Override boolean add( int row, Object value ) {
+      // Subclasses (e.g. java.sql.Timestamp) carry more than milliseconds
+      if ( value.getClass() != Date.class ) {
+        return false;
+      }
+      values[row] = ( (Date) value ).getTime();
+      return true;
+    }
+
+    @Override Object get( int row ) {
+      return new Date( values[row] );
+    }
+
+    @Override long valuesSize( int rowCount ) {
+      return OBJECT_OVERHEAD + rowCount * 8L;
+    }
+
+    @Override ColumnStats stats( ValueMetaInterface valueMeta, int rowCount ) {
+      int row = nextValue( 0, rowCount );
+      if ( row < 0 || valueMeta.isSortedDescending() ) {
+        return super.stats( valueMeta, rowCount );
+      }
+      long min = values[row], max = values[row];
+      for ( ; row >= 0; row = nextValue( row + 1, rowCount ) ) {
+        min = Math.min( min, values[row] );
+        max = Math.max( max, values[row] );
+      }
+      return new ColumnStats( new Date( min ), new Date( max ), nulls.cardinality() );
+    }
+
+    @Override Column build( int rowCount ) {
+      return new DateColumn( LongBuffer.wrap( Arrays.copyOf( values, rowCount ) ), nulls );
+    }
+  }
+
+  private static final class BooleanColumnBuilder extends ColumnBuilder {
+    private final BitSet values = new BitSet();
+
+    @Override boolean add( int row, Object value ) {
+      if ( value.getClass() != Boolean.class ) {
+        return false;
+      }
+      values.set( row, (Boolean) value );
+      return true;
+    }
+
+    @Override Object get( int row ) {
+      return values.get( row );
+    }
+
+    @Override long valuesSize( int rowCount ) {
+      return OBJECT_OVERHEAD + rowCount / 8;
+    }
+
+    @Override Column build( int rowCount ) {
+      return new BooleanColumn( values, nulls );
+    }
+  }
+
+  private static final class DictionaryColumnBuilder extends ColumnBuilder {
+    private final Map<String, Integer> index = Maps.newHashMap();
+    private final List<String> dictionary = Lists.newArrayList();
+    private final int[] codes;
+    private final CompressionStats compression;
+    private long dictionarySize = 0;
+
+    DictionaryColumnBuilder( int capacity, CompressionStats compression ) {
+      this.codes = new int[capacity];
+      this.compression = compression;
+    }
+
+    @Override boolean add( int row, Object value ) {
+      if ( value.getClass() != String.class ) {
+        return false;
+      }
+      Integer code = index.get( value );
+      if ( code == null ) {
+        code = dictionary.size();
+        index.put( (String) value, code );
+        dictionary.add( (String) value );
+        dictionarySize += 4 + estimateValueSize( value );
+      }
+      codes[row] = code;
+      return true;
+    }
+
+    @Override Object get( int row ) {
+      return dictionary.get( codes[row] );
+    }
+
+    @Override long valuesSize( int rowCount ) {
+      return 2 * OBJECT_OVERHEAD + dictionarySize + rowCount * 4L;
+    }
+
+    @Override ColumnStats stats( ValueMetaInterface valueMeta, int rowCount ) {
+      if ( dictionary.isEmpty() ) {
+        return super.stats( valueMeta, rowCount );
+      }
+      // Strings may be compared case-insensitively or with a collator, so use the value meta's ordering
+      String min = dictionary.get( 0 ), max = min;
+      try {
+        for ( String value : dictionary ) {
+          min = valueMeta.compare( value, min ) < 0 ? value : min;
+          max = valueMeta.compare( value, max ) > 0 ? value : max;
+        }
+      } catch ( KettleValueException e ) {
+        return super.stats( valueMeta, rowCount );
+      }
+      return new ColumnStats( min, max, nulls.cardinality() );
+    }
+
+    @Override Column build( int rowCount ) {
+      if ( compression != null && dictionary.size() * DICTIONARY_MAX_CARDINALITY > rowCount ) {
+        return compress( rowCount );
+      }
+      return new DictionaryColumn( dictionary.toArray( new String[dictionary.size()] ),
+        IntBuffer.wrap( Arrays.copyOf( codes, rowCount ) ), nulls );
+    }
+
+    private Column compress( int rowCount ) {
+      long start = System.nanoTime();
+      byte[][] encoded = new byte[dictionary.size()][];
+      for ( int code = 0; code < encoded.length; code++ ) {
+        encoded[code] = dictionary.get( code ).getBytes( Charsets.UTF_8 );
+      }
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+      int length;
+      try {
+        DataOutputStream output = new DataOutputStream( new DeflaterOutputStream( bytes, deflater ) );
+        for ( int row = 0; row < rowCount; row++ ) {
+          byte[] value = nulls.get( row ) ? new byte[0] : encoded[codes[row]];
+          output.writeInt( value.length );
+          output.write( value );
+        }
+        output.close();
+        length = output.size();
+      } catch ( IOException e ) {
+        throw new IllegalStateException( "Unable to compress cached values", e );
+      } finally {
+        deflater.end();
+      }
+      compression.compressed( length, bytes.size(), System.nanoTime() - start );
+      return new CompressedColumn( ByteBuffer.wrap( bytes.toByteArray() ), length, rowCount, nulls, compression );
+    }
+  }
+
+  private static final class ObjectColumnBuilder extends ColumnBuilder {
+    private final Object[] values;
+    private long size = 0;
+
+    ObjectColumnBuilder( int capacity ) {
+      values = new Object[capacity];
+    }
+
+    /**
+     * Convert a typed column after encountering a value it could not store
+     */
+    ObjectColumnBuilder( ColumnBuilder typed, int rowCount, int capacity ) {
+      this( capacity );
+      nulls.or( typed.nulls );
+      for ( int row = 0; row < rowCount; row++ ) {
+        values[row] = nulls.get( row ) ? null : typed.get( row );
+        size += estimateValueSize( values[row] );
+      }
+    }
+
+    @Override boolean add( int row, Object value ) {
+      values[row] = value;
+      size += estimateValueSize( value );
+      return true;
+    }
+
+    @Override Object get( int row ) {
+      return values[row];
+    }
+
+    @Override long valuesSize( int rowCount ) {
+      return OBJECT_OVERHEAD + rowCount * 4L + size;
+    }
+
+    @Override Column build( int rowCount ) {
+      return new ObjectColumn( Arrays.copyOf( values, rowCount ), nulls );
+    }
+  }
+}
@@ -24,20 +24,31 @@ package org.pentaho.di.trans.dataservice.optimization.cache;
 
 import com.google.common.base.Function;
 import com.google.common.base.Optional;
+import com.google.common.base.Splitter;
+import com.google.common.base.Stopwatch;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import org.pentaho.caching.api.PentahoCacheTemplateConfiguration;
+import com.google.common.util.concurrent.SettableFuture;
+import org.pentaho.di.core.Condition;
 import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.sql.SQL;
 import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.dataservice.DataServiceExecutor;
 import org.pentaho.di.trans.dataservice.DataServiceMeta;
 import org.pentaho.di.trans.dataservice.optimization.OptimizationImpactInfo;
 import org.pentaho.di.trans.dataservice.optimization.PushDownOptimizationMeta;
 import org.pentaho.di.trans.dataservice.optimization.PushDownType;
+import org.pentaho.di.trans.dataservice.serialization.TransMetaVersion;
 import org.pentaho.di.trans.step.StepInterface;
+import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.steps.memgroupby.MemoryGroupByMeta;
+import org.pentaho.di.trans.steps.sort.SortRowsMeta;
 import org.pentaho.metastore.persist.MetaStoreAttribute;
 
 import javax.cache.Cache;
@@ -45,10 +56,18 @@ import javax.cache.configuration.CompleteConfiguration;
 import javax.cache.expiry.Duration;
 import javax.cache.expiry.ExpiryPolicy;
 import java.text.MessageFormat;
+import java.util.AbstractMap;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Predicates.equalTo;
 import static com.google.common.base.Predicates.instanceOf;
 import static com.google.common.base.Predicates.not;
 import static com.google.common.base.Predicates.notNull;
@@ -63,6 +82,23 @@ public class ServiceCache implements PushDownType {
   private final ServiceCacheFactory factory;
   public static final String SERVICE_CACHE_TEMPLATE_NAME = "template_name";
   public static final String SERVICE_CACHE_TTL = "time_to_live";
+  public static final String SERVICE_CACHE_REFRESH_AHEAD = "refresh_ahead";
+  public static final String SERVICE_CACHE_GRACE_PERIOD = "grace_period";
+  public static final String SERVICE_CACHE_WARM_UP_QUERIES = "warm_up_queries";
+  public static final String SERVICE_CACHE_WARM_UP_SCHEDULE = "warm_up_schedule";
+  public static final String SERVICE_CACHE_WARM_UP_ON_STARTUP = "warm_up_on_startup";
+  public static final String SERVICE_CACHE_WARM_UP_AFTER_RESET = "warm_up_after_reset";
+  public static final String SERVICE_CACHE_INDEXED_COLUMNS = "indexed_columns";
+  public static final String SERVICE_CACHE_HIGH_WATER_MARK = "high_water_mark";
+  public static final String SERVICE_CACHE_COMPRESSED_COLUMNS = "compressed_columns";
+  /**
+   * Parameter passed to the service transformation by incremental refreshes, see {@link IncrementalRefresh}
+   */
+  public static final String HIGH_WATER_MARK_PARAMETER = "DATA_SERVICE_HIGH_WATER_MARK";
+  /**
+   * With refresh ahead enabled, entries are refreshed once they reach this fraction of their time to live
+   */
+  public static final double REFRESH_AHEAD_RATIO = 0.8;
 
   @MetaStoreAttribute( key = SERVICE_CACHE_TEMPLATE_NAME )
   private String templateName = DEFAULT_TEMPLATE;
@@ -70,6 +106,51 @@ public class ServiceCache implements PushDownType {
   @MetaStoreAttribute( key = SERVICE_CACHE_TTL )
   private String timeToLive;
 
+  @MetaStoreAttribute( key = SERVICE_CACHE_REFRESH_AHEAD )
+  private boolean refreshAhead = false;
+
+  @MetaStoreAttribute( key = SERVICE_CACHE_GRACE_PERIOD )
+  private String gracePeriod;
+
+  /**
+   * Queries run by {@link CacheWarmUp}, one per line
+   */
+  @MetaStoreAttribute( key = SERVICE_CACHE_WARM_UP_QUERIES )
+  private String warmUpQueries;
+
+  /**
+   * Cron expression, see {@link CronSchedule}
+   */
+  @MetaStoreAttribute( key = SERVICE_CACHE_WARM_UP_SCHEDULE )
+  private String warmUpSchedule;
+
+  @MetaStoreAttribute( key = SERVICE_CACHE_WARM_UP_ON_STARTUP )
+  private boolean warmUpOnStartup = false;
+
+  @MetaStoreAttribute( key = SERVICE_CACHE_WARM_UP_AFTER_RESET )
+  private boolean warmUpAfterReset = false;
+
+  /**
+   * Comma separated columns to index for equality lookups. Other columns are indexed once queries keep looking
+   * them up, see {@link CachedService#getIndex}.
+   */
+  @MetaStoreAttribute( key = SERVICE_CACHE_INDEXED_COLUMNS )
+  private String indexedColumns;
+
+  /**
+   * Field that only grows as rows are appended to the service's source, such as an id or a timestamp. Refreshes then
+   * only fetch rows beyond the greatest cached value, see {@link IncrementalRefresh}.
+   */
+  @MetaStoreAttribute( key = SERVICE_CACHE_HIGH_WATER_MARK )
+  private String highWaterMark;
+
+  /**
+   * Comma separated string columns to compress, such as descriptions or documents. Columns with few distinct values
+   * stay dictionary encoded, see {@link RowChunk}.
+   */
+  @MetaStoreAttribute( key = SERVICE_CACHE_COMPRESSED_COLUMNS )
+  private String compressedColumns;
+
   public ServiceCache( ServiceCacheFactory factory ) {
     this.factory = factory;
   }
@@ -79,62 +160,637 @@ public class ServiceCache implements PushDownType {
   }
 
   @Override public boolean activate( final DataServiceExecutor executor, StepInterface stepInterface ) {
-    final LogChannelInterface logChannel = executor.getGenTrans().getLogChannel();
-
-    // Check for any cache entries that may answer this query
-    for ( CachedService availableCache : getAvailableCache( executor ).values() ) {
-      try {
-        ListenableFuture<Integer> replay = factory.createCachedServiceLoader( availableCache ).replay( executor );
-        Futures.addCallback( replay, new FutureCallback<Integer>() {
-          @Override public void onSuccess( Integer rowCount ) {
-            logChannel.logBasic( "Service Transformation successfully replayed " + rowCount + " rows from cache" );
-          }
+    // Background refreshes always run the service transformation and replace the existing entry
+    final Optional<SettableFuture<CachedService>> refresh = factory.getRefresh( executor );
+    final SettableFuture<CachedService> population = refresh.or( SettableFuture.<CachedService>create() );
+    // Incremental refreshes append to the entry they refresh, under its key
+    final Optional<IncrementalRefresh> incremental = refresh.isPresent() ? factory.getIncrementalRefresh( executor )
+      : Optional.<IncrementalRefresh>absent();
+    Optional<CachedService> partial = Optional.absent();
 
-          @Override public void onFailure( Throwable t ) {
-            logChannel.logError( "Cache failed to replay service transformation", t );
-          }
-        }, factory.getExecutorService() );
+    if ( !refresh.isPresent() ) {
+      CachedService.CacheKey rootKey = createRootKey( executor ).withoutOrder();
+      factory.getAdmissionPolicy( this, executor.getServiceName() )
+        .record( executor.getServiceName(), rootKey.getParameters(), rootKey.getWhereClause().orNull() );
+      if ( replayCached( executor, population ) ) {
         return true;
-      } catch ( Throwable e ) {
-        logChannel.logError( "Unable to replay from cache", e );
       }
+
+      // A partial entry of this query may hold its first rows, replay them ahead of the service transformation
+      partial = resume( executor );
+      if ( !partial.isPresent() ) {
+        factory.getStatistics().miss( executor.getServiceName() );
+      }
+    }
+
+    try {
+      observe( executor, population, refresh.isPresent(), incremental, partial );
+    } catch ( Throwable t ) {
+      // Release the claim, queries waiting for this population will run the service transformation themselves
+      population.setException( t );
+      executor.getGenTrans().getLogChannel().logError( "Cache failed to observe service transformation", t );
+    }
+    return false;
+  }
+
+  /**
+   * Answer a query from cached rows, or from the rows of an identical query populating the cache
+   *
+   * @param population claimed for this query if no identical query is populating the cache
+   * @return true if the query will be answered from the cache
+   */
+  private boolean replayCached( DataServiceExecutor executor, SettableFuture<CachedService> population ) {
+    restoreSnapshots( executor );
+
+    // Aggregate queries may be answered by a rollup, without replaying every row
+    if ( replayRollup( executor ) ) {
+      return true;
+    }
+
+    // Check for any cache entries that may answer this query
+    Map<CachedService.CacheKey, CachedService> available = getAvailableCache( executor );
+    if ( replay( executor, available.values() ) ) {
+      for ( Map.Entry<CachedService.CacheKey, CachedService> entry : available.entrySet() ) {
+        refreshIfStale( executor, entry.getKey(), entry.getValue() );
+        buildRollup( executor, entry.getValue() );
+      }
+      return true;
     }
 
+    // Only one of several identical queries should run the service transformation, the others replay its results
+    CachedService.CacheKey populationKey = createRootKey( executor ).withoutOrder();
+    Optional<ListenableFuture<CachedService>> inProgress =
+      factory.claimPopulation( executor.getServiceName(), populationKey, population );
+    return inProgress.isPresent()
+      && replay( executor, awaitPopulation( executor, populationKey, inProgress.get() ).asSet() );
+  }
+
+  /**
+   * Let the service transformation run, caching its rows once it finishes. The population is completed either way.
+   *
+   * @param refresh true if this query refreshes an existing entry in the background
+   * @param partial entry being resumed, see {@link #resume}
+   */
+  private void observe( final DataServiceExecutor executor, final SettableFuture<CachedService> population,
+                        final boolean refresh, final Optional<IncrementalRefresh> incremental,
+                        Optional<CachedService> partial ) {
+    final LogChannelInterface logChannel = executor.getGenTrans().getLogChannel();
+    // Refreshed and resumed entries were already admitted to the cache
+    final boolean admission = !refresh && !partial.isPresent();
+
     // Allow service transformation to run, observe rows
-    Futures.addCallback( factory.createObserver( executor ).install(), new FutureCallback<CachedService>() {
+    final Stopwatch populationTime = Stopwatch.createStarted();
+    ServiceObserver observer = incremental.isPresent() ? factory.createObserver( executor, this, incremental.get() )
+      : partial.isPresent() ? factory.createObserver( executor, this, partial.get() )
+      : factory.createObserver( executor, this );
+    Futures.addCallback( observer.install(), new FutureCallback<CachedService>() {
       @Override public void onSuccess( CachedService result ) {
-        Cache<CachedService.CacheKey, CachedService>
-            cache =
-            factory.getCache( ServiceCache.this, executor.getServiceName() );
-        CachedService.CacheKey key = createRootKey( executor );
-        // If result set is complete, order is not important
-        if ( result.isComplete() ) {
-          key = key.withoutOrder();
+        population.set( result );
+        long populationMillis = populationTime.elapsed( TimeUnit.MILLISECONDS );
+        factory.getStatistics().populated( executor.getServiceName(), result.isComplete(), populationMillis );
+        if ( admission && !admit( executor, populationMillis ) ) {
+          logChannel.logDetailed( "Service Transformation results not cached, not expected to be reused" );
+          return;
+        }
+        try {
+          cache( executor, result, refresh, incremental );
+        } catch ( Throwable t ) {
+          onFailure( t );
         }
-        if ( cache.putIfAbsent( key, result ) ) {
-          logChannel.logBasic( "Service Transformation results cached", key );
+      }
+
+      @Override public void onFailure( Throwable t ) {
+        population.setException( t );
+        if ( t instanceof ServiceObserver.LimitExceededException ) {
+          factory.getBudget().abandoned( executor.getServiceName() );
+          logChannel.logBasic( t.getMessage().trim() );
+        } else if ( t instanceof IncrementalRefresh.NullMarkException && incremental.isPresent() ) {
+          logChannel.logBasic( t.getMessage().trim() );
+          refreshInFull( executor, incremental.get() );
         } else {
-          try {
-            CachedService existing = checkNotNull( cache.get( key ) );
-            // If the existing result set can't answer this query, replace it
-            if ( !existing.answersQuery( executor ) && cache.replace( key, existing, result ) ) {
-              logChannel.logBasic( "Service Transformation cache updated", key );
-            } else {
-              logChannel.logDetailed( "Service Transformation cache was not updated", key );
-            }
-          } catch ( Throwable t ) {
-            onFailure( t );
-          }
+          logChannel.logError( "Cache failed to observe service transformation", t );
         }
       }
+    }, factory.getExecutorService() );
+  }
+
+  /**
+   * @return true if the admission policy expects the rows of this query to be reused
+   */
+  private boolean admit( DataServiceExecutor executor, long populationMillis ) {
+    CachedService.CacheKey rootKey = createRootKey( executor ).withoutOrder();
+    boolean admitted = factory.getAdmissionPolicy( this, executor.getServiceName() ).admit(
+      executor.getServiceName(), rootKey.getParameters(), rootKey.getWhereClause().orNull(), populationMillis );
+    factory.getStatistics().admission( executor.getServiceName(), admitted );
+    return admitted;
+  }
+
+  /**
+   * Add the rows of the service transformation to the cache, replacing an entry that can not answer this query
+   *
+   * @param refresh     true if the rows refresh the existing entry
+   * @param incremental if present, the rows extend the entry under its key
+   */
+  private void cache( DataServiceExecutor executor, CachedService result, boolean refresh,
+                      Optional<IncrementalRefresh> incremental ) {
+    LogChannelInterface logChannel = executor.getGenTrans().getLogChannel();
+    Cache<CachedService.CacheKey, CachedService> cache = factory.getCache( this, executor.getServiceName() );
+    CachedService.CacheKey key = incremental.isPresent() ? incremental.get().getKey() : createRootKey( executor );
+    // If result set is complete, order is not important
+    if ( result.isComplete() ) {
+      key = key.withoutOrder();
+      if ( refresh ) {
+        invalidateRollups( executor, cache, key );
+      }
+      // Incremental refresh queries are keyed by their high-water mark, a rollup of theirs would never be found.
+      // Later aggregate queries build rollups of the refreshed entry under their own key.
+      if ( !incremental.isPresent() ) {
+        buildRollup( executor, result );
+      }
+    }
+    if ( cache.putIfAbsent( key, result ) ) {
+      logChannel.logBasic( "Service Transformation results cached", key );
+      if ( register( executor, key, result ) ) {
+        saveSnapshot( executor, key, result );
+      }
+      return;
+    }
+    CachedService existing = checkNotNull( cache.get( key ) );
+    // If the existing result set is being refreshed, can't answer this query, or was evicted from storage, replace it
+    if ( ( refresh || existing.isEvicted() || !existing.answersQuery( executor ) )
+      && cache.replace( key, existing, result ) ) {
+      logChannel.logBasic( "Service Transformation cache updated", key );
+      if ( register( executor, key, result ) ) {
+        saveSnapshot( executor, key, result );
+      }
+    } else {
+      logChannel.logDetailed( "Service Transformation cache was not updated", key );
+    }
+  }
+
+  /**
+   * Start refreshing an entry in the background if it is close to, or past, its time to live.
+   * The refresh re-runs this query, so only entries keyed by this query are refreshed.
+   */
+  private void refreshIfStale( final DataServiceExecutor executor, CachedService.CacheKey key,
+                               CachedService cachedService ) {
+    CachedService.CacheKey rootKey = createRootKey( executor );
+    if ( !isRefreshAhead() || !isStale( cachedService ) || !key.equals( cachedService.isComplete()
+      ? rootKey.withoutOrder() : rootKey ) ) {
+      return;
+    }
+    SettableFuture<CachedService> population = SettableFuture.create();
+    if ( factory.claimPopulation( executor.getServiceName(), rootKey.withoutOrder(), population ).isPresent() ) {
+      // Already refreshing
+      return;
+    }
+    // Entries of append-only services only fetch the rows after their high-water mark
+    refresh( executor, key, cachedService, population,
+      IncrementalRefresh.create( key, cachedService, getHighWaterMark() ) );
+  }
+
+  /**
+   * Refresh an entry in full after its incremental refresh met a row without a high-water mark value
+   *
+   * @param executor query of the failed incremental refresh
+   */
+  private void refreshInFull( DataServiceExecutor executor, IncrementalRefresh incremental ) {
+    String serviceName = executor.getServiceName();
+    CachedService.CacheKey key = incremental.getKey();
+    SettableFuture<CachedService> population = SettableFuture.create();
+    if ( factory.claimPopulation( serviceName, key, population ).isPresent()
+      || refresh( executor, key, incremental.getBase(), population, Optional.<IncrementalRefresh>absent() ) ) {
+      return;
+    }
+    // A later refresh would be incremental again, drop the entry so the next query populates it in full
+    for ( Cache<CachedService.CacheKey, CachedService> cache : factory.getCache( serviceName ).asSet() ) {
+      if ( cache.remove( key, incremental.getBase() ) ) {
+        factory.getBudget().remove( serviceName, key );
+      }
+    }
+  }
+
+  /**
+   * Re-run a query in the background to refresh an entry
+   *
+   * @param population claimed population of the entry, completed once refreshed or if the refresh is postponed
+   * @return false if the refresh was postponed
+   */
+  private boolean refresh( DataServiceExecutor executor, CachedService.CacheKey key, CachedService cachedService,
+                           SettableFuture<CachedService> population, Optional<IncrementalRefresh> incremental ) {
+    LogChannelInterface logChannel = executor.getGenTrans().getLogChannel();
+    final String query = executor.getSql().getSqlString();
+    final DataServiceMeta service = executor.getService();
+    // A full refresh after an incremental one does not pass on its mark
+    final Map<String, String> parameters = incremental.isPresent()
+      ? incremental.get().getParameters( executor.getParameters() )
+      : ImmutableMap.copyOf(
+        Maps.filterKeys( executor.getParameters(), not( equalTo( HIGH_WATER_MARK_PARAMETER ) ) ) );
+    Callable<DataServiceExecutor> refreshQuery = new Callable<DataServiceExecutor>() {
+      @Override public DataServiceExecutor call() throws Exception {
+        return new DataServiceExecutor.Builder( new SQL( query ), service ).parameters( parameters ).build();
+      }
+    };
+    boolean submitted = incremental.isPresent() ? factory.submitRefresh( refreshQuery, population, incremental )
+      : factory.submitRefresh( refreshQuery, population );
+    if ( submitted ) {
+      logChannel.logBasic( incremental.isPresent() ? "Refreshing service cache in the background, " + incremental.get()
+        : "Refreshing service cache in the background", key );
+    } else {
+      // Release the claim, a later query will try again
+      population.set( cachedService );
+      logChannel.logDetailed( "Too many service cache refreshes running, refresh postponed", key );
+    }
+    return submitted;
+  }
+
+  private boolean replay( DataServiceExecutor executor, Iterable<CachedService> available ) {
+    LogChannelInterface logChannel = executor.getGenTrans().getLogChannel();
+    for ( CachedService availableCache : available ) {
+      try {
+        Stopwatch replayTime = Stopwatch.createStarted();
+        ListenableFuture<Integer> replay = factory.createCachedServiceLoader( availableCache, this ).replay( executor );
+        factory.getStatistics().hit( executor.getServiceName(), availableCache.isComplete() );
+        trackReplay( executor, availableCache, replay, replayTime );
+        return true;
+      } catch ( Throwable e ) {
+        logChannel.logError( "Unable to replay from cache", e );
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Resume a partial entry of this query that holds too few rows to answer it. Its rows are replayed while the
+   * service transformation catches up, the rows after them are then appended to the entry. Only services writing
+   * their rows in a stable order are resumed, see {@link #isOrdered}.
+   *
+   * @return partial entry being resumed, or absent if there is none
+   */
+  private Optional<CachedService> resume( DataServiceExecutor executor ) {
+    Cache<CachedService.CacheKey, CachedService> cache = maybeInvalidateCache( executor );
+    CachedService partial = cache == null ? null : getAvailable( executor, cache, createRootKey( executor ) );
+    if ( partial == null || partial.isComplete() || partial.getRowCount() == 0 ) {
+      return Optional.absent();
+    }
+    LogChannelInterface logChannel = executor.getGenTrans().getLogChannel();
+    if ( !isOrdered( executor.getServiceTransMeta(), executor.getService().getStepname() ) ) {
+      logChannel.logDetailed( "Service rows are not sorted, partial cache entry can not be resumed" );
+      return Optional.absent();
+    }
+    try {
+      Stopwatch replayTime = Stopwatch.createStarted();
+      ListenableFuture<Integer> replay = factory.createCachedServiceLoader( partial, this ).resume( executor );
+      factory.getStatistics().hit( executor.getServiceName(), false );
+      logChannel.logBasic( "Resuming Service Transformation after " + partial.getRowCount() + " cached rows" );
+      trackReplay( executor, partial, replay, replayTime );
+      return Optional.of( partial );
+    } catch ( Throwable e ) {
+      logChannel.logError( "Unable to resume from cache", e );
+      return Optional.absent();
+    }
+  }
+
+  /**
+   * Skipping the rows of a partial entry is only safe if the service step writes the same rows first on every run.
+   * That holds when they are sorted on their way to it, passing through a single copy of each step.
+   */
+  static boolean isOrdered( TransMeta serviceTransMeta, String serviceStepName ) {
+    StepMeta stepMeta = serviceTransMeta.findStep( serviceStepName );
+    while ( stepMeta != null && stepMeta.getCopies() == 1 ) {
+      if ( stepMeta.getStepMetaInterface() instanceof SortRowsMeta ) {
+        return true;
+      }
+      List<StepMeta> previousSteps = serviceTransMeta.findPreviousSteps( stepMeta );
+      stepMeta = previousSteps.size() == 1 ? previousSteps.get( 0 ) : null;
+    }
+    return false;
+  }
+
+  private void trackReplay( DataServiceExecutor executor, final CachedService cachedService,
+                            ListenableFuture<Integer> replay, final Stopwatch replayTime ) {
+    final LogChannelInterface logChannel = executor.getGenTrans().getLogChannel();
+    final String serviceName = executor.getServiceName();
+    Futures.addCallback( replay, new FutureCallback<Integer>() {
+      @Override public void onSuccess( Integer rowCount ) {
+        logChannel.logBasic( "Service Transformation successfully replayed " + rowCount + " rows from cache" );
+        factory.getStatistics().replayed( serviceName, rowCount, replayTime.elapsed( TimeUnit.MILLISECONDS ) );
+        reweigh( logChannel, serviceName, cachedService );
+      }
 
       @Override public void onFailure( Throwable t ) {
-        logChannel.logError( "Cache failed to observe service transformation", t );
+        logChannel.logError( "Cache failed to replay service transformation", t );
+        reweigh( logChannel, serviceName, cachedService );
       }
     }, factory.getExecutorService() );
+  }
+
+  /**
+   * Answer an aggregate query by re-aggregating a cached rollup with the same or more group and measure fields
+   *
+   * @return true if the query will be answered from a rollup
+   */
+  private boolean replayRollup( DataServiceExecutor executor ) {
+    Optional<StepMeta> groupStep = findGroupStep( executor );
+    if ( !groupStep.isPresent() ) {
+      return false;
+    }
+    MemoryGroupByMeta groupBy = (MemoryGroupByMeta) groupStep.get().getStepMetaInterface();
+    Optional<CachedRollup> shape = CachedRollup.forQuery( groupBy );
+    Cache<CachedService.CacheKey, CachedService> cache = maybeInvalidateCache( executor );
+    if ( !shape.isPresent() || cache == null ) {
+      return false;
+    }
+
+    LogChannelInterface logChannel = executor.getGenTrans().getLogChannel();
+    CachedService.CacheKey baseKey = CachedService.CacheKey.create( executor ).withoutOrder();
+    for ( Map.Entry<CachedService.CacheKey, CachedService> entry : getRollup( executor, cache, baseKey,
+      shape.get() ).asSet() ) {
+      CachedService cachedRollup = entry.getValue();
+      try {
+        Stopwatch replayTime = Stopwatch.createStarted();
+        RowMetaInterface outputMeta = executor.getGenTransMeta().getStepFields( groupStep.get() );
+        Optional<List<Object[]>> rows;
+        cachedRollup.getRows().pin();
+        try {
+          rows = entry.getKey().getRollup().get().aggregate( cachedRollup.getRows(), groupBy, outputMeta );
+        } finally {
+          cachedRollup.getRows().unpin();
+        }
+        if ( !rows.isPresent() ) {
+          logChannel.logDetailed( "Cached rollup does not answer this query", entry.getKey() );
+          return false;
+        }
+        ListenableFuture<Integer> replay = factory.createCachedServiceLoader( cachedRollup, this )
+          .replayRollup( executor, rows.get(), outputMeta );
+        factory.getStatistics().hit( executor.getServiceName(), true );
+        logChannel.logBasic( "Aggregating " + cachedRollup.getRowCount() + " rows of a cached rollup", entry.getKey() );
+        trackReplay( executor, cachedRollup, replay, replayTime );
+        return true;
+      } catch ( Throwable e ) {
+        logChannel.logError( "Unable to replay from cached rollup", e );
+      }
+    }
     return false;
   }
 
+  /**
+   * Find the smallest cached rollup able to answer a query
+   *
+   * @param baseKey key of the query's rows, without order
+   */
+  private Optional<Map.Entry<CachedService.CacheKey, CachedService>> getRollup(
+    DataServiceExecutor executor, Cache<CachedService.CacheKey, CachedService> cache, CachedService.CacheKey baseKey,
+    CachedRollup shape ) {
+    CachedService.CacheKey exactKey = baseKey.withRollup( shape );
+    CachedService exactMatch = getAvailable( executor, cache, exactKey );
+    if ( exactMatch != null ) {
+      return Optional.<Map.Entry<CachedService.CacheKey, CachedService>>of(
+        new AbstractMap.SimpleImmutableEntry<>( exactKey, exactMatch ) );
+    }
+
+    Map.Entry<CachedService.CacheKey, CachedService> smallest = null;
+    for ( CacheBudget.Entry entry : factory.getBudget().getEntries( executor.getServiceName() ) ) {
+      CachedService.CacheKey key = entry.getKey();
+      CachedService candidate = entry.getCachedService();
+      if ( candidate == null || !key.getRollup().isPresent() || !key.getRollup().get().contains( shape )
+        || !key.withoutRollup().equals( baseKey )
+        || smallest != null && smallest.getValue().getRowCount() <= candidate.getRowCount() ) {
+        continue;
+      }
+      // Entry may have expired or been replaced since it was tracked
+      if ( getAvailable( executor, cache, key ) == candidate ) {
+        smallest = new AbstractMap.SimpleImmutableEntry<>( key, candidate );
+      }
+    }
+    return Optional.fromNullable( smallest );
+  }
+
+  /**
+   * Pre-aggregate complete rows in the background, so later queries with the same or coarser grouping can be
+   * answered by {@link #replayRollup}. The rollup expires with the rows it was built from.
+   */
+  private void buildRollup( final DataServiceExecutor executor, final CachedService source ) {
+    Optional<StepMeta> groupStep = findGroupStep( executor );
+    if ( !source.isComplete() || !groupStep.isPresent() ) {
+      return;
+    }
+    final Optional<CachedRollup> shape =
+      CachedRollup.forQuery( (MemoryGroupByMeta) groupStep.get().getStepMetaInterface() );
+    if ( !shape.isPresent() ) {
+      return;
+    }
+    final String serviceName = executor.getServiceName();
+    final LogChannelInterface logChannel = executor.getGenTrans().getLogChannel();
+    final CachedService.CacheKey key =
+      CachedService.CacheKey.create( executor ).withoutOrder().withRollup( shape.get() );
+    final Cache<CachedService.CacheKey, CachedService> cache = factory.getCache( this, serviceName );
+    final SettableFuture<CachedService> population = SettableFuture.create();
+    if ( cache.containsKey( key ) || factory.claimPopulation( serviceName, key, population ).isPresent() ) {
+      return;
+    }
+    // Evaluating a condition caches field indexes, use a copy
+    final Condition condition = key.getCondition().isPresent() ? (Condition) key.getCondition().get().clone() : null;
+    factory.getExecutorService().execute( new Runnable() {
+      @Override public void run() {
+        try {
+          Optional<CachedRows> rows;
+          source.getRows().pin();
+          try {
+            rows = shape.get().build( source.getRows(), condition );
+          } finally {
+            source.getRows().unpin();
+          }
+          CachedService rollup = null;
+          if ( !rows.isPresent() ) {
+            logChannel.logDetailed( "Cached rows can not be rolled up", key );
+          } else if ( cache.putIfAbsent( key, rollup = CachedService.derived( rows.get(), source ) )
+            && register( executor, key, rollup ) ) {
+            logChannel.logDetailed( "Cached rollup of " + rollup.getRowCount() + " rows", key );
+          }
+          population.set( rollup );
+        } catch ( Throwable t ) {
+          population.setException( t );
+          logChannel.logError( "Unable to build service cache rollup", t );
+        }
+      }
+    } );
+  }
+
+  /**
+   * Drop the rollups built from the rows of a refreshed entry. Rollups of any condition on the same parameters were
+   * built from the old rows.
+   */
+  private void invalidateRollups( DataServiceExecutor executor, Cache<CachedService.CacheKey, CachedService> cache,
+                                  CachedService.CacheKey refreshedKey ) {
+    String serviceName = executor.getServiceName();
+    LogChannelInterface logChannel = executor.getGenTrans().getLogChannel();
+    CachedService.CacheKey base = refreshedKey.withoutRollup().withoutOrder().withoutCondition();
+    for ( CacheBudget.Entry entry : factory.getBudget().getEntries( serviceName ) ) {
+      CachedService.CacheKey key = entry.getKey();
+      CachedService rollup = entry.getCachedService();
+      if ( rollup != null && key.getRollup().isPresent()
+        && key.withoutRollup().withoutOrder().withoutCondition().equals( base ) && cache.remove( key, rollup ) ) {
+        factory.getBudget().remove( serviceName, key );
+        logChannel.logDetailed( "Dropped rollup of refreshed rows", key );
+      }
+    }
+  }
+
+  /**
+   * @return the step aggregating rows in the generated transformation, if the query aggregates
+   */
+  private static Optional<StepMeta> findGroupStep( DataServiceExecutor executor ) {
+    String groupStepName = executor.getGroupStepName();
+    StepMeta stepMeta = groupStepName == null ? null : executor.getGenTransMeta().findStep( groupStepName );
+    // Without a row limit, rows are grouped exactly as the service transformation would have output them
+    return stepMeta != null && stepMeta.getStepMetaInterface() instanceof MemoryGroupByMeta
+      && executor.getRowLimit() <= 0 ? Optional.of( stepMeta ) : Optional.<StepMeta>absent();
+  }
+
+  /**
+   * Wait for another query to populate the cache.
+   *
+   * @return rows of the other query, if they answer this query
+   */
+  private Optional<CachedService> awaitPopulation( DataServiceExecutor executor, CachedService.CacheKey key,
+                                                   ListenableFuture<CachedService> population ) {
+    LogChannelInterface logChannel = executor.getGenTrans().getLogChannel();
+    logChannel.logBasic( "Waiting for an identical query to populate the service cache" );
+    try {
+      CachedService populated = population.get( factory.getPopulationTimeout( this ), TimeUnit.SECONDS );
+      if ( !populated.isEvicted() && populated.answersQuery( executor ) ) {
+        return Optional.of( populated );
+      }
+      logChannel.logDetailed( "Populated service cache does not answer this query" );
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+    } catch ( TimeoutException e ) {
+      logChannel.logBasic( "Timed out waiting for the service cache to be populated" );
+      factory.abandonPopulation( executor.getServiceName(), key, population );
+    } catch ( ExecutionException e ) {
+      logChannel.logDetailed( "Service cache was not populated: " + e.getCause() );
+    }
+    return Optional.absent();
+  }
+
+  /**
+   * Track cached rows against the storage and size limits of this cache. Evicts other entries if necessary.
+   *
+   * @return false if the rows alone exceed a size limit and were not admitted
+   */
+  private boolean register( DataServiceExecutor executor, CachedService.CacheKey key, CachedService cachedService ) {
+    String serviceName = executor.getServiceName();
+    LogChannelInterface logChannel = executor.getGenTrans().getLogChannel();
+    long maxSize = factory.getMaxSize( this );
+    boolean admitted = evict( logChannel, factory.getBudget().add( serviceName, key, cachedService, maxSize ),
+      cachedService );
+    if ( admitted ) {
+      TieredStorage storage = factory.getStorage( this, serviceName );
+      storage.register( cachedService.getRows() );
+      if ( storage.isEnabled() ) {
+        // Rows of this or older entries may have been moved off the heap
+        evict( logChannel, factory.getBudget().reweigh( serviceName, maxSize ), cachedService );
+      }
+    } else {
+      logChannel.logBasic( "Service Transformation results exceed cache size limit", key );
+    }
+    return admitted;
+  }
+
+  /**
+   * Weigh a cached service again after a replay, which may have built an index or an order. Evicts other entries, or
+   * the grown entry itself, if it no longer fits.
+   */
+  private void reweigh( LogChannelInterface logChannel, String serviceName, CachedService cachedService ) {
+    long maxSize = factory.getMaxSize( this );
+    if ( !evict( logChannel, factory.getBudget().reweigh( serviceName, cachedService, maxSize ), cachedService ) ) {
+      logChannel.logDetailed( "Cached rows, indexes and orders exceed cache size limit, evicted from cache" );
+    }
+  }
+
+  /**
+   * Remove entries evicted by the budget from their caches
+   *
+   * @return false if the given cached service was one of them
+   */
+  private boolean evict( LogChannelInterface logChannel, List<CacheBudget.Entry> evictedEntries,
+                         CachedService cachedService ) {
+    boolean kept = true;
+    for ( CacheBudget.Entry evicted : evictedEntries ) {
+      CachedService evictedService = evicted.getCachedService();
+      kept &= evictedService != cachedService;
+      String evictedServiceName = evicted.getServiceName();
+      for ( Cache<CachedService.CacheKey, CachedService> cache : factory.getCache( evictedServiceName ).asSet() ) {
+        if ( evictedService != null && cache.remove( evicted.getKey(), evictedService ) ) {
+          logChannel.logDetailed( MessageFormat.format( "Evicted {0} bytes from {1}",
+            evicted.getWeight(), cache.getName() ), evicted.getKey() );
+        }
+      }
+    }
+    return kept;
+  }
+
+  /**
+   * Write a complete entry to a snapshot in the background, if snapshots are enabled
+   */
+  private void saveSnapshot( DataServiceExecutor executor, final CachedService.CacheKey key,
+                             final CachedService cachedService ) {
+    final String serviceName = executor.getServiceName();
+    final LogChannelInterface logChannel = executor.getGenTrans().getLogChannel();
+    for ( final CacheSnapshots snapshots : factory.getSnapshots().asSet() ) {
+      // Rollups are rebuilt from restored rows instead
+      if ( cachedService.isComplete() && !key.getRollup().isPresent() ) {
+        factory.getExecutorService().execute( new Runnable() {
+          @Override public void run() {
+            try {
+              snapshots.save( serviceName, key, cachedService );
+              logChannel.logDetailed( "Service cache snapshot saved", key );
+            } catch ( Exception e ) {
+              logChannel.logError( "Unable to save service cache snapshot", e );
+            }
+          }
+        } );
+      }
+    }
+  }
+
+  /**
+   * Restore entries saved before the server restarted. Runs once per data service, on its first query.
+   */
+  private void restoreSnapshots( DataServiceExecutor executor ) {
+    String serviceName = executor.getServiceName();
+    for ( CacheSnapshots snapshots : factory.getSnapshots().asSet() ) {
+      if ( !snapshots.claimRestore( serviceName ) ) {
+        return;
+      }
+      LogChannelInterface logChannel = executor.getGenTrans().getLogChannel();
+      try {
+        long version = TransMetaVersion.get( executor.getService().getServiceTrans() );
+        Map<CachedService.CacheKey, CachedService> restored = snapshots.restore( serviceName, version, logChannel );
+        if ( restored.isEmpty() ) {
+          return;
+        }
+        Cache<CachedService.CacheKey, CachedService> cache = factory.getCache( this, serviceName );
+        long timeToLive = TimeUnit.SECONDS.toMillis( parseSeconds( getConfiguredTimeToLive() ) )
+          + ( isRefreshAhead() ? getGracePeriodMillis() : 0 );
+        int count = 0;
+        for ( Map.Entry<CachedService.CacheKey, CachedService> entry : restored.entrySet() ) {
+          CachedService.CacheKey key = entry.getKey();
+          CachedService cachedService = entry.getValue();
+          if ( timeToLive > 0 && cachedService.getAge() > timeToLive ) {
+            snapshots.delete( serviceName, key );
+          } else if ( cache.putIfAbsent( key, cachedService ) && register( executor, key, cachedService ) ) {
+            count++;
+          }
+        }
+        logChannel.logBasic( "Restored " + count + " service cache entries from snapshots" );
+      } catch ( Exception e ) {
+        logChannel.logError( "Unable to restore service cache snapshots", e );
+      }
+    }
+  }
+
   @Override public OptimizationImpactInfo preview( DataServiceExecutor executor, StepInterface stepInterface ) {
     OptimizationImpactInfo info = new OptimizationImpactInfo( executor.getService().getStepname() );
     Map<CachedService.CacheKey, CachedService> availableCache = getAvailableCache( executor );
@@ -143,7 +799,7 @@ public class ServiceCache implements PushDownType {
       info.setQueryBeforeOptimization( MessageFormat.format( "Service results for {0} are available.",
           available.getKey() ) );
       info.setQueryAfterOptimization( MessageFormat.format( "{0} rows can be read from cache.",
-          available.getValue().getRowMetaAndData().size() ) );
+          available.getValue().getRowCount() ) );
       return info;
     }
     info.setModified( false );
@@ -169,22 +825,71 @@ public class ServiceCache implements PushDownType {
 
     // First test if the rootKey entry answers the query
     CachedService.CacheKey rootKey = createRootKey( executor );
-    CachedService exactMatch = cache.get( rootKey );
+    CachedService exactMatch = getAvailable( executor, cache, rootKey );
     if ( exactMatch != null && exactMatch.answersQuery( executor ) ) {
       return ImmutableMap.of( rootKey, exactMatch );
     }
 
     // Otherwise, check all related keys for a complete set
-    return FluentIterable.from( rootKey.all() )
+    Optional<Map<CachedService.CacheKey, CachedService>> related = FluentIterable.from( rootKey.all() )
       .transform( new Function<CachedService.CacheKey, Map<CachedService.CacheKey, CachedService>>() {
         @Override public Map<CachedService.CacheKey, CachedService> apply(
           CachedService.CacheKey key ) {
-          CachedService value = cache.get( key );
+          CachedService value = getAvailable( executor, cache, key );
           return value != null && value.isComplete() ? ImmutableMap.of( key, value ) : null;
         }
       } )
       .filter( notNull() )
-      .first().or( ImmutableMap.<CachedService.CacheKey, CachedService>of() );
+      .first();
+    if ( related.isPresent() ) {
+      return related.get();
+    }
+
+    // Finally, look for a complete set cached under a broader condition.
+    // Replay will filter rows by the narrower condition of this query.
+    return getSubsumingCache( executor, cache, rootKey );
+  }
+
+  private Map<CachedService.CacheKey, CachedService> getSubsumingCache(
+    DataServiceExecutor executor, Cache<CachedService.CacheKey, CachedService> cache, CachedService.CacheKey rootKey ) {
+    Optional<Condition> condition = rootKey.getCondition();
+    if ( !condition.isPresent() ) {
+      return ImmutableMap.of();
+    }
+    ConditionImplication implication = new ConditionImplication( executor.getSql().getRowMeta() );
+    for ( CacheBudget.Entry entry : factory.getBudget().getEntries( executor.getServiceName() ) ) {
+      CachedService.CacheKey key = entry.getKey();
+      Optional<Condition> cachedCondition = key.getCondition();
+      CachedService candidate = entry.getCachedService();
+      if ( candidate == null || !candidate.isComplete() || key.getRollup().isPresent() || !cachedCondition.isPresent()
+        || !key.isRelated( rootKey )
+        || !implication.implies( condition.get(), cachedCondition.get() ) ) {
+        continue;
+      }
+      // Entry may have expired or been replaced since it was tracked
+      CachedService value = getAvailable( executor, cache, key );
+      if ( value == candidate ) {
+        return ImmutableMap.of( key, value );
+      }
+    }
+    return ImmutableMap.of();
+  }
+
+  /**
+   * Get a cache entry, removing it if its rows were evicted from storage or it is past its grace period
+   */
+  private CachedService getAvailable( DataServiceExecutor executor,
+                                      Cache<CachedService.CacheKey, CachedService> cache,
+                                      CachedService.CacheKey key ) {
+    CachedService value = cache.get( key );
+    if ( value != null && ( value.isEvicted() || isExpired( value ) ) ) {
+      cache.remove( key, value );
+      return null;
+    }
+    if ( value != null ) {
+      factory.getBudget().touch( executor.getServiceName(), key );
+    }
+    return value;
   }
 
   /**
@@ -199,6 +904,7 @@ public class ServiceCache implements PushDownType {
       if ( !ttlMatches( cache.get(), logChannel ) ) {
         logChannel.logBasic( "Dropping cache associated with " + executor.getServiceName() );
         dropCache( cache.get() );
+        factory.releaseStorage( executor.getServiceName() );
       } else {
         logChannel.logDebug( "Found cache associated with " + executor.getServiceName() );
         return cache.get();
@@ -207,21 +913,54 @@ public class ServiceCache implements PushDownType {
     return null;
   }
 
+  /**
+   * @return true if refresh ahead is enabled and the entry is close to its time to live
+   */
+  boolean isStale( CachedService cachedService ) {
+    long ttl = getTimeToLiveMillis();
+    return isRefreshAhead() && ttl > 0 && cachedService.getAge() >= ttl * REFRESH_AHEAD_RATIO;
+  }
+
+  /**
+   * @return true if refresh ahead is enabled and the entry is past its time to live and grace period
+   */
+  boolean isExpired( CachedService cachedService ) {
+    long ttl = getTimeToLiveMillis();
+    return isRefreshAhead() && ttl > 0 && cachedService.getAge() > ttl + getGracePeriodMillis();
+  }
+
+  private long getTimeToLiveMillis() {
+    return isRefreshAhead() ? TimeUnit.SECONDS.toMillis( parseSeconds( getConfiguredTimeToLive() ) ) : 0;
+  }
+
+  private long getGracePeriodMillis() {
+    return TimeUnit.SECONDS.toMillis( parseSeconds( getGracePeriod() ) );
+  }
+
+  private static long parseSeconds( String value ) {
+    try {
+      return value == null ? 0 : Math.max( Long.parseLong( value.trim() ), 0 );
+    } catch ( NumberFormatException e ) {
+      return 0;
+    }
+  }
+
   private boolean ttlMatches( Cache<CachedService.CacheKey, CachedService> cache, LogChannelInterface log ) {
     CompleteConfiguration config = cache.getConfiguration( CompleteConfiguration.class );
-    if ( getTimeToLive() == null ) {
+    String expectedTtl = getTemplateOverrides().get( CONFIG_TTL );
+    if ( expectedTtl == null ) {
       // ttl has not been modified
       return true;
     }
     if ( config != null ) {
       try {
         Duration duration = getConfigDuration( config );
-        long ttl = Long.parseLong( getTimeToLive() );
+        long ttl = Long.parseLong( expectedTtl );
         return ttl == duration.getDurationAmount();
       } catch ( NumberFormatException nfe ) {
         log.logError(
             String.format( "Failed to determine configured TTL value for cache '%s'.  TTL value = '%s'",
-                cache.getName(), getTimeToLive() ) );
+                cache.getName(), expectedTtl ) );
         throw nfe;
       }
     }
@@ -278,12 +1017,113 @@ public class ServiceCache implements PushDownType {
     this.timeToLive = timeToLive;
   }
 
+  public boolean isRefreshAhead() {
+    return refreshAhead;
+  }
+
+  public void setRefreshAhead( boolean refreshAhead ) {
+    this.refreshAhead = refreshAhead;
+  }
+
+  public String getGracePeriod() {
+    return gracePeriod;
+  }
+
+  public void setGracePeriod( String gracePeriod ) {
+    this.gracePeriod = gracePeriod;
+  }
+
+  public String getWarmUpQueries() {
+    return warmUpQueries;
+  }
+
+  public void setWarmUpQueries( String warmUpQueries ) {
+    this.warmUpQueries = warmUpQueries;
+  }
+
+  public String getWarmUpSchedule() {
+    return warmUpSchedule;
+  }
+
+  public void setWarmUpSchedule( String warmUpSchedule ) {
+    this.warmUpSchedule = warmUpSchedule;
+  }
+
+  public boolean isWarmUpOnStartup() {
+    return warmUpOnStartup;
+  }
+
+  public void setWarmUpOnStartup( boolean warmUpOnStartup ) {
+    this.warmUpOnStartup = warmUpOnStartup;
+  }
+
+  public boolean isWarmUpAfterReset() {
+    return warmUpAfterReset;
+  }
+
+  public void setWarmUpAfterReset( boolean warmUpAfterReset ) {
+    this.warmUpAfterReset = warmUpAfterReset;
+  }
+
+  public String getHighWaterMark() {
+    return highWaterMark;
+  }
+
+  public void setHighWaterMark( String highWaterMark ) {
+    this.highWaterMark = highWaterMark;
+  }
+
+  public String getIndexedColumns() {
+    return indexedColumns;
+  }
+
+  public void setIndexedColumns( String indexedColumns ) {
+    this.indexedColumns = indexedColumns;
+  }
+
+  /**
+   * @return columns configured to be indexed
+   */
+  public Set<String> getIndexedColumnSet() {
+    return indexedColumns == null ? ImmutableSet.<String>of()
+      : ImmutableSet.copyOf( Splitter.on( ',' ).trimResults().omitEmptyStrings().split( indexedColumns ) );
+  }
+
+  public String getCompressedColumns() {
+    return compressedColumns;
+  }
+
+  public void setCompressedColumns( String compressedColumns ) {
+    this.compressedColumns = compressedColumns;
+  }
+
+  /**
+   * @return columns configured to be compressed
+   */
+  public Set<String> getCompressedColumnSet() {
+    return compressedColumns == null ? ImmutableSet.<String>of()
+      : ImmutableSet.copyOf( Splitter.on( ',' ).trimResults().omitEmptyStrings().split( compressedColumns ) );
+  }
+
+  /**
+   * @return time to live of cached results in seconds, not including any grace period
+   */
   public String getConfiguredTimeToLive() {
-    PentahoCacheTemplateConfiguration configuration = factory.getPentahoCacheTemplateConfiguration( this );
-    return configuration.getProperties().get( CONFIG_TTL );
+    if ( getTimeToLive() != null ) {
+      return getTimeToLive();
+    }
+    return factory.getPropertiesByTemplateName( getTemplateName() ).get( CONFIG_TTL );
   }
 
   public Map<String, String> getTemplateOverrides() {
+    long gracePeriod = parseSeconds( getGracePeriod() );
+    if ( isRefreshAhead() && gracePeriod > 0 ) {
+      // Keep entries in the cache past their time to live, so they can be served while they are refreshed
+      long ttl = parseSeconds( getConfiguredTimeToLive() );
+      if ( ttl > 0 ) {
+        return ImmutableMap.of( CONFIG_TTL, String.valueOf( ttl + gracePeriod ) );
+      }
+    }
     if ( getTimeToLive() != null ) {
       return ImmutableMap.of( CONFIG_TTL, getTimeToLive() );
     } else {
@@ -24,19 +24,32 @@ package org.pentaho.di.trans.dataservice.optimization.cache;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Strings;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import org.pentaho.caching.api.PentahoCacheManager;
 import org.pentaho.caching.api.PentahoCacheTemplateConfiguration;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.LogChannel;
 import org.pentaho.di.trans.dataservice.DataServiceExecutor;
 import org.pentaho.di.trans.dataservice.optimization.PushDownFactory;
 import org.pentaho.di.trans.dataservice.optimization.cache.ui.ServiceCacheController;
 import org.pentaho.di.trans.dataservice.optimization.cache.ui.ServiceCacheOverlay;
+import org.pentaho.di.trans.step.RowAdapter;
 
 import javax.cache.Cache;
 import javax.cache.CacheException;
+import java.util.AbstractMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
 
 import static com.google.common.base.Preconditions.checkState;
 
@@ -44,10 +57,64 @@ import static com.google.common.base.Preconditions.checkState;
  * @author nhudak
  */
 public class ServiceCacheFactory implements PushDownFactory {
+  /**
+   * Cache template property, seconds a query will wait for an identical query to populate the cache before running
+   * the service transformation itself
+   */
+  public static final String POPULATION_TIMEOUT = "dataservice.cache.population.timeout";
+  public static final long DEFAULT_POPULATION_TIMEOUT = 60;
+  /**
+   * System property, maximum number of cache entries refreshed in the background at once
+   */
+  public static final String REFRESH_CONCURRENCY_PROPERTY = "KETTLE_DATA_SERVICE_CACHE_REFRESH_CONCURRENCY";
+  public static final int DEFAULT_REFRESH_CONCURRENCY = 2;
+  /**
+   * System property, maximum number of threads replaying a complete cache entry to a single query
+   */
+  public static final String REPLAY_THREADS_PROPERTY = "KETTLE_DATA_SERVICE_CACHE_REPLAY_THREADS";
+  public static final int DEFAULT_REPLAY_THREADS = Math.min( Runtime.getRuntime().availableProcessors(), 4 );
+  /**
+   * Cache template property, rows a service may write before caching its results is abandoned
+   */
+  public static final String POPULATION_MAX_ROWS = "dataservice.cache.population.max.rows";
+  /**
+   * Cache template property, estimated bytes a service may write before caching its results is abandoned.
+   * Defaults to the smaller of the service and global size limits, since larger results could not be cached anyway.
+   */
+  public static final String POPULATION_MAX_SIZE = "dataservice.cache.population.max.size";
+  /**
+   * Cache template property, {@value #ADMIT_ALL} (the default) to cache the results of every query,
+   * {@value #ADMIT_FREQUENT} to only cache results that are reused or expensive, see {@link FrequencyAdmission},
+   * or the class name of another {@link AdmissionPolicy}
+   */
+  public static final String ADMISSION_POLICY = "dataservice.cache.admission";
+  public static final String ADMIT_ALL = "all";
+  public static final String ADMIT_FREQUENT = "frequency";
+
   private final PentahoCacheManager cacheManager;
 
   private final ListeningExecutorService executorService;
 
+  private final ConcurrentMap<String, TieredStorage> storage = Maps.newConcurrentMap();
+
+  private final ConcurrentMap<String, AdmissionPolicy> admission = Maps.newConcurrentMap();
+
+  private final CacheBudget budget = new CacheBudget();
+
+  private final CacheStatistics statistics = new CacheStatistics();
+
+  private final Optional<CacheSnapshots> snapshots = CacheSnapshots.create();
+
+  private final ConcurrentMap<Map.Entry<String, CachedService.CacheKey>, ListenableFuture<CachedService>> populations =
+    Maps.newConcurrentMap();
+
+  private final Map<DataServiceExecutor, SettableFuture<CachedService>> refreshes =
+    new MapMaker().weakKeys().makeMap();
+  private final Map<DataServiceExecutor, IncrementalRefresh> incrementalRefreshes =
+    new MapMaker().weakKeys().makeMap();
+
+  private final Semaphore refreshPermits = new Semaphore( getRefreshConcurrency() );
+
   public ServiceCacheFactory( PentahoCacheManager cacheManager, ExecutorService executorService ) {
     this.cacheManager = cacheManager;
     this.executorService = MoreExecutors.listeningDecorator( executorService );
@@ -120,16 +187,349 @@ public class ServiceCacheFactory implements PushDownFactory {
     }
   }
 
+  /**
+   * Get the storage tracking cached rows of a data service, configured by the cache template
+   */
+  public TieredStorage getStorage( ServiceCache serviceCache, String dataServiceName ) {
+    String cacheName = cacheName( dataServiceName );
+    TieredStorage existing = storage.get( cacheName );
+    if ( existing != null ) {
+      return existing;
+    }
+    Map<String, String> properties = getPentahoCacheTemplateConfiguration( serviceCache ).getProperties();
+    TieredStorage created = TieredStorage.create( properties );
+    existing = storage.putIfAbsent( cacheName, created );
+    return existing != null ? existing : created;
+  }
+
+  /**
+   * Get the admission policy of a data service, configured by the cache template. Policies outlive cache resets,
+   * so query frequencies are not forgotten.
+   */
+  public AdmissionPolicy getAdmissionPolicy( ServiceCache serviceCache, String dataServiceName ) {
+    String cacheName = cacheName( dataServiceName );
+    AdmissionPolicy existing = admission.get( cacheName );
+    if ( existing != null ) {
+      return existing;
+    }
+    AdmissionPolicy created =
+      createAdmissionPolicy( getPentahoCacheTemplateConfiguration( serviceCache ).getProperties() );
+    existing = admission.putIfAbsent( cacheName, created );
+    return existing != null ? existing : created;
+  }
+
+  /**
+   * Create the admission policy selected by {@link #ADMISSION_POLICY}. Policy classes that can't be created are
+   * logged, and like unknown policies admit every result.
+   */
+  public AdmissionPolicy createAdmissionPolicy( Map<String, String> properties ) {
+    String policy = Strings.nullToEmpty( properties.get( ADMISSION_POLICY ) ).trim();
+    if ( policy.isEmpty() || ADMIT_ALL.equalsIgnoreCase( policy ) ) {
+      return AdmissionPolicy.ADMIT_ALL;
+    }
+    if ( ADMIT_FREQUENT.equalsIgnoreCase( policy ) ) {
+      return FrequencyAdmission.create( properties );
+    }
+    try {
+      Class<? extends AdmissionPolicy> policyClass = Class.forName( policy ).asSubclass( AdmissionPolicy.class );
+      try {
+        return policyClass.getConstructor( Map.class ).newInstance( properties );
+      } catch ( NoSuchMethodException e ) {
+        return policyClass.newInstance();
+      }
+    } catch ( Exception e ) {
+      LogChannel.GENERAL.logError( "Unable to create service cache admission policy " + policy, e );
+      return AdmissionPolicy.ADMIT_ALL;
+    }
+  }
+
+  /**
+   * Release all storage held for a data service, including snapshots, after its cache has been dropped or cleared
+   */
+  public void releaseStorage( String dataServiceName ) {
+    TieredStorage removed = storage.remove( cacheName( dataServiceName ) );
+    if ( removed != null ) {
+      removed.clear();
+    }
+    budget.clear( dataServiceName );
+    for ( CacheSnapshots snapshot : snapshots.asSet() ) {
+      snapshot.clear( dataServiceName );
+    }
+  }
+
+  /**
+   * Remove the entries of a data service's cache selected by an invalidation, along with their snapshots.
+   *
+   * @param dryRun if true, only report the entries that would be removed
+   * @return removed entries, or the entries that would be removed by a dry run
+   */
+  public CacheInvalidation.Result invalidate( String dataServiceName, CacheInvalidation invalidation,
+                                              boolean dryRun ) {
+    int entries = 0;
+    long bytes = 0;
+    for ( Cache<CachedService.CacheKey, CachedService> cache : getCache( dataServiceName ).asSet() ) {
+      for ( Cache.Entry<CachedService.CacheKey, CachedService> entry : cache ) {
+        CachedService.CacheKey key = entry.getKey();
+        CachedService cachedService = entry.getValue();
+        if ( cachedService == null || !invalidation.matches( key, cachedService ) ) {
+          continue;
+        }
+        if ( !dryRun ) {
+          if ( !cache.remove( key, cachedService ) ) {
+            // Already replaced or removed
+            continue;
+          }
+          budget.remove( dataServiceName, key );
+          for ( CacheSnapshots snapshot : snapshots.asSet() ) {
+            if ( !key.getRollup().isPresent() ) {
+              snapshot.delete( dataServiceName, key );
+            }
+          }
+        }
+        entries++;
+        bytes += cachedService.getEstimatedSize();
+      }
+    }
+    return new CacheInvalidation.Result( entries, bytes );
+  }
+
+  /**
+   * @return storage of a data service's cache, if any rows have been cached
+   */
+  public Optional<TieredStorage> getStorage( String dataServiceName ) {
+    return Optional.fromNullable( storage.get( cacheName( dataServiceName ) ) );
+  }
+
+  /**
+   * Memory budget shared by all service caches
+   */
+  public CacheBudget getBudget() {
+    return budget;
+  }
+
+  /**
+   * Snapshots keeping complete cache entries across restarts, if enabled by {@link CacheSnapshots#DIRECTORY_PROPERTY}
+   */
+  public Optional<CacheSnapshots> getSnapshots() {
+    return snapshots;
+  }
+
+  /**
+   * Hit, miss, population and replay counts of all service caches
+   */
+  public CacheStatistics getStatistics() {
+    return statistics;
+  }
+
+  /**
+   * @return size limit in bytes for a single service cache, or a non-positive value for no limit
+   */
+  public long getMaxSize( ServiceCache serviceCache ) {
+    Map<String, String> properties = getPentahoCacheTemplateConfiguration( serviceCache ).getProperties();
+    return TieredStorage.parseSize( properties.get( CacheBudget.MAX_SIZE ) );
+  }
+
+  /**
+   * @return rows a service may write while populating the cache, see {@link #POPULATION_MAX_ROWS}
+   */
+  public long getPopulationMaxRows( ServiceCache serviceCache ) {
+    Map<String, String> properties = getPentahoCacheTemplateConfiguration( serviceCache ).getProperties();
+    String maxRows = Strings.nullToEmpty( properties.get( POPULATION_MAX_ROWS ) ).trim();
+    try {
+      return maxRows.isEmpty() ? 0 : Long.parseLong( maxRows );
+    } catch ( NumberFormatException e ) {
+      return 0;
+    }
+  }
+
+  /**
+   * @return estimated bytes a service may write while populating the cache, see {@link #POPULATION_MAX_SIZE}
+   */
+  public long getPopulationMaxSize( ServiceCache serviceCache ) {
+    Map<String, String> properties = getPentahoCacheTemplateConfiguration( serviceCache ).getProperties();
+    long maxSize = TieredStorage.parseSize( properties.get( POPULATION_MAX_SIZE ) );
+    if ( maxSize > 0 ) {
+      return maxSize;
+    }
+    long serviceMaxSize = getMaxSize( serviceCache ), globalMaxSize = budget.getMaxSize();
+    if ( serviceMaxSize > 0 && globalMaxSize > 0 ) {
+      return Math.min( serviceMaxSize, globalMaxSize );
+    }
+    return Math.max( serviceMaxSize, globalMaxSize );
+  }
+
+  /**
+   * @return seconds a query should wait for an identical query to populate the cache, see {@link #POPULATION_TIMEOUT}
+   */
+  public long getPopulationTimeout( ServiceCache serviceCache ) {
+    Map<String, String> properties = getPentahoCacheTemplateConfiguration( serviceCache ).getProperties();
+    String timeout = Strings.nullToEmpty( properties.get( POPULATION_TIMEOUT ) ).trim();
+    try {
+      return timeout.isEmpty() ? DEFAULT_POPULATION_TIMEOUT : Long.parseLong( timeout );
+    } catch ( NumberFormatException e ) {
+      return DEFAULT_POPULATION_TIMEOUT;
+    }
+  }
+
+  /**
+   * Claim population of a cache entry, so that concurrent identical queries only run the service transformation once.
+   * The claim is released when {@code population} completes.
+   *
+   * @param population result of the caller's query, to be shared with any query that arrives while it runs
+   * @return population already in progress for the same entry, or absent if the caller now owns it
+   */
+  public Optional<ListenableFuture<CachedService>> claimPopulation( String dataServiceName,
+                                                                    CachedService.CacheKey key,
+                                                                    final ListenableFuture<CachedService> population ) {
+    final Map.Entry<String, CachedService.CacheKey> id =
+      new AbstractMap.SimpleImmutableEntry<String, CachedService.CacheKey>( dataServiceName, key );
+    ListenableFuture<CachedService> existing = populations.putIfAbsent( id, population );
+    if ( existing != null ) {
+      return Optional.of( existing );
+    }
+    population.addListener( new Runnable() {
+      @Override public void run() {
+        populations.remove( id, population );
+      }
+    }, MoreExecutors.sameThreadExecutor() );
+    return Optional.absent();
+  }
+
+  /**
+   * Release a claim that did not complete in time, e.g. if its query failed before the service transformation started.
+   * Later queries will populate the entry themselves.
+   */
+  public void abandonPopulation( String dataServiceName, CachedService.CacheKey key,
+                                 ListenableFuture<CachedService> population ) {
+    populations.remove(
+      new AbstractMap.SimpleImmutableEntry<String, CachedService.CacheKey>( dataServiceName, key ), population );
+  }
+
+  static int getRefreshConcurrency() {
+    String concurrency = Strings.nullToEmpty( System.getProperty( REFRESH_CONCURRENCY_PROPERTY ) ).trim();
+    try {
+      return concurrency.isEmpty() ? DEFAULT_REFRESH_CONCURRENCY : Math.max( Integer.parseInt( concurrency ), 0 );
+    } catch ( NumberFormatException e ) {
+      return DEFAULT_REFRESH_CONCURRENCY;
+    }
+  }
+
+  static int getReplayThreads() {
+    String threads = Strings.nullToEmpty( System.getProperty( REPLAY_THREADS_PROPERTY ) ).trim();
+    try {
+      return threads.isEmpty() ? DEFAULT_REPLAY_THREADS : Math.max( Integer.parseInt( threads ), 1 );
+    } catch ( NumberFormatException e ) {
+      return DEFAULT_REPLAY_THREADS;
+    }
+  }
+
+  /**
+   * Run a query in the background to refresh a cache entry, if the refresh concurrency limit allows.
+   *
+   * @param refresh   builds the query, which will always run the service transformation
+   * @param population completed once the query's results are cached
+   * @return false if too many refreshes are already running
+   */
+  public boolean submitRefresh( final Callable<DataServiceExecutor> refresh,
+                                final SettableFuture<CachedService> population ) {
+    return submitRefresh( refresh, population, Optional.<IncrementalRefresh>absent() );
+  }
+
+  /**
+   * @param incremental if present, the query only fetches rows after the entry's high-water mark
+   * @see #submitRefresh(Callable, SettableFuture)
+   */
+  boolean submitRefresh( final Callable<DataServiceExecutor> refresh, final SettableFuture<CachedService> population,
+                         final Optional<IncrementalRefresh> incremental ) {
+    if ( !refreshPermits.tryAcquire() ) {
+      return false;
+    }
+    ListenableFuture<?> job = executorService.submit( new Callable<Void>() {
+      @Override public Void call() throws Exception {
+        DataServiceExecutor executor = refresh.call();
+        refreshes.put( executor, population );
+        if ( incremental.isPresent() ) {
+          incrementalRefreshes.put( executor, incremental.get() );
+        }
+        try {
+          // Results are only needed by the cache
+          executor.executeQuery( new RowAdapter() );
+          executor.waitUntilFinished();
+        } finally {
+          incrementalRefreshes.remove( executor );
+          if ( refreshes.remove( executor ) != null ) {
+            // The cache never saw this query, e.g. if it was answered otherwise. Release the claim.
+            population.setException( new KettleException( "Refresh query finished without reaching the cache" ) );
+          }
+        }
+        return null;
+      }
+    } );
+    Futures.addCallback( job, new FutureCallback<Object>() {
+      @Override public void onSuccess( Object result ) {
+        refreshPermits.release();
+      }
+
+      @Override public void onFailure( Throwable t ) {
+        refreshPermits.release();
+        population.setException( t );
+      }
+    } );
+    return true;
+  }
+
+  /**
+   * Take over the population of a refreshed entry. Each refresh is handed out once, the cache of the refresh query
+   * must complete the population. Populations not taken over fail once the refresh query finishes.
+   *
+   * @return population of the entry being refreshed, if this query was started by {@link #submitRefresh}
+   */
+  public Optional<SettableFuture<CachedService>> getRefresh( DataServiceExecutor executor ) {
+    return Optional.fromNullable( refreshes.remove( executor ) );
+  }
+
+  /**
+   * @return incremental refresh, if this query was started by {@link #submitRefresh} to refresh an entry incrementally
+   */
+  Optional<IncrementalRefresh> getIncrementalRefresh( DataServiceExecutor executor ) {
+    return Optional.fromNullable( incrementalRefreshes.remove( executor ) );
+  }
+
   public String cacheName( String dataServiceName ) {
     return "SERVICE_CACHE." + dataServiceName;
   }
 
-  public ServiceObserver createObserver( DataServiceExecutor executor ) {
-    return new ServiceObserver( executor );
+  public ServiceObserver createObserver( DataServiceExecutor executor, ServiceCache serviceCache ) {
+    return configure( serviceCache,
+      new ServiceObserver( executor, getPopulationMaxRows( serviceCache ), getPopulationMaxSize( serviceCache ) ) );
+  }
+
+  /**
+   * Observer appending rows beyond the high-water mark of a refreshed entry
+   */
+  ServiceObserver createObserver( DataServiceExecutor executor, ServiceCache serviceCache,
+                                  IncrementalRefresh incremental ) {
+    return configure( serviceCache, new ServiceObserver( executor, getPopulationMaxRows( serviceCache ),
+      getPopulationMaxSize( serviceCache ), incremental ) );
+  }
+
+  /**
+   * Observer appending to the rows of a partial cache entry, see {@link CachedServiceLoader#resume}
+   */
+  public ServiceObserver createObserver( DataServiceExecutor executor, ServiceCache serviceCache,
+                                         CachedService partial ) {
+    return configure( serviceCache, new ServiceObserver( executor, getPopulationMaxRows( serviceCache ),
+      getPopulationMaxSize( serviceCache ), partial.getRows() ) );
+  }
+
+  private static ServiceObserver configure( ServiceCache serviceCache, ServiceObserver observer ) {
+    observer.setCompressedColumns( serviceCache.getCompressedColumnSet() );
+    return observer;
   }
 
-  public CachedServiceLoader createCachedServiceLoader( CachedService cachedService ) {
-    return new CachedServiceLoader( cachedService, executorService );
+  public CachedServiceLoader createCachedServiceLoader( CachedService cachedService, ServiceCache serviceCache ) {
+    return new CachedServiceLoader( cachedService, executorService, serviceCache.getIndexedColumnSet(),
+      getReplayThreads() );
   }
 
   public Iterable<String> getTemplateNames() {
@@ -22,13 +22,14 @@
 
 package org.pentaho.di.trans.dataservice.optimization.cache;
 
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.AbstractFuture;
 import com.google.common.util.concurrent.ListenableFuture;
 import org.pentaho.di.trans.dataservice.DataServiceExecutor;
-import org.pentaho.di.core.RowMetaAndData;
 import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
 import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.trans.Trans;
 import org.pentaho.di.trans.step.RowAdapter;
@@ -37,17 +38,76 @@ import org.pentaho.di.trans.step.StepInterface;
 import org.pentaho.di.trans.step.StepMeta;
 
 import java.util.List;
+import java.util.Set;
 
 import static com.google.common.base.Predicates.instanceOf;
 
 /**
+ * Collects the rows written by a service step, to be cached once the step finishes.
+ * <p>
+ * Collection is abandoned, freeing the rows collected so far, if the service writes more than a given number of rows
+ * or bytes. The observer then fails with a {@link LimitExceededException}.
+ * </p>
+ *
  * @author nhudak
  */
 public class ServiceObserver extends AbstractFuture<CachedService> implements Runnable {
+  // Size estimates are relatively expensive, so they are only checked this often
+  static final int SIZE_CHECK_INTERVAL = 1024;
+
   private final DataServiceExecutor executor;
+  private final long maxRows;
+  private final long maxSize;
+  private final CachedRows prefix;
+  private final int skipRows;
+  private final Optional<IncrementalRefresh> incremental;
+  private Set<String> compressedColumns = ImmutableSet.of();
 
   public ServiceObserver( DataServiceExecutor executor ) {
+    this( executor, 0, 0 );
+  }
+
+  /**
+   * @param maxRows row limit, or a non-positive value for no limit
+   * @param maxSize estimated size limit in bytes, or a non-positive value for no limit
+   */
+  public ServiceObserver( DataServiceExecutor executor, long maxRows, long maxSize ) {
+    this( executor, maxRows, maxSize, CachedRows.empty() );
+  }
+
+  /**
+   * Observer extending the rows of a partial cache entry. The first rows written by the service step are already
+   * cached, only the rows after them are collected and appended.
+   *
+   * @param prefix first rows of the service step, from a partial cache entry
+   */
+  ServiceObserver( DataServiceExecutor executor, long maxRows, long maxSize, CachedRows prefix ) {
+    this( executor, maxRows, maxSize, prefix, prefix.getRowCount(), Optional.<IncrementalRefresh>absent() );
+  }
+
+  /**
+   * Observer of an incremental refresh. Only rows beyond the high-water mark are collected, and appended to the rows
+   * of the refreshed entry.
+   */
+  ServiceObserver( DataServiceExecutor executor, long maxRows, long maxSize, IncrementalRefresh incremental ) {
+    this( executor, maxRows, maxSize, incremental.getBase().getRows(), 0, Optional.of( incremental ) );
+  }
+
+  private ServiceObserver( DataServiceExecutor executor, long maxRows, long maxSize, CachedRows prefix, int skipRows,
+                           Optional<IncrementalRefresh> incremental ) {
     this.executor = executor;
+    this.maxRows = maxRows;
+    this.maxSize = maxSize;
+    this.prefix = prefix;
+    this.skipRows = skipRows;
+    this.incremental = incremental;
+  }
+
+  /**
+   * @param compressedColumns string columns to compress, see {@link RowChunk}. Must be set before the service runs.
+   */
+  public void setCompressedColumns( Set<String> compressedColumns ) {
+    this.compressedColumns = compressedColumns;
   }
 
   public ListenableFuture<CachedService> install() {
@@ -61,24 +121,108 @@ public class ServiceObserver extends AbstractFuture<CachedService> implements Ru
   }
 
   @Override public void run() {
-    final List<RowMetaAndData> rowMetaAndData = Lists.newLinkedList();
+    final Collector collector = new Collector();
     StepInterface serviceStep = executor.getServiceTrans().findRunThread( executor.getService().getStepname() );
-    serviceStep.addRowListener( new RowAdapter() {
-      @Override public synchronized void rowWrittenEvent( RowMetaInterface rowMeta, Object[] row ) {
-        rowMetaAndData.add( new RowMetaAndData( rowMeta, row ) );
-      }
-    } );
+    if ( serviceStep == null ) {
+      // Nothing to observe, release anyone waiting for these rows
+      setException( new KettleException( "Service step not found, could not cache results" ) );
+      return;
+    }
+    serviceStep.addRowListener( collector );
     serviceStep.addStepListener( new StepAdapter() {
       @Override public void stepFinished( Trans trans, StepMeta stepMeta, StepInterface step ) {
+        CachedRows rows = collector.build();
+        if ( rows == null ) {
+          // Already failed, e.g. when the limit was exceeded
+          return;
+        }
         if ( executor.getGenTrans().getErrors() > 0 ) {
           setException(
             new KettleException( "Dynamic transformation finished with errors, could not cache results" ) );
         } else if ( step.isStopped() ) {
-          set( CachedService.partial( rowMetaAndData, executor ) );
+          set( CachedService.partial( rows, executor ) );
         } else {
-          set( CachedService.complete( rowMetaAndData ) );
+          set( CachedService.complete( rows ) );
         }
       }
     } );
   }
+
+  /**
+   * Appends rows to a builder. Rows are written, and the step finishes, on the service step's own thread, so the
+   * builder has a single writer and needs no lock.
+   */
+  private class Collector extends RowAdapter {
+    private CachedRows.Builder rows = new CachedRows.Builder( CachedRows.DEFAULT_CHUNK_SIZE, compressedColumns );
+    private int skipped = 0;
+
+    @Override public void rowWrittenEvent( RowMetaInterface rowMeta, Object[] row ) {
+      if ( rows == null ) {
+        return;
+      }
+      if ( skipped < skipRows ) {
+        skipped++;
+        return;
+      }
+      try {
+        if ( incremental.isPresent() && !incremental.get().isNew( rowMeta, row ) ) {
+          return;
+        }
+      } catch ( IncrementalRefresh.NullMarkException e ) {
+        rows = null;
+        setException( e );
+        return;
+      } catch ( KettleValueException e ) {
+        rows = null;
+        setException( new KettleException( "Unable to compare rows to the high-water mark, results not cached", e ) );
+        return;
+      }
+      rows.add( rowMeta, row );
+      int rowCount = prefix.getRowCount() + rows.getRowCount();
+      if ( maxRows > 0 && rowCount > maxRows ) {
+        abandon( "more than " + maxRows + " rows" );
+      } else if ( maxSize > 0 && rowCount % SIZE_CHECK_INTERVAL == 0 && estimateSize() > maxSize ) {
+        abandon( "more than " + maxSize + " bytes" );
+      }
+    }
+
+    private long estimateSize() {
+      return prefix.getEstimatedSize() + rows.estimateSize();
+    }
+
+    private void abandon( String reason ) {
+      rows = null;
+      setException( new LimitExceededException( "Service Transformation wrote " + reason + ", results not cached" ) );
+    }
+
+    /**
+     * @return collected rows, or null if collection was abandoned
+     */
+    CachedRows build() {
+      if ( rows == null ) {
+        return null;
+      }
+      if ( maxSize > 0 && estimateSize() > maxSize ) {
+        abandon( "more than " + maxSize + " bytes" );
+        return null;
+      }
+      if ( prefix.isEvicted() ) {
+        rows = null;
+        setException( new KettleException( "Cached rows were evicted while resuming, results not cached" ) );
+        return null;
+      }
+      return prefix.getRowCount() > 0 ? prefix.append( rows ) : rows.build();
+    }
+  }
+
+  /**
+   * Thrown when a service writes too many rows or bytes to be cached
+   */
+  public static class LimitExceededException extends KettleException {
+    private static final long serialVersionUID = 5396218163424542173L;
+
+    public LimitExceededException( String message ) {
+      super( message );
+    }
+  }
 }
@@ -0,0 +1,225 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.MapMaker;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * A {@link RowChunk} held by {@link CachedRows}, which {@link TieredStorage} may move off the heap.
+ * <p>
+ * While on the heap the chunk is kept as is. Once demoted, only its binary form is kept, in a direct buffer or a
+ * memory-mapped file, and {@link #load()} decodes it again. Numeric and date columns are read in place, while
+ * dictionaries, booleans and serialized values are copied onto the heap on every load.
+ * </p>
+ */
+final class StoredChunk {
+  private final RowMetaInterface rowMeta;
+  private final int rowCount;
+  private final long heapSize;
+  private final ColumnStats[] stats;
+  private final CompressionStats compression;
+
+  private volatile RowChunk chunk;
+  private volatile ByteBuffer buffer;
+  private volatile TieredStorage.Tier tier = TieredStorage.Tier.HEAP;
+  private volatile boolean discarded = false;
+
+  // Set when registered with a storage
+  private volatile TieredStorage storage;
+  private TieredStorage.Entry entry;
+  // Rows holding this chunk. Appending to cached rows shares their chunks with the result.
+  private final Set<CachedRows> owners =
+    Collections.newSetFromMap( new MapMaker().weakKeys().<CachedRows, Boolean>makeMap() );
+
+  StoredChunk( RowChunk chunk ) {
+    this.chunk = chunk;
+    this.rowMeta = chunk.getRowMeta();
+    this.rowCount = chunk.getRowCount();
+    this.heapSize = chunk.estimateSize();
+    this.stats = new ColumnStats[rowMeta.size()];
+    for ( int i = 0; i < stats.length; i++ ) {
+      stats[i] = chunk.getStats( i );
+    }
+    this.compression = chunk.getCompression();
+  }
+
+  /**
+   * A chunk already stored in binary form on disk, such as a memory-mapped snapshot. Statistics are unknown.
+   *
+   * @param heapSize approximate heap size of the chunk once loaded
+   */
+  StoredChunk( RowMetaInterface rowMeta, int rowCount, long heapSize, ByteBuffer buffer ) {
+    this.rowMeta = rowMeta;
+    this.rowCount = rowCount;
+    this.heapSize = heapSize;
+    this.stats = new ColumnStats[0];
+    this.compression = new CompressionStats();
+    store( TieredStorage.Tier.DISK, buffer );
+  }
+
+  public RowMetaInterface getRowMeta() {
+    return rowMeta;
+  }
+
+  public int getRowCount() {
+    return rowCount;
+  }
+
+  /**
+   * @return approximate heap size of this chunk while it is held on the heap
+   */
+  public long getHeapSize() {
+    return heapSize;
+  }
+
+  /**
+   * Statistics are kept on the heap, so chunks may be skipped without loading them
+   *
+   * @return statistics of a column, or null if unknown
+   */
+  public ColumnStats getStats( int column ) {
+    return column < stats.length ? stats[column] : null;
+  }
+
+  /**
+   * @return size and CPU cost of compressed columns, shared by every load of this chunk
+   */
+  public CompressionStats getCompression() {
+    return compression;
+  }
+
+  public TieredStorage.Tier getTier() {
+    return tier;
+  }
+
+  public boolean isDiscarded() {
+    return discarded;
+  }
+
+  /**
+   * Access the rows of this chunk, reading them from off-heap storage if necessary.
+   *
+   * @throws IllegalStateException if this chunk has been discarded
+   */
+  public RowChunk load() {
+    TieredStorage storage = this.storage;
+    if ( storage != null ) {
+      storage.touch( this );
+    }
+    RowChunk heapChunk = chunk;
+    if ( heapChunk != null ) {
+      return heapChunk;
+    }
+    ByteBuffer stored = buffer;
+    checkState( stored != null && !discarded, "Cached rows have been evicted" );
+    try {
+      return RowChunk.read( rowMeta, stored, compression );
+    } catch ( IOException e ) {
+      throw new IllegalStateException( "Unable to read cached rows", e );
+    }
+  }
+
+  /**
+   * @return rows holding this chunk, which are all evicted along with it
+   */
+  List<CachedRows> getOwners() {
+    return ImmutableList.copyOf( owners );
+  }
+
+  void addOwner( CachedRows owner ) {
+    owners.add( owner );
+  }
+
+  /**
+   * @return true if any rows holding this chunk are being replayed
+   */
+  boolean isPinned() {
+    for ( CachedRows owner : owners ) {
+      if ( owner.isPinned() ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  TieredStorage getStorage() {
+    return storage;
+  }
+
+  /**
+   * Entry tracking this chunk, guarded by the storage
+   */
+  TieredStorage.Entry getEntry() {
+    return entry;
+  }
+
+  void setStorage( TieredStorage storage, TieredStorage.Entry entry ) {
+    this.storage = storage;
+    this.entry = entry;
+  }
+
+  /**
+   * Heap chunk, or null if already stored off the heap
+   */
+  RowChunk getHeapChunk() {
+    return chunk;
+  }
+
+  /**
+   * Binary form, or null if still on the heap
+   */
+  ByteBuffer getBuffer() {
+    return buffer;
+  }
+
+  void store( TieredStorage.Tier tier, ByteBuffer buffer ) {
+    this.buffer = buffer.asReadOnlyBuffer();
+    this.tier = tier;
+    this.chunk = null;
+  }
+
+  void discard() {
+    discarded = true;
+    chunk = null;
+    buffer = null;
+  }
+
+  @Override public String toString() {
+    return Objects.toStringHelper( this )
+      .add( "rowCount", rowCount )
+      .add( "tier", discarded ? "DISCARDED" : tier )
+      .toString();
+  }
+}
@@ -0,0 +1,416 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.pentaho.di.core.Const;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the rows of one service cache within per-tier size limits.
+ * <p>
+ * Cached chunks start on the heap. When the heap tier exceeds its limit, the least recently used chunks are demoted
+ * to direct (off-heap) buffers, then to memory-mapped files on disk. When the last configured tier is full, the
+ * least recently used cache entry is discarded entirely and will be dropped from the cache on its next lookup.
+ * </p>
+ * <p>
+ * Limits are read from the cache template properties. Without a heap limit, cached rows stay on the heap and are
+ * not tracked at all.
+ * </p>
+ * <p>
+ * Spilled files are deleted as soon as their chunks are discarded or collected. Files left behind by an earlier
+ * process are removed when the first storage of this process uses their directory.
+ * </p>
+ */
+public class TieredStorage {
+  public static final String HEAP_SIZE = "dataservice.tier.heap.size";
+  public static final String OFF_HEAP_SIZE = "dataservice.tier.offheap.size";
+  public static final String DISK_SIZE = "dataservice.tier.disk.size";
+  public static final String DISK_DIRECTORY = "dataservice.tier.disk.directory";
+
+  private static final Pattern SIZE_PATTERN = Pattern.compile( "(\\d+)\\s*([kmgt]?)b?", Pattern.CASE_INSENSITIVE );
+  private static final String FILE_PREFIX = "chunk", FILE_SUFFIX = ".bin";
+
+  // Directories already cleaned by this process, shared by the storage of every service
+  private static final Set<File> cleaned = Sets.newHashSet();
+
+  public enum Tier {
+    HEAP, OFF_HEAP, DISK
+  }
+
+  private final Map<Tier, Long> limits;
+  private final File directory;
+
+  private final ReferenceQueue<StoredChunk> released = new ReferenceQueue<StoredChunk>();
+  private final Map<Tier, LinkedHashSet<Entry>> tiers = new EnumMap<Tier, LinkedHashSet<Entry>>( Tier.class );
+  private final Map<Tier, Long> usage = new EnumMap<Tier, Long>( Tier.class );
+
+  /**
+   * @param limits    maximum bytes per tier. Tiers without a positive limit are skipped.
+   * @param directory location of memory-mapped files for the disk tier
+   */
+  public TieredStorage( Map<Tier, Long> limits, File directory ) {
+    this.limits = ImmutableMap.copyOf( limits );
+    this.directory = directory;
+    for ( Tier tier : Tier.values() ) {
+      tiers.put( tier, Sets.<Entry>newLinkedHashSet() );
+      usage.put( tier, 0L );
+    }
+    clean( directory );
+  }
+
+  /**
+   * Delete chunk files left in a directory by an earlier process. Other services of this process may already be
+   * spilling into it, so each directory is only cleaned once.
+   */
+  private static void clean( File directory ) {
+    synchronized ( cleaned ) {
+      if ( !cleaned.add( directory.getAbsoluteFile() ) ) {
+        return;
+      }
+    }
+    File[] files = directory.listFiles();
+    if ( files == null ) {
+      return;
+    }
+    for ( File file : files ) {
+      String name = file.getName();
+      if ( file.isFile() && name.startsWith( FILE_PREFIX ) && name.endsWith( FILE_SUFFIX ) ) {
+        file.delete();
+      }
+    }
+  }
+
+  /**
+   * Configure storage from cache template properties
+   */
+  public static TieredStorage create( Map<String, String> properties ) {
+    Map<Tier, Long> limits = new EnumMap<Tier, Long>( Tier.class );
+    limits.put( Tier.HEAP, parseSize( properties.get( HEAP_SIZE ) ) );
+    limits.put( Tier.OFF_HEAP, parseSize( properties.get( OFF_HEAP_SIZE ) ) );
+    limits.put( Tier.DISK, parseSize( properties.get( DISK_SIZE ) ) );
+
+    String directory = properties.get( DISK_DIRECTORY );
+    if ( Strings.isNullOrEmpty( directory ) ) {
+      directory = new File( System.getProperty( "java.io.tmpdir" ), "pdi-dataservice-cache" ).getPath();
+    }
+    return new TieredStorage( limits, new File( directory ) );
+  }
+
+  /**
+   * Parse a byte size such as {@code 1048576}, {@code 512k}, {@code 64MB} or {@code 2g}.
+   *
+   * @return size in bytes, or -1 if not set or invalid
+   */
+  static long parseSize( String value ) {
+    Matcher matcher = SIZE_PATTERN.matcher( Const.NVL( value, "" ).trim() );
+    if ( !matcher.matches() ) {
+      return -1;
+    }
+    long size = Long.parseLong( matcher.group( 1 ) );
+    switch ( matcher.group( 2 ).toLowerCase() ) {
+      case "t":
+        size *= 1024;
+      case "g":
+        size *= 1024;
+      case "m":
+        size *= 1024;
+      case "k":
+        size *= 1024;
+      default:
+        return size;
+    }
+  }
+
+  /**
+   * @return true if a heap limit is configured and cached rows are tracked
+   */
+  public boolean isEnabled() {
+    return limit( Tier.HEAP ) >= 0;
+  }
+
+  public long getLimit( Tier tier ) {
+    return limit( tier );
+  }
+
+  public synchronized long getUsage( Tier tier ) {
+    expunge();
+    return usage.get( tier );
+  }
+
+  public synchronized Map<Tier, Long> getUsage() {
+    expunge();
+    return ImmutableMap.copyOf( usage );
+  }
+
+  /**
+   * Start tracking the chunks of a new cache entry and demote older chunks as needed. Chunks that are not on the
+   * heap, such as memory-mapped snapshots, are owned by their source and not tracked.
+   */
+  public synchronized void register( CachedRows rows ) {
+    if ( !isEnabled() ) {
+      return;
+    }
+    expunge();
+    for ( StoredChunk chunk : rows.getChunks() ) {
+      if ( chunk.getStorage() == null && !chunk.isDiscarded() && chunk.getTier() == Tier.HEAP ) {
+        Entry entry = new Entry( chunk );
+        chunk.setStorage( this, entry );
+        add( entry, Tier.HEAP, chunk.getHeapSize() );
+      }
+    }
+    enforceLimits();
+  }
+
+  /**
+   * Mark a chunk as recently used
+   */
+  synchronized void touch( StoredChunk chunk ) {
+    Entry entry = chunk.getEntry();
+    if ( entry != null && tiers.get( entry.tier ).remove( entry ) ) {
+      tiers.get( entry.tier ).add( entry );
+    }
+  }
+
+  /**
+   * Discard all tracked chunks and release their storage
+   */
+  public synchronized void clear() {
+    expunge();
+    for ( Tier tier : Tier.values() ) {
+      for ( Entry entry : Lists.newArrayList( tiers.get( tier ) ) ) {
+        StoredChunk chunk = entry.get();
+        if ( chunk != null ) {
+          chunk.discard();
+        }
+        remove( entry );
+      }
+    }
+  }
+
+  private void enforceLimits() {
+    for ( Tier tier : Tier.values() ) {
+      Tier target = nextTier( tier );
+      while ( usage.get( tier ) > Math.max( limit( tier ), 0 ) ) {
+        // Pinned rows are being replayed, they may be demoted but not discarded
+        StoredChunk eldest = eldest( tier, target == null );
+        if ( eldest == null ) {
+          break;
+        } else if ( target == null ) {
+          discard( eldest );
+        } else if ( !demote( eldest, target ) ) {
+          // Chunk stays where it is. Make room by discarding rows that are not being replayed, if any.
+          StoredChunk unpinned = eldest( tier, true );
+          if ( unpinned == null ) {
+            break;
+          }
+          discard( unpinned );
+        }
+      }
+    }
+  }
+
+  private StoredChunk eldest( Tier tier, boolean unpinned ) {
+    for ( Entry entry : tiers.get( tier ) ) {
+      StoredChunk chunk = entry.get();
+      if ( chunk != null && !( unpinned && chunk.isPinned() ) ) {
+        return chunk;
+      }
+    }
+    return null;
+  }
+
+  private Tier nextTier( Tier tier ) {
+    for ( int i = tier.ordinal() + 1; i < Tier.values().length; i++ ) {
+      Tier next = Tier.values()[i];
+      if ( limit( next ) > 0 ) {
+        return next;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return false if the chunk could not be written to the target tier and was left in place
+   */
+  private boolean demote( StoredChunk chunk, Tier target ) {
+    Entry entry = chunk.getEntry();
+    File file = null;
+    try {
+      ByteBuffer bytes = encode( chunk );
+      ByteBuffer stored;
+      if ( target == Tier.DISK ) {
+        file = writeFile( bytes );
+        stored = map( file );
+      } else {
+        stored = ByteBuffer.allocateDirect( bytes.remaining() );
+        stored.put( bytes );
+        stored.flip();
+      }
+      chunk.store( target, stored );
+    } catch ( IOException e ) {
+      // Unable to move the chunk, it is still intact in its current tier
+      if ( file != null ) {
+        file.delete();
+      }
+      return false;
+    }
+    remove( entry );
+    entry.file = file;
+    add( entry, target, chunk.getBuffer().capacity() );
+    return true;
+  }
+
+  /**
+   * Discard a chunk along with the other chunks of all rows holding it, since those rows can no longer be replayed
+   */
+  private void discard( StoredChunk discarded ) {
+    for ( CachedRows rows : discarded.getOwners() ) {
+      for ( StoredChunk chunk : rows.getChunks() ) {
+        chunk.discard();
+        Entry entry = chunk.getEntry();
+        if ( entry != null ) {
+          remove( entry );
+        }
+      }
+    }
+    discarded.discard();
+    Entry entry = discarded.getEntry();
+    if ( entry != null ) {
+      remove( entry );
+    }
+  }
+
+  private void add( Entry entry, Tier tier, long size ) {
+    entry.tier = tier;
+    entry.size = size;
+    tiers.get( tier ).add( entry );
+    usage.put( tier, usage.get( tier ) + size );
+  }
+
+  private void remove( Entry entry ) {
+    if ( tiers.get( entry.tier ).remove( entry ) ) {
+      usage.put( entry.tier, usage.get( entry.tier ) - entry.size );
+    }
+    if ( entry.file != null ) {
+      entry.file.delete();
+      entry.file = null;
+    }
+  }
+
+  /**
+   * Release storage of chunks whose cache entries have been garbage collected
+   */
+  private void expunge() {
+    for ( Reference<? extends StoredChunk> reference; ( reference = released.poll() ) != null; ) {
+      remove( (Entry) reference );
+    }
+  }
+
+  private long limit( Tier tier ) {
+    Long limit = limits.get( tier );
+    return limit == null ? -1 : limit;
+  }
+
+  private static ByteBuffer encode( StoredChunk chunk ) throws IOException {
+    RowChunk heapChunk = chunk.getHeapChunk();
+    if ( heapChunk == null ) {
+      return chunk.getBuffer().duplicate();
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream( bytes );
+    heapChunk.write( output );
+    output.close();
+    return ByteBuffer.wrap( bytes.toByteArray() );
+  }
+
+  private File writeFile( ByteBuffer bytes ) throws IOException {
+    if ( !directory.isDirectory() && !directory.mkdirs() ) {
+      throw new IOException( "Unable to create cache directory " + directory );
+    }
+    File file = File.createTempFile( FILE_PREFIX, FILE_SUFFIX, directory );
+    RandomAccessFile randomAccessFile = new RandomAccessFile( file, "rw" );
+    try {
+      FileChannel channel = randomAccessFile.getChannel();
+      while ( bytes.hasRemaining() ) {
+        channel.write( bytes );
+      }
+    } finally {
+      randomAccessFile.close();
+    }
+    return file;
+  }
+
+  private static ByteBuffer map( File file ) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile( file, "r" );
+    try {
+      FileChannel channel = randomAccessFile.getChannel();
+      // Mapping stays valid after the channel is closed
+      return channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+    } finally {
+      randomAccessFile.close();
+    }
+  }
+
+  @Override public synchronized String toString() {
+    return Objects.toStringHelper( this )
+      .add( "limits", limits )
+      .add( "usage", usage )
+      .toString();
+  }
+
+  /**
+   * Tracks the storage used by a chunk. Weakly referenced so that chunks of entries dropped from the cache are
+   * collected and their storage released.
+   */
+  final class Entry extends WeakReference<StoredChunk> {
+    private Tier tier;
+    private long size;
+    private File file;
+
+    private Entry( StoredChunk chunk ) {
+      super( chunk, released );
+    }
+  }
+}
@@ -22,7 +22,10 @@
 
 package org.pentaho.di.trans.dataservice.optimization.cache.ui;
 
+import org.pentaho.di.core.Const;
 import org.pentaho.di.trans.dataservice.optimization.PushDownOptimizationMeta;
+import org.pentaho.di.trans.dataservice.optimization.cache.CacheBudget;
+import org.pentaho.di.trans.dataservice.optimization.cache.CacheStatistics;
 import org.pentaho.di.trans.dataservice.optimization.cache.ServiceCache;
 import org.pentaho.di.trans.dataservice.optimization.cache.ServiceCacheFactory;
 import org.pentaho.di.trans.dataservice.ui.controller.AbstractController;
@@ -30,8 +33,10 @@ import org.pentaho.di.trans.dataservice.ui.model.DataServiceModel;
 import org.pentaho.ui.xul.binding.Binding;
 import org.pentaho.ui.xul.binding.BindingFactory;
 import org.pentaho.ui.xul.components.XulCheckbox;
+import org.pentaho.ui.xul.components.XulLabel;
 import org.pentaho.ui.xul.components.XulTextbox;
 
+import java.text.MessageFormat;
 import java.util.List;
 
 import static org.pentaho.di.trans.dataservice.ui.BindingConverters.not;
@@ -50,6 +55,43 @@ public class ServiceCacheController extends AbstractController {
 
   public void initBindings( DataServiceModel model ) {
     initBindings( locateServiceCacheMeta( model ) );
+    showCacheSize( Const.NVL( model.getServiceName(), "" ) );
+    showStatistics( Const.NVL( model.getServiceName(), "" ) );
+  }
+
+  /**
+   * Display the estimated memory held by the cache of a data service
+   */
+  public void showCacheSize( String serviceName ) {
+    XulLabel size = getElementById( "service-cache-size" );
+    CacheBudget budget = factory.getBudget();
+    String value = MessageFormat.format( "{0} in {1} entries", formatSize( budget.getSize( serviceName ) ),
+      budget.getEntryCount( serviceName ) );
+    long maxSize = budget.getMaxSize( serviceName );
+    if ( maxSize > 0 ) {
+      value += MessageFormat.format( " (limit {0})", formatSize( maxSize ) );
+    }
+    size.setValue( value );
+  }
+
+  /**
+   * Display how often the cache of a data service has answered queries
+   */
+  public void showStatistics( String serviceName ) {
+    XulLabel label = getElementById( "service-cache-statistics" );
+    CacheStatistics.Counters counters = factory.getStatistics().getCounters( serviceName );
+    label.setValue( MessageFormat.format( "{0} hits, {1} misses ({2,number,percent} hit rate), "
+        + "{3} rows replayed in {4} ms",
+      counters.getHits(), counters.getMisses(), counters.getHitRatio(), counters.getReplayedRows(),
+      counters.getReplayTime() ) );
+  }
+
+  static String formatSize( long bytes ) {
+    if ( bytes < 1024 ) {
+      return bytes + " B";
+    }
+    int unit = (int) ( Math.log( bytes ) / Math.log( 1024 ) );
+    return String.format( "%.1f %sB", bytes / Math.pow( 1024, unit ), "KMGTPE".charAt( unit - 1 ) );
   }
 
   public void initBindings( PushDownOptimizationMeta meta ) {
@@ -73,6 +115,37 @@ public class ServiceCacheController extends AbstractController {
 
     ttl.setDisabled( !meta.isEnabled() );
     bindingFactory.createBinding( checkbox, "checked", ttl, "disabled", not() );
+
+    XulCheckbox refresh = getElementById( "service-cache-refresh" );
+    XulTextbox grace = getElementById( "service-cache-grace" );
+
+    refresh.setChecked( serviceCache.isRefreshAhead() );
+    bindingFactory.createBinding( refresh, "checked", serviceCache, "refreshAhead" );
+    refresh.setDisabled( !meta.isEnabled() );
+    bindingFactory.createBinding( checkbox, "checked", refresh, "disabled", not() );
+
+    grace.setValue( Const.NVL( serviceCache.getGracePeriod(), "" ) );
+    bindingFactory.createBinding( grace, "value", serviceCache, "gracePeriod" );
+    grace.setDisabled( !meta.isEnabled() || !serviceCache.isRefreshAhead() );
+    bindingFactory.createBinding( refresh, "checked", grace, "disabled", not() );
+
+    XulTextbox highWaterMark = getElementById( "service-cache-high-water-mark" );
+    highWaterMark.setValue( Const.NVL( serviceCache.getHighWaterMark(), "" ) );
+    bindingFactory.createBinding( highWaterMark, "value", serviceCache, "highWaterMark" );
+    highWaterMark.setDisabled( !meta.isEnabled() || !serviceCache.isRefreshAhead() );
+    bindingFactory.createBinding( refresh, "checked", highWaterMark, "disabled", not() );
+
+    XulTextbox indexedColumns = getElementById( "service-cache-indexed-columns" );
+    indexedColumns.setValue( Const.NVL( serviceCache.getIndexedColumns(), "" ) );
+    bindingFactory.createBinding( indexedColumns, "value", serviceCache, "indexedColumns" );
+    indexedColumns.setDisabled( !meta.isEnabled() );
+    bindingFactory.createBinding( checkbox, "checked", indexedColumns, "disabled", not() );
+
+    XulTextbox compressedColumns = getElementById( "service-cache-compressed-columns" );
+    compressedColumns.setValue( Const.NVL( serviceCache.getCompressedColumns(), "" ) );
+    bindingFactory.createBinding( compressedColumns, "value", serviceCache, "compressedColumns" );
+    compressedColumns.setDisabled( !meta.isEnabled() );
+    bindingFactory.createBinding( checkbox, "checked", compressedColumns, "disabled", not() );
   }
 
   /**
@@ -75,14 +75,21 @@ public class DataServiceMetaStoreUtil {
   private static final HashFunction hashFunction = Hashing.goodFastHash( Integer.SIZE );
   protected final DataServiceContext context;
   protected final Cache<Integer, String> stepCache;
+  protected final TransMetaCache transMetaCache;
 
   public DataServiceMetaStoreUtil( DataServiceContext context, Cache<Integer, String> cache ) {
+    this( context, cache, new TransMetaCache() );
+  }
+
+  public DataServiceMetaStoreUtil( DataServiceContext context, Cache<Integer, String> cache,
+                                   TransMetaCache transMetaCache ) {
     this.context = context;
     this.stepCache = cache;
+    this.transMetaCache = transMetaCache;
   }
 
   protected DataServiceMetaStoreUtil( DataServiceMetaStoreUtil metaStoreUtil ) {
-    this( metaStoreUtil.context, metaStoreUtil.stepCache );
+    this( metaStoreUtil.context, metaStoreUtil.stepCache, metaStoreUtil.transMetaCache );
   }
 
   public static DataServiceMetaStoreUtil create( DataServiceContext context ) {
@@ -95,6 +102,10 @@ public class DataServiceMetaStoreUtil {
       createCache( name, Integer.class, String.class );
   }
 
+  /**
+   * Locate a published data service. Service transformations are cloned from {@link TransMetaCache} while unchanged,
+   * so the returned {@link DataServiceMeta#getServiceTrans()} belongs to the caller.
+   */
   public DataServiceMeta getDataService( String serviceName, Repository repository, IMetaStore metaStore )
     throws MetaStoreException {
     ServiceTrans transReference = getServiceTransFactory( metaStore ).loadElement( serviceName );
@@ -174,7 +185,7 @@ public class DataServiceMetaStoreUtil {
         return Suppliers.memoize( new Supplier<TransMeta>() {
           @Override public TransMeta get() {
             try {
-              return reference.load( repository );
+              return transMetaCache.load( reference, repository );
             } catch ( KettleException e ) {
               exceptionHandler.apply( e );
               return null;
@@ -289,6 +300,7 @@ public class DataServiceMetaStoreUtil {
     // Save to embedded MetaStore
     getDataServiceFactory( transMeta ).saveElement( dataService );
     transMeta.setChanged();
+    TransMetaVersion.invalidate( transMeta );
   }
 
   public void removeDataService( DataServiceMeta dataService ) {
@@ -299,6 +311,7 @@ public class DataServiceMetaStoreUtil {
         stepCache.replace( key, dataService.getName(), "" );
       }
       transMeta.setChanged();
+      TransMetaVersion.invalidate( transMeta );
     } catch ( MetaStoreException e ) {
       getLogChannel().logBasic( e.getMessage() );
     }
@@ -425,6 +438,10 @@ public class DataServiceMetaStoreUtil {
     return Maps.asMap( keys, Functions.constant( dataService.getName() ) );
   }
 
+  public TransMetaCache getTransMetaCache() {
+    return transMetaCache;
+  }
+
   public LogChannelInterface getLogChannel() {
     return context.getLogChannel();
   }
@@ -29,17 +29,23 @@ import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
 import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleFileException;
+import org.pentaho.di.core.vfs.KettleVFS;
 import org.pentaho.di.repository.ObjectId;
 import org.pentaho.di.repository.Repository;
 import org.pentaho.di.repository.RepositoryDirectoryInterface;
+import org.pentaho.di.repository.RepositoryObject;
+import org.pentaho.di.repository.RepositoryObjectType;
 import org.pentaho.di.repository.StringObjectId;
 import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.dataservice.DataServiceMeta;
 import org.pentaho.metastore.persist.MetaStoreAttribute;
 import org.pentaho.metastore.persist.MetaStoreElementType;
 
-import java.io.File;
+import java.util.Date;
 import java.util.List;
 import java.util.Set;
 
@@ -191,19 +197,50 @@ public class ServiceTrans implements MetaStoreElement {
     public TransMeta load( Repository repository ) throws KettleException {
       return method.load( repository, location );
     }
+
+    public String revision( Repository repository ) throws KettleException {
+      return method.revision( repository, location );
+    }
   }
   public enum StorageMethod {
     FILE {
       @Override public boolean exists( Repository repository, String location ) {
-        return !Strings.isNullOrEmpty( location ) && new File( location ).exists();
+        try {
+          return !Strings.isNullOrEmpty( location ) && KettleVFS.fileExists( location );
+        } catch ( KettleFileException e ) {
+          return false;
+        }
       }
 
       @Override public TransMeta load( Repository repository, String location ) throws KettleException {
         return new TransMeta( location );
       }
+
+      @Override public String revision( Repository repository, String location ) throws KettleException {
+        if ( Strings.isNullOrEmpty( location ) ) {
+          return null;
+        }
+        // Locations may be any VFS URL, as when loading
+        FileObject fileObject = KettleVFS.getFileObject( location );
+        try {
+          long lastModified = fileObject.exists() ? fileObject.getContent().getLastModifiedTime() : 0;
+          return lastModified > 0 ? String.valueOf( lastModified ) : null;
+        } catch ( FileSystemException e ) {
+          // File system does not track modification times
+          return null;
+        }
+      }
     },
     REPO_PATH {
       @Override public TransMeta load( Repository repository, String location ) throws KettleException {
+        return repository.loadTransformation( getObjectId( repository, location ), null );
+      }
+
+      @Override public String revision( Repository repository, String location ) throws KettleException {
+        return getRevision( repository, getObjectId( repository, location ) );
+      }
+
+      private ObjectId getObjectId( Repository repository, String location ) throws KettleException {
         String path;
         String name;
 
@@ -221,20 +258,42 @@ public class ServiceTrans implements MetaStoreElement {
         if ( rd == null ) {
           rd = root; // root
         }
-        return repository.loadTransformation( repository.getTransformationID( name, rd ), null );
+        return repository.getTransformationID( name, rd );
       }
     },
     REPO_ID {
       @Override public TransMeta load( Repository repository, String location ) throws KettleException {
         return repository.loadTransformation( new StringObjectId( location ), null );
       }
+
+      @Override public String revision( Repository repository, String location ) throws KettleException {
+        return getRevision( repository, new StringObjectId( location ) );
+      }
     };
 
     public abstract TransMeta load( Repository repository, String location ) throws KettleException;
 
+    /**
+     * Determine the currently stored revision of a transformation, without loading it.
+     *
+     * @return a token that changes whenever the stored transformation changes,
+     * or <code>null</code> if the revision can not be determined
+     */
+    public abstract String revision( Repository repository, String location ) throws KettleException;
+
     public boolean exists( Repository repository, String location ) {
       // Assume true, unless we know otherwise.
       return true;
     }
+
+    private static String getRevision( Repository repository, ObjectId objectId ) throws KettleException {
+      if ( objectId == null ) {
+        return null;
+      }
+      RepositoryObject objectInformation =
+        repository.getObjectInformation( objectId, RepositoryObjectType.TRANSFORMATION );
+      Date modifiedDate = objectInformation != null ? objectInformation.getModifiedDate() : null;
+      return modifiedDate != null ? objectId.getId() + "@" + modifiedDate.getTime() : null;
+    }
   }
 }
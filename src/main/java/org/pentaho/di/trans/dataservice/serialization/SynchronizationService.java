@@ -23,9 +23,11 @@ public class SynchronizationService implements ContentChangedListener, StepMetaC
   }
 
   @Override public void contentChanged( Object parentObject ) {
+    TransMetaVersion.invalidate( (TransMeta) parentObject );
   }
 
   @Override public void contentSafe( Object parentObject ) {
+    TransMetaVersion.invalidate( (TransMeta) parentObject );
     delegate.sync( (TransMeta) parentObject, syncErrors() );
   }
 
@@ -0,0 +1,122 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.serialization;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.repository.Repository;
+import org.pentaho.di.trans.TransMeta;
+
+/**
+ * Bounded cache of loaded service transformations, keyed by {@link ServiceTrans.Reference}.
+ * <p>
+ * A cached transformation is only reused while its stored revision (file modification time or repository
+ * revision) is unchanged. Cached transformations are never handed out, each caller gets its own clone which it may
+ * modify, e.g. by activating parameters.
+ * </p>
+ */
+public class TransMetaCache {
+  public static final int DEFAULT_SIZE = 100;
+
+  private final Cache<ServiceTrans.Reference, Entry> cache;
+
+  public TransMetaCache() {
+    this( DEFAULT_SIZE );
+  }
+
+  public TransMetaCache( long maximumSize ) {
+    cache = CacheBuilder.newBuilder().maximumSize( maximumSize ).build();
+  }
+
+  /**
+   * Load a transformation, reusing a cached copy if the stored transformation has not changed since it was loaded.
+   *
+   * @param reference  location of the transformation
+   * @param repository repository to load from, may be null for file references
+   * @return the loaded transformation, a copy owned by the caller
+   * @throws KettleException if the transformation could not be loaded
+   */
+  public TransMeta load( ServiceTrans.Reference reference, Repository repository ) throws KettleException {
+    String revision;
+    try {
+      revision = reference.revision( repository );
+    } catch ( KettleException e ) {
+      // Revision is unknown, fall back to loading the transformation
+      revision = null;
+    }
+
+    Entry entry = cache.getIfPresent( reference );
+    if ( entry != null && entry.isValid( repository, revision ) ) {
+      return copy( reference, entry );
+    }
+
+    TransMeta transMeta = reference.load( repository );
+    if ( revision != null && transMeta != null ) {
+      entry = new Entry( transMeta, repository, revision );
+      cache.put( reference, entry );
+      return copy( reference, entry );
+    }
+    cache.invalidate( reference );
+    return transMeta;
+  }
+
+  /**
+   * Clone a cached transformation, keeping the version stamp of its stored revision
+   */
+  private static TransMeta copy( ServiceTrans.Reference reference, Entry entry ) {
+    TransMeta copy = (TransMeta) entry.transMeta.realClone( false );
+    TransMetaVersion.loaded( copy, reference, entry.revision );
+    return copy;
+  }
+
+  public void invalidate( ServiceTrans.Reference reference ) {
+    cache.invalidate( reference );
+  }
+
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  public long size() {
+    return cache.size();
+  }
+
+  private static class Entry {
+    private final TransMeta transMeta;
+    private final Repository repository;
+    private final String revision;
+
+    Entry( TransMeta transMeta, Repository repository, String revision ) {
+      this.transMeta = transMeta;
+      this.repository = repository;
+      this.revision = revision;
+    }
+
+    boolean isValid( Repository repository, String revision ) {
+      return this.repository == repository && revision != null && Objects.equal( this.revision, revision );
+    }
+  }
+}
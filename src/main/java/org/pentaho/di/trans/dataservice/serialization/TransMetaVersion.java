@@ -0,0 +1,92 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.serialization;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.trans.TransMeta;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Version stamps for service transformations.
+ * <p>
+ * A stamp is computed once per {@link TransMeta} instance, either from the stored revision when the transformation
+ * is loaded or from its XML on first use, and is kept until the transformation changes. Anything keyed on the
+ * contents of a service transformation (e.g. service cache keys) should read this stamp instead of serializing
+ * the transformation again.
+ * </p>
+ */
+public final class TransMetaVersion {
+  private static final HashFunction hashFunction = Hashing.murmur3_128();
+  private static final Cache<TransMeta, Long> versions = CacheBuilder.newBuilder().weakKeys().build();
+
+  private TransMetaVersion() {
+  }
+
+  /**
+   * @return the current version stamp of a transformation, computed from its XML if not yet known
+   */
+  public static long get( final TransMeta transMeta ) {
+    try {
+      return versions.get( transMeta, new Callable<Long>() {
+        @Override public Long call() throws KettleException {
+          return hashFunction.hashString( transMeta.getXML(), Charsets.UTF_8 ).asLong();
+        }
+      } );
+    } catch ( ExecutionException e ) {
+      // Something has gone horribly wrong.
+      // If data service is executing, the transformation was loaded and should be serializable
+      throw new IllegalStateException( "Unable to determine version of transMeta", e.getCause() );
+    }
+  }
+
+  /**
+   * Assign a version stamp derived from the stored revision of a freshly loaded transformation.
+   *
+   * @param transMeta loaded transformation
+   * @param reference location the transformation was loaded from
+   * @param revision  stored revision, as reported by {@link ServiceTrans.Reference#revision}
+   */
+  public static void loaded( TransMeta transMeta, ServiceTrans.Reference reference, String revision ) {
+    long version = hashFunction.newHasher()
+      .putString( String.valueOf( reference.getMethod() ), Charsets.UTF_8 )
+      .putString( String.valueOf( reference.getLocation() ), Charsets.UTF_8 )
+      .putString( revision, Charsets.UTF_8 )
+      .hash().asLong();
+    versions.put( transMeta, version );
+  }
+
+  /**
+   * Discard the version stamp of a modified transformation. A new stamp will be computed on next use.
+   */
+  public static void invalidate( TransMeta transMeta ) {
+    versions.invalidate( transMeta );
+  }
+}
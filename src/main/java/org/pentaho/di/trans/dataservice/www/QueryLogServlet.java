@@ -0,0 +1,145 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.www;
+
+import com.google.common.net.MediaType;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.annotations.CarteServlet;
+import org.pentaho.di.trans.dataservice.DataServiceContext;
+import org.pentaho.di.trans.dataservice.execution.QueryLog;
+import org.pentaho.di.trans.dataservice.execution.QueryRecord;
+import org.pentaho.di.www.BaseHttpServlet;
+import org.pentaho.di.www.CartePluginInterface;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * This servlet lists recently executed data service queries, with timings for each phase of the query. Posting
+ * updates the slow query threshold or clears the log.
+ *
+ * @see QueryLog
+ */
+@CarteServlet(
+  id = "ds_queryLog",
+  name = "PDI Data Service: Query log",
+  description = "List recent data service queries with phase timings"
+)
+public class QueryLogServlet extends BaseHttpServlet implements CartePluginInterface {
+  private static final long serialVersionUID = -5296563398374364718L;
+
+  public static final String CONTEXT_PATH = "/dataServiceQueryLog";
+  public static final String SLOW_QUERY_THRESHOLD_PARAMETER = "slowQueryThreshold";
+  public static final String CLEAR_PARAMETER = "clear";
+
+  private final QueryLog queryLog;
+
+  public QueryLogServlet( DataServiceContext context ) {
+    this.queryLog = context.getQueryLog();
+  }
+
+  public void doPut( HttpServletRequest request, HttpServletResponse response ) throws ServletException, IOException {
+    doPost( request, response );
+  }
+
+  public void doGet( HttpServletRequest request, HttpServletResponse response ) throws ServletException, IOException {
+    if ( isJettyMode() && !request.getContextPath().startsWith( CONTEXT_PATH ) ) {
+      return;
+    }
+    writeLog( response, false );
+  }
+
+  public void doPost( HttpServletRequest request, HttpServletResponse response ) throws ServletException, IOException {
+    if ( isJettyMode() && !request.getContextPath().startsWith( CONTEXT_PATH ) ) {
+      return;
+    }
+
+    String threshold = request.getParameter( SLOW_QUERY_THRESHOLD_PARAMETER );
+    if ( !Const.isEmpty( threshold ) ) {
+      queryLog.setSlowQueryThreshold( Const.toLong( threshold, queryLog.getSlowQueryThreshold() ) );
+    }
+    writeLog( response, "Y".equalsIgnoreCase( request.getParameter( CLEAR_PARAMETER ) ) );
+  }
+
+  /**
+   * @param clear true to clear the log once its records are listed
+   */
+  @SuppressWarnings( "unchecked" )
+  private void writeLog( HttpServletResponse response, boolean clear ) throws IOException {
+    JSONArray queries = new JSONArray();
+    for ( QueryRecord record : queryLog.getRecords() ) {
+      queries.add( toJSON( record ) );
+    }
+    if ( clear ) {
+      queryLog.clear();
+    }
+
+    JSONObject result = new JSONObject();
+    result.put( "slowQueryThreshold", queryLog.getSlowQueryThreshold() );
+    result.put( "capacity", queryLog.getCapacity() );
+    result.put( "queries", queries );
+
+    response.setStatus( HttpServletResponse.SC_OK );
+    response.setContentType( MediaType.JSON_UTF_8.toString() );
+    response.getWriter().print( result.toJSONString() );
+  }
+
+  @SuppressWarnings( "unchecked" )
+  static JSONObject toJSON( QueryRecord record ) {
+    JSONObject phases = new JSONObject();
+    for ( Map.Entry<QueryRecord.Phase, Long> phase : record.getPhaseNanos().entrySet() ) {
+      phases.put( phase.getKey().name(), phase.getValue() );
+    }
+
+    JSONObject json = new JSONObject();
+    json.put( "serviceName", record.getServiceName() );
+    json.put( "sql", record.getSql() );
+    json.put( "startTime", record.getStartTime() );
+    json.put( "durationMillis", record.getDurationMillis() );
+    json.put( "rows", record.getRows() );
+    json.put( "bytes", record.getBytes() );
+    json.put( "replayedRows", record.getReplayedRows() );
+    json.put( "replayThroughput", record.getReplayThroughput() );
+    json.put( "failed", record.isFailed() );
+    json.put( "phaseNanos", phases );
+    return json;
+  }
+
+  public String toString() {
+    return "Data service query log";
+  }
+
+  public String getService() {
+    return CONTEXT_PATH + " (" + toString() + ")";
+  }
+
+  public String getContextPath() {
+    return CONTEXT_PATH;
+  }
+}
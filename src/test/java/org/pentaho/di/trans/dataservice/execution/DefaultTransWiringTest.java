@@ -0,0 +1,232 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.execution;
+
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.trans.RowProducer;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.dataservice.DataServiceExecutor;
+import org.pentaho.di.trans.dataservice.DataServiceMeta;
+import org.pentaho.di.trans.step.RowListener;
+import org.pentaho.di.trans.step.StepInterface;
+import org.pentaho.di.trans.step.StepListener;
+import org.pentaho.di.trans.step.StepMeta;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith( MockitoJUnitRunner.class )
+public class DefaultTransWiringTest {
+  private static final String SERVICE_STEP = "Service Output";
+  private static final String RESULT_STEP = "Result";
+
+  @Mock DataServiceExecutor executor;
+  @Mock DataServiceMeta service;
+  @Mock Trans serviceTrans;
+  @Mock Trans genTrans;
+  @Mock StepInterface serviceStep;
+  @Mock StepInterface resultStep;
+  @Mock RowProducer rowProducer;
+  @Mock LogChannelInterface logChannel;
+  @Mock StepMeta stepMeta;
+
+  private SettableFuture<Void> resume;
+  private RowMetaInterface rowMeta;
+  private ExecutorService serviceThread;
+
+  @Before
+  public void setUp() throws Exception {
+    when( executor.getService() ).thenReturn( service );
+    when( executor.getServiceTrans() ).thenReturn( serviceTrans );
+    when( executor.getGenTrans() ).thenReturn( genTrans );
+    when( executor.getResultStepName() ).thenReturn( RESULT_STEP );
+    when( service.getStepname() ).thenReturn( SERVICE_STEP );
+    when( serviceTrans.findRunThread( SERVICE_STEP ) ).thenReturn( serviceStep );
+    when( serviceTrans.getLogChannel() ).thenReturn( logChannel );
+    when( genTrans.findRunThread( RESULT_STEP ) ).thenReturn( resultStep );
+    when( genTrans.isRunning() ).thenReturn( true );
+    when( rowProducer.putRowWait( any( RowMetaInterface.class ), any( Object[].class ), anyLong(),
+      any( TimeUnit.class ) ) ).thenReturn( true );
+
+    resume = SettableFuture.create();
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMeta( "ID", ValueMetaInterface.TYPE_INTEGER ) );
+    // Rows and step events arrive on the service step's own thread
+    serviceThread = Executors.newSingleThreadExecutor();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    serviceThread.shutdownNow();
+  }
+
+  @Test
+  public void testWiring() throws Exception {
+    new DefaultTransWiring( executor ).run();
+    verify( executor ).addRowProducer();
+    verify( serviceStep ).addRowListener( any( RowListener.class ) );
+    verify( serviceStep ).addStepListener( any( StepListener.class ) );
+
+    StepListener resultListener = captureStepListener( resultStep );
+    when( serviceTrans.isRunning() ).thenReturn( true );
+    resultListener.stepFinished( genTrans, stepMeta, resultStep );
+    verify( serviceTrans ).stopAll();
+  }
+
+  @Test
+  public void testSkipRows() throws Exception {
+    resume.set( null );
+    new DefaultTransWiring( executor, 2, resume, rowProducer ).run();
+    verify( executor, never() ).addRowProducer();
+    RowListener rowListener = captureRowListener();
+
+    Object[] first = { 0L }, second = { 1L }, third = { 2L };
+    rowListener.rowWrittenEvent( rowMeta, first );
+    rowListener.rowWrittenEvent( rowMeta, second );
+    rowListener.rowWrittenEvent( rowMeta, third );
+
+    verify( rowProducer, never() ).putRowWait( any( RowMetaInterface.class ), same( first ), anyLong(),
+      any( TimeUnit.class ) );
+    verify( rowProducer, never() ).putRowWait( any( RowMetaInterface.class ), same( second ), anyLong(),
+      any( TimeUnit.class ) );
+    verify( rowProducer ).putRowWait( same( rowMeta ), same( third ), anyLong(), any( TimeUnit.class ) );
+  }
+
+  @Test
+  public void testRowsHeldUntilResumed() throws Exception {
+    new DefaultTransWiring( executor, 0, resume, rowProducer ).run();
+    final RowListener rowListener = captureRowListener();
+
+    final Object[] row = { 0L };
+    Future<Void> written = serviceThread.submit( new Callable<Void>() {
+      @Override public Void call() throws Exception {
+        rowListener.rowWrittenEvent( rowMeta, row );
+        return null;
+      }
+    } );
+    assertBlocked( written );
+    verify( rowProducer, never() ).putRowWait( any( RowMetaInterface.class ), any( Object[].class ), anyLong(),
+      any( TimeUnit.class ) );
+
+    resume.set( null );
+    written.get( 5, TimeUnit.SECONDS );
+    verify( rowProducer ).putRowWait( same( rowMeta ), same( row ), anyLong(), any( TimeUnit.class ) );
+
+    // Later rows pass without waiting
+    rowListener.rowWrittenEvent( rowMeta, row );
+    verify( rowProducer, times( 2 ) ).putRowWait( same( rowMeta ), same( row ), anyLong(), any( TimeUnit.class ) );
+  }
+
+  @Test
+  public void testResumeFailed() throws Exception {
+    new DefaultTransWiring( executor, 0, resume, rowProducer ).run();
+    RowListener rowListener = captureRowListener();
+    KettleException failure = new KettleException( "Unable to replay" );
+    resume.setException( failure );
+
+    try {
+      rowListener.rowWrittenEvent( rowMeta, new Object[] { 0L } );
+      fail( "Rows can't be passed after the resume failed" );
+    } catch ( KettleStepException e ) {
+      assertThat( e.getCause(), is( sameInstance( (Throwable) failure ) ) );
+    }
+    verify( rowProducer, never() ).putRowWait( any( RowMetaInterface.class ), any( Object[].class ), anyLong(),
+      any( TimeUnit.class ) );
+
+    // Generated transformation still finishes
+    captureStepListener( serviceStep ).stepFinished( serviceTrans, stepMeta, serviceStep );
+    verify( rowProducer ).finished();
+  }
+
+  @Test
+  public void testFinishedAfterResumed() throws Exception {
+    new DefaultTransWiring( executor, 0, resume, rowProducer ).run();
+    final StepListener stepListener = captureStepListener( serviceStep );
+
+    Future<Void> finished = serviceThread.submit( new Callable<Void>() {
+      @Override public Void call() throws Exception {
+        stepListener.stepFinished( serviceTrans, stepMeta, serviceStep );
+        return null;
+      }
+    } );
+    assertBlocked( finished );
+    verify( rowProducer, never() ).finished();
+
+    resume.set( null );
+    finished.get( 5, TimeUnit.SECONDS );
+    verify( rowProducer ).finished();
+  }
+
+  private RowListener captureRowListener() {
+    ArgumentCaptor<RowListener> captor = ArgumentCaptor.forClass( RowListener.class );
+    verify( serviceStep ).addRowListener( captor.capture() );
+    return captor.getValue();
+  }
+
+  private StepListener captureStepListener( StepInterface step ) {
+    ArgumentCaptor<StepListener> captor = ArgumentCaptor.forClass( StepListener.class );
+    verify( step ).addStepListener( captor.capture() );
+    return captor.getValue();
+  }
+
+  private static void assertBlocked( Future<?> future ) throws InterruptedException, ExecutionException {
+    try {
+      future.get( 100, TimeUnit.MILLISECONDS );
+      fail( "Expected to wait for the resume" );
+    } catch ( TimeoutException e ) {
+      assertThat( future.isDone(), is( false ) );
+    }
+  }
+}
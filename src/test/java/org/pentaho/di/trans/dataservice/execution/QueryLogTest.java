@@ -0,0 +1,110 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.execution;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.pentaho.di.core.logging.LogChannelInterface;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasKey;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+@RunWith( MockitoJUnitRunner.class )
+public class QueryLogTest {
+  @Mock LogChannelInterface logChannel;
+
+  @Test
+  public void testRingBuffer() throws Exception {
+    QueryLog queryLog = new QueryLog( logChannel, 2, 0 );
+    QueryRecord first = queryLog.newRecord( "SELECT 1" );
+    QueryRecord second = queryLog.newRecord( "SELECT 2" );
+    QueryRecord third = queryLog.newRecord( "SELECT 3" );
+
+    assertThat( queryLog.getRecords(), is( empty() ) );
+    first.finished();
+    second.finished();
+    second.finished();
+    assertThat( queryLog.getRecords(), contains( first, second ) );
+
+    third.finished();
+    assertThat( queryLog.getRecords(), contains( second, third ) );
+
+    queryLog.clear();
+    assertThat( queryLog.getRecords(), is( empty() ) );
+    verify( logChannel, never() ).logBasic( anyString() );
+  }
+
+  @Test
+  public void testSlowQuery() throws Exception {
+    QueryLog queryLog = new QueryLog( logChannel, 10, 1 );
+    QueryRecord record = queryLog.newRecord( "SELECT * FROM slow" );
+    Thread.sleep( 5 );
+    record.finished();
+
+    verify( logChannel ).logBasic( "Slow data service query: " + record );
+  }
+
+  @Test
+  public void testPhases() throws Exception {
+    QueryRecord record = new QueryRecord( "SELECT * FROM service" );
+    record.record( QueryRecord.Phase.SQL_PARSE, 10 );
+    record.record( QueryRecord.Phase.SQL_PARSE, 5 );
+    record.executionStarted();
+    record.rowWritten();
+    record.rowWritten();
+    record.addBytes( 100 );
+    record.finished();
+
+    assertThat( record.getPhaseNanos().get( QueryRecord.Phase.SQL_PARSE ), is( 15L ) );
+    assertThat( record.getPhaseNanos(), hasKey( QueryRecord.Phase.FIRST_ROW ) );
+    assertThat( record.getPhaseNanos(), hasKey( QueryRecord.Phase.STREAMING ) );
+    assertThat( record.getRows(), is( 2L ) );
+    assertThat( record.getBytes(), is( 100L ) );
+    assertThat( record.isFinished(), is( true ) );
+  }
+
+  @Test
+  public void testCacheReplayed() throws Exception {
+    QueryRecord record = new QueryRecord( "SELECT * FROM service" );
+    assertThat( record.getReplayThroughput(), is( 0.0 ) );
+
+    record.cacheReplayed( 500, TimeUnit.MILLISECONDS.toNanos( 100 ) );
+    record.cacheReplayed( 500, TimeUnit.MILLISECONDS.toNanos( 400 ) );
+
+    assertThat( record.getReplayedRows(), is( 1000L ) );
+    assertThat( record.getPhaseNanos().get( QueryRecord.Phase.CACHE_REPLAY ), is( TimeUnit.SECONDS.toNanos( 1 ) / 2 ) );
+    assertThat( record.getReplayThroughput(), closeTo( 2000.0, 0.001 ) );
+  }
+}
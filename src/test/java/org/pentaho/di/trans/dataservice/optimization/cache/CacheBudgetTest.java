@@ -0,0 +1,204 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Answers;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.trans.dataservice.DataServiceExecutor;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith( MockitoJUnitRunner.class )
+public class CacheBudgetTest {
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+  @Mock( answer = Answers.RETURNS_DEEP_STUBS ) DataServiceExecutor executor;
+
+  @Before
+  public void setUp() throws Exception {
+    when( executor.getSql() ).thenReturn( new SQL( "SELECT * FROM service" ) );
+    when( executor.getService().getServiceTrans().getXML() ).thenReturn( "<transformation/>" );
+  }
+
+  @Test
+  public void testServiceLimit() throws Exception {
+    CacheBudget budget = new CacheBudget( 0 );
+    CachedService first = cachedService( 40 ), second = cachedService( 40 ), third = cachedService( 40 );
+    CachedService other = cachedService( 100 );
+
+    assertThat( budget.add( "service", key( 1 ), first, 100 ), is( empty() ) );
+    assertThat( budget.add( "service", key( 2 ), second, 100 ), is( empty() ) );
+    assertThat( budget.add( "other", key( 1 ), other, 100 ), is( empty() ) );
+    assertThat( budget.getSize( "service" ), equalTo( 80L ) );
+    assertThat( budget.getEntryCount( "service" ), equalTo( 2 ) );
+
+    // First entry was used recently, second should be evicted
+    budget.touch( "service", key( 1 ) );
+    CacheBudget.Entry evicted = getOnlyEntry( budget.add( "service", key( 3 ), third, 100 ) );
+    assertThat( evicted.getServiceName(), equalTo( "service" ) );
+    assertThat( evicted.getKey(), equalTo( key( 2 ) ) );
+    assertThat( evicted.getCachedService(), sameInstance( second ) );
+
+    assertThat( budget.getSize( "service" ), equalTo( 80L ) );
+    assertThat( budget.getEvictions( "service" ), equalTo( 1L ) );
+    assertThat( budget.getSize( "other" ), equalTo( 100L ) );
+    assertThat( budget.getSize(), equalTo( 180L ) );
+  }
+
+  @Test
+  public void testGlobalLimit() throws Exception {
+    CacheBudget budget = new CacheBudget( 100 );
+    CachedService first = cachedService( 60 ), second = cachedService( 60 );
+
+    assertThat( budget.add( "service", key( 1 ), first, 0 ), is( empty() ) );
+    CacheBudget.Entry evicted = getOnlyEntry( budget.add( "other", key( 1 ), second, 0 ) );
+
+    assertThat( evicted.getServiceName(), equalTo( "service" ) );
+    assertThat( evicted.getWeight(), equalTo( 60L ) );
+    assertThat( budget.getSize(), equalTo( 60L ) );
+    assertThat( budget.getEvictions(), equalTo( 1L ) );
+    assertThat( budget.getServiceNames(), contains( "other", "service" ) );
+  }
+
+  @Test
+  public void testOversized() throws Exception {
+    CacheBudget budget = new CacheBudget( 0 );
+    CachedService small = cachedService( 10 ), large = cachedService( 200 );
+
+    assertThat( budget.add( "service", key( 1 ), small, 100 ), is( empty() ) );
+    CacheBudget.Entry rejected = getOnlyEntry( budget.add( "service", key( 2 ), large, 100 ) );
+
+    assertThat( rejected.getCachedService(), sameInstance( large ) );
+    assertThat( budget.getSize( "service" ), equalTo( 10L ) );
+    assertThat( budget.getEntryCount( "service" ), equalTo( 1 ) );
+  }
+
+  @Test
+  public void testReweigh() throws Exception {
+    CacheBudget budget = new CacheBudget( 0 );
+    CachedService first = cachedService( 40 ), second = cachedService( 40 );
+
+    budget.add( "service", key( 1 ), first, 100 );
+    budget.add( "service", key( 2 ), second, 100 );
+    assertThat( budget.reweigh( "service", second, 100 ), is( empty() ) );
+
+    // An index grows the second entry, the least recently used entry makes room
+    when( second.getHeapSize() ).thenReturn( 70L );
+    CacheBudget.Entry evicted = getOnlyEntry( budget.reweigh( "service", second, 100 ) );
+    assertThat( evicted.getCachedService(), sameInstance( first ) );
+    assertThat( budget.getSize( "service" ), equalTo( 70L ) );
+    assertThat( getOnlyEntry( budget.getEntries( "service" ) ).getWeight(), equalTo( 70L ) );
+
+    // Entries outgrowing the limit on their own are evicted
+    when( second.getHeapSize() ).thenReturn( 120L );
+    evicted = getOnlyEntry( budget.reweigh( "service", second, 100 ) );
+    assertThat( evicted.getCachedService(), sameInstance( second ) );
+    assertThat( budget.getSize( "service" ), equalTo( 0L ) );
+    assertThat( budget.getEntryCount( "service" ), equalTo( 0 ) );
+    assertThat( budget.getEvictions( "service" ), equalTo( 2L ) );
+  }
+
+  @Test
+  public void testDemotedEntry() throws Exception {
+    RowMeta rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMeta( "id", ValueMetaInterface.TYPE_INTEGER ) );
+    CachedRows.Builder builder = new CachedRows.Builder( 10 );
+    for ( int i = 0; i < 50; i++ ) {
+      builder.add( rowMeta, new Object[] { (long) i } );
+    }
+    CachedService cachedService = CachedService.complete( builder.build() );
+    long heapSize = cachedService.getHeapSize(), maxSize = heapSize * 3 / 2;
+    CacheBudget budget = new CacheBudget( 0 );
+
+    budget.add( "service", key( 1 ), cachedService, maxSize );
+    assertThat( budget.getSize( "service" ), equalTo( heapSize ) );
+
+    // Storage moves all rows off the heap, leaving only their overhead
+    Map<TieredStorage.Tier, Long> limits = new EnumMap<TieredStorage.Tier, Long>( TieredStorage.Tier.class );
+    limits.put( TieredStorage.Tier.HEAP, 0L );
+    limits.put( TieredStorage.Tier.OFF_HEAP, 1024L * 1024 );
+    new TieredStorage( limits, temporaryFolder.getRoot() ).register( cachedService.getRows() );
+    assertThat( budget.reweigh( "service", maxSize ), is( empty() ) );
+    long weight = getOnlyEntry( budget.getEntries( "service" ) ).getWeight();
+    assertThat( weight, lessThan( heapSize ) );
+    assertThat( weight, equalTo( cachedService.getHeapSize() ) );
+    assertThat( budget.getSize( "service" ), equalTo( weight ) );
+
+    // Another entry of the same size fits along with the demoted one
+    assertThat( budget.add( "service", key( 2 ), cachedService( heapSize ), maxSize ), is( empty() ) );
+    assertThat( budget.getEntryCount( "service" ), equalTo( 2 ) );
+  }
+
+  @Test
+  public void testReplaceAndClear() throws Exception {
+    CacheBudget budget = new CacheBudget( 0 );
+
+    budget.add( "service", key( 1 ), cachedService( 10 ), 0 );
+    budget.add( "service", key( 1 ), cachedService( 30 ), 0 );
+    assertThat( budget.getSize( "service" ), equalTo( 30L ) );
+    assertThat( budget.getEntryCount( "service" ), equalTo( 1 ) );
+
+    budget.clear( "service" );
+    assertThat( budget.getSize( "service" ), equalTo( 0L ) );
+    assertThat( budget.getSize(), equalTo( 0L ) );
+  }
+
+  private CachedService.CacheKey key( int id ) {
+    when( executor.getParameters() ).thenReturn( ImmutableMap.of( "id", String.valueOf( id ) ) );
+    return CachedService.CacheKey.create( executor );
+  }
+
+  private static CachedService cachedService( long size ) {
+    CachedService cachedService = mock( CachedService.class );
+    when( cachedService.getHeapSize() ).thenReturn( size );
+    return cachedService;
+  }
+
+  private static CacheBudget.Entry getOnlyEntry( Iterable<CacheBudget.Entry> entries ) {
+    return Iterables.getOnlyElement( entries );
+  }
+}
@@ -0,0 +1,142 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.trans.dataservice.DataServiceExecutor;
+import org.pentaho.di.trans.dataservice.serialization.TransMetaVersion;
+
+import java.util.Map;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CacheSnapshotsTest {
+  private static final String SERVICE_NAME = "dataServiceName";
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private CacheSnapshots snapshots;
+  private CachedService.CacheKey key;
+  private long version;
+  private CachedService cachedService;
+  private LogChannelInterface logChannel;
+
+  @BeforeClass
+  public static void init() throws KettleException {
+    KettleEnvironment.init();
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    snapshots = new CacheSnapshots( temporaryFolder.newFolder() );
+    logChannel = mock( LogChannelInterface.class );
+
+    DataServiceExecutor executor = mock( DataServiceExecutor.class, RETURNS_DEEP_STUBS );
+    when( executor.getSql() ).thenReturn( new SQL( "SELECT * FROM " + SERVICE_NAME ) );
+    when( executor.getParameters() ).thenReturn( ImmutableMap.of( "REGION", "EMEA" ) );
+    when( executor.getService().getServiceTrans().getXML() ).thenReturn( "<transformation/>" );
+    key = CachedService.CacheKey.create( executor ).withoutOrder();
+    version = TransMetaVersion.get( executor.getService().getServiceTrans() );
+
+    RowMeta rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMeta( "string", ValueMetaInterface.TYPE_STRING ) );
+    rowMeta.addValueMeta( new ValueMeta( "integer", ValueMetaInterface.TYPE_INTEGER ) );
+    CachedRows.Builder rows = new CachedRows.Builder( 10 );
+    for ( long i = 0; i < 25; i++ ) {
+      rows.add( rowMeta, new Object[] { i % 5 == 0 ? null : "value " + i % 3, i } );
+    }
+    cachedService = CachedService.complete( rows.build() );
+  }
+
+  @Test
+  public void testSaveAndRestore() throws Exception {
+    snapshots.save( SERVICE_NAME, key, cachedService );
+
+    // As if after a restart
+    CacheSnapshots restarted = new CacheSnapshots( snapshots.getDirectory() );
+    Map<CachedService.CacheKey, CachedService> restored = restarted.restore( SERVICE_NAME, version, logChannel );
+
+    Map.Entry<CachedService.CacheKey, CachedService> entry = Iterables.getOnlyElement( restored.entrySet() );
+    assertThat( entry.getKey(), equalTo( key ) );
+    CachedService restoredService = entry.getValue();
+    assertThat( restoredService.isComplete(), is( true ) );
+    assertThat( restoredService.getTimestamp(), equalTo( cachedService.getTimestamp() ) );
+    assertThat( restoredService.getRows().getChunks().size(), equalTo( 3 ) );
+    for ( StoredChunk chunk : restoredService.getRows().getChunks() ) {
+      assertThat( chunk.getTier(), is( TieredStorage.Tier.DISK ) );
+    }
+    assertThat( restoredService.getRowMetaAndData(), equalTo( cachedService.getRowMetaAndData() ) );
+
+    // Entries are restored once per service
+    assertThat( restarted.claimRestore( SERVICE_NAME ), is( true ) );
+    assertThat( restarted.claimRestore( SERVICE_NAME ), is( false ) );
+  }
+
+  @Test
+  public void testVersionMismatch() throws Exception {
+    snapshots.save( SERVICE_NAME, key, cachedService );
+
+    assertThat( snapshots.restore( SERVICE_NAME, version + 1, logChannel ).isEmpty(), is( true ) );
+    // Outdated snapshot was deleted
+    assertThat( snapshots.restore( SERVICE_NAME, version, logChannel ).isEmpty(), is( true ) );
+  }
+
+  @Test
+  public void testClear() throws Exception {
+    snapshots.save( SERVICE_NAME, key, cachedService );
+    snapshots.save( "other", key, cachedService );
+
+    snapshots.clear( SERVICE_NAME );
+    assertThat( snapshots.restore( SERVICE_NAME, version, logChannel ).isEmpty(), is( true ) );
+    assertThat( snapshots.restore( "other", version, logChannel ).size(), is( 1 ) );
+
+    snapshots.delete( "other", key );
+    assertThat( snapshots.restore( "other", version, logChannel ).isEmpty(), is( true ) );
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void testPartialNotSaved() throws Exception {
+    DataServiceExecutor executor = mock( DataServiceExecutor.class, RETURNS_DEEP_STUBS );
+    when( executor.getSql() ).thenReturn( new SQL( "SELECT * FROM " + SERVICE_NAME + " LIMIT 10" ) );
+    snapshots.save( SERVICE_NAME, key, CachedService.partial( cachedService.getRows(), executor ) );
+  }
+}
@@ -0,0 +1,70 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class CacheStatisticsTest {
+
+  @Test
+  public void testCounters() throws Exception {
+    CacheStatistics statistics = new CacheStatistics();
+    statistics.miss( "service" );
+    statistics.populated( "service", true, 200 );
+    statistics.hit( "service", true );
+    statistics.hit( "service", false );
+    statistics.replayed( "service", 100, 10 );
+    statistics.replayed( "service", 20, 5 );
+    statistics.populated( "other", false, 50 );
+    statistics.admission( "service", true );
+    statistics.admission( "service", false );
+    statistics.admission( "service", false );
+
+    CacheStatistics.Counters counters = statistics.getCounters( "service" );
+    assertThat( counters.getHits(), equalTo( 2L ) );
+    assertThat( counters.getPartialHits(), equalTo( 1L ) );
+    assertThat( counters.getMisses(), equalTo( 1L ) );
+    assertThat( counters.getHitRatio(), equalTo( 2 / 3.0 ) );
+    assertThat( counters.getCompleteEntries(), equalTo( 1L ) );
+    assertThat( counters.getPartialEntries(), equalTo( 0L ) );
+    assertThat( counters.getReplays(), equalTo( 2L ) );
+    assertThat( counters.getReplayedRows(), equalTo( 120L ) );
+    assertThat( counters.getReplayTime(), equalTo( 15L ) );
+    assertThat( counters.getPopulationTime(), equalTo( 200L ) );
+    assertThat( counters.getAdmitted(), equalTo( 1L ) );
+    assertThat( counters.getRejected(), equalTo( 2L ) );
+
+    assertThat( statistics.getCounters( "other" ).getPartialEntries(), equalTo( 1L ) );
+    assertThat( statistics.getCounters( "unknown" ).getHitRatio(), equalTo( 0.0 ) );
+    assertThat( statistics.getServiceNames(), contains( "other", "service" ) );
+
+    // Copies are not updated
+    statistics.miss( "service" );
+    assertThat( counters.getMisses(), equalTo( 1L ) );
+  }
+}
@@ -0,0 +1,166 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.repository.Repository;
+import org.pentaho.di.trans.dataservice.DataServiceMeta;
+import org.pentaho.di.trans.dataservice.execution.QueryLog;
+import org.pentaho.di.trans.dataservice.optimization.PushDownOptimizationMeta;
+import org.pentaho.di.trans.dataservice.serialization.DataServiceMetaStoreUtil;
+import org.pentaho.metastore.api.IMetaStore;
+
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+
+@RunWith( MockitoJUnitRunner.class )
+public class CacheWarmUpTest {
+  private static final String SERVICE_NAME = "dataServiceName";
+
+  @Mock DataServiceMetaStoreUtil metaStoreUtil;
+  @Mock QueryLog queryLog;
+  @Mock ScheduledExecutorService executorService;
+  @Mock LogChannelInterface logChannel;
+  @Mock DataServiceMeta dataServiceMeta;
+
+  private ServiceCache serviceCache;
+  private List<CacheWarmUp.Query> executed;
+  private CacheWarmUp warmUp;
+
+  @Before
+  public void setUp() throws Exception {
+    doAnswer( new Answer<Void>() {
+      @Override public Void answer( InvocationOnMock invocation ) throws Throwable {
+        ( (Runnable) invocation.getArguments()[0] ).run();
+        return null;
+      }
+    } ).when( executorService ).execute( any( Runnable.class ) );
+    when( metaStoreUtil.getLogChannel() ).thenReturn( logChannel );
+
+    serviceCache = new ServiceCache( null );
+    serviceCache.setWarmUpQueries( "REGION=EMEA\nSELECT COUNT(*) FROM \"" + SERVICE_NAME + "\"" );
+    PushDownOptimizationMeta optimizationMeta = new PushDownOptimizationMeta();
+    optimizationMeta.setType( serviceCache );
+    when( dataServiceMeta.getName() ).thenReturn( SERVICE_NAME );
+    when( dataServiceMeta.getPushDownOptimizationMeta() ).thenReturn( ImmutableList.of( optimizationMeta ) );
+    when( metaStoreUtil.getDataService( SERVICE_NAME, null, null ) ).thenReturn( dataServiceMeta );
+
+    executed = Lists.newArrayList();
+    warmUp = new CacheWarmUp( metaStoreUtil, queryLog, executorService ) {
+      @Override void execute( DataServiceMeta service, Query query ) throws KettleException {
+        executed.add( query );
+        if ( query.getParameters().isEmpty() ) {
+          throw new KettleException( "failed" );
+        }
+      }
+    };
+  }
+
+  @Test
+  public void testParseQueries() throws Exception {
+    List<CacheWarmUp.Query> queries = CacheWarmUp.parseQueries( SERVICE_NAME, ""
+      + "# Common regions\n"
+      + "REGION=EMEA & YEAR=2015\n"
+      + "\n"
+      + "  select * from \"" + SERVICE_NAME + "\" where REGION = 'APAC'  \n" );
+
+    assertThat( queries, contains(
+      new CacheWarmUp.Query( "SELECT * FROM \"" + SERVICE_NAME + "\"",
+        ImmutableMap.of( "REGION", "EMEA", "YEAR", "2015" ) ),
+      new CacheWarmUp.Query( "select * from \"" + SERVICE_NAME + "\" where REGION = 'APAC'",
+        ImmutableMap.<String, String>of() )
+    ) );
+    assertThat( CacheWarmUp.parseQueries( SERVICE_NAME, null ), is( empty() ) );
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void testParseInvalidParameters() throws Exception {
+    CacheWarmUp.parseQueries( SERVICE_NAME, "REGION" );
+  }
+
+  @Test
+  public void testWarmUp() throws Exception {
+    assertThat( warmUp.warmUp( SERVICE_NAME ), is( true ) );
+
+    assertThat( executed.size(), is( 2 ) );
+    CacheWarmUp.Progress progress = warmUp.getProgress().get( SERVICE_NAME );
+    assertThat( progress.isRunning(), is( false ) );
+    assertThat( progress.getQueries(), is( 2 ) );
+    assertThat( progress.getCompleted(), is( 2 ) );
+    assertThat( progress.getFailed(), is( 1 ) );
+    assertThat( progress.getLastError(), is( "failed" ) );
+    assertThat( progress.getLastFinished() >= progress.getLastStarted(), is( true ) );
+  }
+
+  @Test
+  public void testDisabled() throws Exception {
+    dataServiceMeta.getPushDownOptimizationMeta().get( 0 ).setEnabled( false );
+
+    assertThat( warmUp.warmUp( SERVICE_NAME ), is( false ) );
+    assertThat( executed, is( empty() ) );
+  }
+
+  @Test
+  public void testAfterReset() throws Exception {
+    warmUp.afterReset( SERVICE_NAME );
+    assertThat( executed, is( empty() ) );
+
+    serviceCache.setWarmUpAfterReset( true );
+    warmUp.afterReset( SERVICE_NAME );
+    assertThat( executed.size(), is( 2 ) );
+  }
+
+  @Test
+  public void testStartup() throws Exception {
+    when( metaStoreUtil.getDataServices( any( Repository.class ), any( IMetaStore.class ), any( Function.class ) ) )
+      .thenReturn( ImmutableList.of( dataServiceMeta ) );
+    serviceCache.setWarmUpOnStartup( true );
+    serviceCache.setWarmUpSchedule( "0 2 * * *" );
+
+    warmUp.start( null, null );
+
+    assertThat( executed.size(), is( 2 ) );
+    assertThat( warmUp.getProgress().get( SERVICE_NAME ).getNextRun() > System.currentTimeMillis(), is( true ) );
+  }
+}
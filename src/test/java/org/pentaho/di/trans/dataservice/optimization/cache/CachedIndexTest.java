@@ -0,0 +1,164 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaAndData;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class CachedIndexTest {
+  private RowMeta rowMeta;
+  private CachedRows rows;
+
+  @Before
+  public void setUp() throws Exception {
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMeta( "ID", ValueMetaInterface.TYPE_STRING ) );
+    rowMeta.addValueMeta( new ValueMeta( "A", ValueMetaInterface.TYPE_INTEGER ) );
+    rowMeta.addValueMeta( new ValueMeta( "B", ValueMetaInterface.TYPE_NUMBER ) );
+    rowMeta.addValueMeta( new ValueMeta( "C", ValueMetaInterface.TYPE_DATE ) );
+
+    // 10 chunks with 10 rows each, A repeats every 7 rows
+    CachedRows.Builder builder = new CachedRows.Builder( 10 );
+    for ( long i = 0; i < 100; i++ ) {
+      builder.add( rowMeta, new Object[] { "row " + i, i % 7 == 6 ? null : i % 7, i * 0.5, new Date( 1000L * i ) } );
+    }
+    rows = builder.build();
+  }
+
+  @Test
+  public void testLookup() throws Exception {
+    CachedIndex id = CachedIndex.build( rows, "ID" ).get();
+    assertThat( id.getValueCount(), is( 100 ) );
+    assertThat( id.lookup( values( value( "row 42" ) ) ).get(), equalTo( new int[] { 42 } ) );
+    assertThat( id.lookup( values( value( "row 420" ) ) ).get().length, is( 0 ) );
+
+    CachedIndex a = CachedIndex.build( rows, "A" ).get();
+    // Nulls are not indexed
+    assertThat( a.getValueCount(), is( 6 ) );
+    assertThat( a.lookup( values( value( 5L ) ) ).get(), equalTo( new int[] { 5, 12, 19, 26, 33, 40, 47, 54, 61, 68,
+      75, 82, 89, 96 } ) );
+    // Several values are merged in row order
+    assertThat( a.lookup( values( value( 1L ), value( 2L ), value( 1L ) ) ).get(), equalTo( new int[] { 1, 2, 8, 9,
+      15, 16, 22, 23, 29, 30, 36, 37, 43, 44, 50, 51, 57, 58, 64, 65, 71, 72, 78, 79, 85, 86, 92, 93, 99 } ) );
+    // Plain integers written as strings are converted, anything else is not looked up
+    assertThat( a.lookup( values( value( "0" ) ) ).get().length, is( 15 ) );
+    assertThat( a.lookup( values( value( "1,000" ) ) ).isPresent(), is( false ) );
+
+    CachedIndex c = CachedIndex.build( rows, "C" ).get();
+    assertThat( c.lookup( values( value( new Date( 7000L ) ) ) ).get(), equalTo( new int[] { 7 } ) );
+  }
+
+  @Test
+  public void testUnsupported() throws Exception {
+    // Numbers are not compared exactly, missing columns can not be indexed
+    assertThat( CachedIndex.build( rows, "B" ).isPresent(), is( false ) );
+    assertThat( CachedIndex.build( rows, "D" ).isPresent(), is( false ) );
+
+    ValueMeta caseInsensitive = new ValueMeta( "ID", ValueMetaInterface.TYPE_STRING );
+    caseInsensitive.setCaseInsensitive( true );
+    assertThat( CachedIndex.supports( caseInsensitive ), is( false ) );
+  }
+
+  @Test
+  public void testLazyConversion() throws Exception {
+    // Lazy conversion keeps the raw bytes read from a file, a converted lookup value would never match them
+    ValueMeta lazy = new ValueMeta( "ID", ValueMetaInterface.TYPE_STRING );
+    lazy.setStorageType( ValueMetaInterface.STORAGE_TYPE_BINARY_STRING );
+    lazy.setStorageMetadata( new ValueMeta( "ID", ValueMetaInterface.TYPE_STRING ) );
+    RowMeta lazyMeta = new RowMeta();
+    lazyMeta.addValueMeta( lazy );
+    CachedRows lazyRows = new CachedRows.Builder( 10 )
+      .add( lazyMeta, new Object[] { "row 1".getBytes( "UTF-8" ) } )
+      .build();
+
+    assertThat( CachedIndex.supports( lazy ), is( false ) );
+    assertThat( CachedIndex.build( lazyRows, "ID" ).isPresent(), is( false ) );
+    // Queries scan the rows instead
+    assertThat( CachedService.complete( lazyRows ).getIndex( "ID", true ).isPresent(), is( false ) );
+  }
+
+  @Test
+  public void testAutoIndex() throws Exception {
+    CachedService cachedService = CachedService.complete( rows );
+    for ( int i = 1; i < CachedService.AUTO_INDEX_LOOKUPS; i++ ) {
+      assertThat( cachedService.getIndex( "A", false ).isPresent(), is( false ) );
+    }
+    assertThat( cachedService.getIndex( "A", false ).isPresent(), is( true ) );
+    // Configured columns are indexed right away
+    assertThat( cachedService.getIndex( "ID", true ).isPresent(), is( true ) );
+    assertThat( cachedService.getIndex( "B", true ).isPresent(), is( false ) );
+  }
+
+  @Test
+  public void testIndexLimit() throws Exception {
+    RowMeta wideMeta = new RowMeta();
+    for ( int column = 0; column <= CachedService.MAX_INDEXES; column++ ) {
+      wideMeta.addValueMeta( new ValueMeta( "C" + column, ValueMetaInterface.TYPE_STRING ) );
+    }
+    CachedRows.Builder builder = new CachedRows.Builder( 10 );
+    for ( int i = 0; i < 20; i++ ) {
+      Object[] row = new Object[wideMeta.size()];
+      Arrays.fill( row, "row " + i );
+      builder.add( wideMeta, row );
+    }
+    CachedService cachedService = CachedService.complete( builder.build() );
+
+    // Indexes are charged to the size of the cached service
+    long size = cachedService.getEstimatedSize();
+    for ( int column = 0; column < CachedService.MAX_INDEXES; column++ ) {
+      CachedIndex index = cachedService.getIndex( "C" + column, true ).get();
+      assertThat( cachedService.getEstimatedSize(), equalTo( size + index.estimateSize() ) );
+      size = cachedService.getEstimatedSize();
+    }
+    assertThat( cachedService.getIndex( "C" + CachedService.MAX_INDEXES, true ).isPresent(), is( false ) );
+    assertThat( Iterables.size( cachedService.getIndexes() ), is( CachedService.MAX_INDEXES ) );
+    assertThat( cachedService.getEstimatedSize(), equalTo( size ) );
+  }
+
+  private static ImmutableList<ValueMetaAndData> values( ValueMetaAndData... values ) {
+    return ImmutableList.copyOf( values );
+  }
+
+  private static ValueMetaAndData value( Object value ) {
+    if ( value instanceof String ) {
+      return new ValueMetaAndData( new ValueMeta( "value", ValueMetaInterface.TYPE_STRING ), value );
+    } else if ( value instanceof Date ) {
+      return new ValueMetaAndData( new ValueMeta( "value", ValueMetaInterface.TYPE_DATE ), value );
+    }
+    return new ValueMetaAndData( new ValueMeta( "value", ValueMetaInterface.TYPE_INTEGER ), value );
+  }
+}
@@ -0,0 +1,125 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.trans.steps.sort.SortRowsMeta;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class CachedOrderTest {
+  private CachedRows rows;
+
+  @Before
+  public void setUp() throws Exception {
+    RowMeta rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMeta( "ID", ValueMetaInterface.TYPE_STRING ) );
+    rowMeta.addValueMeta( new ValueMeta( "A", ValueMetaInterface.TYPE_INTEGER ) );
+    rowMeta.addValueMeta( new ValueMeta( "B", ValueMetaInterface.TYPE_STRING ) );
+
+    rows = new CachedRows.Builder( 2 )
+      .add( rowMeta, new Object[] { "0", 2L, "b" } )
+      .add( rowMeta, new Object[] { "1", 1L, "B" } )
+      .add( rowMeta, new Object[] { "2", null, "a" } )
+      .add( rowMeta, new Object[] { "3", 2L, "A" } )
+      .add( rowMeta, new Object[] { "4", 1L, "c" } )
+      .build();
+  }
+
+  @Test
+  public void testBuild() throws Exception {
+    CachedOrder ascending = CachedOrder.build( rows, sort( "A", true, true ) ).get();
+    // Nulls first, ties in cache order
+    assertThat( ascending.getPositions(), equalTo( new int[] { 2, 1, 4, 0, 3 } ) );
+    assertThat( ascending.getSpec(), contains( "A ASC" ) );
+
+    CachedOrder descending = CachedOrder.build( rows, sort( "A", false, true ) ).get();
+    assertThat( descending.getPositions(), equalTo( new int[] { 0, 3, 1, 4, 2 } ) );
+
+    SortRowsMeta both = new SortRowsMeta();
+    both.allocate( 2 );
+    both.getFieldName()[0] = "A";
+    both.getFieldName()[1] = "ID";
+    both.getCaseSensitive()[0] = both.getCaseSensitive()[1] = true;
+    both.getAscending()[1] = false;
+    assertThat( CachedOrder.build( rows, both ).get().getPositions(), equalTo( new int[] { 3, 0, 4, 1, 2 } ) );
+
+    assertThat( CachedOrder.build( rows, sort( "B", true, true ) ).get().getPositions(),
+      equalTo( new int[] { 3, 1, 2, 0, 4 } ) );
+    assertThat( CachedOrder.build( rows, sort( "B", true, false ) ).get().getPositions(),
+      equalTo( new int[] { 2, 3, 0, 1, 4 } ) );
+
+    assertThat( CachedOrder.build( rows, sort( "C", true, true ) ).isPresent(), is( false ) );
+  }
+
+  @Test
+  public void testGetOrder() throws Exception {
+    CachedService cachedService = CachedService.complete( rows );
+    SortRowsMeta a = sort( "A", true, true ), b = sort( "B", true, true ), id = sort( "ID", true, true );
+    SortRowsMeta descending = sort( "A", false, true );
+
+    for ( int i = 1; i < CachedService.AUTO_ORDER_REQUESTS; i++ ) {
+      assertThat( cachedService.getOrder( a ).isPresent(), is( false ) );
+    }
+    CachedOrder order = cachedService.getOrder( a ).get();
+    // Orders are charged to the size of the cached service
+    assertThat( cachedService.getEstimatedSize(), equalTo( rows.getEstimatedSize() + order.estimateSize() ) );
+
+    // Fill up with orders requested more often
+    for ( SortRowsMeta sort : new SortRowsMeta[] { b, id } ) {
+      for ( int i = 0; i <= CachedService.AUTO_ORDER_REQUESTS; i++ ) {
+        cachedService.getOrder( sort );
+      }
+    }
+    // Not sorted until requested more often than the least requested order
+    assertThat( CachedService.MAX_ORDERS, is( 3 ) );
+    for ( int i = 0; i < CachedService.AUTO_ORDER_REQUESTS; i++ ) {
+      assertThat( cachedService.getOrder( descending ).isPresent(), is( false ) );
+    }
+    assertThat( cachedService.getOrder( descending ).isPresent(), is( true ) );
+
+    // The least requested order made room, and is sorted again once requested more often than the others
+    assertThat( cachedService.getOrder( a ).isPresent(), is( false ) );
+    for ( int i = 0; i < CachedService.AUTO_ORDER_REQUESTS; i++ ) {
+      cachedService.getOrder( a );
+    }
+    assertThat( cachedService.getOrder( a ).isPresent(), is( true ) );
+  }
+
+  private static SortRowsMeta sort( String field, boolean ascending, boolean caseSensitive ) {
+    SortRowsMeta sort = new SortRowsMeta();
+    sort.allocate( 1 );
+    sort.getFieldName()[0] = field;
+    sort.getAscending()[0] = ascending;
+    sort.getCaseSensitive()[0] = caseSensitive;
+    return sort;
+  }
+}
@@ -0,0 +1,154 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.Condition;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaAndData;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.trans.steps.memgroupby.MemoryGroupByMeta;
+
+import java.util.List;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class CachedRollupTest {
+  private RowMeta rowMeta;
+  private CachedRows rows;
+
+  @Before
+  public void setUp() throws Exception {
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMeta( "region", ValueMetaInterface.TYPE_STRING ) );
+    rowMeta.addValueMeta( new ValueMeta( "product", ValueMetaInterface.TYPE_STRING ) );
+    rowMeta.addValueMeta( new ValueMeta( "amount", ValueMetaInterface.TYPE_INTEGER ) );
+
+    rows = new CachedRows.Builder( 2 )
+      .add( rowMeta, new Object[] { "east", "a", 10L } )
+      .add( rowMeta, new Object[] { "east", "b", 20L } )
+      .add( rowMeta, new Object[] { "east", "a", null } )
+      .add( rowMeta, new Object[] { "west", "a", 5L } )
+      .build();
+  }
+
+  @Test
+  public void testForQuery() throws Exception {
+    MemoryGroupByMeta groupBy = groupBy( new String[] { "region" },
+      MemoryGroupByMeta.TYPE_GROUP_SUM, MemoryGroupByMeta.TYPE_GROUP_COUNT_ANY );
+    CachedRollup rollup = CachedRollup.forQuery( groupBy ).get();
+    assertThat( rollup.getGroupFields(), contains( "region" ) );
+    assertThat( rollup.getMeasureFields(), contains( "amount" ) );
+
+    CachedRollup finer = new CachedRollup( ImmutableList.of( "region", "product" ), ImmutableList.of( "amount" ) );
+    assertThat( finer.contains( rollup ), is( true ) );
+    assertThat( rollup.contains( finer ), is( false ) );
+
+    // Distinct values can not be re-aggregated
+    groupBy.getAggregateType()[0] = MemoryGroupByMeta.TYPE_GROUP_COUNT_DISTINCT;
+    assertThat( CachedRollup.forQuery( groupBy ).isPresent(), is( false ) );
+  }
+
+  @Test
+  public void testAggregate() throws Exception {
+    CachedRollup rollup = new CachedRollup( ImmutableList.of( "region", "product" ), ImmutableList.of( "amount" ) );
+    CachedRows rollupRows = rollup.build( rows, null ).get();
+    assertThat( rollupRows.getRowCount(), is( 3 ) );
+
+    MemoryGroupByMeta groupBy = groupBy( new String[] { "region" },
+      MemoryGroupByMeta.TYPE_GROUP_SUM, MemoryGroupByMeta.TYPE_GROUP_AVERAGE, MemoryGroupByMeta.TYPE_GROUP_MIN,
+      MemoryGroupByMeta.TYPE_GROUP_MAX, MemoryGroupByMeta.TYPE_GROUP_COUNT_ALL,
+      MemoryGroupByMeta.TYPE_GROUP_COUNT_ANY );
+    List<Object[]> output = rollup.aggregate( rollupRows, groupBy, outputMeta( groupBy ) ).get();
+    assertThat( output.size(), is( 2 ) );
+    assertThat( output.get( 0 ), equalTo( new Object[] { "east", 30L, 15L, 10L, 20L, 2L, 3L } ) );
+    assertThat( output.get( 1 ), equalTo( new Object[] { "west", 5L, 5L, 5L, 5L, 1L, 1L } ) );
+
+    // Fields not in the rollup can not be grouped
+    assertThat( rollup.aggregate( rollupRows, groupBy( new String[] { "amount" },
+      MemoryGroupByMeta.TYPE_GROUP_COUNT_ANY ), outputMeta( groupBy ) ).isPresent(), is( false ) );
+  }
+
+  @Test
+  public void testCondition() throws Exception {
+    CachedRollup rollup = new CachedRollup( ImmutableList.<String>of(), ImmutableList.of( "amount" ) );
+    Condition condition = new Condition( "region", Condition.FUNC_EQUAL, null,
+      new ValueMetaAndData( new ValueMeta( "constant", ValueMetaInterface.TYPE_STRING ), "west" ) );
+    CachedRows rollupRows = rollup.build( rows, condition ).get();
+
+    MemoryGroupByMeta groupBy = groupBy( new String[0], MemoryGroupByMeta.TYPE_GROUP_SUM );
+    List<Object[]> output = rollup.aggregate( rollupRows, groupBy, outputMeta( groupBy ) ).get();
+    assertThat( output.size(), is( 1 ) );
+    assertThat( output.get( 0 ), equalTo( new Object[] { 5L } ) );
+  }
+
+  @Test
+  public void testNoRows() throws Exception {
+    CachedRollup rollup = new CachedRollup( ImmutableList.<String>of(), ImmutableList.of( "amount" ) );
+    Condition condition = new Condition( "region", Condition.FUNC_EQUAL, null,
+      new ValueMetaAndData( new ValueMeta( "constant", ValueMetaInterface.TYPE_STRING ), "north" ) );
+    CachedRows rollupRows = rollup.build( rows, condition ).get();
+    assertThat( rollupRows.getRowCount(), is( 0 ) );
+
+    // A count of nothing is still a row
+    MemoryGroupByMeta groupBy = groupBy( new String[0],
+      MemoryGroupByMeta.TYPE_GROUP_COUNT_ANY, MemoryGroupByMeta.TYPE_GROUP_SUM );
+    groupBy.setAlwaysGivingBackOneRow( true );
+    List<Object[]> output = rollup.aggregate( rollupRows, groupBy, outputMeta( groupBy ) ).get();
+    assertThat( output.size(), is( 1 ) );
+    assertThat( output.get( 0 ), equalTo( new Object[] { 0L, null } ) );
+
+    groupBy.setAlwaysGivingBackOneRow( false );
+    assertThat( rollup.aggregate( rollupRows, groupBy, outputMeta( groupBy ) ).get().size(), is( 0 ) );
+  }
+
+  private static MemoryGroupByMeta groupBy( String[] groupFields, int... types ) {
+    MemoryGroupByMeta groupBy = new MemoryGroupByMeta();
+    groupBy.allocate( groupFields.length, types.length );
+    System.arraycopy( groupFields, 0, groupBy.getGroupField(), 0, groupFields.length );
+    for ( int i = 0; i < types.length; i++ ) {
+      groupBy.getAggregateField()[i] = "aggregate" + i;
+      groupBy.getSubjectField()[i] = "amount";
+      groupBy.getAggregateType()[i] = types[i];
+    }
+    return groupBy;
+  }
+
+  private RowMeta outputMeta( MemoryGroupByMeta groupBy ) {
+    RowMeta outputMeta = new RowMeta();
+    for ( String groupField : groupBy.getGroupField() ) {
+      outputMeta.addValueMeta( rowMeta.getValueMeta( rowMeta.indexOfValue( groupField ) ) );
+    }
+    for ( String aggregateField : groupBy.getAggregateField() ) {
+      outputMeta.addValueMeta( new ValueMeta( aggregateField, ValueMetaInterface.TYPE_INTEGER ) );
+    }
+    return outputMeta;
+  }
+}
@@ -0,0 +1,281 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class CachedRowsTest {
+
+  private RowMeta rowMeta;
+  private List<Object[]> data;
+
+  @Before
+  public void setUp() throws Exception {
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMeta( "string", ValueMetaInterface.TYPE_STRING ) );
+    rowMeta.addValueMeta( new ValueMeta( "integer", ValueMetaInterface.TYPE_INTEGER ) );
+    rowMeta.addValueMeta( new ValueMeta( "number", ValueMetaInterface.TYPE_NUMBER ) );
+    rowMeta.addValueMeta( new ValueMeta( "date", ValueMetaInterface.TYPE_DATE ) );
+    rowMeta.addValueMeta( new ValueMeta( "boolean", ValueMetaInterface.TYPE_BOOLEAN ) );
+    rowMeta.addValueMeta( new ValueMeta( "bignumber", ValueMetaInterface.TYPE_BIGNUMBER ) );
+
+    data = Lists.newArrayList();
+    for ( int i = 0; i < 25; i++ ) {
+      data.add( new Object[] {
+        i % 5 == 0 ? null : "value " + i % 3,
+        i % 7 == 0 ? null : (long) i,
+        i * 1.5,
+        i % 4 == 0 ? null : new Date( 1000L * i ),
+        i % 2 == 0,
+        BigDecimal.valueOf( i )
+      } );
+    }
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    CachedRows.Builder builder = new CachedRows.Builder( 10 );
+    for ( Object[] row : data ) {
+      builder.add( rowMeta, row );
+    }
+    CachedRows rows = builder.build();
+
+    assertThat( rows.getRowCount(), equalTo( data.size() ) );
+    assertThat( rows.getChunks().size(), equalTo( 3 ) );
+    assertRows( materialize( rows ), data );
+    for ( StoredChunk chunk : rows.getChunks() ) {
+      assertThat( chunk.getRowMeta(), sameInstance( (Object) rowMeta ) );
+    }
+  }
+
+  @Test
+  public void testUnexpectedValueTypes() throws Exception {
+    Object[] timestamp = data.get( 1 ).clone();
+    timestamp[3] = new Timestamp( 1234L );
+    Object[] integer = data.get( 2 ).clone();
+    integer[1] = 42;
+    Object[] binaryString = data.get( 3 ).clone();
+    binaryString[0] = new byte[] { 'x' };
+
+    CachedRows.Builder builder = new CachedRows.Builder();
+    builder.add( rowMeta, data.get( 0 ) )
+      .add( rowMeta, timestamp )
+      .add( rowMeta, integer )
+      .add( rowMeta, binaryString );
+
+    List<Object[]> rows = materialize( builder.build() );
+    assertThat( rows.get( 0 ), equalTo( data.get( 0 ) ) );
+    assertThat( rows.get( 1 )[3], instanceOf( Timestamp.class ) );
+    assertThat( rows.get( 1 ), equalTo( timestamp ) );
+    assertThat( rows.get( 2 )[1], equalTo( (Object) 42 ) );
+    assertThat( rows.get( 3 )[0], equalTo( binaryString[0] ) );
+    assertThat( rows.get( 0 )[0], nullValue() );
+  }
+
+  @Test
+  public void testRowMetaChange() throws Exception {
+    // An equal row meta instance continues the chunk, renamed fields start a new one
+    RowMeta copy = rowMeta.clone(), other = new RowMeta();
+    for ( int i = 0; i < rowMeta.size(); i++ ) {
+      other.addValueMeta( rowMeta.getValueMeta( i ).clone() );
+    }
+    other.getValueMeta( 0 ).setName( "renamed" );
+    CachedRows rows = new CachedRows.Builder()
+      .add( rowMeta, data.get( 0 ) )
+      .add( copy, data.get( 1 ) )
+      .add( other, data.get( 2 ) )
+      .add( other, data.get( 3 ) )
+      .build();
+
+    assertThat( rows.getChunks().size(), equalTo( 2 ) );
+    assertThat( rows.getChunks().get( 0 ).getRowMeta(), sameInstance( (Object) rowMeta ) );
+    assertThat( rows.getChunks().get( 1 ).getRowMeta(), sameInstance( (Object) other ) );
+    assertThat( rows.toRowMetaAndData(), contains(
+      new RowMetaAndData( rowMeta, data.get( 0 ) ),
+      new RowMetaAndData( rowMeta, data.get( 1 ) ),
+      new RowMetaAndData( other, data.get( 2 ) ),
+      new RowMetaAndData( other, data.get( 3 ) )
+    ) );
+  }
+
+  @Test
+  public void testEstimatedSize() throws Exception {
+    CachedRows.Builder builder = new CachedRows.Builder( 10 );
+    long previous = builder.estimateSize();
+    for ( Object[] row : data ) {
+      builder.add( rowMeta, row );
+      assertThat( builder.estimateSize(), greaterThan( previous ) );
+      previous = builder.estimateSize();
+    }
+    long estimate = builder.estimateSize();
+    CachedRows rows = builder.build();
+
+    assertThat( rows.getEstimatedSize(), greaterThanOrEqualTo( estimate ) );
+    assertThat( rows.getEstimatedSize(), lessThan( estimate * 2 ) );
+  }
+
+  @Test
+  public void testStats() throws Exception {
+    RowChunk.Builder builder = new RowChunk.Builder( rowMeta, data.size() );
+    for ( Object[] row : data ) {
+      builder.add( row );
+    }
+    RowChunk chunk = builder.build();
+
+    assertStats( chunk.getStats( 0 ), "value 0", "value 2", 5 );
+    assertStats( chunk.getStats( 1 ), 1L, 24L, 4 );
+    assertStats( chunk.getStats( 2 ), 0.0, 36.0, 0 );
+    assertStats( chunk.getStats( 3 ), new Date( 1000L ), new Date( 23000L ), 7 );
+    // Booleans and generic values are not ranged
+    assertStats( chunk.getStats( 4 ), null, null, 0 );
+    assertStats( chunk.getStats( 5 ), null, null, 0 );
+
+    assertThat( new StoredChunk( chunk ).getStats( 1 ), sameInstance( chunk.getStats( 1 ) ) );
+  }
+
+  @Test
+  public void testAppend() throws Exception {
+    CachedRows.Builder prefix = new CachedRows.Builder( 10 );
+    CachedRows.Builder remaining = new CachedRows.Builder( 10 );
+    for ( int i = 0; i < data.size(); i++ ) {
+      ( i < 15 ? prefix : remaining ).add( rowMeta, data.get( i ) );
+    }
+    CachedRows prefixRows = prefix.build();
+    CachedRows rows = prefixRows.append( remaining );
+
+    assertThat( rows.getRowCount(), equalTo( data.size() ) );
+    assertThat( rows.getChunks().size(), equalTo( 3 ) );
+    assertRows( materialize( rows ), data );
+    // Chunks of the prefix are shared
+    for ( StoredChunk chunk : rows.getChunks() ) {
+      assertThat( chunk.getOwners(), hasItem( rows ) );
+    }
+    assertThat( rows.getChunks().get( 0 ).getOwners(), hasItem( prefixRows ) );
+    assertRows( materialize( prefixRows ), data.subList( 0, 15 ) );
+  }
+
+  @Test
+  public void testCompression() throws Exception {
+    RowMeta textMeta = rowMeta.clone();
+    textMeta.addValueMeta( new ValueMeta( "description", ValueMetaInterface.TYPE_STRING ) );
+    List<Object[]> text = Lists.newArrayList();
+    for ( int i = 0; i < data.size(); i++ ) {
+      Object[] row = Arrays.copyOf( data.get( i ), textMeta.size() );
+      row[6] = i % 6 == 0 ? null : Strings.repeat( "Description of row " + i + ". ", 10 );
+      text.add( row );
+    }
+
+    CachedRows.Builder plain = new CachedRows.Builder( text.size() );
+    CachedRows.Builder compressed = new CachedRows.Builder( text.size(), ImmutableSet.of( "string", "description" ) );
+    for ( Object[] row : text ) {
+      plain.add( textMeta, row );
+      compressed.add( textMeta, row );
+    }
+    CachedRows plainRows = plain.build();
+    CachedRows rows = compressed.build();
+
+    assertRows( materialize( rows ), text );
+    assertThat( rows.getEstimatedSize(), lessThan( plainRows.getEstimatedSize() ) );
+    assertThat( plainRows.getCompression().getCompressedBytes(), equalTo( 0L ) );
+
+    // Only the high cardinality column is compressed, and only decompressed once
+    CompressionStats stats = rows.getCompression();
+    assertThat( stats.getCompressedBytes(), greaterThan( 0L ) );
+    assertThat( stats.getRatio(), greaterThan( 2.0 ) );
+    assertThat( stats.getDecompressions(), equalTo( 1L ) );
+    assertThat( rows.getChunks().get( 0 ).load().toString(), containsString( "DictionaryColumn" ) );
+
+    // Binary form keeps the values compressed
+    RowChunk chunk = rows.getChunks().get( 0 ).load();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream( bytes );
+    chunk.write( output );
+    output.flush();
+    CompressionStats readStats = new CompressionStats();
+    RowChunk read = RowChunk.read( textMeta, ByteBuffer.wrap( bytes.toByteArray() ), readStats );
+    assertThat( readStats.getDecompressions(), equalTo( 0L ) );
+    assertRows( Lists.newArrayList( read ), text );
+    assertThat( readStats.getDecompressions(), equalTo( 1L ) );
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    assertThat( new CachedRows.Builder().build().getChunks(), is( empty() ) );
+    assertThat( CachedRows.copyOf( ImmutableList.<RowMetaAndData>of() ).getRowCount(), equalTo( 0 ) );
+  }
+
+  private static List<Object[]> materialize( CachedRows rows ) {
+    List<Object[]> materialized = Lists.newArrayList();
+    for ( StoredChunk chunk : rows.getChunks() ) {
+      Iterables.addAll( materialized, chunk.load() );
+    }
+    return materialized;
+  }
+
+  private static void assertStats( ColumnStats stats, Object min, Object max, int nullCount ) {
+    assertThat( stats.getMin(), equalTo( min ) );
+    assertThat( stats.getMax(), equalTo( max ) );
+    assertThat( stats.getNullCount(), equalTo( nullCount ) );
+  }
+
+  private static void assertRows( List<Object[]> actual, List<Object[]> expected ) {
+    assertThat( actual.size(), equalTo( expected.size() ) );
+    for ( int i = 0; i < expected.size(); i++ ) {
+      assertThat( actual.get( i ), equalTo( expected.get( i ) ) );
+    }
+  }
+}
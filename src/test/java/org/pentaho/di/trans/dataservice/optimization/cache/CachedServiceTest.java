@@ -25,6 +25,7 @@ package org.pentaho.di.trans.dataservice.optimization.cache;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -39,6 +40,7 @@ import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.mockito.stubbing.Answer;
 import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.RowSet;
 import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.row.RowMeta;
 import org.pentaho.di.core.row.RowMetaInterface;
@@ -52,6 +54,7 @@ import org.pentaho.di.trans.dataservice.DataServiceExecutor;
 import org.pentaho.di.trans.dataservice.DataServiceMeta;
 import org.pentaho.di.trans.dataservice.SqlTransGenerator;
 import org.pentaho.di.trans.dataservice.optimization.cache.CachedService.CacheKey;
+import org.pentaho.di.trans.dataservice.serialization.TransMetaVersion;
 import org.pentaho.di.trans.step.RowListener;
 import org.pentaho.di.trans.step.StepDataInterface;
 import org.pentaho.di.trans.step.StepInterface;
@@ -59,16 +62,22 @@ import org.pentaho.di.trans.step.StepListener;
 import org.pentaho.di.trans.step.StepMeta;
 import org.pentaho.di.trans.step.StepMetaDataCombi;
 import org.pentaho.di.trans.step.StepMetaInterface;
+import org.pentaho.di.trans.steps.sort.SortRowsMeta;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
@@ -80,6 +89,7 @@ import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -95,6 +105,7 @@ public class CachedServiceTest {
 
   public static final String INJECTOR_STEP = "INJECTOR_STEP";
   public static final String OUTPUT = "OUTPUT";
+  public static final String SORT_STEP = "SORT_STEP";
   private static final String SERVICE_NAME = "MOCK_SERVICE";
   private static final String BASE_QUERY = "SELECT * from " + SERVICE_NAME;
   @Mock( answer = Answers.RETURNS_DEEP_STUBS ) Trans genTrans;
@@ -143,7 +154,10 @@ public class CachedServiceTest {
     withConditionOrdered = cacheKey( BASE_QUERY + " WHERE A=42 ORDER BY B" );
     withLimit = cacheKey( BASE_QUERY + " LIMIT 20" );
 
+    // Version is computed once, until the transformation is changed
     when( transMeta.getXML() ).thenReturn( "<transformation mock version=2/>" );
+    assertThat( cacheKey( BASE_QUERY ), equalTo( unbounded ) );
+    TransMetaVersion.invalidate( transMeta );
     otherVersion = cacheKey( BASE_QUERY );
 
     // Verifies order from most specific to general
@@ -304,6 +318,47 @@ public class CachedServiceTest {
     assertThat( cachedService.getRowMetaAndData(), equalTo( testData ) );
   }
 
+  @Test
+  public void testObserveLimitExceeded() throws Exception {
+    DataServiceExecutor executor = dataServiceExecutor( BASE_QUERY );
+    ServiceObserver rowLimited = new ServiceObserver( executor, 50, 0 );
+    rowLimited.run();
+
+    ArgumentCaptor<RowListener> rowListener = ArgumentCaptor.forClass( RowListener.class );
+    ArgumentCaptor<StepListener> stepListener = ArgumentCaptor.forClass( StepListener.class );
+    verify( serviceStep ).addRowListener( rowListener.capture() );
+    verify( serviceStep ).addStepListener( stepListener.capture() );
+
+    for ( RowMetaAndData metaAndData : testData ) {
+      rowListener.getValue().rowWrittenEvent( metaAndData.getRowMeta(), metaAndData.getData() );
+    }
+    // Abandoned as soon as the limit is exceeded
+    assertThat( rowLimited.isDone(), is( true ) );
+    stepListener.getValue().stepFinished( serviceTrans, mock( StepMeta.class ), serviceStep );
+    try {
+      rowLimited.get( 1, TimeUnit.SECONDS );
+      fail( "Expecting a LimitExceededException" );
+    } catch ( ExecutionException e ) {
+      assertThat( e.getCause(), instanceOf( ServiceObserver.LimitExceededException.class ) );
+    }
+
+    // Sizes are checked at least once the service step finishes
+    ServiceObserver sizeLimited = new ServiceObserver( executor, 0, 1 );
+    sizeLimited.run();
+    verify( serviceStep, times( 2 ) ).addRowListener( rowListener.capture() );
+    verify( serviceStep, times( 2 ) ).addStepListener( stepListener.capture() );
+    for ( RowMetaAndData metaAndData : testData ) {
+      rowListener.getValue().rowWrittenEvent( metaAndData.getRowMeta(), metaAndData.getData() );
+    }
+    stepListener.getValue().stepFinished( serviceTrans, mock( StepMeta.class ), serviceStep );
+    try {
+      sizeLimited.get( 1, TimeUnit.SECONDS );
+      fail( "Expecting a LimitExceededException" );
+    } catch ( ExecutionException e ) {
+      assertThat( e.getCause(), instanceOf( ServiceObserver.LimitExceededException.class ) );
+    }
+  }
+
   @Test
   public void testReplayFullCache() throws Exception {
     DataServiceExecutor executor = dataServiceExecutor( BASE_QUERY );
@@ -424,6 +479,127 @@ public class CachedServiceTest {
     }
   }
 
+  @Test
+  public void testReplayInOrder() throws Exception {
+    CachedService cachedService = CachedService.complete( testData );
+    SortRowsMeta sortRowsMeta = new SortRowsMeta();
+    sortRowsMeta.allocate( 1 );
+    sortRowsMeta.getFieldName()[0] = "A";
+    sortRowsMeta.getCaseSensitive()[0] = true;
+
+    // Generated transformation: previous step -> sort step -> next step
+    StepMeta sortStepMeta = mock( StepMeta.class ), nextStepMeta = mock( StepMeta.class );
+    StepInterface sortStep = mock( StepInterface.class ), nextStep = mock( StepInterface.class );
+    RowSet sortInput = mock( RowSet.class ), sortOutput = mock( RowSet.class );
+    List<RowSet> sortInputs = Lists.newArrayList( sortInput ), nextInputs = Lists.newArrayList( sortOutput );
+    when( sqlTransGenerator.getSortStepName() ).thenReturn( SORT_STEP );
+    when( sortStepMeta.getStepMetaInterface() ).thenReturn( sortRowsMeta );
+    when( nextStepMeta.getName() ).thenReturn( "next" );
+    when( genTrans.getTransMeta().findStep( SORT_STEP ) ).thenReturn( sortStepMeta );
+    when( genTrans.getTransMeta().findNextSteps( sortStepMeta ) ).thenReturn( ImmutableList.of( nextStepMeta ) );
+    when( genTrans.findRunThread( SORT_STEP ) ).thenReturn( sortStep );
+    when( genTrans.findRunThread( "next" ) ).thenReturn( nextStep );
+    when( sortStep.getInputRowSets() ).thenReturn( sortInputs );
+    when( nextStep.getInputRowSets() ).thenReturn( nextInputs );
+    when( sortOutput.getOriginStepName() ).thenReturn( SORT_STEP );
+    RowProducer sortProducer = genTrans.addRowProducer( SORT_STEP, 0 );
+
+    // Rows are sorted once the order has been requested often enough
+    Executor mockExecutor = mock( Executor.class );
+    CachedServiceLoader cachedServiceLoader = new CachedServiceLoader( cachedService, mockExecutor );
+    for ( int i = 1; i < CachedService.AUTO_ORDER_REQUESTS; i++ ) {
+      cachedServiceLoader.replay( dataServiceExecutor( BASE_QUERY + " ORDER BY A" ) );
+    }
+    assertThat( nextInputs, contains( sortOutput ) );
+
+    DataServiceExecutor executor = dataServiceExecutor( BASE_QUERY + " ORDER BY A" );
+    RowProducer rowProducer = genTrans.addRowProducer( INJECTOR_STEP, 0 );
+    ListenableFuture<Integer> replay = cachedServiceLoader.replay( executor );
+    ArgumentCaptor<Runnable> replayRunnable = ArgumentCaptor.forClass( Runnable.class );
+    verify( mockExecutor, times( CachedService.AUTO_ORDER_REQUESTS ) ).execute( replayRunnable.capture() );
+
+    // Rows reach the next step without being sorted
+    assertThat( sortInputs.isEmpty(), is( true ) );
+    assertThat( nextInputs, contains( sortInput ) );
+    verify( sortProducer ).finished();
+
+    when( serviceTrans.getSteps() ).thenReturn( ImmutableList.<StepMetaDataCombi>of() );
+    executor.executeListeners( DataServiceExecutor.ExecutionPoint.READY );
+    executor.executeListeners( DataServiceExecutor.ExecutionPoint.START );
+    when(
+      rowProducer.putRowWait( any( RowMetaInterface.class ), any( Object[].class ), anyInt(), any( TimeUnit.class ) )
+    ).thenReturn( true );
+    when( genTrans.isRunning() ).thenReturn( true );
+    replayRunnable.getValue().run();
+    assertThat( replay.get( 1, TimeUnit.SECONDS ), equalTo( testData.size() ) );
+
+    // Rows are replayed as the sort step would have sorted them, ties in cache order
+    List<RowMetaAndData> sorted = Lists.newArrayList( testData );
+    Collections.sort( sorted, new Comparator<RowMetaAndData>() {
+      @Override public int compare( RowMetaAndData o1, RowMetaAndData o2 ) {
+        return ( (Long) o1.getData()[1] ).compareTo( (Long) o2.getData()[1] );
+      }
+    } );
+    InOrder rowsProduced = inOrder( rowProducer );
+    for ( RowMetaAndData metaAndData : sorted ) {
+      rowsProduced.verify( rowProducer )
+        .putRowWait( eq( metaAndData.getRowMeta() ), eq( metaAndData.getData() ), anyInt(), any( TimeUnit.class ) );
+    }
+    rowsProduced.verify( rowProducer ).finished();
+  }
+
+  @Test
+  public void testReplayPartitioned() throws Exception {
+    CachedRows.Builder builder = new CachedRows.Builder( 1000 );
+    for ( long i = 0; i < CachedServiceLoader.PARALLEL_REPLAY_MIN_ROWS + 3000; i++ ) {
+      builder.add( rowMeta, new Object[] { String.valueOf( i ), i % 13, i % 17 } );
+    }
+    CachedService cachedService = CachedService.complete( builder.build() );
+    DataServiceExecutor executor = dataServiceExecutor( BASE_QUERY + " WHERE A > 6" );
+
+    // Each partition replays to its own row producer, from its own thread
+    final List<RowProducer> rowProducers = Lists.newArrayList();
+    final List<Object[]> replayed = Collections.synchronizedList( Lists.<Object[]>newArrayList() );
+    for ( int i = 0; i < 4; i++ ) {
+      RowProducer rowProducer = mock( RowProducer.class );
+      when(
+        rowProducer.putRowWait( any( RowMetaInterface.class ), any( Object[].class ), anyInt(), any( TimeUnit.class ) )
+      ).then( new Answer<Boolean>() {
+        @Override public Boolean answer( InvocationOnMock invocation ) throws Throwable {
+          replayed.add( (Object[]) invocation.getArguments()[1] );
+          return true;
+        }
+      } );
+      rowProducers.add( rowProducer );
+    }
+    when( genTrans.addRowProducer( INJECTOR_STEP, 0 ) ).thenReturn( rowProducers.get( 0 ),
+      rowProducers.subList( 1, 4 ).toArray( new RowProducer[3] ) );
+    when( genTrans.isRunning() ).thenReturn( true );
+    when( serviceTrans.getSteps() ).thenReturn( ImmutableList.<StepMetaDataCombi>of() );
+
+    ExecutorService executorService = Executors.newCachedThreadPool();
+    try {
+      ListenableFuture<Integer> replay =
+        new CachedServiceLoader( cachedService, executorService, ImmutableSet.<String>of(), 4 ).replay( executor );
+      executor.executeListeners( DataServiceExecutor.ExecutionPoint.READY );
+      executor.executeListeners( DataServiceExecutor.ExecutionPoint.START );
+
+      // Every partition applies the WHERE clause
+      assertThat( replay.get( 10, TimeUnit.SECONDS ), equalTo( 6000 ) );
+    } finally {
+      executorService.shutdown();
+    }
+    assertThat( replayed.size(), equalTo( 6000 ) );
+    for ( Object[] row : replayed ) {
+      assertThat( (Long) row[1], greaterThan( 6L ) );
+    }
+    for ( RowProducer rowProducer : rowProducers ) {
+      verify( rowProducer ).finished();
+      verify( rowProducer, atLeastOnce() )
+        .putRowWait( any( RowMetaInterface.class ), any( Object[].class ), anyInt(), any( TimeUnit.class ) );
+    }
+  }
+
   @Test
   public void testAnswersQuery() throws Exception {
     String query = "SELECT ID, A FROM " + SERVICE_NAME + " WHERE B = 1";
@@ -0,0 +1,119 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.Condition;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.sql.SQL;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ConditionImplicationTest {
+  private RowMeta rowMeta;
+  private ConditionImplication implication;
+
+  @Before
+  public void setUp() throws Exception {
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMeta( "ID", ValueMetaInterface.TYPE_STRING ) );
+    rowMeta.addValueMeta( new ValueMeta( "A", ValueMetaInterface.TYPE_INTEGER ) );
+    rowMeta.addValueMeta( new ValueMeta( "B", ValueMetaInterface.TYPE_NUMBER ) );
+    implication = new ConditionImplication( rowMeta );
+  }
+
+  @Test
+  public void testIdentical() throws Exception {
+    assertImplies( "A = 42", "A = 42", true );
+    assertImplies( "ID LIKE 'row%'", "ID LIKE 'row%'", true );
+    assertImplies( "NOT ( A = 42 OR B > 1 )", "NOT ( A = 42 OR B > 1 )", true );
+  }
+
+  @Test
+  public void testRanges() throws Exception {
+    assertImplies( "A > 10", "A > 5", true );
+    assertImplies( "A > 5", "A > 5", true );
+    assertImplies( "A >= 5", "A > 5", false );
+    assertImplies( "A >= 6", "A > 5", true );
+    assertImplies( "A > 5", "A >= 5", true );
+    assertImplies( "A < 3", "A <= 5", true );
+    assertImplies( "A < 7", "A <= 5", false );
+    assertImplies( "A > 10", "A IS NOT NULL", true );
+    // Null is smaller than any value
+    assertImplies( "A < 10", "A IS NOT NULL", false );
+    assertImplies( "A > 10", "A <> 7", true );
+    assertImplies( "A > 10", "A < 20", false );
+    assertImplies( "B > 1.5", "B >= 1.5", true );
+  }
+
+  @Test
+  public void testValues() throws Exception {
+    assertImplies( "A = 42", "A > 5", true );
+    assertImplies( "A = 4", "A > 5", false );
+    assertImplies( "A = 42", "A <> 7", true );
+    assertImplies( "A = 42", "A IN (7, 42)", true );
+    assertImplies( "A IN (7, 42)", "A > 5", true );
+    assertImplies( "A IN (3, 42)", "A > 5", false );
+    assertImplies( "A IN (7, 42)", "A IN (7, 42, 99)", true );
+    assertImplies( "ID = 'row 42'", "ID IS NOT NULL", true );
+    assertImplies( "ID = 'row 42'", "ID > 'row 4'", true );
+  }
+
+  @Test
+  public void testCompound() throws Exception {
+    assertImplies( "A > 10 AND B > 1", "A > 5", true );
+    assertImplies( "A > 10", "A > 5 AND B > 1", false );
+    assertImplies( "A > 10 AND B > 2", "A > 5 AND B > 1", true );
+    assertImplies( "A > 10", "A > 5 OR B > 1", true );
+    assertImplies( "A > 10 OR A < 2", "A > 5 OR A < 3", true );
+    assertImplies( "A > 10 OR B < 2", "A > 5", false );
+    assertImplies( "A = 42 AND ( B > 1 OR B < 0 )", "A = 42", true );
+  }
+
+  @Test
+  public void testUnknown() throws Exception {
+    assertImplies( "A > 10", "B > 5", false );
+    assertImplies( "NOT A > 10", "A > 5", false );
+    assertImplies( "A > 10", "NOT A < 5", false );
+    assertImplies( "ID LIKE 'row 4%'", "ID LIKE 'row%'", false );
+    assertImplies( "A > B", "A > 5", false );
+  }
+
+  private void assertImplies( String query, String cached, boolean expected ) throws Exception {
+    assertThat( query + " => " + cached, implication.implies( condition( query ), condition( cached ) ),
+      is( expected ) );
+  }
+
+  private Condition condition( String where ) throws Exception {
+    SQL sql = new SQL( "SELECT * FROM service WHERE " + where );
+    sql.parse( rowMeta );
+    Condition condition = (Condition) sql.getWhereCondition().getCondition().clone();
+    condition.simplify();
+    return condition;
+  }
+}
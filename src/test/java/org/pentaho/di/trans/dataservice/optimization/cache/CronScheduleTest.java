@@ -0,0 +1,79 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class CronScheduleTest {
+
+  @Test
+  public void testNext() throws Exception {
+    // Friday
+    long now = time( 2016, Calendar.JANUARY, 15, 10, 7 );
+
+    assertThat( CronSchedule.parse( "* * * * *" ).next( now ), equalTo( time( 2016, Calendar.JANUARY, 15, 10, 8 ) ) );
+    assertThat( CronSchedule.parse( "*/15 * * * *" ).next( now ),
+      equalTo( time( 2016, Calendar.JANUARY, 15, 10, 15 ) ) );
+    assertThat( CronSchedule.parse( "0 6 * * *" ).next( now ), equalTo( time( 2016, Calendar.JANUARY, 16, 6, 0 ) ) );
+    assertThat( CronSchedule.parse( "30 8-18/2 * * *" ).next( now ),
+      equalTo( time( 2016, Calendar.JANUARY, 15, 10, 30 ) ) );
+    // Weekdays only
+    assertThat( CronSchedule.parse( "0 6 * * 1-5" ).next( now ), equalTo( time( 2016, Calendar.JANUARY, 18, 6, 0 ) ) );
+    assertThat( CronSchedule.parse( "0 0 1 3 *" ).next( now ), equalTo( time( 2016, Calendar.MARCH, 1, 0, 0 ) ) );
+    // Either day field matches
+    assertThat( CronSchedule.parse( "0 0 20 * 0" ).next( now ), equalTo( time( 2016, Calendar.JANUARY, 17, 0, 0 ) ) );
+    assertThat( CronSchedule.parse( "0 0 20 * 7" ).next( now ), equalTo( time( 2016, Calendar.JANUARY, 17, 0, 0 ) ) );
+    assertThat( CronSchedule.parse( "0 0 30 2 *" ).next( now ), equalTo( -1L ) );
+  }
+
+  @Test
+  public void testMatches() throws Exception {
+    CronSchedule schedule = CronSchedule.parse( "5,35 10 * * 5" );
+    assertThat( schedule.matches( time( 2016, Calendar.JANUARY, 15, 10, 5 ) + 59000 ), is( true ) );
+    assertThat( schedule.matches( time( 2016, Calendar.JANUARY, 15, 10, 35 ) ), is( true ) );
+    assertThat( schedule.matches( time( 2016, Calendar.JANUARY, 15, 10, 6 ) ), is( false ) );
+    assertThat( schedule.matches( time( 2016, Calendar.JANUARY, 16, 10, 5 ) ), is( false ) );
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void testInvalidField() throws Exception {
+    CronSchedule.parse( "60 * * * *" );
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void testMissingField() throws Exception {
+    CronSchedule.parse( "0 6 * *" );
+  }
+
+  private static long time( int year, int month, int day, int hour, int minute ) {
+    return new GregorianCalendar( year, month, day, hour, minute ).getTimeInMillis();
+  }
+}
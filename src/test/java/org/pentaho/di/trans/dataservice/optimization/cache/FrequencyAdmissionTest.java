@@ -0,0 +1,98 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+public class FrequencyAdmissionTest {
+  private static final String SERVICE = "service";
+  private static final String WHERE = "region = 'EU'";
+
+  @Test
+  public void testFrequency() throws Exception {
+    FrequencyAdmission admission = new FrequencyAdmission( 2, Long.MAX_VALUE, 64 );
+    Map<String, String> dashboard = ImmutableMap.of( "TENANT", "A" );
+    Map<String, String> adHoc = ImmutableMap.of( "TENANT", "B" );
+
+    admission.record( SERVICE, dashboard, WHERE );
+    admission.record( SERVICE, adHoc, WHERE );
+    assertThat( admission.frequency( SERVICE, dashboard, WHERE ), is( 1 ) );
+    assertThat( admission.admit( SERVICE, dashboard, WHERE, 100 ), is( false ) );
+
+    // Parameters tell queries apart
+    admission.record( SERVICE, dashboard, WHERE );
+    assertThat( admission.frequency( SERVICE, dashboard, WHERE ), is( 2 ) );
+    assertThat( admission.frequency( SERVICE, adHoc, WHERE ), is( 1 ) );
+    assertThat( admission.admit( SERVICE, dashboard, WHERE, 100 ), is( true ) );
+    assertThat( admission.admit( SERVICE, adHoc, WHERE, 100 ), is( false ) );
+
+    // So do conditions
+    assertThat( admission.frequency( SERVICE, dashboard, null ), is( 0 ) );
+    assertThat( admission.frequency( SERVICE, dashboard, "region = 'US'" ), is( 0 ) );
+  }
+
+  @Test
+  public void testCost() throws Exception {
+    FrequencyAdmission admission = new FrequencyAdmission( 2, 1000, 64 );
+    Map<String, String> parameters = ImmutableMap.of( "TENANT", "A" );
+
+    admission.record( SERVICE, parameters, null );
+    assertThat( admission.admit( SERVICE, parameters, null, 999 ), is( false ) );
+    assertThat( admission.admit( SERVICE, parameters, null, 1000 ), is( true ) );
+  }
+
+  @Test
+  public void testAging() throws Exception {
+    FrequencyAdmission admission = new FrequencyAdmission( 2, Long.MAX_VALUE, 4 );
+    Map<String, String> frequent = ImmutableMap.of( "TENANT", "A" );
+    for ( int i = 0; i < 10; i++ ) {
+      admission.record( SERVICE, frequent, null );
+    }
+    assertThat( admission.frequency( SERVICE, frequent, null ), is( 10 ) );
+
+    // Counters are halved once the sketch has recorded ten queries per counter
+    for ( int i = 0; i < 30; i++ ) {
+      admission.record( SERVICE, ImmutableMap.of( "TENANT", "other " + i ), null );
+    }
+    assertThat( admission.frequency( SERVICE, frequent, null ), lessThan( 10 ) );
+  }
+
+  @Test
+  public void testCreate() throws Exception {
+    assertThat( FrequencyAdmission.create( ImmutableMap.<String, String>of() ).toString(),
+      is( "FrequencyAdmission{minFrequency=2, minCost=5000, width=1024}" ) );
+    assertThat( FrequencyAdmission.create( ImmutableMap.of(
+        FrequencyAdmission.MIN_FREQUENCY, "3",
+        FrequencyAdmission.MIN_COST, "invalid",
+        FrequencyAdmission.SKETCH_WIDTH, "1000" ) ).toString(),
+      is( "FrequencyAdmission{minFrequency=3, minCost=5000, width=1024}" ) );
+  }
+}
@@ -0,0 +1,119 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.trans.dataservice.DataServiceExecutor;
+
+import java.util.Date;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class IncrementalRefreshTest {
+  private RowMeta rowMeta;
+  private CachedService cachedService;
+  private CachedService.CacheKey key;
+
+  @Before
+  public void setUp() throws Exception {
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMeta( "ID", ValueMetaInterface.TYPE_INTEGER ) );
+    rowMeta.addValueMeta( new ValueMeta( "CREATED", ValueMetaInterface.TYPE_DATE ) );
+    rowMeta.addValueMeta( new ValueMeta( "FLAG", ValueMetaInterface.TYPE_BOOLEAN ) );
+
+    // Rows are not in order of ID
+    CachedRows.Builder builder = new CachedRows.Builder( 10 );
+    for ( long i = 0; i < 35; i++ ) {
+      builder.add( rowMeta, new Object[] { ( i * 13 ) % 35, i == 3 ? null : new Date( 1000L * i ), null } );
+    }
+    cachedService = CachedService.complete( builder.build() );
+    DataServiceExecutor executor = mock( DataServiceExecutor.class, RETURNS_DEEP_STUBS );
+    when( executor.getSql() ).thenReturn( new SQL( "SELECT * FROM service" ) );
+    when( executor.getParameters() ).thenReturn( ImmutableMap.<String, String>of() );
+    when( executor.getService().getServiceTrans().getXML() ).thenReturn( "<transformation/>" );
+    key = CachedService.CacheKey.create( executor ).withoutOrder();
+  }
+
+  @Test
+  public void testMark() throws Exception {
+    IncrementalRefresh id = IncrementalRefresh.create( key, cachedService, "ID" ).get();
+    assertThat( id.getMark(), equalTo( (Object) 34L ) );
+    assertThat( id.getKey(), is( key ) );
+    assertThat( id.getBase(), is( cachedService ) );
+  }
+
+  @Test
+  public void testIsNew() throws Exception {
+    IncrementalRefresh refresh = IncrementalRefresh.create( key, cachedService, "ID" ).get();
+    assertThat( refresh.isNew( rowMeta, new Object[] { 35L, null, null } ), is( true ) );
+    assertThat( refresh.isNew( rowMeta, new Object[] { 34L, null, null } ), is( false ) );
+    assertThat( refresh.isNew( rowMeta, new Object[] { 2L, null, null } ), is( false ) );
+
+    try {
+      refresh.isNew( rowMeta, new Object[] { null, null, null } );
+      fail( "Rows without a mark can't be refreshed incrementally" );
+    } catch ( IncrementalRefresh.NullMarkException e ) {
+      assertThat( e.getMessage(), containsString( "ID" ) );
+    }
+  }
+
+  @Test
+  public void testParameters() throws Exception {
+    IncrementalRefresh refresh = IncrementalRefresh.create( key, cachedService, "ID" ).get();
+    ImmutableMap<String, String> parameters =
+      ImmutableMap.of( "TENANT", "A", ServiceCache.HIGH_WATER_MARK_PARAMETER, "0" );
+    assertThat( refresh.getParameters( parameters ), hasEntry( "TENANT", "A" ) );
+    assertThat( refresh.getParameters( parameters ),
+      hasEntry( ServiceCache.HIGH_WATER_MARK_PARAMETER, rowMeta.getValueMeta( 0 ).getString( 34L ) ) );
+  }
+
+  @Test
+  public void testFullRefresh() throws Exception {
+    // Not configured, unknown or empty field
+    assertThat( IncrementalRefresh.create( key, cachedService, null ).isPresent(), is( false ) );
+    assertThat( IncrementalRefresh.create( key, cachedService, "UNKNOWN" ).isPresent(), is( false ) );
+    assertThat( IncrementalRefresh.create( key, cachedService, "FLAG" ).isPresent(), is( false ) );
+
+    // Field without a value in some rows
+    assertThat( IncrementalRefresh.create( key, cachedService, "CREATED" ).isPresent(), is( false ) );
+
+    // Partial entries are replaced
+    CachedService partial = mock( CachedService.class );
+    assertThat( IncrementalRefresh.create( key, partial, "ID" ).isPresent(), is( false ) );
+  }
+}
@@ -0,0 +1,132 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaAndData;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.sql.SQL;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ReplayFilterTest {
+  private static final String BASE_QUERY = "SELECT * FROM service";
+
+  private RowMeta rowMeta;
+  private CachedRows rows;
+
+  @Before
+  public void setUp() throws Exception {
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMeta( "ID", ValueMetaInterface.TYPE_STRING ) );
+    rowMeta.addValueMeta( new ValueMeta( "A", ValueMetaInterface.TYPE_INTEGER ) );
+    rowMeta.addValueMeta( new ValueMeta( "B", ValueMetaInterface.TYPE_NUMBER ) );
+
+    // 10 chunks with 10 rows each, A is sorted
+    CachedRows.Builder builder = new CachedRows.Builder( 10 );
+    for ( long i = 0; i < 100; i++ ) {
+      builder.add( rowMeta, new Object[] { "row " + i, i, i % 2 == 0 ? null : i * 0.5 } );
+    }
+    rows = builder.build();
+  }
+
+  @Test
+  public void testNoCondition() throws Exception {
+    assertThat( ReplayFilter.create( sql( BASE_QUERY ) ).isPresent(), is( false ) );
+  }
+
+  @Test
+  public void testSkipChunks() throws Exception {
+    assertReplay( "A = 42", 1, 1 );
+    assertReplay( "A >= 85", 2, 15 );
+    assertReplay( "A < 5 OR A > 94", 2, 10 );
+    assertReplay( "A > 10 AND A < 20", 1, 9 );
+    assertReplay( "A > 1000", 0, 0 );
+    assertReplay( "ID IS NULL", 0, 0 );
+    // Strings are ranged by dictionary: "row 0" to "row 9" and "row 40" to "row 49"
+    assertReplay( "ID = 'row 42'", 2, 1 );
+  }
+
+  @Test
+  public void testUnprunedConditions() throws Exception {
+    // Inequality and columns with nulls can not be ranged
+    assertReplay( "A <> 42", 10, 99 );
+    assertReplay( "B > 1000", 10, 0 );
+    assertReplay( "A = 42 OR B > 1000", 10, 1 );
+  }
+
+  @Test
+  public void testEqualities() throws Exception {
+    assertThat( equalities( "A = 42" ), equalTo( "{A=[42]}" ) );
+    assertThat( equalities( "A = 42 AND ID IN ('row 42', 'row 43')" ), equalTo( "{A=[42], ID=[row 42, row 43]}" ) );
+    assertThat( equalities( "A > 10 AND A = 12" ), equalTo( "{A=[12]}" ) );
+    // Not every matching row satisfies these
+    assertThat( equalities( "A = 42 OR ID = 'row 43'" ), equalTo( "{}" ) );
+    assertThat( equalities( "A = B" ), equalTo( "{}" ) );
+  }
+
+  private String equalities( String where ) throws Exception {
+    ReplayFilter filter = ReplayFilter.create( sql( BASE_QUERY + " WHERE " + where ) ).get();
+    Map<String, List<String>> values = Maps.newTreeMap();
+    for ( Map.Entry<String, ValueMetaAndData> entry : filter.getEqualities().entries() ) {
+      ValueMetaAndData value = entry.getValue();
+      if ( !values.containsKey( entry.getKey() ) ) {
+        values.put( entry.getKey(), Lists.<String>newArrayList() );
+      }
+      values.get( entry.getKey() ).add( value.getValueMeta().getString( value.getValueData() ) );
+    }
+    return values.toString();
+  }
+
+  private void assertReplay( String where, int chunks, int matches ) throws Exception {
+    ReplayFilter filter = ReplayFilter.create( sql( BASE_QUERY + " WHERE " + where ) ).get();
+    int chunkCount = 0, rowCount = 0;
+    for ( StoredChunk chunk : rows.getChunks() ) {
+      if ( filter.mayMatch( chunk ) ) {
+        chunkCount++;
+        for ( Object[] row : chunk.load() ) {
+          rowCount += filter.matches( chunk.getRowMeta(), row ) ? 1 : 0;
+        }
+      }
+    }
+    assertThat( where, chunkCount, equalTo( chunks ) );
+    assertThat( where, rowCount, equalTo( matches ) );
+  }
+
+  private SQL sql( String query ) throws Exception {
+    SQL sql = new SQL( query );
+    sql.parse( rowMeta );
+    return sql;
+  }
+}
@@ -23,27 +23,55 @@
 package org.pentaho.di.trans.dataservice.optimization.cache;
 
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Callables;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 import org.pentaho.caching.api.PentahoCacheManager;
 import org.pentaho.caching.api.PentahoCacheTemplateConfiguration;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.trans.dataservice.DataServiceExecutor;
 import org.pentaho.di.trans.dataservice.optimization.cache.ui.ServiceCacheController;
 import org.pentaho.di.trans.dataservice.optimization.cache.ui.ServiceCacheOverlay;
+import org.pentaho.di.trans.step.RowListener;
 
 import javax.cache.Cache;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.isA;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMapOf;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -117,6 +145,183 @@ public class ServiceCacheFactoryTest {
     assertThat( serviceCacheFactory.getCache( serviceCache, DATA_SERVICE_NAME ), is( cache ) );
   }
 
+  @Test
+  public void testPopulationLimits() throws Exception {
+    when( cacheManager.getTemplates() ).thenReturn( ImmutableMap.of( TEMPLATE_NAME, template ) );
+    when( template.overrideProperties( anyMapOf( String.class, String.class ) ) ).thenReturn( template );
+    ServiceCache serviceCache = serviceCacheFactory.createPushDown();
+    serviceCache.setTemplateName( TEMPLATE_NAME );
+
+    // Defaults to the cache size limit
+    when( template.getProperties() ).thenReturn( ImmutableMap.of( CacheBudget.MAX_SIZE, "10k" ) );
+    assertThat( serviceCacheFactory.getPopulationMaxRows( serviceCache ), is( 0L ) );
+    assertThat( serviceCacheFactory.getPopulationMaxSize( serviceCache ), is( 10240L ) );
+
+    when( template.getProperties() ).thenReturn( ImmutableMap.of(
+      CacheBudget.MAX_SIZE, "10k",
+      ServiceCacheFactory.POPULATION_MAX_ROWS, "500",
+      ServiceCacheFactory.POPULATION_MAX_SIZE, "1m" ) );
+    assertThat( serviceCacheFactory.getPopulationMaxRows( serviceCache ), is( 500L ) );
+    assertThat( serviceCacheFactory.getPopulationMaxSize( serviceCache ), is( 1048576L ) );
+  }
+
+  @Test
+  public void testClaimPopulation() throws Exception {
+    DataServiceExecutor executor = mock( DataServiceExecutor.class, RETURNS_DEEP_STUBS );
+    when( executor.getSql() ).thenReturn( new SQL( "SELECT * FROM service" ) );
+    when( executor.getParameters() ).thenReturn( ImmutableMap.<String, String>of() );
+    when( executor.getService().getServiceTrans().getXML() ).thenReturn( "<transformation/>" );
+    CachedService.CacheKey key = CachedService.CacheKey.create( executor );
+
+    SettableFuture<CachedService> first = SettableFuture.create(), second = SettableFuture.create();
+    assertThat( serviceCacheFactory.claimPopulation( DATA_SERVICE_NAME, key, first ).isPresent(), is( false ) );
+    assertThat( serviceCacheFactory.claimPopulation( DATA_SERVICE_NAME, key, second ).get(),
+      sameInstance( (ListenableFuture<CachedService>) first ) );
+    assertThat( serviceCacheFactory.claimPopulation( "other", key, second ).isPresent(), is( false ) );
+
+    // Claim is released once populated
+    first.set( CachedService.complete( ImmutableList.<RowMetaAndData>of() ) );
+    assertThat( serviceCacheFactory.claimPopulation( DATA_SERVICE_NAME, key, second ).isPresent(), is( false ) );
+
+    // Or abandoned by a waiting query
+    SettableFuture<CachedService> third = SettableFuture.create();
+    serviceCacheFactory.abandonPopulation( DATA_SERVICE_NAME, key, second );
+    assertThat( serviceCacheFactory.claimPopulation( DATA_SERVICE_NAME, key, third ).isPresent(), is( false ) );
+  }
+
+  @Test
+  public void testRefreshReleasesClaim() throws Exception {
+    final DataServiceExecutor observed = mock( DataServiceExecutor.class );
+    DataServiceExecutor unobserved = mock( DataServiceExecutor.class );
+    // The cache of the first query takes over its population, the second query never reaches the cache
+    doAnswer( new Answer<Void>() {
+      @Override public Void answer( InvocationOnMock invocation ) throws Throwable {
+        assertThat( serviceCacheFactory.getRefresh( observed ).isPresent(), is( true ) );
+        return null;
+      }
+    } ).when( observed ).executeQuery( any( RowListener.class ) );
+
+    SettableFuture<CachedService> observedPopulation = SettableFuture.create();
+    SettableFuture<CachedService> unobservedPopulation = SettableFuture.create();
+    assertThat( serviceCacheFactory.submitRefresh( Callables.returning( observed ), observedPopulation ), is( true ) );
+    assertThat( serviceCacheFactory.submitRefresh( Callables.returning( unobserved ), unobservedPopulation ),
+      is( true ) );
+    ArgumentCaptor<Runnable> refreshes = ArgumentCaptor.forClass( Runnable.class );
+    verify( executorService, times( 2 ) ).execute( refreshes.capture() );
+    for ( Runnable refresh : refreshes.getAllValues() ) {
+      refresh.run();
+    }
+
+    assertThat( observedPopulation.isDone(), is( false ) );
+    assertThat( unobservedPopulation.isDone(), is( true ) );
+    try {
+      unobservedPopulation.get();
+      fail( "Population should have failed" );
+    } catch ( ExecutionException e ) {
+      assertThat( e.getCause(), instanceOf( KettleException.class ) );
+    }
+    assertThat( serviceCacheFactory.getRefresh( observed ).isPresent(), is( false ) );
+    assertThat( serviceCacheFactory.getRefresh( unobserved ).isPresent(), is( false ) );
+  }
+
+  @Test
+  public void testInvalidate() throws Exception {
+    when( cacheManager.getCache( cacheName(), CachedService.CacheKey.class, CachedService.class ) ).thenReturn( cache );
+    CachedService.CacheKey tenantA = cacheKey( "SELECT * FROM service WHERE region = 'EU'", "A" );
+    CachedService.CacheKey tenantB = cacheKey( "SELECT * FROM service", "B" );
+    final CachedService cachedA = CachedService.complete( ImmutableList.<RowMetaAndData>of() );
+    final CachedService cachedB = CachedService.complete( ImmutableList.<RowMetaAndData>of() );
+    final List<Cache.Entry<CachedService.CacheKey, CachedService>> entries =
+      ImmutableList.of( entry( tenantA, cachedA ), entry( tenantB, cachedB ) );
+    when( cache.iterator() ).thenAnswer( new Answer<Iterator<Cache.Entry<CachedService.CacheKey, CachedService>>>() {
+      @Override public Iterator<Cache.Entry<CachedService.CacheKey, CachedService>> answer(
+        InvocationOnMock invocation ) {
+        return entries.iterator();
+      }
+    } );
+    when( cache.remove( tenantA, cachedA ) ).thenReturn( true );
+
+    CacheInvalidation byTenant =
+      new CacheInvalidation( ImmutableMap.of( "TENANT", "A" ), Optional.<Pattern>absent(), 0 );
+    CacheInvalidation.Result dryRun = serviceCacheFactory.invalidate( DATA_SERVICE_NAME, byTenant, true );
+    assertThat( dryRun.getEntries(), is( 1 ) );
+    assertThat( dryRun.getBytes(), is( cachedA.getEstimatedSize() ) );
+    verify( cache, never() ).remove( any( CachedService.CacheKey.class ), any( CachedService.class ) );
+
+    assertThat( serviceCacheFactory.invalidate( DATA_SERVICE_NAME, byTenant, false ).getEntries(), is( 1 ) );
+    verify( cache ).remove( tenantA, cachedA );
+    verify( cache, never() ).remove( tenantB, cachedB );
+
+    CacheInvalidation byWhere = new CacheInvalidation( ImmutableMap.<String, String>of(),
+      Optional.of( Pattern.compile( "region" ) ), 0 );
+    assertThat( serviceCacheFactory.invalidate( DATA_SERVICE_NAME, byWhere, true ).getEntries(), is( 1 ) );
+
+    // Entries must match all criteria
+    CacheInvalidation byTenantAndAge = new CacheInvalidation( ImmutableMap.of( "TENANT", "B" ),
+      Optional.<Pattern>absent(), TimeUnit.HOURS.toMillis( 1 ) );
+    assertThat( serviceCacheFactory.invalidate( DATA_SERVICE_NAME, byTenantAndAge, true ).getEntries(), is( 0 ) );
+
+    assertThat( CacheInvalidation.all().isSelective(), is( false ) );
+    assertThat( serviceCacheFactory.invalidate( DATA_SERVICE_NAME, CacheInvalidation.all(), true ).getEntries(),
+      is( 2 ) );
+  }
+
+  @Test
+  public void testCreateAdmissionPolicy() throws Exception {
+    assertThat( serviceCacheFactory.createAdmissionPolicy( ImmutableMap.<String, String>of() ),
+      is( sameInstance( AdmissionPolicy.ADMIT_ALL ) ) );
+    assertThat( createAdmissionPolicy( ServiceCacheFactory.ADMIT_ALL ),
+      is( sameInstance( AdmissionPolicy.ADMIT_ALL ) ) );
+    assertThat( createAdmissionPolicy( ServiceCacheFactory.ADMIT_FREQUENT ), instanceOf( FrequencyAdmission.class ) );
+
+    // Other policies are selected by class name
+    AdmissionPolicy configured = createAdmissionPolicy( ConfiguredAdmission.class.getName() );
+    assertThat( configured, instanceOf( ConfiguredAdmission.class ) );
+    assertThat( ( (ConfiguredAdmission) configured ).properties,
+      hasEntry( ServiceCacheFactory.ADMISSION_POLICY, ConfiguredAdmission.class.getName() ) );
+    assertThat( createAdmissionPolicy( DefaultAdmission.class.getName() ), instanceOf( DefaultAdmission.class ) );
+  }
+
+  private AdmissionPolicy createAdmissionPolicy( String policy ) {
+    return serviceCacheFactory.createAdmissionPolicy(
+      ImmutableMap.of( ServiceCacheFactory.ADMISSION_POLICY, policy ) );
+  }
+
+  public static class ConfiguredAdmission extends DefaultAdmission {
+    private final Map<String, String> properties;
+
+    public ConfiguredAdmission( Map<String, String> properties ) {
+      this.properties = properties;
+    }
+  }
+
+  public static class DefaultAdmission implements AdmissionPolicy {
+    @Override public void record( String serviceName, Map<String, String> parameters, String whereClause ) {
+    }
+
+    @Override public boolean admit( String serviceName, Map<String, String> parameters, String whereClause,
+                                    long populationMillis ) {
+      return false;
+    }
+  }
+
+  private static CachedService.CacheKey cacheKey( String query, String tenant ) throws Exception {
+    DataServiceExecutor executor = mock( DataServiceExecutor.class, RETURNS_DEEP_STUBS );
+    when( executor.getSql() ).thenReturn( new SQL( query ) );
+    when( executor.getParameters() ).thenReturn( ImmutableMap.of( "TENANT", tenant ) );
+    when( executor.getService().getServiceTrans().getXML() ).thenReturn( "<transformation/>" );
+    return CachedService.CacheKey.create( executor );
+  }
+
+  @SuppressWarnings( "unchecked" )
+  private static Cache.Entry<CachedService.CacheKey, CachedService> entry( CachedService.CacheKey key,
+                                                                           CachedService cachedService ) {
+    Cache.Entry<CachedService.CacheKey, CachedService> entry = mock( Cache.Entry.class );
+    when( entry.getKey() ).thenReturn( key );
+    when( entry.getValue() ).thenReturn( cachedService );
+    return entry;
+  }
+
   private String cacheName() {
     return serviceCacheFactory.cacheName( DATA_SERVICE_NAME );
   }
@@ -26,11 +26,14 @@ import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMultimap;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Answers;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
@@ -48,6 +51,9 @@ import org.pentaho.di.trans.dataservice.SqlTransGenerator;
 import org.pentaho.di.trans.dataservice.optimization.PushDownOptimizationMeta;
 import org.pentaho.di.trans.dataservice.optimization.PushDownType;
 import org.pentaho.di.trans.step.StepInterface;
+import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.step.StepMetaInterface;
+import org.pentaho.di.trans.steps.sort.SortRowsMeta;
 
 import javax.cache.Cache;
 import javax.cache.configuration.CompleteConfiguration;
@@ -56,16 +62,25 @@ import javax.cache.expiry.Duration;
 import javax.cache.expiry.ExpiryPolicy;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.hamcrest.collection.IsMapContaining.hasEntry;
 import static org.hamcrest.core.IsNot.not;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.ignoreStubs;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -88,8 +103,10 @@ public class ServiceCacheTest {
   @Mock Factory expiryFactory;
   @Mock ExpiryPolicy expiryPolicy;
   @Mock Duration duration;
+  @Mock TieredStorage storage;
 
   @InjectMocks ServiceCache serviceCache;
+  CacheStatistics statistics = new CacheStatistics();
   RowMeta rowMeta;
   PushDownOptimizationMeta serviceCacheOpt;
   PushDownOptimizationMeta otherOpt;
@@ -106,6 +123,17 @@ public class ServiceCacheTest {
 
     when( factory.getCache( "MOCK_SERVICE" ) ).thenReturn( Optional.of( cache ) );
     when( factory.getCache( serviceCache, "MOCK_SERVICE" ) ).thenReturn( cache );
+    when( factory.getStorage( serviceCache, "MOCK_SERVICE" ) ).thenReturn( storage );
+    when( factory.getBudget() ).thenReturn( new CacheBudget( 0 ) );
+    when( factory.getStatistics() ).thenReturn( statistics );
+    when( factory.getSnapshots() ).thenReturn( Optional.<CacheSnapshots>absent() );
+    when( factory.claimPopulation( anyString(), any( CachedService.CacheKey.class ), any( ListenableFuture.class ) ) )
+      .thenReturn( Optional.<ListenableFuture<CachedService>>absent() );
+    when( factory.getRefresh( any( DataServiceExecutor.class ) ) )
+      .thenReturn( Optional.<SettableFuture<CachedService>>absent() );
+    when( factory.getIncrementalRefresh( any( DataServiceExecutor.class ) ) )
+      .thenReturn( Optional.<IncrementalRefresh>absent() );
+    when( factory.getAdmissionPolicy( serviceCache, "MOCK_SERVICE" ) ).thenReturn( AdmissionPolicy.ADMIT_ALL );
     when( dataServiceMeta.getStepname() ).thenReturn( SERVICE_STEP );
     when( dataServiceMeta.getName() ).thenReturn( "MOCK_SERVICE" );
     serviceStep = serviceTrans.findRunThread( SERVICE_STEP );
@@ -137,7 +165,7 @@ public class ServiceCacheTest {
     CachedService cachedService = CachedService.complete( ImmutableList.<RowMetaAndData>of() );
 
     ServiceObserver observer = mock( ServiceObserver.class );
-    when( factory.createObserver( executor ) ).thenReturn( observer );
+    when( factory.createObserver( executor, serviceCache ) ).thenReturn( observer );
     when( observer.install() ).thenReturn( Futures.immediateFuture( cachedService ) );
 
     when( cache.get( any( CachedService.CacheKey.class ) ) ).thenReturn( null );
@@ -148,6 +176,30 @@ public class ServiceCacheTest {
     verifyNoMoreInteractions( ignoreStubs( cache ) );
   }
 
+  @Test
+  public void testObserveFailureReleasesClaim() throws Exception {
+    when( dataServiceMeta.getPushDownOptimizationMeta() ).thenReturn( ImmutableList.of( serviceCacheOpt, otherOpt ) );
+
+    DataServiceExecutor executor = dataServiceExecutor( "SELECT * FROM MOCK_SERVICE" );
+    ServiceObserver observer = mock( ServiceObserver.class );
+    when( factory.createObserver( executor, serviceCache ) ).thenReturn( observer );
+    when( observer.install() ).thenThrow( new IllegalStateException( "not observable" ) );
+
+    // The query runs without the cache, identical queries waiting for it are released
+    assertThat( serviceCache.activate( executor, serviceStep ), is( false ) );
+    ArgumentCaptor<ListenableFuture> population = ArgumentCaptor.forClass( ListenableFuture.class );
+    verify( factory ).claimPopulation( eq( "MOCK_SERVICE" ), any( CachedService.CacheKey.class ),
+      population.capture() );
+    assertThat( population.getValue().isDone(), is( true ) );
+    try {
+      population.getValue().get();
+      fail( "Population should have failed" );
+    } catch ( ExecutionException e ) {
+      assertThat( e.getCause(), instanceOf( IllegalStateException.class ) );
+    }
+    verify( cache, never() ).putIfAbsent( any( CachedService.CacheKey.class ), any( CachedService.class ) );
+  }
+
   @Test
   public void testObserveWithoutCondition() throws Exception {
     String select = "SELECT * FROM MOCK_SERVICE";
@@ -168,7 +220,7 @@ public class ServiceCacheTest {
       CachedService.CacheKey key = CachedService.CacheKey.create( executor ).withoutCondition();
 
       ServiceObserver observer = mock( ServiceObserver.class );
-      when( factory.createObserver( executor ) ).thenReturn( observer );
+      when( factory.createObserver( executor, serviceCache ) ).thenReturn( observer );
       when( observer.install() ).thenReturn( Futures.immediateFuture( cachedService ) );
 
       when( cache.get( any( CachedService.CacheKey.class ) ) ).thenReturn( null );
@@ -199,7 +251,7 @@ public class ServiceCacheTest {
     when( existingCache.answersQuery( executor ) ).thenReturn( false );
 
     ServiceObserver observer = mock( ServiceObserver.class );
-    when( factory.createObserver( executor ) ).thenReturn( observer );
+    when( factory.createObserver( executor, serviceCache ) ).thenReturn( observer );
     CachedService cachedService = CachedService.complete( ImmutableList.<RowMetaAndData>of() );
     when( observer.install() ).thenReturn( Futures.immediateFuture( cachedService ) );
 
@@ -222,7 +274,7 @@ public class ServiceCacheTest {
 
     when( cache.get( key ) ).thenReturn( cachedService );
     when( cachedService.answersQuery( executor ) ).thenReturn( true );
-    when( factory.createCachedServiceLoader( cachedService ) ).thenReturn( cachedServiceLoader );
+    when( factory.createCachedServiceLoader( cachedService, serviceCache ) ).thenReturn( cachedServiceLoader );
     when( cachedServiceLoader.replay( executor ) ).thenReturn( Futures.immediateFuture( 2000 ) );
 
     assertThat( serviceCache.activate( executor, serviceStep ), is( true ) );
@@ -241,13 +293,259 @@ public class ServiceCacheTest {
     when( cache.get( key ) ).thenReturn( null );
     when( cache.get( key.withoutCondition() ) ).thenReturn( cachedService );
     when( cachedService.isComplete() ).thenReturn( true );
-    when( factory.createCachedServiceLoader( cachedService ) ).thenReturn( cachedServiceLoader );
+    when( factory.createCachedServiceLoader( cachedService, serviceCache ) ).thenReturn( cachedServiceLoader );
     when( cachedServiceLoader.replay( executor ) ).thenReturn( Futures.immediateFuture( 2000 ) );
 
     assertThat( serviceCache.activate( executor, serviceStep ), is( true ) );
     verify( cachedServiceLoader ).replay( executor );
   }
 
+  @Test
+  public void testReplayPopulation() throws Exception {
+    when( dataServiceMeta.getPushDownOptimizationMeta() ).thenReturn( ImmutableList.of( serviceCacheOpt, otherOpt ) );
+
+    DataServiceExecutor executor = dataServiceExecutor( "SELECT * FROM MOCK_SERVICE WHERE A = 2 ORDER BY ID" );
+    CachedService.CacheKey key = CachedService.CacheKey.create( executor ).withoutOrder();
+    CachedService cachedService = CachedService.complete( ImmutableList.<RowMetaAndData>of() );
+    CachedServiceLoader cachedServiceLoader = mock( CachedServiceLoader.class );
+
+    // An identical query is populating the cache
+    when( factory.claimPopulation( eq( "MOCK_SERVICE" ), eq( key ), any( ListenableFuture.class ) ) )
+      .thenReturn( Optional.of( Futures.immediateFuture( cachedService ) ) );
+    when( factory.createCachedServiceLoader( cachedService, serviceCache ) ).thenReturn( cachedServiceLoader );
+    when( cachedServiceLoader.replay( executor ) ).thenReturn( Futures.immediateFuture( 0 ) );
+
+    assertThat( serviceCache.activate( executor, serviceStep ), is( true ) );
+    verify( cachedServiceLoader ).replay( executor );
+    verify( factory, never() ).createObserver( executor, serviceCache );
+  }
+
+  @Test
+  public void testResumePartial() throws Exception {
+    when( dataServiceMeta.getPushDownOptimizationMeta() ).thenReturn( ImmutableList.of( serviceCacheOpt, otherOpt ) );
+
+    DataServiceExecutor executor = dataServiceExecutor( "SELECT * FROM MOCK_SERVICE WHERE A = 2" );
+    CachedService.CacheKey key = CachedService.CacheKey.create( executor );
+    CachedService partial = mock( CachedService.class );
+    CachedService extended = mock( CachedService.class );
+    CachedServiceLoader cachedServiceLoader = mock( CachedServiceLoader.class );
+    ServiceObserver observer = mock( ServiceObserver.class );
+
+    // Partial entry holds too few rows to answer the query, service rows are sorted
+    when( cache.get( key ) ).thenReturn( partial );
+    when( partial.getRowCount() ).thenReturn( 10 );
+    serviceStepMeta( mock( SortRowsMeta.class ) );
+    when( factory.createCachedServiceLoader( partial, serviceCache ) ).thenReturn( cachedServiceLoader );
+    when( cachedServiceLoader.resume( executor ) ).thenReturn( Futures.immediateFuture( 10 ) );
+    when( factory.createObserver( executor, serviceCache, partial ) ).thenReturn( observer );
+    when( observer.install() ).thenReturn( Futures.immediateFuture( extended ) );
+    when( cache.putIfAbsent( key, extended ) ).thenReturn( false );
+    when( cache.replace( key, partial, extended ) ).thenReturn( true );
+
+    assertThat( serviceCache.activate( executor, serviceStep ), is( false ) );
+    verify( cachedServiceLoader ).resume( executor );
+    verify( cachedServiceLoader, never() ).replay( executor );
+    verify( cache ).replace( key, partial, extended );
+    assertThat( statistics.getCounters( "MOCK_SERVICE" ).getMisses(), is( 0L ) );
+  }
+
+  @Test
+  public void testResumeUnordered() throws Exception {
+    when( dataServiceMeta.getPushDownOptimizationMeta() ).thenReturn( ImmutableList.of( serviceCacheOpt, otherOpt ) );
+
+    DataServiceExecutor executor = dataServiceExecutor( "SELECT * FROM MOCK_SERVICE WHERE A = 2" );
+    CachedService.CacheKey key = CachedService.CacheKey.create( executor );
+    CachedService partial = mock( CachedService.class );
+    ServiceObserver observer = mock( ServiceObserver.class );
+
+    // Service rows may come in another order on each run, so the cached rows can not be skipped
+    when( cache.get( key ) ).thenReturn( partial );
+    when( partial.getRowCount() ).thenReturn( 10 );
+    serviceStepMeta( mock( StepMetaInterface.class ) );
+    when( factory.createObserver( executor, serviceCache ) ).thenReturn( observer );
+    when( observer.install() ).thenReturn( SettableFuture.<CachedService>create() );
+
+    assertThat( serviceCache.activate( executor, serviceStep ), is( false ) );
+    verify( factory, never() ).createCachedServiceLoader( partial, serviceCache );
+    verify( factory, never() ).createObserver( executor, serviceCache, partial );
+    verify( factory ).createObserver( executor, serviceCache );
+  }
+
+  @Test
+  public void testObserveFailedPopulation() throws Exception {
+    when( dataServiceMeta.getPushDownOptimizationMeta() ).thenReturn( ImmutableList.of( serviceCacheOpt, otherOpt ) );
+
+    DataServiceExecutor executor = dataServiceExecutor( "SELECT * FROM MOCK_SERVICE WHERE A = 2" );
+    CachedService.CacheKey key = CachedService.CacheKey.create( executor );
+    CachedService cachedService = CachedService.complete( ImmutableList.<RowMetaAndData>of() );
+
+    when( factory.claimPopulation( eq( "MOCK_SERVICE" ), eq( key ), any( ListenableFuture.class ) ) )
+      .thenReturn( Optional.of( Futures.<CachedService>immediateFailedFuture( new KettleException() ) ) );
+    ServiceObserver observer = mock( ServiceObserver.class );
+    when( factory.createObserver( executor, serviceCache ) ).thenReturn( observer );
+    when( observer.install() ).thenReturn( Futures.immediateFuture( cachedService ) );
+    when( cache.putIfAbsent( key, cachedService ) ).thenReturn( true );
+
+    assertThat( serviceCache.activate( executor, serviceStep ), is( false ) );
+    verify( cache ).putIfAbsent( key, cachedService );
+  }
+
+  @Test
+  public void testObserveNotAdmitted() throws Exception {
+    when( dataServiceMeta.getPushDownOptimizationMeta() ).thenReturn( ImmutableList.of( serviceCacheOpt, otherOpt ) );
+    // Admitted on the second query
+    FrequencyAdmission admission = new FrequencyAdmission( 2, Long.MAX_VALUE, 16 );
+    when( factory.getAdmissionPolicy( serviceCache, "MOCK_SERVICE" ) ).thenReturn( admission );
+
+    DataServiceExecutor executor = dataServiceExecutor( "SELECT * FROM MOCK_SERVICE WHERE A = 2" );
+    CachedService.CacheKey key = CachedService.CacheKey.create( executor ).withoutOrder();
+    CachedService cachedService = CachedService.complete( ImmutableList.<RowMetaAndData>of() );
+    ServiceObserver observer = mock( ServiceObserver.class );
+    when( factory.createObserver( executor, serviceCache ) ).thenReturn( observer );
+    when( observer.install() ).thenReturn( Futures.immediateFuture( cachedService ) );
+
+    assertThat( serviceCache.activate( executor, serviceStep ), is( false ) );
+    verify( cache, never() ).putIfAbsent( any( CachedService.CacheKey.class ), any( CachedService.class ) );
+    assertThat( admission.frequency( "MOCK_SERVICE", key.getParameters(), key.getWhereClause().orNull() ), is( 1 ) );
+
+    when( cache.putIfAbsent( key, cachedService ) ).thenReturn( true );
+    assertThat( serviceCache.activate( executor, serviceStep ), is( false ) );
+    verify( cache ).putIfAbsent( key, cachedService );
+    assertThat( statistics.getCounters( "MOCK_SERVICE" ).getRejected(), is( 1L ) );
+    assertThat( statistics.getCounters( "MOCK_SERVICE" ).getAdmitted(), is( 1L ) );
+  }
+
+  @Test
+  public void testObserveAbandoned() throws Exception {
+    when( dataServiceMeta.getPushDownOptimizationMeta() ).thenReturn( ImmutableList.of( serviceCacheOpt, otherOpt ) );
+
+    DataServiceExecutor executor = dataServiceExecutor( "SELECT * FROM MOCK_SERVICE WHERE A = 2" );
+    CacheBudget budget = new CacheBudget( 0 );
+    when( factory.getBudget() ).thenReturn( budget );
+    ServiceObserver observer = mock( ServiceObserver.class );
+    when( factory.createObserver( executor, serviceCache ) ).thenReturn( observer );
+    when( observer.install() ).thenReturn( Futures.<CachedService>immediateFailedFuture(
+      new ServiceObserver.LimitExceededException( "too many rows" ) ) );
+
+    assertThat( serviceCache.activate( executor, serviceStep ), is( false ) );
+    verify( cache, never() ).putIfAbsent( any( CachedService.CacheKey.class ), any( CachedService.class ) );
+    assertThat( budget.getAbandoned( "MOCK_SERVICE" ), is( 1L ) );
+    assertThat( budget.getAbandoned(), is( 1L ) );
+    assertThat( statistics.getCounters( "MOCK_SERVICE" ).getMisses(), is( 1L ) );
+  }
+
+  @Test
+  public void testRefreshStale() throws Exception {
+    when( dataServiceMeta.getPushDownOptimizationMeta() ).thenReturn( ImmutableList.of( serviceCacheOpt, otherOpt ) );
+    serviceCache.setTimeToLive( "1000" );
+    serviceCache.setRefreshAhead( true );
+    serviceCache.setGracePeriod( "100" );
+    // Cache is configured to keep entries for the grace period
+    when( duration.getDurationAmount() ).thenReturn( 1100L );
+
+    DataServiceExecutor executor = dataServiceExecutor( "SELECT * FROM MOCK_SERVICE WHERE A = 2" );
+    CachedService.CacheKey key = CachedService.CacheKey.create( executor );
+    CachedService cachedService = mock( CachedService.class );
+    CachedServiceLoader cachedServiceLoader = mock( CachedServiceLoader.class );
+
+    when( cache.get( key ) ).thenReturn( cachedService );
+    when( cachedService.answersQuery( executor ) ).thenReturn( true );
+    when( cachedService.isComplete() ).thenReturn( true );
+    when( factory.createCachedServiceLoader( cachedService, serviceCache ) ).thenReturn( cachedServiceLoader );
+    when( cachedServiceLoader.replay( executor ) ).thenReturn( Futures.immediateFuture( 2000 ) );
+    when( factory.submitRefresh( any( Callable.class ), any( SettableFuture.class ) ) ).thenReturn( true );
+
+    // Fresh
+    when( cachedService.getAge() ).thenReturn( 500 * 1000L );
+    assertThat( serviceCache.activate( executor, serviceStep ), is( true ) );
+    verify( factory, never() ).submitRefresh( any( Callable.class ), any( SettableFuture.class ) );
+
+    // Close to expiring
+    when( cachedService.getAge() ).thenReturn( 900 * 1000L );
+    assertThat( serviceCache.activate( executor, serviceStep ), is( true ) );
+    verify( factory ).submitRefresh( any( Callable.class ), any( SettableFuture.class ) );
+
+    // Expired, but within grace period
+    when( cachedService.getAge() ).thenReturn( 1050 * 1000L );
+    assertThat( serviceCache.activate( executor, serviceStep ), is( true ) );
+    verify( factory, times( 2 ) ).submitRefresh( any( Callable.class ), any( SettableFuture.class ) );
+    verify( cachedServiceLoader, times( 3 ) ).replay( executor );
+
+    // Past grace period
+    when( cachedService.getAge() ).thenReturn( 1200 * 1000L );
+    ServiceObserver observer = mock( ServiceObserver.class );
+    when( factory.createObserver( executor, serviceCache ) ).thenReturn( observer );
+    when( observer.install() ).thenReturn( SettableFuture.<CachedService>create() );
+    assertThat( serviceCache.activate( executor, serviceStep ), is( false ) );
+    verify( cache ).remove( key, cachedService );
+  }
+
+  @Test
+  public void testRefreshReplacesEntry() throws Exception {
+    when( dataServiceMeta.getPushDownOptimizationMeta() ).thenReturn( ImmutableList.of( serviceCacheOpt, otherOpt ) );
+
+    DataServiceExecutor executor = dataServiceExecutor( "SELECT * FROM MOCK_SERVICE WHERE A = 2" );
+    CachedService.CacheKey key = CachedService.CacheKey.create( executor );
+    CachedService existing = mock( CachedService.class );
+    CachedService cachedService = CachedService.complete( ImmutableList.<RowMetaAndData>of() );
+    SettableFuture<CachedService> population = SettableFuture.create();
+
+    when( factory.getRefresh( executor ) ).thenReturn( Optional.of( population ) );
+    when( cache.get( key ) ).thenReturn( existing );
+    when( existing.answersQuery( executor ) ).thenReturn( true );
+    ServiceObserver observer = mock( ServiceObserver.class );
+    when( factory.createObserver( executor, serviceCache ) ).thenReturn( observer );
+    when( observer.install() ).thenReturn( Futures.immediateFuture( cachedService ) );
+    when( cache.putIfAbsent( key, cachedService ) ).thenReturn( false );
+    when( cache.replace( key, existing, cachedService ) ).thenReturn( true );
+
+    assertThat( serviceCache.activate( executor, serviceStep ), is( false ) );
+    verify( cache ).replace( key, existing, cachedService );
+    assertThat( population.get(), sameInstance( cachedService ) );
+  }
+
+  @Test
+  public void testRefreshDropsRollups() throws Exception {
+    when( dataServiceMeta.getPushDownOptimizationMeta() ).thenReturn( ImmutableList.of( serviceCacheOpt, otherOpt ) );
+
+    DataServiceExecutor executor = dataServiceExecutor( "SELECT * FROM MOCK_SERVICE WHERE A = 2" );
+    CachedService.CacheKey key = CachedService.CacheKey.create( executor );
+    CachedService existing = mock( CachedService.class ), rollup = mock( CachedService.class );
+    CachedService cachedService = CachedService.complete( ImmutableList.<RowMetaAndData>of() );
+    SettableFuture<CachedService> population = SettableFuture.create();
+
+    // Rollups of any condition were built from the rows being refreshed
+    CachedService.CacheKey rollupKey =
+      key.withoutCondition().withRollup( new CachedRollup( ImmutableList.of( "A" ), ImmutableList.of( "B" ) ) );
+    CacheBudget budget = factory.getBudget();
+    budget.add( "MOCK_SERVICE", key, existing, 0 );
+    budget.add( "MOCK_SERVICE", rollupKey, rollup, 0 );
+    when( cache.remove( rollupKey, rollup ) ).thenReturn( true );
+
+    when( factory.getRefresh( executor ) ).thenReturn( Optional.of( population ) );
+    when( cache.get( key ) ).thenReturn( existing );
+    ServiceObserver observer = mock( ServiceObserver.class );
+    when( factory.createObserver( executor, serviceCache ) ).thenReturn( observer );
+    when( observer.install() ).thenReturn( Futures.immediateFuture( cachedService ) );
+    when( cache.replace( key, existing, cachedService ) ).thenReturn( true );
+
+    assertThat( serviceCache.activate( executor, serviceStep ), is( false ) );
+    verify( cache ).remove( rollupKey, rollup );
+    verify( cache ).replace( key, existing, cachedService );
+    assertThat( budget.getEntryCount( "MOCK_SERVICE" ), is( 1 ) );
+  }
+
+  @Test
+  public void testGracePeriodOverride() throws Exception {
+    serviceCache.setTimeToLive( "600" );
+    serviceCache.setGracePeriod( "60" );
+    assertThat( serviceCache.getTemplateOverrides(), hasEntry( CONFIG_TTL, "600" ) );
+
+    serviceCache.setRefreshAhead( true );
+    assertThat( serviceCache.getTemplateOverrides(), hasEntry( CONFIG_TTL, "660" ) );
+    assertThat( serviceCache.getConfiguredTimeToLive(), is( "600" ) );
+  }
+
   @Test
   public void testTimeToLiveOverride() {
     assertThat( serviceCache.getTemplateOverrides(), not( hasEntry( CONFIG_TTL, "1010" ) ) );
@@ -280,6 +578,13 @@ public class ServiceCacheTest {
     assertThat( serviceCache.getAvailableCache( executor ).get( key ), equalTo( existingCache ) );
   }
 
+  private void serviceStepMeta( StepMetaInterface stepMetaInterface ) {
+    StepMeta stepMeta = mock( StepMeta.class );
+    when( stepMeta.getCopies() ).thenReturn( 1 );
+    when( stepMeta.getStepMetaInterface() ).thenReturn( stepMetaInterface );
+    when( serviceTrans.getTransMeta().findStep( SERVICE_STEP ) ).thenReturn( stepMeta );
+  }
+
   private DataServiceExecutor dataServiceExecutor( String query ) throws KettleException {
     SQL sql = new SQL( query );
     sql.parse( rowMeta );
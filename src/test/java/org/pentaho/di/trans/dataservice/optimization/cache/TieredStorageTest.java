@@ -0,0 +1,293 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.io.File;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.arrayWithSize;
+import static org.hamcrest.Matchers.emptyArray;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class TieredStorageTest {
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private RowMeta rowMeta;
+  private List<Object[]> data;
+  private File directory;
+
+  @Before
+  public void setUp() throws Exception {
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMeta( "string", ValueMetaInterface.TYPE_STRING ) );
+    rowMeta.addValueMeta( new ValueMeta( "integer", ValueMetaInterface.TYPE_INTEGER ) );
+    rowMeta.addValueMeta( new ValueMeta( "number", ValueMetaInterface.TYPE_NUMBER ) );
+    rowMeta.addValueMeta( new ValueMeta( "date", ValueMetaInterface.TYPE_DATE ) );
+    rowMeta.addValueMeta( new ValueMeta( "boolean", ValueMetaInterface.TYPE_BOOLEAN ) );
+
+    data = Lists.newArrayList();
+    for ( int i = 0; i < 50; i++ ) {
+      data.add( new Object[] {
+        i % 5 == 0 ? null : "value " + i % 3,
+        i % 7 == 0 ? null : (long) i,
+        i * 1.5,
+        i % 4 == 0 ? null : new Date( 1000L * i ),
+        i % 2 == 0
+      } );
+    }
+    directory = temporaryFolder.newFolder( "cache" );
+  }
+
+  @Test
+  public void testParseSize() throws Exception {
+    assertThat( TieredStorage.parseSize( "1024" ), equalTo( 1024L ) );
+    assertThat( TieredStorage.parseSize( "512k" ), equalTo( 512L * 1024 ) );
+    assertThat( TieredStorage.parseSize( "64MB" ), equalTo( 64L * 1024 * 1024 ) );
+    assertThat( TieredStorage.parseSize( " 2g " ), equalTo( 2L * 1024 * 1024 * 1024 ) );
+    assertThat( TieredStorage.parseSize( null ), equalTo( -1L ) );
+    assertThat( TieredStorage.parseSize( "lots" ), equalTo( -1L ) );
+  }
+
+  @Test
+  public void testDisabled() throws Exception {
+    TieredStorage storage = TieredStorage.create( ImmutableMap.<String, String>of() );
+    CachedRows rows = createRows();
+
+    assertThat( storage.isEnabled(), is( false ) );
+    storage.register( rows );
+    for ( StoredChunk chunk : rows.getChunks() ) {
+      assertThat( chunk.getTier(), is( TieredStorage.Tier.HEAP ) );
+    }
+    assertThat( storage.getUsage( TieredStorage.Tier.HEAP ), equalTo( 0L ) );
+  }
+
+  @Test
+  public void testHeapLimit() throws Exception {
+    CachedRows rows = createRows();
+    TieredStorage storage = createStorage( heapSize( rows ), -1, -1 );
+
+    storage.register( rows );
+    assertThat( storage.getUsage( TieredStorage.Tier.HEAP ), equalTo( heapSize( rows ) ) );
+    for ( StoredChunk chunk : rows.getChunks() ) {
+      assertThat( chunk.getTier(), is( TieredStorage.Tier.HEAP ) );
+    }
+  }
+
+  @Test
+  public void testOffHeap() throws Exception {
+    CachedRows rows = createRows();
+    TieredStorage storage = createStorage( 0, 1024 * 1024, -1 );
+
+    storage.register( rows );
+    assertThat( storage.getUsage( TieredStorage.Tier.HEAP ), equalTo( 0L ) );
+    for ( StoredChunk chunk : rows.getChunks() ) {
+      assertThat( chunk.getTier(), is( TieredStorage.Tier.OFF_HEAP ) );
+      assertThat( chunk.getBuffer().isDirect(), is( true ) );
+    }
+    assertRows( rows );
+  }
+
+  @Test
+  public void testDisk() throws Exception {
+    CachedRows rows = createRows();
+    TieredStorage storage = createStorage( 0, -1, 1024 * 1024 );
+
+    storage.register( rows );
+    for ( StoredChunk chunk : rows.getChunks() ) {
+      assertThat( chunk.getTier(), is( TieredStorage.Tier.DISK ) );
+    }
+    assertThat( directory.listFiles(), arrayWithSize( rows.getChunks().size() ) );
+    assertRows( rows );
+
+    storage.clear();
+    assertThat( rows.isEvicted(), is( true ) );
+    assertThat( directory.listFiles(), emptyArray() );
+  }
+
+  @Test
+  public void testDemoteThroughTiers() throws Exception {
+    CachedRows first = createRows(), second = createRows();
+    TieredStorage storage = createStorage( heapSize( second ), 1, 1024 * 1024 );
+
+    storage.register( first );
+    storage.register( second );
+
+    // Off heap tier can only hold part of a chunk, so older chunks are written to disk
+    for ( StoredChunk chunk : first.getChunks() ) {
+      assertThat( chunk.getTier(), is( TieredStorage.Tier.DISK ) );
+    }
+    for ( StoredChunk chunk : second.getChunks() ) {
+      assertThat( chunk.getTier(), is( TieredStorage.Tier.HEAP ) );
+    }
+    assertRows( first );
+    assertRows( second );
+  }
+
+  @Test
+  public void testDiscard() throws Exception {
+    CachedRows first = createRows(), second = createRows();
+    TieredStorage storage = createStorage( heapSize( first ), -1, -1 );
+
+    storage.register( first );
+    storage.register( second );
+
+    assertThat( first.isEvicted(), is( true ) );
+    assertThat( second.isEvicted(), is( false ) );
+    assertThat( storage.getUsage( TieredStorage.Tier.HEAP ), equalTo( heapSize( second ) ) );
+    try {
+      first.getChunks().get( 0 ).load();
+      fail( "Evicted rows should not load" );
+    } catch ( IllegalStateException e ) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testPinned() throws Exception {
+    CachedRows first = createRows(), second = createRows();
+    TieredStorage storage = createStorage( heapSize( first ), -1, -1 );
+
+    first.pin();
+    storage.register( first );
+    storage.register( second );
+
+    assertThat( first.isEvicted(), is( false ) );
+    assertThat( second.isEvicted(), is( true ) );
+
+    first.unpin();
+    storage.register( createRows() );
+    assertThat( first.isEvicted(), is( true ) );
+  }
+
+  @Test
+  public void testAppendWhileReplaying() throws Exception {
+    CachedRows base = createRows();
+    TieredStorage storage = createStorage( heapSize( base ), -1, -1 );
+    storage.register( base );
+
+    // An incremental refresh appends to the entry while a query still replays it
+    base.pin();
+    CachedRows.Builder newRows = new CachedRows.Builder( 20 );
+    newRows.add( rowMeta, data.get( 0 ) );
+    CachedRows refreshed = base.append( newRows );
+
+    // Other rows are discarded first, since the shared chunks are pinned by the replay
+    CachedRows other = createRows();
+    storage.register( other );
+    assertThat( other.isEvicted(), is( true ) );
+    assertThat( base.isEvicted(), is( false ) );
+    assertRows( base );
+
+    // Once discarded, shared chunks evict both
+    base.unpin();
+    storage.register( createRows() );
+    assertThat( base.isEvicted(), is( true ) );
+    assertThat( refreshed.isEvicted(), is( true ) );
+  }
+
+  @Test
+  public void testDemoteFailure() throws Exception {
+    CachedRows first = createRows(), second = createRows();
+    // Disk tier can not be written, since its directory is a plain file
+    directory = temporaryFolder.newFile( "unwritable" );
+    TieredStorage storage = createStorage( heapSize( first ), -1, 1024 * 1024 );
+
+    first.pin();
+    storage.register( first );
+    storage.register( second );
+
+    // Replayed rows stay on the heap rather than being discarded
+    assertThat( first.isEvicted(), is( false ) );
+    assertThat( second.isEvicted(), is( true ) );
+    for ( StoredChunk chunk : first.getChunks() ) {
+      assertThat( chunk.getTier(), is( TieredStorage.Tier.HEAP ) );
+    }
+    assertRows( first );
+  }
+
+  @Test
+  public void testCleanStaleFiles() throws Exception {
+    File stale = new File( directory, "chunk123.bin" ), other = new File( directory, "other.bin" );
+    assertThat( stale.createNewFile(), is( true ) );
+    assertThat( other.createNewFile(), is( true ) );
+
+    createStorage( 0, -1, 1024 * 1024 ).register( createRows() );
+    assertThat( stale.exists(), is( false ) );
+    assertThat( other.exists(), is( true ) );
+
+    // Files of storage already running in this process are kept
+    createStorage( 0, -1, 1024 * 1024 );
+    assertThat( directory.listFiles(), arrayWithSize( createRows().getChunks().size() + 1 ) );
+  }
+
+  private TieredStorage createStorage( long heap, long offHeap, long disk ) {
+    Map<TieredStorage.Tier, Long> limits = new EnumMap<TieredStorage.Tier, Long>( TieredStorage.Tier.class );
+    limits.put( TieredStorage.Tier.HEAP, heap );
+    limits.put( TieredStorage.Tier.OFF_HEAP, offHeap );
+    limits.put( TieredStorage.Tier.DISK, disk );
+    return new TieredStorage( limits, directory );
+  }
+
+  private CachedRows createRows() {
+    CachedRows.Builder builder = new CachedRows.Builder( 20 );
+    for ( Object[] row : data ) {
+      builder.add( rowMeta, row );
+    }
+    return builder.build();
+  }
+
+  private static long heapSize( CachedRows rows ) {
+    long size = 0;
+    for ( StoredChunk chunk : rows.getChunks() ) {
+      size += chunk.getHeapSize();
+    }
+    return size;
+  }
+
+  private void assertRows( CachedRows rows ) {
+    List<RowMetaAndData> actual = rows.toRowMetaAndData();
+    assertThat( actual.size(), equalTo( data.size() ) );
+    for ( int i = 0; i < data.size(); i++ ) {
+      assertThat( actual.get( i ).getData(), equalTo( data.get( i ) ) );
+    }
+  }
+}
@@ -31,15 +31,20 @@ import org.mockito.runners.MockitoJUnitRunner;
 import org.pentaho.caching.api.PentahoCacheTemplateConfiguration;
 import org.pentaho.di.trans.dataservice.optimization.PushDownOptimizationMeta;
 import org.pentaho.di.trans.dataservice.optimization.PushDownType;
+import org.pentaho.di.trans.dataservice.optimization.cache.CacheBudget;
+import org.pentaho.di.trans.dataservice.optimization.cache.CacheStatistics;
 import org.pentaho.di.trans.dataservice.optimization.cache.ServiceCache;
 import org.pentaho.di.trans.dataservice.optimization.cache.ServiceCacheFactory;
 import org.pentaho.di.trans.dataservice.ui.model.DataServiceModel;
 import org.pentaho.ui.xul.XulDomContainer;
 import org.pentaho.ui.xul.binding.BindingFactory;
 import org.pentaho.ui.xul.components.XulCheckbox;
+import org.pentaho.ui.xul.components.XulLabel;
 import org.pentaho.ui.xul.components.XulTextbox;
 import org.pentaho.ui.xul.dom.Document;
 
+import java.text.MessageFormat;
+
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
@@ -60,7 +65,15 @@ public class ServiceCacheControllerTest {
   @Mock BindingFactory bindingFactory;
   @Mock XulCheckbox checkbox;
   @Mock XulTextbox ttl;
+  @Mock XulLabel size;
+  @Mock XulLabel statistics;
+  @Mock XulCheckbox refresh;
+  @Mock XulTextbox grace;
+  @Mock XulTextbox highWaterMark;
+  @Mock XulTextbox indexedColumns;
+  @Mock XulTextbox compressedColumns;
   @Mock PentahoCacheTemplateConfiguration cacheConfig;
+  @Mock CacheBudget budget;
 
   PushDownOptimizationMeta meta;
   ServiceCache serviceCache;
@@ -72,6 +85,13 @@ public class ServiceCacheControllerTest {
 
     when( document.getElementById( "service-cache-checkbox" ) ).thenReturn( checkbox );
     when( document.getElementById( "service-cache-ttl" ) ).thenReturn( ttl );
+    when( document.getElementById( "service-cache-size" ) ).thenReturn( size );
+    when( document.getElementById( "service-cache-statistics" ) ).thenReturn( statistics );
+    when( document.getElementById( "service-cache-refresh" ) ).thenReturn( refresh );
+    when( document.getElementById( "service-cache-grace" ) ).thenReturn( grace );
+    when( document.getElementById( "service-cache-high-water-mark" ) ).thenReturn( highWaterMark );
+    when( document.getElementById( "service-cache-indexed-columns" ) ).thenReturn( indexedColumns );
+    when( document.getElementById( "service-cache-compressed-columns" ) ).thenReturn( compressedColumns );
   }
 
   @Test
@@ -91,6 +111,21 @@ public class ServiceCacheControllerTest {
 
     meta.setEnabled( true );
     when( serviceCache.getConfiguredTimeToLive() ).thenReturn( "1200" );
+    when( serviceCache.isRefreshAhead() ).thenReturn( true );
+    when( serviceCache.getGracePeriod() ).thenReturn( "60" );
+    when( serviceCache.getHighWaterMark() ).thenReturn( "order_id" );
+    when( serviceCache.getIndexedColumns() ).thenReturn( "customer_id" );
+    when( serviceCache.getCompressedColumns() ).thenReturn( "description" );
+    when( model.getServiceName() ).thenReturn( "service" );
+    when( factory.getBudget() ).thenReturn( budget );
+    when( budget.getSize( "service" ) ).thenReturn( 3 * 1024 * 1024L );
+    when( budget.getEntryCount( "service" ) ).thenReturn( 2 );
+    when( budget.getMaxSize( "service" ) ).thenReturn( 16 * 1024 * 1024L );
+    CacheStatistics cacheStatistics = new CacheStatistics();
+    cacheStatistics.hit( "service", true );
+    cacheStatistics.replayed( "service", 100, 20 );
+    cacheStatistics.miss( "service" );
+    when( factory.getStatistics() ).thenReturn( cacheStatistics );
 
     controller.initBindings( model );
 
@@ -98,6 +133,29 @@ public class ServiceCacheControllerTest {
     verify( ttl ).setValue( "1200" );
     verify( bindingFactory ).createBinding( checkbox, "checked", meta, "enabled" );
     verify( bindingFactory ).createBinding( ttl, "value", serviceCache, "timeToLive" );
+    verify( refresh ).setChecked( true );
+    verify( grace ).setValue( "60" );
+    verify( grace ).setDisabled( false );
+    verify( bindingFactory ).createBinding( refresh, "checked", serviceCache, "refreshAhead" );
+    verify( bindingFactory ).createBinding( grace, "value", serviceCache, "gracePeriod" );
+    verify( highWaterMark ).setValue( "order_id" );
+    verify( highWaterMark ).setDisabled( false );
+    verify( bindingFactory ).createBinding( highWaterMark, "value", serviceCache, "highWaterMark" );
+    verify( indexedColumns ).setValue( "customer_id" );
+    verify( bindingFactory ).createBinding( indexedColumns, "value", serviceCache, "indexedColumns" );
+    verify( compressedColumns ).setValue( "description" );
+    verify( bindingFactory ).createBinding( compressedColumns, "value", serviceCache, "compressedColumns" );
+    verify( size ).setValue( ServiceCacheController.formatSize( 3 * 1024 * 1024L ) + " in 2 entries (limit "
+      + ServiceCacheController.formatSize( 16 * 1024 * 1024L ) + ")" );
+    verify( statistics ).setValue( MessageFormat.format( "1 hits, 1 misses ({0,number,percent} hit rate), "
+      + "100 rows replayed in 20 ms", 0.5 ) );
+  }
+
+  @Test
+  public void testFormatSize() throws Exception {
+    assertThat( ServiceCacheController.formatSize( 512 ), is( "512 B" ) );
+    assertThat( ServiceCacheController.formatSize( 1536 ), is( String.format( "%.1f KB", 1.5 ) ) );
+    assertThat( ServiceCacheController.formatSize( 5L * 1024 * 1024 * 1024 ), is( String.format( "%.1f GB", 5.0 ) ) );
   }
 
   @Test
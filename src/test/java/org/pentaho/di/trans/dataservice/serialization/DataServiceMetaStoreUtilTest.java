@@ -45,6 +45,7 @@ import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.logging.LogChannelInterface;
 import org.pentaho.di.repository.ObjectId;
 import org.pentaho.di.repository.Repository;
+import org.pentaho.di.repository.RepositoryObjectType;
 import org.pentaho.di.repository.StringObjectId;
 import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.dataservice.DataServiceContext;
@@ -133,6 +134,9 @@ public class DataServiceMetaStoreUtilTest {
     transMeta.setObjectId( objectId );
     doThrow( notFoundException ).when( repository ).loadTransformation( any( ObjectId.class ), anyString() );
     doReturn( transMeta ).when( repository ).loadTransformation( objectId, null );
+    // Revisions are unknown, so the loaded transformation itself is returned instead of a cached clone
+    when( repository.getObjectInformation( any( ObjectId.class ), any( RepositoryObjectType.class ) ) )
+      .thenReturn( null );
 
     metaStore = new MemoryMetaStore();
     metaStore.setName( DataServiceMetaStoreUtilTest.class.getName() );
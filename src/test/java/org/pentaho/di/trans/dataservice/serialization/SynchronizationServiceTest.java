@@ -21,6 +21,9 @@ import org.pentaho.di.trans.dataservice.ui.DataServiceDelegate;
 import org.pentaho.di.trans.step.StepMeta;
 import org.pentaho.metastore.api.exceptions.MetaStoreException;
 
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.same;
@@ -98,6 +101,18 @@ public class SynchronizationServiceTest {
     verify( logChannel ).logError( anyString(), same( metaStoreException ) );
   }
 
+  @Test
+  public void testContentChanged() throws Exception {
+    when( transMeta.getXML() ).thenReturn( "<transformation version=1/>" );
+    long version = TransMetaVersion.get( transMeta );
+
+    when( transMeta.getXML() ).thenReturn( "<transformation version=2/>" );
+    assertThat( TransMetaVersion.get( transMeta ), is( version ) );
+
+    service.contentChanged( transMeta );
+    assertThat( TransMetaVersion.get( transMeta ), not( is( version ) ) );
+  }
+
   @Test
   public void testOnStepChange() throws Exception {
     StepMeta oldMeta = mock( StepMeta.class );
@@ -0,0 +1,111 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.serialization;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.repository.Repository;
+import org.pentaho.di.trans.TransMeta;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith( MockitoJUnitRunner.class )
+public class TransMetaCacheTest {
+  @Mock ServiceTrans.Reference reference;
+  @Mock Repository repository;
+  @Mock TransMeta transMeta;
+  @Mock TransMeta updatedTransMeta;
+  @Mock TransMeta transMetaCopy;
+  @Mock TransMeta updatedTransMetaCopy;
+
+  private TransMetaCache transMetaCache;
+
+  @Before
+  public void setUp() throws Exception {
+    transMetaCache = new TransMetaCache( 2 );
+    when( reference.load( repository ) ).thenReturn( transMeta, updatedTransMeta );
+    when( transMeta.realClone( false ) ).thenReturn( transMetaCopy );
+    when( updatedTransMeta.realClone( false ) ).thenReturn( updatedTransMetaCopy );
+  }
+
+  @Test
+  public void testCacheHit() throws Exception {
+    when( reference.revision( repository ) ).thenReturn( "1" );
+
+    // Callers may modify what they get, the cached transformation is cloned
+    assertThat( transMetaCache.load( reference, repository ), sameInstance( transMetaCopy ) );
+    assertThat( transMetaCache.load( reference, repository ), sameInstance( transMetaCopy ) );
+    verify( reference, times( 1 ) ).load( repository );
+    verify( transMeta, times( 2 ) ).realClone( false );
+    assertThat( transMetaCache.size(), is( 1L ) );
+  }
+
+  @Test
+  public void testRevisionChanged() throws Exception {
+    when( reference.revision( repository ) ).thenReturn( "1", "2" );
+
+    assertThat( transMetaCache.load( reference, repository ), sameInstance( transMetaCopy ) );
+    assertThat( transMetaCache.load( reference, repository ), sameInstance( updatedTransMetaCopy ) );
+    verify( reference, times( 2 ) ).load( repository );
+  }
+
+  @Test
+  public void testUnknownRevision() throws Exception {
+    when( reference.revision( repository ) ).thenReturn( null ).thenThrow( new KettleException() );
+
+    assertThat( transMetaCache.load( reference, repository ), sameInstance( transMeta ) );
+    assertThat( transMetaCache.load( reference, repository ), sameInstance( updatedTransMeta ) );
+    assertThat( transMetaCache.size(), is( 0L ) );
+  }
+
+  @Test
+  public void testOtherRepository() throws Exception {
+    Repository otherRepository = mock( Repository.class );
+    when( reference.revision( repository ) ).thenReturn( "1" );
+    when( reference.revision( otherRepository ) ).thenReturn( "1" );
+    when( reference.load( otherRepository ) ).thenReturn( updatedTransMeta );
+
+    assertThat( transMetaCache.load( reference, repository ), sameInstance( transMetaCopy ) );
+    assertThat( transMetaCache.load( reference, otherRepository ), sameInstance( updatedTransMetaCopy ) );
+  }
+
+  @Test
+  public void testInvalidate() throws Exception {
+    when( reference.revision( repository ) ).thenReturn( "1" );
+
+    assertThat( transMetaCache.load( reference, repository ), sameInstance( transMetaCopy ) );
+    transMetaCache.invalidate( reference );
+    assertThat( transMetaCache.load( reference, repository ), sameInstance( updatedTransMetaCopy ) );
+  }
+}